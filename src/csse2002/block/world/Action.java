@@ -40,8 +40,42 @@ public class Action {
      */
     public static final int DROP = 3;
 
-    private int primaryAction;
-    private String secondaryAction;
+    // the most characters loadAction() reads without readLine(), which is
+    // far longer than any valid action
+    private static final int MAX_LINE = 128;
+
+    // returned by readLine() at the end of the reader, or for a line that
+    // must be read with BufferedReader.readLine()
+    private static final int END = -1;
+    private static final int SLOW_LINE = -2;
+
+    // the directions, in the order of the shared actions for each
+    private static final String[] DIRECTIONS =
+            {"north", "east", "south", "west"};
+
+    // the number of DROP indices (from 0) with a shared action
+    private static final int SHARED_DROPS = 256;
+
+    // the shared actions returned by loadAction(), which never change
+    private static final Action DIG_ACTION = new Action(DIG, "");
+    private static final Action[] MOVE_BUILDER_ACTIONS =
+            sharedActions(MOVE_BUILDER, DIRECTIONS);
+    private static final Action[] MOVE_BLOCK_ACTIONS =
+            sharedActions(MOVE_BLOCK, DIRECTIONS);
+    private static final Action[] DROP_ACTIONS =
+            sharedActions(DROP, dropIndices());
+
+    // each thread's buffer for the line being loaded
+    private static final ThreadLocal<char[]> LINE =
+            new ThreadLocal<char[]>() {
+                @Override
+                protected char[] initialValue() {
+                    return new char[MAX_LINE];
+                }
+            };
+
+    private final int primaryAction;
+    private final String secondaryAction;
 
     /**
      * Create an Action that represents a manipulation of the blockworld.
@@ -124,7 +158,13 @@ public class Action {
      *          ActionFormatException. </li>
      * </ul>
      *
-     * For details of the action format see Action.loadActions().
+     * For details of the action format see Action.loadActions(). <br>
+     *
+     * Actions never change, so the same Action is returned for every DIG,
+     * every MOVE_BUILDER and MOVE_BLOCK in one of the four directions, and
+     * every DROP of an index from 0 to 255 written without a sign or
+     * leading zeros. The line is read into a buffer and recognised in
+     * place, so loading these actions creates no objects.
      *
      * @param reader the reader to read the action contents form
      * @return the created action, or null if the reader is at the end of
@@ -137,46 +177,198 @@ public class Action {
             ActionFormatException {
 
         try {
-            String line = reader.readLine();
+            char[] line = LINE.get();
+            int length = readLine(reader, line);
 
-            // EOF reached, reader returns null
-            if (line == null) {
-                return null;
+            if (length == SLOW_LINE) {
+                String text = reader.readLine();
+                if (text == null) {
+                    return null;
+                }
+                line = text.toCharArray();
+                length = line.length;
             }
 
+            // EOF reached
+            if (length == END) {
+                return null;
+            }
 
-            String [] tokens = line.split(" ", 3);
+            return parseAction(line, length);
 
-            if (tokens.length > 2) {
-                throw new ActionFormatException("Too many tokens on line.");
-            }
+        } catch (IOException e) {
+            throw new ActionFormatException(e.toString());
+        }
+    }
 
-            Action action = null;
+    /**
+     * Read the next line from a reader into a buffer, as
+     * BufferedReader.readLine() would read it, without creating a String.
+     * If the line does not fit in the buffer, or its end is not yet in the
+     * reader's buffer, nothing is read and SLOW_LINE is returned, so the
+     * line can be read with readLine().
+     * @param reader the reader to read from
+     * @param line the buffer to read the line into
+     * @return the length of the line, END at the end of the reader, or
+     *         SLOW_LINE
+     * @throws IOException if the reader throws an IOException
+     */
+    private static int readLine(BufferedReader reader, char[] line)
+            throws IOException {
+        // a '\n' skipped after a line ending in '\r' counts towards the
+        // limit too
+        reader.mark(line.length + 1);
+        int read = reader.read(line, 0, line.length);
+        if (read == -1) {
+            return END;
+        }
 
-            if (tokens.length == 1) {
-                if (tokens[0].equals("DIG")) {
-                    action = new Action(DIG, "");
+        for (int i = 0; i < read; i++) {
+            if (line[i] == '\n' || line[i] == '\r') {
+                if (line[i] == '\r' && i + 1 == read) {
+                    // a '\n' after it would end the same line
+                    break;
                 }
-            } else if (tokens.length == 2) {
-                if (tokens[0].equals("MOVE_BUILDER")) {
-                    action = new Action(MOVE_BUILDER, tokens[1]);
-                } else if (tokens[0].equals("MOVE_BLOCK")) {
-                    action = new Action(MOVE_BLOCK, tokens[1]);
-                } else if (tokens[0].equals("DROP")) {
-                    action = new Action(DROP, tokens[1]);
+                int terminator = line[i] == '\r' && line[i + 1] == '\n'
+                        ? 2 : 1;
+                reader.reset();
+                reader.skip(i + terminator);
+                return i;
+            }
+        }
+        reader.reset();
+        return SLOW_LINE;
+    }
+
+    /**
+     * Recognise the action on a line, as loadAction() describes.
+     * @param line the characters of the line
+     * @param length the length of the line
+     * @return the action
+     * @throws ActionFormatException if the line is not a valid action
+     */
+    static Action parseAction(char[] line, int length)
+            throws ActionFormatException {
+        int space = -1;
+        for (int i = 0; i < length; i++) {
+            if (line[i] == ' ') {
+                if (space >= 0) {
+                    throw new ActionFormatException(
+                            "Too many tokens on line.");
                 }
+                space = i;
+            }
+        }
+
+        if (space < 0) {
+            if (matches(line, 0, length, "DIG")) {
+                return DIG_ACTION;
+            }
+        } else {
+            int start = space + 1;
+            int count = length - start;
+            if (matches(line, 0, space, "MOVE_BUILDER")) {
+                return moveAction(MOVE_BUILDER_ACTIONS, line, start, count);
+            } else if (matches(line, 0, space, "MOVE_BLOCK")) {
+                return moveAction(MOVE_BLOCK_ACTIONS, line, start, count);
+            } else if (matches(line, 0, space, "DROP")) {
+                return dropAction(line, start, count);
             }
+        }
 
+        throw new ActionFormatException("Unrecognised action given");
+    }
+
+    /**
+     * Get a MOVE_BUILDER or MOVE_BLOCK action, shared if its direction is
+     * one of the four directions.
+     * @param shared the shared actions of that type, by direction
+     * @param line the characters of the line
+     * @param start the index of the secondary action in line
+     * @param count the length of the secondary action
+     * @return the action
+     */
+    private static Action moveAction(Action[] shared, char[] line, int start,
+                                     int count) {
+        for (int i = 0; i < DIRECTIONS.length; i++) {
+            if (matches(line, start, count, DIRECTIONS[i])) {
+                return shared[i];
+            }
+        }
+        return new Action(shared[0].getPrimaryAction(),
+                new String(line, start, count));
+    }
+
+    /**
+     * Get a DROP action, shared if its index is a small number written
+     * without a sign or leading zeros.
+     * @param line the characters of the line
+     * @param start the index of the secondary action in line
+     * @param count the length of the secondary action
+     * @return the action
+     */
+    private static Action dropAction(char[] line, int start, int count) {
+        int index = 0;
+        for (int i = start; i < start + count && index < SHARED_DROPS; i++) {
+            if (line[i] < '0' || line[i] > '9'
+                    || (i == start && line[i] == '0' && count > 1)) {
+                index = SHARED_DROPS;
+            } else {
+                index = index * 10 + line[i] - '0';
+            }
+        }
+        if (count > 0 && index < SHARED_DROPS) {
+            return DROP_ACTIONS[index];
+        }
+        return new Action(DROP, new String(line, start, count));
+    }
 
-            if (action == null) {
-                throw new ActionFormatException("Unrecognised action given");
+    /**
+     * Check whether part of a line is a given word.
+     * @param line the characters of the line
+     * @param start the index of the part in line
+     * @param count the length of the part
+     * @param word the word
+     * @return true if the part is exactly the word
+     */
+    private static boolean matches(char[] line, int start, int count,
+                                   String word) {
+        if (count != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (line[start + i] != word.charAt(i)) {
+                return false;
             }
+        }
+        return true;
+    }
 
-            return action;
+    /**
+     * Create the shared actions of a type.
+     * @param primaryAction the primary action
+     * @param secondaryActions the secondary action of each
+     * @return the actions, in the order of their secondary actions
+     */
+    private static Action[] sharedActions(int primaryAction,
+                                          String[] secondaryActions) {
+        Action[] actions = new Action[secondaryActions.length];
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = new Action(primaryAction, secondaryActions[i]);
+        }
+        return actions;
+    }
 
-        } catch (IOException e) {
-            throw new ActionFormatException(e.toString());
+    /**
+     * Get the DROP indices that have shared actions.
+     * @return "0" to "255"
+     */
+    private static String[] dropIndices() {
+        String[] indices = new String[SHARED_DROPS];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = Integer.toString(i);
         }
+        return indices;
     }
 
     /**
@@ -279,6 +471,99 @@ public class Action {
         }
     }
 
+    /**
+     * Read all the actions from the given reader and perform them on the
+     * given block world, as processActions(reader, startingMap) does, but
+     * append each action to a journal before it is performed. <br>
+     * Pending journal entries are committed when the reader is exhausted
+     * or an ActionFormatException is thrown.
+     *
+     * @param reader the reader to read actions from
+     * @param startingMap the starting map that actions will be applied to
+     * @param journal the journal to append actions to, which must have
+     *         been recovered to startingMap
+     * @throws ActionFormatException if loadAction throws an
+     *         ActionFormatException
+     * @throws IOException if writing to the journal fails
+     * @require reader != null
+     * @require startingMap != null
+     * @require journal != null
+     */
+    public static void processActions(BufferedReader reader,
+                                      WorldMap startingMap,
+                                      ActionJournal journal)
+            throws ActionFormatException, IOException {
+        try {
+            Action action = Action.loadAction(reader);
+            while (action != null) {
+                journal.append(action);
+                processAction(action, startingMap);
+                action = Action.loadAction(reader);
+            }
+        } finally {
+            journal.commit();
+        }
+    }
+
+    /**
+     * Perform every remaining action of a compiled action file on the given
+     * block world, as processActions(reader, startingMap) does for the text
+     * the file was compiled from, printing exactly the same messages. <br>
+     * The actions are read from the memory-mapped file without parsing any
+     * text.
+     *
+     * @param actions the compiled actions to perform
+     * @param startingMap the starting map that actions will be applied to
+     * @throws ActionFormatException if an action cannot be read from the
+     *         file, with the line number it was compiled from
+     * @require actions != null
+     * @require startingMap != null
+     */
+    public static void processActions(CompiledActions actions,
+                                      WorldMap startingMap)
+            throws ActionFormatException {
+
+        Action action = actions.next();
+        while (action != null) {
+            processAction(action, startingMap);
+            action = actions.next();
+        }
+    }
+
+    /**
+     * Perform every remaining action of a compiled action file on the given
+     * block world, as processActions(actions, startingMap) does, but
+     * append each action to a journal before it is performed. <br>
+     * Pending journal entries are committed when the file is exhausted or
+     * an ActionFormatException is thrown.
+     *
+     * @param actions the compiled actions to perform
+     * @param startingMap the starting map that actions will be applied to
+     * @param journal the journal to append actions to, which must have
+     *         been recovered to startingMap
+     * @throws ActionFormatException if an action cannot be read from the
+     *         file
+     * @throws IOException if writing to the journal fails
+     * @require actions != null
+     * @require startingMap != null
+     * @require journal != null
+     */
+    public static void processActions(CompiledActions actions,
+                                      WorldMap startingMap,
+                                      ActionJournal journal)
+            throws ActionFormatException, IOException {
+        try {
+            Action action = actions.next();
+            while (action != null) {
+                journal.append(action);
+                processAction(action, startingMap);
+                action = actions.next();
+            }
+        } finally {
+            journal.commit();
+        }
+    }
+
     /**
      * Perform the given action on a WorldMap, and print output to System.out.
      * After this method
@@ -340,111 +625,224 @@ public class Action {
      * @require map != null
      */
     public static void processAction(Action action, WorldMap map) {
+        System.out.println(performAction(action, map));
+    }
 
-        try {
-            int primary = action.getPrimaryAction();
-            switch (primary) {
-                case Action.DIG:
-                    handleDig(map);
-                    System.out.println("Top block on current tile removed");
-                    break;
-                case Action.DROP:
-                    int secondaryAction;
-                    try {
-                        secondaryAction =
-                                Integer.parseInt(action.getSecondaryAction());
-                    } catch (NumberFormatException numberFormat) {
-                        System.out.println("Error: Invalid action");
-                        return;
-                    }
-                    handleDrop(map, secondaryAction);
-                    System.out.println("Dropped a block from inventory");
-                    break;
-                case Action.MOVE_BLOCK:
-                    if (!isValidDirection(action.getSecondaryAction())) {
-                        System.out.println("Error: Invalid action");
-                        return;
-                    }
-                    handleMoveBlock(map, action.getSecondaryAction());
-                    System.out.println("Moved block "
-                            + action.getSecondaryAction());
-                    break;
-                case Action.MOVE_BUILDER:
-                    if (!isValidDirection(action.getSecondaryAction())) {
-                        System.out.println("Error: Invalid action");
-                        return;
-                    }
-                    handleMoveBuilder(map, action.getSecondaryAction());
-                    System.out.println("Moved builder "
-                            + action.getSecondaryAction());
-                    break;
-                default:
-                    System.out.println("Error: Invalid action");
+    /**
+     * Perform the given action on a WorldMap, and return the message that
+     * processAction() would print for it (without a trailing newline). <br>
+     * The action is performed with the methods of Builder and Tile that
+     * return an {@link Outcome Outcome}, so an action that cannot be
+     * performed never creates an exception. If the map has ActionStats
+     * (see WorldMap.setActionStats()), the action and its outcome (and,
+     * for a sample of actions, the time it took) are recorded in them.
+     *
+     * @param action the action to be done on the map
+     * @param map    the map to perform the action on
+     * @return the message describing the result of the action
+     * @require action != null
+     * @require map != null
+     */
+    static String performAction(Action action, WorldMap map) {
+        return getMessage(action, performOutcome(action, map));
+    }
+
+    /**
+     * Perform the given action on a WorldMap, as performAction() does, but
+     * return its outcome instead of a message, for when the message is not
+     * wanted (e.g. replaying actions with ActionReplay).
+     * @param action the action to be done on the map
+     * @param map    the map to perform the action on
+     * @return the Outcome code, or ActionStats.INVALID_ACTION if the action
+     *         is not valid
+     * @require action != null
+     * @require map != null
+     */
+    static int performOutcome(Action action, WorldMap map) {
+        ActionStats stats = map.getActionStats();
+        if (stats == null) {
+            return perform(action, map.getBuilder());
+        }
+
+        long start = stats.startTiming();
+        int outcome = perform(action, map.getBuilder());
+        stats.record(action.getPrimaryAction(), outcome, start);
+        return outcome;
+    }
+
+    /**
+     * Perform the given action with a builder, without recording it in any
+     * ActionStats.
+     * @param action the action to be done
+     * @param builder the builder to perform the action with
+     * @return the Outcome code, or ActionStats.INVALID_ACTION if the action
+     *         is not valid
+     * @require action != null
+     * @require builder != null
+     */
+    static int perform(Action action, Builder builder) {
+        switch (action.getPrimaryAction()) {
+            case Action.DIG:
+                return handleDig(builder);
+            case Action.DROP:
+                int index = dropIndex(action.getSecondaryAction());
+                if (index < 0) {
+                    return ActionStats.INVALID_ACTION;
+                }
+                return handleDrop(builder, index);
+            case Action.MOVE_BLOCK:
+                if (!isValidDirection(action.getSecondaryAction())) {
+                    return ActionStats.INVALID_ACTION;
+                }
+                return handleMoveBlock(builder, action.getSecondaryAction());
+            case Action.MOVE_BUILDER:
+                if (!isValidDirection(action.getSecondaryAction())) {
+                    return ActionStats.INVALID_ACTION;
+                }
+                return handleMoveBuilder(builder, action.getSecondaryAction());
+            default:
+                return ActionStats.INVALID_ACTION;
+        }
+    }
+
+    /**
+     * Get the inventory index dropped by a DROP action, reading its
+     * secondary action as Integer.parseInt() would, but without creating
+     * an exception when it is not a number.
+     * @param secondaryAction the secondary action of the DROP
+     * @return the index; Integer.MAX_VALUE for a negative number, since
+     *         like any negative index it is never in an inventory; or -1 if
+     *         secondaryAction is not an int
+     */
+    static int dropIndex(String secondaryAction) {
+        int length = secondaryAction == null ? 0 : secondaryAction.length();
+        if (length == 0) {
+            return -1;
+        }
+
+        char sign = secondaryAction.charAt(0);
+        boolean negative = sign == '-';
+        int start = negative || sign == '+' ? 1 : 0;
+        if (start == length) {
+            return -1;
+        }
+
+        // accumulated negatively, as Integer.parseInt() does, so that
+        // Integer.MIN_VALUE can be read too
+        int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        int result = 0;
+        for (int i = start; i < length; i++) {
+            int digit = Character.digit(secondaryAction.charAt(i), 10);
+            if (digit < 0 || result < limit / 10) {
+                return -1;
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                return -1;
             }
-        } catch (NoExitException noExit) {
-            System.out.println("No exit this way");
-        } catch (TooHighException tooHigh) {
-            System.out.println("Too high");
-        } catch (TooLowException tooLow) {
-            System.out.println("Too low");
-        } catch (InvalidBlockException invalidBlock) {
-            System.out.println("Cannot use that block");
+            result -= digit;
+        }
+
+        if (!negative) {
+            return -result;
+        }
+        return result == 0 ? 0 : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Get the message printed for an action that has been performed.
+     * @param action the action
+     * @param outcome the outcome returned by perform()
+     * @return the message describing the result of the action
+     */
+    static String getMessage(Action action, int outcome) {
+        switch (outcome) {
+            case Outcome.SUCCESS:
+                break;
+            case Outcome.NO_EXIT:
+                return "No exit this way";
+            case Outcome.TOO_HIGH:
+                return "Too high";
+            case Outcome.TOO_LOW:
+                return "Too low";
+            case Outcome.INVALID_BLOCK:
+                return "Cannot use that block";
+            default:
+                return "Error: Invalid action";
+        }
+
+        switch (action.getPrimaryAction()) {
+            case Action.DIG:
+                return "Top block on current tile removed";
+            case Action.DROP:
+                return "Dropped a block from inventory";
+            case Action.MOVE_BLOCK:
+                return "Moved block " + action.getSecondaryAction();
+            default:
+                return "Moved builder " + action.getSecondaryAction();
+        }
+    }
+
+    /**
+     * Get the action as a line in the format read by loadAction(), e.g.
+     * "MOVE_BUILDER north" or "DIG".
+     * @return the action as a line of text, or null if the primary action
+     *         is not one of MOVE_BUILDER, MOVE_BLOCK, DIG or DROP
+     */
+    String toLine() {
+        switch (primaryAction) {
+            case MOVE_BUILDER:
+                return "MOVE_BUILDER " + secondaryAction;
+            case MOVE_BLOCK:
+                return "MOVE_BLOCK " + secondaryAction;
+            case DIG:
+                return "DIG";
+            case DROP:
+                return "DROP " + secondaryAction;
+            default:
+                return null;
         }
     }
 
     /**
      * Handle moving the builder.
-     * @param map the map to use
+     * @param builder the builder to use
      * @param direction the direction as a string
-     * @throws NoExitException if the builder cannot move that direction
+     * @return the outcome of Builder.tryMoveTo()
      */
-    private static void handleMoveBuilder(WorldMap map, String direction)
-            throws NoExitException {
-        Tile movingTo = map.getBuilder().getCurrentTile().getExits()
+    private static int handleMoveBuilder(Builder builder, String direction) {
+        Tile movingTo = builder.getCurrentTile().getExits()
                 .get(direction);
-        map.getBuilder().moveTo(movingTo);
-
+        return builder.tryMoveTo(movingTo);
     }
 
     /**
      * Handle moving a block.
-     * @param map the map to use
+     * @param builder the builder to use
      * @param direction the direction as a string
-     * @throws TooHighException Tile.moveBlock() throws a TooHighException
-     * @throws InvalidBlockException the block on the builder's tile is not
-     *         moveable.
-     * @throws NoExitException if there is no exit in that direction.
+     * @return the outcome of Builder.tryMoveBlock()
      */
-    private static void handleMoveBlock(WorldMap map, String direction)
-            throws TooHighException, InvalidBlockException, NoExitException {
-        map.getBuilder().getCurrentTile().moveBlock(direction);
+    private static int handleMoveBlock(Builder builder, String direction) {
+        return builder.tryMoveBlock(direction);
     }
 
     /**
      * Handle dropping a block.
-     * @param map the map to use
+     * @param builder the builder to use
      * @param index the block index in the Builder's inventory
-     * @throws TooHighException if Builder.drop() would throw a
-     *         TooHighException
-     * @throws InvalidBlockException if Builder.drop() would throw an
-     *         InvalidBlockException
+     * @return the outcome of Builder.tryDropFromInventory()
      */
-    private static void handleDrop(WorldMap map, int index)
-            throws TooHighException, InvalidBlockException {
-        map.getBuilder().dropFromInventory(index);
+    private static int handleDrop(Builder builder, int index) {
+        return builder.tryDropFromInventory(index);
     }
 
     /**
      * Handle digging a block.
-     * @param map the map to use
-     * @throws TooLowException if Builder.digOnCurrentTIle() would throw a
-     *         TooLowException
-     * @throws InvalidBlockException if Builder.digOnCurrentTile() would throw
-     *         an InvalidBlockException
+     * @param builder the builder to use
+     * @return the outcome of Builder.tryDigOnCurrentTile()
      */
-    private static void handleDig(WorldMap map)
-            throws TooLowException, InvalidBlockException {
-        map.getBuilder().digOnCurrentTile();
+    private static int handleDig(Builder builder) {
+        return builder.tryDigOnCurrentTile();
     }
 
     /**
@@ -456,7 +854,7 @@ public class Action {
      * @throws ActionFormatException if the provided directional string does not
      *                               match one of the given options
      */
-    private static boolean isValidDirection(String direction) {
+    static boolean isValidDirection(String direction) {
         return Arrays.asList(new String[]{"north", "south", "east", "west"})
                 .contains(direction);
     }
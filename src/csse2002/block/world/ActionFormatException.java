@@ -6,11 +6,35 @@ package csse2002.block.world;
  */
 public class ActionFormatException extends Exception {
 
+    // the line of the action text with the invalid action, or 0 if unknown
+    private final long lineNumber;
+
     public ActionFormatException() {
         super();
+        this.lineNumber = 0;
     }
 
     public ActionFormatException(String message) {
         super(message);
+        this.lineNumber = 0;
+    }
+
+    /**
+     * Create an exception for an invalid action on a known line of the
+     * action text (e.g. when compiling it, see CompiledActions).
+     * @param message the message
+     * @param lineNumber the line with the invalid action, counting from 1
+     */
+    public ActionFormatException(String message, long lineNumber) {
+        super(message);
+        this.lineNumber = lineNumber;
+    }
+
+    /**
+     * Get the line of the action text with the invalid action.
+     * @return the line number (counting from 1), or 0 if it is not known
+     */
+    public long getLineNumber() {
+        return lineNumber;
     }
 }
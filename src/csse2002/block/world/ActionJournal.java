@@ -0,0 +1,399 @@
+package csse2002.block.world;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * An append-only write-ahead journal of the actions performed on a
+ * {@link WorldMap WorldMap}, so that the map can be recovered if the program
+ * stops before the map is saved. <br>
+ * The journal is kept in a directory containing:
+ * <ul>
+ *     <li> "checkpoint", which names the latest snapshot. It holds the
+ *          lines "seq:S" and "builder:B", where S is the number of actions
+ *          performed before the snapshot was taken and B is the id of the
+ *          tile the builder was on. </li>
+ *     <li> "snapshot-S.txt", the map after S actions, in the format
+ *          written by WorldMap.saveMap(). </li>
+ *     <li> "journal-S.log", every action performed after the snapshot, one
+ *          per line in the format read by Action.loadAction(). </li>
+ * </ul>
+ * Actions are appended to an in-memory buffer and written and forced to
+ * disk in groups (group commit), so the cost of each fsync is shared by a
+ * group of actions. After a crash, at most the last uncommitted group is
+ * lost. <br>
+ * Every so many actions a new snapshot is taken and a new journal segment
+ * is started, so recovery never has to replay more than one snapshot
+ * interval of actions.
+ * @serial exclude
+ */
+public class ActionJournal {
+
+    /**
+     * The number of actions written and forced to disk together, unless
+     * changed with setGroupSize().
+     */
+    public static final int DEFAULT_GROUP_SIZE = 4096;
+
+    /**
+     * The number of actions between snapshots, unless changed with
+     * setSnapshotInterval().
+     */
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 1000000;
+
+    // the name of the file naming the latest snapshot
+    private static final String CHECKPOINT = "checkpoint";
+
+    // the directory holding the journal
+    private File directory;
+
+    // the map the journaled actions are applied to
+    private WorldMap map;
+
+    // the number of actions performed on the map, including those
+    // replayed during recovery
+    private long sequence;
+
+    // the sequence number of the latest snapshot
+    private long snapshotSequence;
+
+    // the journal segment being appended to
+    private FileChannel segment;
+
+    // actions appended but not yet written to the segment
+    private StringBuilder pending = new StringBuilder();
+
+    // the number of actions in pending
+    private int pendingCount;
+
+    // the number of actions to write and force to disk at once
+    private int groupSize = DEFAULT_GROUP_SIZE;
+
+    // the number of actions between snapshots
+    private int snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+
+    /**
+     * Create a journal kept in the given directory. The directory is
+     * created if it does not exist. <br>
+     * recover() must be called before any actions are appended.
+     * @param directory the directory to keep the journal in
+     * @throws IOException if the directory cannot be created
+     * @require directory != null
+     */
+    public ActionJournal(String directory) throws IOException {
+        this.directory = new File(directory);
+        Files.createDirectories(this.directory.toPath());
+    }
+
+    /**
+     * Get the number of actions written and forced to disk together.
+     * @return the group size
+     */
+    public int getGroupSize() {
+        return groupSize;
+    }
+
+    /**
+     * Set the number of actions written and forced to disk together. A
+     * group size of 1 forces every action to disk before it is performed.
+     * @param groupSize the new group size
+     * @require groupSize &gt; 0
+     */
+    public void setGroupSize(int groupSize) {
+        this.groupSize = groupSize;
+    }
+
+    /**
+     * Get the number of actions between snapshots.
+     * @return the snapshot interval
+     */
+    public int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    /**
+     * Set the number of actions between snapshots.
+     * @param snapshotInterval the new snapshot interval
+     * @require snapshotInterval &gt; 0
+     */
+    public void setSnapshotInterval(int snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * Get the number of actions performed on the map, including those
+     * replayed by recover().
+     * @return the number of journaled actions
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Load the map for this journal. <br>
+     * If the journal has a snapshot, the latest snapshot is loaded and the
+     * builder is put back on the tile it was on. Otherwise the map is
+     * loaded from inputMap. Then every complete action in the journal
+     * after the snapshot is performed again (without printing anything),
+     * and the journal is opened for appending.
+     * @param inputMap the map file to load if there is no snapshot
+     * @return the recovered map
+     * @throws WorldMapFormatException if the snapshot or inputMap is
+     *         incorrectly formatted
+     * @throws WorldMapInconsistentException if the snapshot or inputMap is
+     *         inconsistent
+     * @throws IOException if the journal cannot be read or opened
+     * @require inputMap != null
+     */
+    public WorldMap recover(String inputMap) throws WorldMapFormatException,
+            WorldMapInconsistentException, IOException {
+        File checkpoint = new File(directory, CHECKPOINT);
+        long builderTile = 0;
+
+        if (checkpoint.exists()) {
+            List<String> lines = Files.readAllLines(checkpoint.toPath(),
+                    StandardCharsets.UTF_8);
+            if (lines.size() != 2 || !lines.get(0).startsWith("seq:")
+                    || !lines.get(1).startsWith("builder:")) {
+                throw new IOException("Corrupt journal checkpoint "
+                        + checkpoint);
+            }
+            try {
+                snapshotSequence = Long.parseLong(lines.get(0).substring(4));
+                builderTile = Long.parseLong(lines.get(1).substring(8));
+            } catch (NumberFormatException e) {
+                throw new IOException("Corrupt journal checkpoint "
+                        + checkpoint);
+            }
+
+            map = new WorldMap(snapshotFile(snapshotSequence).getPath());
+            List<Tile> tiles = map.getTiles();
+            if (builderTile >= 0 && builderTile < tiles.size()) {
+                map.getBuilder().setCurrentTile(
+                        tiles.get((int) builderTile));
+            }
+        } else {
+            snapshotSequence = 0;
+            map = new WorldMap(inputMap);
+        }
+
+        sequence = snapshotSequence + replay(segmentFile(snapshotSequence));
+        segment = openSegment(snapshotSequence);
+        return map;
+    }
+
+    /**
+     * Append an action to the journal. The action must be appended before
+     * it is performed on the map. <br>
+     * Writes and forces the pending group to disk once it holds
+     * getGroupSize() actions, and takes a snapshot once
+     * getSnapshotInterval() actions have been performed since the last one.
+     * @param action the action to append
+     * @throws IOException if writing to the journal fails
+     * @require action was returned by Action.loadAction()
+     * @require recover() has been called
+     */
+    public void append(Action action) throws IOException {
+        // every action appended so far has now been performed
+        if (sequence - snapshotSequence >= snapshotInterval) {
+            snapshot();
+        }
+
+        pending.append(action.toLine()).append('\n');
+        pendingCount++;
+        sequence++;
+
+        if (pendingCount >= groupSize) {
+            commit();
+        }
+    }
+
+    /**
+     * Write every pending action to the journal and force it to disk.
+     * @throws IOException if writing to the journal fails
+     */
+    public void commit() throws IOException {
+        if (pendingCount == 0) {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(
+                pending.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            segment.write(buffer);
+        }
+        segment.force(false);
+
+        pending.setLength(0);
+        pendingCount = 0;
+    }
+
+    /**
+     * Commit any pending actions and close the journal.
+     * @throws IOException if writing to the journal fails
+     */
+    public void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            segment.close();
+        }
+    }
+
+    /**
+     * Close the journal and delete its files, for example once the map has
+     * been saved and there is nothing left to recover.
+     * @throws IOException if the journal files cannot be deleted
+     */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(new File(directory, CHECKPOINT).toPath());
+        Files.deleteIfExists(snapshotFile(snapshotSequence).toPath());
+        Files.deleteIfExists(segmentFile(snapshotSequence).toPath());
+    }
+
+    /**
+     * Save a snapshot of the map and start a new journal segment. The old
+     * snapshot and segment are deleted once the new checkpoint is on disk.
+     * @throws IOException if the snapshot cannot be written
+     */
+    private void snapshot() throws IOException {
+        commit();
+
+        // find the builder's tile in the order saveMap() writes tiles
+        List<Tile> tiles = map.getTiles();
+        int builderTile = 0;
+        for (int i = 0; i < tiles.size(); i++) {
+            if (tiles.get(i) == map.getBuilder().getCurrentTile()) {
+                builderTile = i;
+                break;
+            }
+        }
+
+        File snapshot = snapshotFile(sequence);
+        map.saveMap(snapshot.getPath());
+        force(snapshot);
+
+        // the rename makes the new checkpoint visible all at once
+        File temp = new File(directory, CHECKPOINT + ".tmp");
+        Files.write(temp.toPath(), ("seq:" + sequence + "\n"
+                + "builder:" + builderTile + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        force(temp);
+        Files.move(temp.toPath(), new File(directory, CHECKPOINT).toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+
+        long oldSequence = snapshotSequence;
+        segment.close();
+        segment = openSegment(sequence);
+        snapshotSequence = sequence;
+
+        Files.deleteIfExists(snapshotFile(oldSequence).toPath());
+        Files.deleteIfExists(segmentFile(oldSequence).toPath());
+    }
+
+    /**
+     * Perform every complete action in a journal segment on the map. An
+     * incomplete last line (from a crash while writing) is removed from
+     * the segment.
+     * @param segmentFile the segment to replay
+     * @return the number of actions replayed
+     * @throws IOException if the segment cannot be read, or contains a line
+     *         that is not an action
+     */
+    private long replay(File segmentFile) throws IOException {
+        if (!segmentFile.exists()) {
+            return 0;
+        }
+
+        truncateToLastLine(segmentFile);
+
+        long count = 0;
+        try (BufferedReader reader = new BufferedReader(
+                new FileReader(segmentFile))) {
+            Action action = Action.loadAction(reader);
+            while (action != null) {
+                Action.performAction(action, map);
+                count++;
+                action = Action.loadAction(reader);
+            }
+        } catch (ActionFormatException e) {
+            throw new IOException("Corrupt journal " + segmentFile
+                    + " after action " + count + ": " + e.getMessage());
+        }
+
+        return count;
+    }
+
+    /**
+     * Cut a file after its last newline, removing a partly written line.
+     * @param file the file to truncate
+     * @throws IOException if the file cannot be read or truncated
+     */
+    private static void truncateToLastLine(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            while (length > 0) {
+                raf.seek(length - 1);
+                if (raf.read() == '\n') {
+                    break;
+                }
+                length--;
+            }
+            raf.setLength(length);
+        }
+    }
+
+    /**
+     * Open a journal segment for appending, creating it if needed.
+     * @param segmentSequence the sequence number of the segment's snapshot
+     * @return the open segment
+     * @throws IOException if the segment cannot be opened
+     */
+    private FileChannel openSegment(long segmentSequence) throws IOException {
+        return FileChannel.open(segmentFile(segmentSequence).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Force a file that has been written and closed to disk.
+     * @param file the file to force
+     * @throws IOException if the file cannot be forced
+     */
+    private static void force(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Get the snapshot file for a sequence number.
+     * @param snapshotSequence the sequence number
+     * @return the snapshot file
+     */
+    private File snapshotFile(long snapshotSequence) {
+        return new File(directory, "snapshot-" + snapshotSequence + ".txt");
+    }
+
+    /**
+     * Get the journal segment for a sequence number.
+     * @param segmentSequence the sequence number
+     * @return the segment file
+     */
+    private File segmentFile(long segmentSequence) {
+        return new File(directory, "journal-" + segmentSequence + ".log");
+    }
+}
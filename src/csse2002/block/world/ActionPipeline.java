@@ -0,0 +1,321 @@
+package csse2002.block.world;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Performs actions read from a reader as a pipeline of two stages, so that
+ * reading and parsing actions overlaps with performing them. <br>
+ * A reader thread reads actions with Action.loadAction() into batches,
+ * which are passed through a bounded queue to the calling thread. The
+ * calling thread performs each action on the map, in order, and writes
+ * its message to an {@link ActionSink ActionSink}, which is flushed
+ * whenever the calling thread would otherwise wait for actions. The map
+ * is only ever used by the calling thread. <br>
+ * The messages, and the state of the map, are exactly the same as with
+ * Action.processActions(): if an action cannot be read, every action
+ * before it is performed (and its message written) before the
+ * ActionFormatException is thrown. <br>
+ * A batch is handed on as soon as it is full, or as soon as the reader
+ * has no more input ready, so actions typed on System.in are still
+ * performed as they are entered. <br>
+ * Compiled actions (see {@link CompiledActions CompiledActions}) need no
+ * parsing, so they are read and performed on the calling thread alone.
+ * <br>
+ * The number of actions performed and the time taken are recorded, so the
+ * throughput of the last run can be reported.
+ */
+public class ActionPipeline {
+
+    /**
+     * The number of batches that can wait in the queue between the
+     * stages, unless changed by the constructor.
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * The most actions read into a single batch.
+     */
+    static final int BATCH_SIZE = 256;
+
+    /**
+     * A batch of actions passed from the reader stage to the executor
+     * stage.
+     */
+    private static class Batch {
+
+        // the actions, and the number of them
+        final Action[] actions = new Action[BATCH_SIZE];
+        int count;
+
+        // whether the reader is at the end of its input after this batch
+        boolean end;
+
+        // the exception that stopped the reader after this batch, if any
+        ActionFormatException error;
+    }
+
+    /**
+     * The reader stage, which reads batches of actions into the queue.
+     */
+    private static class ReaderStage extends Thread {
+
+        // the reader to read actions from
+        private final BufferedReader reader;
+
+        // the queue to put batches in
+        private final BlockingQueue<Batch> queue;
+
+        /**
+         * Create the reader stage.
+         * @param reader the reader to read actions from
+         * @param queue the queue to put batches in
+         */
+        ReaderStage(BufferedReader reader, BlockingQueue<Batch> queue) {
+            super("action-reader");
+            setDaemon(true);
+            this.reader = reader;
+            this.queue = queue;
+        }
+
+        /**
+         * Read batches until the end of the input or an invalid action.
+         */
+        @Override
+        public void run() {
+            try {
+                Batch batch = new Batch();
+                while (true) {
+                    Action action;
+                    try {
+                        action = Action.loadAction(reader);
+                    } catch (ActionFormatException e) {
+                        batch.error = e;
+                        queue.put(batch);
+                        return;
+                    }
+
+                    if (action == null) {
+                        batch.end = true;
+                        queue.put(batch);
+                        return;
+                    }
+
+                    batch.actions[batch.count++] = action;
+                    if (batch.count == BATCH_SIZE || !ready()) {
+                        queue.put(batch);
+                        batch = new Batch();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // the executor stage has stopped, so nothing more is needed
+            }
+        }
+
+        /**
+         * Can the next line be read without waiting for it?
+         * @return false if the reader would wait, or cannot tell
+         */
+        private boolean ready() {
+            try {
+                return reader.ready();
+            } catch (IOException e) {
+                // the next read reports the error
+                return false;
+            }
+        }
+    }
+
+    // the number of batches that can wait between the stages
+    private final int capacity;
+
+    // the number of actions performed, and the time taken, by the last run
+    private long actionCount;
+    private long elapsedNanos;
+
+    /**
+     * Create a pipeline with the default capacity.
+     */
+    public ActionPipeline() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a pipeline.
+     * @param capacity the number of batches of actions that can be read
+     *         ahead of the action being performed
+     * @require capacity &gt; 0
+     */
+    public ActionPipeline(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Read all the actions from a reader and perform them on a map,
+     * writing their messages to a sink. See Action.processActions(). <br>
+     * The sink is flushed, but not closed.
+     *
+     * @param reader the reader to read actions from
+     * @param map the map to perform the actions on
+     * @param sink the sink to write messages to
+     * @throws ActionFormatException if an action cannot be read
+     * @throws IOException if writing to the sink fails
+     * @require reader != null
+     * @require map != null
+     * @require sink != null
+     */
+    public void run(BufferedReader reader, WorldMap map, ActionSink sink)
+            throws ActionFormatException, IOException {
+        run(reader, map, sink, null);
+    }
+
+    /**
+     * Read all the actions from a reader and perform them on a map,
+     * writing their messages to a sink, and appending each action to a
+     * journal before it is performed. See
+     * Action.processActions(reader, map, journal). <br>
+     * The sink is flushed, but not closed. Pending journal entries are
+     * committed when the reader is exhausted or an exception is thrown.
+     *
+     * @param reader the reader to read actions from
+     * @param map the map to perform the actions on
+     * @param sink the sink to write messages to
+     * @param journal the journal to append actions to, or null for none
+     * @throws ActionFormatException if an action cannot be read
+     * @throws IOException if writing to the sink or journal fails, or the
+     *         thread is interrupted while waiting for actions
+     * @require reader != null
+     * @require map != null
+     * @require sink != null
+     */
+    public void run(BufferedReader reader, WorldMap map, ActionSink sink,
+                    ActionJournal journal)
+            throws ActionFormatException, IOException {
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(capacity);
+        ReaderStage readerStage = new ReaderStage(reader, queue);
+
+        actionCount = 0;
+        long start = System.nanoTime();
+        readerStage.start();
+        try {
+            while (true) {
+                Batch batch = queue.poll();
+                if (batch == null) {
+                    // show what has been done so far while waiting
+                    sink.flush();
+                    batch = queue.take();
+                }
+
+                for (int i = 0; i < batch.count; i++) {
+                    if (journal != null) {
+                        journal.append(batch.actions[i]);
+                    }
+                    sink.write(Action.performAction(batch.actions[i], map));
+                }
+                actionCount += batch.count;
+
+                if (batch.error != null) {
+                    throw batch.error;
+                } else if (batch.end) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for"
+                    + " actions");
+        } finally {
+            elapsedNanos = System.nanoTime() - start;
+            readerStage.interrupt();
+            try {
+                sink.flush();
+            } finally {
+                if (journal != null) {
+                    journal.commit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Perform every remaining action of a compiled action file on a map,
+     * writing their messages to a sink, and appending each action to a
+     * journal before it is performed. See
+     * Action.processActions(actions, map, journal). <br>
+     * The sink is flushed, but not closed. Pending journal entries are
+     * committed when the file is exhausted or an exception is thrown.
+     *
+     * @param actions the compiled actions to perform
+     * @param map the map to perform the actions on
+     * @param sink the sink to write messages to
+     * @param journal the journal to append actions to, or null for none
+     * @throws ActionFormatException if an action cannot be read
+     * @throws IOException if writing to the sink or journal fails
+     * @require actions != null
+     * @require map != null
+     * @require sink != null
+     */
+    public void run(CompiledActions actions, WorldMap map, ActionSink sink,
+                    ActionJournal journal)
+            throws ActionFormatException, IOException {
+        actionCount = 0;
+        long start = System.nanoTime();
+        try {
+            Action action;
+            while ((action = actions.next()) != null) {
+                if (journal != null) {
+                    journal.append(action);
+                }
+                sink.write(Action.performAction(action, map));
+                actionCount++;
+            }
+        } finally {
+            elapsedNanos = System.nanoTime() - start;
+            try {
+                sink.flush();
+            } finally {
+                if (journal != null) {
+                    journal.commit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of actions performed by the last run.
+     * @return the number of actions
+     */
+    public long getActionCount() {
+        return actionCount;
+    }
+
+    /**
+     * Get the time taken by the last run, in nanoseconds.
+     * @return the elapsed time
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Get the number of actions performed per second by the last run.
+     * @return the throughput, or 0 if no time has been recorded
+     */
+    public double getActionsPerSecond() {
+        return elapsedNanos == 0 ? 0 : actionCount * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * Describe the throughput of the last run.
+     * @return e.g. "1000000 actions in 812 ms (1231527 actions/s)"
+     */
+    @Override
+    public String toString() {
+        return actionCount + " actions in " + elapsedNanos / 1000000
+                + " ms (" + Math.round(getActionsPerSecond())
+                + " actions/s)";
+    }
+}
@@ -0,0 +1,605 @@
+package csse2002.block.world;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Actions written with macros, compiled into runs and loops that are
+ * performed without parsing or dispatching each action again. <br>
+ * The macro format is the format read by Action.loadAction(), one action
+ * per line, with two more forms:
+ * <pre>{@literal
+ *REPEAT n <action>
+ *REPEAT n {
+ *    <lines>
+ *}
+ *}</pre>
+ * The first performs the action n times (a run), and the second performs
+ * the lines between the braces n times (a loop), where n is a whole number
+ * from 0 and loops may be nested. Lines between braces may be indented
+ * with spaces or tabs, but other lines are read exactly as
+ * Action.loadAction() reads them, so an indented action outside a loop is
+ * invalid, as it is in a plain action file. Neither form is a valid
+ * action, so a plain action file is also a valid macro file, and means the
+ * same. <br>
+ * Performing a program gives exactly the same messages, and leaves the map
+ * in exactly the same state, as performing its expansion (see expand())
+ * with Action.processActions(). To make that fast:
+ * <ul>
+ *     <li> Consecutive lines with the same action are compiled into one
+ *          run, and so is a loop of a single run. </li>
+ *     <li> Each action is recognised and checked once, when it is
+ *          compiled. A run then calls the method of Builder that performs
+ *          its action in a loop, without dispatching on the action each
+ *          time. </li>
+ *     <li> An action that fails leaves the map unchanged, so once an action
+ *          of a run fails, the rest of the run would fail the same way.
+ *          Their messages are written without performing them. </li>
+ * </ul>
+ * compile() compiles every line before any action is performed, so an
+ * invalid line is reported (with its line number) before the map is
+ * changed. compilePrefix() instead keeps the lines before the first
+ * invalid one, so that performing them and then reporting it gives the
+ * same messages as Action.processActions() gives for a plain action file.
+ * @serial exclude
+ */
+public class ActionProgram {
+
+    // the keyword starting a run or loop
+    private static final String REPEAT = "REPEAT";
+
+    /**
+     * A run of one action, or a loop of steps.
+     */
+    private static final class Step {
+
+        // the action of a run, or null for a loop
+        final Action action;
+
+        // the number of times the action or body is performed
+        final long count;
+
+        // the number of actions the step expands to
+        final long actionCount;
+
+        // the steps of a loop, or null for a run
+        final Step[] body;
+
+        // the primary action of a run, or -1 if the action is not valid
+        final int kind;
+
+        // the index dropped by a DROP run
+        final int index;
+
+        // the message for each action of a run that succeeds
+        final String message;
+
+        /**
+         * Create a run, checking its action once.
+         * @param action the action
+         * @param count the number of times it is performed
+         */
+        Step(Action action, long count) {
+            this.action = action;
+            this.count = count;
+            actionCount = count;
+            body = null;
+
+            String secondary = action.getSecondaryAction();
+            int primary = action.getPrimaryAction();
+            int dropIndex = 0;
+            if (primary == Action.DROP) {
+                dropIndex = Action.dropIndex(secondary);
+                if (dropIndex < 0) {
+                    primary = -1;
+                }
+            } else if (primary == Action.MOVE_BUILDER
+                    || primary == Action.MOVE_BLOCK) {
+                if (!Action.isValidDirection(secondary)) {
+                    primary = -1;
+                }
+            } else if (primary != Action.DIG) {
+                primary = -1;
+            }
+            kind = primary;
+            index = dropIndex;
+            message = Action.getMessage(action, Outcome.SUCCESS);
+        }
+
+        /**
+         * Create a loop.
+         * @param count the number of times the body is performed
+         * @param body the steps performed each time
+         * @throws ArithmeticException if the loop expands to more than
+         *         Long.MAX_VALUE actions
+         */
+        Step(long count, Step[] body) {
+            action = null;
+            this.count = count;
+            actionCount = Math.multiplyExact(count, ActionProgram.count(body));
+            this.body = body;
+            kind = -1;
+            index = 0;
+            message = null;
+        }
+    }
+
+    /**
+     * A loop whose body is being compiled.
+     */
+    private static final class Frame {
+
+        // the number of times the body is performed
+        final long count;
+
+        // the line of the REPEAT
+        final long line;
+
+        // the steps of the body so far
+        final List<Step> steps = new ArrayList<>();
+
+        /**
+         * Start compiling a loop.
+         * @param count the number of times the body is performed
+         * @param line the line of the REPEAT
+         */
+        Frame(long count, long line) {
+            this.count = count;
+            this.line = line;
+        }
+    }
+
+    // the steps of the program
+    private final Step[] steps;
+
+    // the number of actions the program expands to
+    private final long actionCount;
+
+    // the error that ended the program early, or null
+    private final ActionFormatException error;
+
+    /**
+     * Create a program.
+     * @param steps the steps
+     * @param actionCount the number of actions they expand to
+     * @param error the error that ended the program early, or null
+     */
+    private ActionProgram(Step[] steps, long actionCount,
+                          ActionFormatException error) {
+        this.steps = steps;
+        this.actionCount = actionCount;
+        this.error = error;
+    }
+
+    /**
+     * Compile every line of a reader in the macro format.
+     * @param reader the reader to read the macros from
+     * @return the program
+     * @throws ActionFormatException if a line is not a valid action or
+     *         macro, a brace is not matched, or the program expands to too
+     *         many actions, with the line number; or if the reader throws
+     *         an IOException
+     * @require reader != null
+     */
+    public static ActionProgram compile(BufferedReader reader)
+            throws ActionFormatException {
+        ActionProgram program = compilePrefix(reader);
+        if (program.error != null) {
+            throw program.error;
+        }
+        return program;
+    }
+
+    /**
+     * Compile the lines of a reader in the macro format up to the first
+     * one that is not valid. <br>
+     * The program performs the lines before it, and getError() returns
+     * the exception compile() would throw. The lines of loops that are
+     * not closed by then are performed once each, in order, as they would
+     * be if the file were a plain action file, and if the lines expand to
+     * too many actions, the program ends before the step that overflows.
+     * @param reader the reader to read the macros from
+     * @return the program, which is complete if getError() returns null
+     * @require reader != null
+     */
+    public static ActionProgram compilePrefix(BufferedReader reader) {
+        List<Frame> frames = new ArrayList<>();
+        frames.add(new Frame(1, 0));
+        long lineNumber = 0;
+        ActionFormatException error = null;
+        try {
+            String text;
+            while ((text = reader.readLine()) != null) {
+                lineNumber++;
+                // only the body of a loop may be indented
+                compileLine(frames.size() > 1 ? stripIndent(text) : text,
+                        frames, lineNumber);
+            }
+
+            if (frames.size() > 1) {
+                error = new ActionFormatException("Missing }",
+                        frames.get(frames.size() - 1).line);
+            }
+        } catch (ActionFormatException e) {
+            error = e;
+        } catch (IOException e) {
+            error = new ActionFormatException(e.toString(), lineNumber + 1);
+        }
+
+        // perform the body of each open loop once
+        try {
+            for (int i = frames.size() - 1; i > 0; i--) {
+                addLoop(frames.get(i - 1).steps, 1, frames.get(i).steps,
+                        lineNumber);
+            }
+        } catch (ActionFormatException e) {
+            // only when the lines already expand to too many actions
+        }
+
+        List<Step> steps = frames.get(0).steps;
+        long actionCount = 0;
+        for (int i = 0; i < steps.size(); i++) {
+            try {
+                actionCount = Math.addExact(actionCount,
+                        steps.get(i).actionCount);
+            } catch (ArithmeticException e) {
+                if (error == null) {
+                    error = new ActionFormatException("Too many actions",
+                            lineNumber);
+                }
+                steps = steps.subList(0, i);
+                break;
+            }
+        }
+        return new ActionProgram(steps.toArray(new Step[0]), actionCount,
+                error);
+    }
+
+    /**
+     * Compile a line into the loop being compiled.
+     * @param line the line, without indentation if it is in a loop
+     * @param frames the loops being compiled, innermost last
+     * @param lineNumber the line number
+     * @throws ActionFormatException if the line is not valid
+     */
+    private static void compileLine(String line, List<Frame> frames,
+                                    long lineNumber)
+            throws ActionFormatException {
+        Frame frame = frames.get(frames.size() - 1);
+        if (line.equals("}")) {
+            if (frames.size() == 1) {
+                throw new ActionFormatException("Unmatched }", lineNumber);
+            }
+            frames.remove(frames.size() - 1);
+            addLoop(frames.get(frames.size() - 1).steps, frame.count,
+                    frame.steps, lineNumber);
+            return;
+        }
+
+        long count = 1;
+        if (line.startsWith(REPEAT + " ")) {
+            int end = line.indexOf(' ', REPEAT.length() + 1);
+            String number = end < 0 ? "" : line.substring(
+                    REPEAT.length() + 1, end);
+            if (!number.matches("[0-9]{1,18}")) {
+                throw new ActionFormatException("Invalid repeat count",
+                        lineNumber);
+            }
+            count = Long.parseLong(number);
+            line = line.substring(end + 1);
+
+            if (line.equals("{")) {
+                frames.add(new Frame(count, lineNumber));
+                return;
+            }
+        }
+
+        Action action;
+        try {
+            action = Action.parseAction(line.toCharArray(), line.length());
+        } catch (ActionFormatException e) {
+            throw new ActionFormatException(e.getMessage(), lineNumber);
+        }
+        addRun(frame.steps, action, count, lineNumber);
+    }
+
+    /**
+     * Add a run to some steps, joining it to the last step if that is a
+     * run of the same action.
+     * @param steps the steps
+     * @param action the action of the run
+     * @param count the number of times it is performed
+     * @param lineNumber the line the run is on
+     * @throws ActionFormatException if the run is too long
+     */
+    private static void addRun(List<Step> steps, Action action, long count,
+                               long lineNumber)
+            throws ActionFormatException {
+        if (count == 0) {
+            return;
+        }
+
+        Step last = steps.isEmpty() ? null : steps.get(steps.size() - 1);
+        if (last != null && last.body == null && sameAction(last.action,
+                action)) {
+            try {
+                count = Math.addExact(last.count, count);
+            } catch (ArithmeticException e) {
+                throw new ActionFormatException("Too many actions",
+                        lineNumber);
+            }
+            steps.set(steps.size() - 1, new Step(last.action, count));
+        } else {
+            steps.add(new Step(action, count));
+        }
+    }
+
+    /**
+     * Add a loop to some steps, as a run if its body is a single run, or
+     * as its body if it is performed once.
+     * @param steps the steps
+     * @param count the number of times the body is performed
+     * @param body the steps of the body
+     * @param lineNumber the line the loop ends on
+     * @throws ActionFormatException if the loop is too long
+     */
+    private static void addLoop(List<Step> steps, long count, List<Step> body,
+                                long lineNumber)
+            throws ActionFormatException {
+        try {
+            if (count == 0 || body.isEmpty()) {
+                return;
+            } else if (body.size() == 1 && body.get(0).body == null) {
+                Step run = body.get(0);
+                addRun(steps, run.action, Math.multiplyExact(count, run.count),
+                        lineNumber);
+            } else if (count == 1) {
+                for (Step step : body) {
+                    if (step.body == null) {
+                        addRun(steps, step.action, step.count, lineNumber);
+                    } else {
+                        steps.add(step);
+                    }
+                }
+            } else {
+                steps.add(new Step(count, body.toArray(new Step[0])));
+            }
+        } catch (ArithmeticException e) {
+            throw new ActionFormatException("Too many actions", lineNumber);
+        }
+    }
+
+    /**
+     * Are two actions the same?
+     * @param first an action
+     * @param second another action
+     * @return true if they have the same primary and secondary actions
+     */
+    private static boolean sameAction(Action first, Action second) {
+        return first == second
+                || (first.getPrimaryAction() == second.getPrimaryAction()
+                && first.getSecondaryAction().equals(
+                        second.getSecondaryAction()));
+    }
+
+    /**
+     * Remove the spaces and tabs a line is indented with.
+     * @param line the line
+     * @return the line without indentation
+     */
+    private static String stripIndent(String line) {
+        int start = 0;
+        while (start < line.length() && (line.charAt(start) == ' '
+                || line.charAt(start) == '\t')) {
+            start++;
+        }
+        return line.substring(start);
+    }
+
+    /**
+     * Get the number of actions some steps expand to.
+     * @param steps the steps
+     * @return the number of actions
+     * @throws ArithmeticException if there are more than Long.MAX_VALUE
+     */
+    private static long count(Step[] steps) {
+        long count = 0;
+        for (Step step : steps) {
+            count = Math.addExact(count, step.actionCount);
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of actions the program expands to.
+     * @return the number of actions
+     */
+    public long getActionCount() {
+        return actionCount;
+    }
+
+    /**
+     * Get the invalid line that ended a program compiled by
+     * compilePrefix() early.
+     * @return the exception compile() would have thrown, or null if the
+     *         whole reader was compiled
+     */
+    public ActionFormatException getError() {
+        return error;
+    }
+
+    /**
+     * Perform the program on a map with its builder, writing the message
+     * for each action to a sink (which is not flushed). If the map has
+     * ActionStats, every action is counted in them, but none is timed.
+     * @param map the map to perform the actions on
+     * @param sink where the messages are written
+     * @throws IOException if writing a message fails
+     * @require map and sink != null
+     */
+    public void run(WorldMap map, ActionSink sink) throws IOException {
+        run(steps, map.getBuilder(), map.getActionStats(), sink);
+    }
+
+    /**
+     * Perform some steps.
+     * @param steps the steps
+     * @param builder the builder to perform them with
+     * @param stats the stats to count the actions in, or null
+     * @param sink where the messages are written
+     * @throws IOException if writing a message fails
+     */
+    private static void run(Step[] steps, Builder builder, ActionStats stats,
+                            ActionSink sink) throws IOException {
+        for (Step step : steps) {
+            if (step.body == null) {
+                run(step, builder, stats, sink);
+                continue;
+            }
+
+            for (long i = 0; i < step.count; i++) {
+                run(step.body, builder, stats, sink);
+            }
+        }
+    }
+
+    /**
+     * Perform a run, stopping at the first action that fails, as the rest
+     * would fail the same way. <br>
+     * Each action is checked by the method of Builder that performs it:
+     * tryMoveTo() checks Builder.canEnter(), and tryDigOnCurrentTile(),
+     * tryDropFromInventory() and tryMoveBlock() check Tile.digOutcome(),
+     * placeOutcome() and moveOutcome(), before changing anything. Checking
+     * them here as well would check every action twice, and only these
+     * methods keep the undo log and the map's changed tiles as the plain
+     * actions would.
+     * @param run the run
+     * @param builder the builder to perform it with
+     * @param stats the stats to count the actions in, or null
+     * @param sink where the messages are written
+     * @throws IOException if writing a message fails
+     */
+    private static void run(Step run, Builder builder, ActionStats stats,
+                            ActionSink sink) throws IOException {
+        String direction = run.action.getSecondaryAction();
+        int outcome = Outcome.SUCCESS;
+        long done = 0;
+        switch (run.kind) {
+            case Action.MOVE_BUILDER:
+                while (done < run.count && (outcome = builder.tryMoveTo(
+                        builder.getCurrentTile().getExits().get(direction)))
+                        == Outcome.SUCCESS) {
+                    done++;
+                }
+                break;
+            case Action.MOVE_BLOCK:
+                while (done < run.count && (outcome = builder.tryMoveBlock(
+                        direction)) == Outcome.SUCCESS) {
+                    done++;
+                }
+                break;
+            case Action.DIG:
+                while (done < run.count && (outcome =
+                        builder.tryDigOnCurrentTile()) == Outcome.SUCCESS) {
+                    done++;
+                }
+                break;
+            case Action.DROP:
+                while (done < run.count && (outcome =
+                        builder.tryDropFromInventory(run.index))
+                        == Outcome.SUCCESS) {
+                    done++;
+                }
+                break;
+            default:
+                outcome = ActionStats.INVALID_ACTION;
+                break;
+        }
+
+        sink.write(run.message, done);
+        if (done < run.count) {
+            sink.write(Action.getMessage(run.action, outcome),
+                    run.count - done);
+        }
+
+        if (stats != null) {
+            int primary = run.action.getPrimaryAction();
+            stats.recordUntimed(primary, Outcome.SUCCESS, done);
+            stats.recordUntimed(primary, outcome, run.count - done);
+        }
+    }
+
+    /**
+     * Write the program as plain actions, one per line, in the format read
+     * by Action.loadAction(). Performing them with Action.processActions()
+     * is exactly the same as performing the program.
+     * @param out where the actions are written
+     * @throws IOException if writing fails
+     * @require out != null
+     */
+    public void expand(Writer out) throws IOException {
+        expand(steps, out);
+    }
+
+    /**
+     * Write some steps as plain actions.
+     * @param steps the steps
+     * @param out where the actions are written
+     * @throws IOException if writing fails
+     */
+    private static void expand(Step[] steps, Writer out) throws IOException {
+        for (Step step : steps) {
+            for (long i = 0; i < step.count; i++) {
+                if (step.body == null) {
+                    out.write(step.action.toLine());
+                    out.write(System.lineSeparator());
+                } else {
+                    expand(step.body, out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Expand a macro file into a plain action file. <br>
+     * Takes 1 or 2 parameters, the macro file (args[0], or "System.in")
+     * and the action file to write (args[1]), or writes the actions to
+     * System.out if there is no second parameter. If there are not 1 or 2
+     * parameters, prints the usage using System.err.println() and exits
+     * with status 1. If a line cannot be compiled, prints the exception
+     * using System.err.println() and exits with status 4; if another
+     * exception is thrown, prints it and exits with status 2.
+     * @param args the input arguments to the program
+     */
+    public static void main(String[] args) {
+        if (args.length != 1 && args.length != 2) {
+            System.err.println("Usage: ActionProgram macros [actions]");
+            System.exit(1);
+        }
+
+        try (BufferedReader reader = args[0].equals("System.in")
+                ? new BufferedReader(new InputStreamReader(System.in))
+                : new BufferedReader(new FileReader(args[0]))) {
+            ActionProgram program = compile(reader);
+            try (Writer out = new BufferedWriter(args.length == 2
+                    ? new FileWriter(args[1])
+                    : new OutputStreamWriter(System.out), 1 << 16)) {
+                program.expand(out);
+            }
+        } catch (ActionFormatException e) {
+            System.err.println(e);
+            System.exit(4);
+        } catch (IOException e) {
+            System.err.println(e);
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package csse2002.block.world;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Performs a compiled action file on a {@link WorldMap WorldMap}, so the map
+ * can be put in the state it is in after any number of the actions, for
+ * example to debug a long action file. <br>
+ * As the actions are performed, a checkpoint of the map is kept every
+ * getInterval() actions. Seeking to an action restores the last checkpoint
+ * before it and performs the actions from there, so once the actions up to
+ * it have been performed, seeking anywhere performs fewer than
+ * getInterval() actions, backwards as well as forwards. <br>
+ * A checkpoint holds the blocks on each tile as a reference to a column
+ * shared with other tiles (see BlockColumns), the builder's tile and a copy
+ * of its inventory, so it costs about four bytes a tile. Only the blocks,
+ * the builder's position and its inventory are restored, as no action
+ * changes anything else. If the checkpoints would take more than the memory
+ * given, every second one is dropped and the interval doubled. <br>
+ * The actions are performed without printing their messages, and the map
+ * must not be changed except through the replay while it is used.
+ * @serial exclude
+ */
+public class ActionReplay {
+
+    /**
+     * The number of actions between checkpoints, unless another is given.
+     */
+    public static final int DEFAULT_INTERVAL = 4096;
+
+    /**
+     * The most memory the checkpoints take, unless another is given.
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    // the estimated size of a checkpoint, besides its columns
+    private static final int CHECKPOINT_OVERHEAD = 64;
+
+    // the estimated size of each reference to a column
+    private static final int COLUMN_SIZE = 4;
+
+    /**
+     * The state of the map after some of the actions.
+     */
+    private static final class Checkpoint {
+
+        // the number of actions performed, and the offset of the next one
+        final long position;
+        final long offset;
+
+        // the blocks on each tile, in the order of tiles
+        final List<?>[] columns;
+
+        // the builder
+        final Tile builderTile;
+        final Block[] inventory;
+
+        /**
+         * Create a checkpoint.
+         * @param position the number of actions performed
+         * @param offset the offset of the next action
+         * @param columns the blocks on each tile
+         * @param builderTile the builder's tile
+         * @param inventory the builder's inventory
+         */
+        Checkpoint(long position, long offset, List<?>[] columns,
+                   Tile builderTile, Block[] inventory) {
+            this.position = position;
+            this.offset = offset;
+            this.columns = columns;
+            this.builderTile = builderTile;
+            this.inventory = inventory;
+        }
+    }
+
+    // what is replayed
+    private final WorldMap map;
+    private final CompiledActions actions;
+    private final List<Tile> tiles;
+
+    // the number of checkpoints the memory given allows
+    private final int maxCheckpoints;
+
+    // the checkpoints, every interval actions from the first
+    private final List<Checkpoint> checkpoints = new ArrayList<>();
+    private long interval;
+
+    /**
+     * Start replaying actions on a map in its current state, with
+     * DEFAULT_INTERVAL actions between checkpoints and up to
+     * DEFAULT_MAX_BYTES of checkpoints.
+     * @param map the map to perform the actions on
+     * @param actions the actions, which are read from the first
+     * @throws IOException if the actions cannot be mapped
+     * @require map and actions != null
+     */
+    public ActionReplay(WorldMap map, CompiledActions actions)
+            throws IOException {
+        this(map, actions, DEFAULT_INTERVAL, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Start replaying actions on a map in its current state, which is the
+     * first checkpoint. <br>
+     * Every tile of the map is loaded (see WorldMap.getTiles()).
+     * @param map the map to perform the actions on
+     * @param actions the actions, which are read from the first
+     * @param interval the number of actions between checkpoints
+     * @param maxBytes the most memory the checkpoints may take, which
+     *                 always allows at least two
+     * @throws IOException if the actions cannot be mapped
+     * @throws IllegalArgumentException if interval &lt; 1
+     * @require map and actions != null
+     */
+    public ActionReplay(WorldMap map, CompiledActions actions, int interval,
+                        long maxBytes) throws IOException {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Interval: " + interval);
+        }
+
+        this.map = map;
+        this.actions = actions;
+        this.interval = interval;
+        tiles = map.getTiles();
+
+        long size = CHECKPOINT_OVERHEAD + (long) COLUMN_SIZE * tiles.size();
+        maxCheckpoints = (int) Math.max(2,
+                Math.min(Integer.MAX_VALUE, maxBytes / size));
+
+        actions.rewind();
+        checkpoint();
+    }
+
+    /**
+     * Get the number of actions that have been performed, from the first.
+     * @return the position in the actions
+     */
+    public long getPosition() {
+        return actions.getPosition();
+    }
+
+    /**
+     * Get the number of actions that can be replayed.
+     * @return the number of actions
+     */
+    public long getActionCount() {
+        return actions.getActionCount();
+    }
+
+    /**
+     * Get the number of actions between checkpoints, which doubles each
+     * time the checkpoints would take too much memory.
+     * @return the interval
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Get the number of checkpoints kept.
+     * @return the number of checkpoints
+     */
+    public int getCheckpointCount() {
+        return checkpoints.size();
+    }
+
+    /**
+     * Put the map in the state it is in after performing the first
+     * position actions. <br>
+     * The last checkpoint at or before position is restored, unless the
+     * actions performed so far are closer to it, and the actions from
+     * there are performed.
+     * @param position the number of actions to have performed
+     * @throws ActionFormatException if an action cannot be read
+     * @throws IOException if the actions cannot be mapped
+     * @throws IndexOutOfBoundsException if position &lt; 0 or
+     *         position &gt; getActionCount()
+     */
+    public void seek(long position) throws ActionFormatException,
+            IOException {
+        if (position < 0 || position > getActionCount()) {
+            throw new IndexOutOfBoundsException("Action: " + position);
+        }
+
+        int index = (int) Math.min(position / interval,
+                checkpoints.size() - 1);
+        Checkpoint checkpoint = checkpoints.get(index);
+        if (getPosition() > position || getPosition() < checkpoint.position) {
+            restore(checkpoint);
+        }
+
+        while (getPosition() < position) {
+            Action.performOutcome(actions.next(), map);
+            if (getPosition() % interval == 0
+                    && getPosition() / interval == checkpoints.size()) {
+                checkpoint();
+            }
+        }
+    }
+
+    /**
+     * Keep a checkpoint of the map after the actions performed so far,
+     * which are the next multiple of the interval, dropping every second
+     * checkpoint first if there are as many as the memory allows.
+     */
+    private void checkpoint() {
+        if (checkpoints.size() == maxCheckpoints) {
+            for (int i = 1; 2 * i < checkpoints.size(); i++) {
+                checkpoints.set(i, checkpoints.get(2 * i));
+            }
+            checkpoints.subList((checkpoints.size() + 1) / 2,
+                    checkpoints.size()).clear();
+            interval *= 2;
+            if (getPosition() % interval != 0) {
+                return;
+            }
+        }
+
+        List<?>[] columns = new List<?>[tiles.size()];
+        try {
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = tiles.get(i).getColumn();
+            }
+        } catch (TooHighException e) {
+            // every change to a tile is checked, so it can always be shared
+            throw new IllegalStateException(e);
+        }
+
+        Builder builder = map.getBuilder();
+        checkpoints.add(new Checkpoint(getPosition(), actions.getOffset(),
+                columns, builder.getCurrentTile(),
+                builder.getInventory().toArray(new Block[0])));
+    }
+
+    /**
+     * Put the map and the actions back in the state of a checkpoint.
+     * @param checkpoint the checkpoint to restore
+     * @throws IOException if the actions cannot be mapped
+     */
+    @SuppressWarnings("unchecked")
+    private void restore(Checkpoint checkpoint) throws IOException {
+        for (int i = 0; i < checkpoint.columns.length; i++) {
+            Tile tile = tiles.get(i);
+            List<Block> column = (List<Block>) checkpoint.columns[i];
+            if (!tile.hasColumn(column)) {
+                tile.setColumn(column);
+            }
+        }
+
+        Builder builder = map.getBuilder();
+        builder.setCurrentTile(checkpoint.builderTile);
+        builder.setInventory(Arrays.asList(checkpoint.inventory));
+        actions.seek(checkpoint.position, checkpoint.offset);
+
+        // the changes that could be undone are no longer on the map
+        map.setUndoDepth(map.getUndoDepth());
+    }
+}
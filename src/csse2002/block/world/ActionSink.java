@@ -0,0 +1,124 @@
+package csse2002.block.world;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Somewhere to write the messages that performing actions produces (see
+ * Action.processAction()), buffered so that many messages are written at
+ * once. <br>
+ * Each message is written followed by the system line separator, so
+ * writing to standard output gives exactly what System.out.println() would
+ * have printed for each message. Messages are only guaranteed to have been
+ * written once flush() or close() is called.
+ */
+public class ActionSink {
+
+    // store the system line separator ("\n", "\r\n" or "\r")
+    private static final String LINE_SEP = System.lineSeparator();
+
+    // the size of the buffer, in chars
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // the buffered writer, or null to discard messages
+    private final Writer writer;
+
+    // whether close() closes the stream, rather than just flushing it
+    private final boolean ownsStream;
+
+    /**
+     * Create a sink that writes to a stream.
+     * @param out the stream, or null to discard messages
+     * @param ownsStream true if close() should close the stream
+     */
+    private ActionSink(OutputStream out, boolean ownsStream) {
+        this.writer = out == null ? null : new BufferedWriter(
+                new OutputStreamWriter(out), BUFFER_SIZE);
+        this.ownsStream = ownsStream;
+    }
+
+    /**
+     * Create a sink that writes messages to standard output (System.out).
+     * Closing the sink flushes it, but leaves System.out open.
+     * @return the sink
+     */
+    public static ActionSink standardOutput() {
+        return new ActionSink(System.out, false);
+    }
+
+    /**
+     * Create a sink that writes messages to a file, replacing it.
+     * @param filename the file to write to
+     * @return the sink
+     * @throws IOException if the file cannot be opened for writing
+     * @require filename != null
+     */
+    public static ActionSink toFile(String filename) throws IOException {
+        return new ActionSink(new FileOutputStream(filename), true);
+    }
+
+    /**
+     * Create a sink that discards every message, for example to measure how
+     * fast actions are performed.
+     * @return the sink
+     */
+    public static ActionSink discard() {
+        return new ActionSink(null, false);
+    }
+
+    /**
+     * Write a message, followed by a line separator.
+     * @param message the message
+     * @throws IOException if writing fails
+     */
+    void write(String message) throws IOException {
+        if (writer != null) {
+            writer.write(message);
+            writer.write(LINE_SEP);
+        }
+    }
+
+    /**
+     * Write the same message a number of times, each followed by a line
+     * separator. A sink that discards messages returns at once.
+     * @param message the message
+     * @param count the number of times to write it
+     * @throws IOException if writing fails
+     */
+    void write(String message, long count) throws IOException {
+        for (long i = 0; writer != null && i < count; i++) {
+            writer.write(message);
+            writer.write(LINE_SEP);
+        }
+    }
+
+    /**
+     * Write every buffered message.
+     * @throws IOException if writing fails
+     */
+    public void flush() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Write every buffered message, and close the file (if the sink writes
+     * to a file).
+     * @throws IOException if writing or closing fails
+     */
+    public void close() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        if (ownsStream) {
+            writer.close();
+        } else {
+            writer.flush();
+        }
+    }
+}
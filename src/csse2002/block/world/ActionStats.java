@@ -0,0 +1,434 @@
+package csse2002.block.world;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Records what the actions performed on a {@link WorldMap WorldMap} do:
+ * how many of each primary action are performed, what their outcome is,
+ * and how long each takes. <br>
+ * An ActionStats is given to WorldMap.setActionStats(), and every action
+ * then performed on the map by Action.processAction(),
+ * Action.processActions() or an ActionPipeline is counted by its primary
+ * action (MOVE_BUILDER, MOVE_BLOCK, DIG, DROP, or OTHER for any other
+ * number) and its outcome: one of the {@link Outcome Outcome} codes, or
+ * INVALID_ACTION for an action whose secondary action is not valid. <br>
+ * Reading the clock takes about as long as performing a simple action, so
+ * only one action in every getSampleInterval() (16 by default) is timed.
+ * Its time is added to a histogram for its primary action, with a bucket
+ * for each power of two nanoseconds, so the latencies describe a sample
+ * of the actions while the counts include every action. Recording takes
+ * a few array increments and never allocates. <br>
+ * It can be registered with the platform MBean server (see register()) to
+ * be read through JMX while actions are performed. It is not thread safe:
+ * only one thread should perform actions on the map, and values read
+ * from other threads may be slightly out of date.
+ * @serial exclude
+ */
+public class ActionStats implements ActionStatsMBean {
+
+    /**
+     * The primary action counted for any action that is not MOVE_BUILDER,
+     * MOVE_BLOCK, DIG or DROP.
+     */
+    public static final int OTHER = 4;
+
+    /**
+     * The outcome of an action whose primary or secondary action is not
+     * valid ("Error: Invalid action"), after the Outcome codes.
+     */
+    public static final int INVALID_ACTION = 5;
+
+    /**
+     * The number of outcomes, including INVALID_ACTION.
+     */
+    public static final int OUTCOME_COUNT = 6;
+
+    // the number of primary actions counted, including OTHER
+    private static final int ACTION_TYPES = 5;
+
+    /**
+     * The number of actions per action timed, unless changed by
+     * setSampleInterval().
+     */
+    public static final int DEFAULT_SAMPLE_INTERVAL = 16;
+
+    // returned by startTiming() for an action that is not timed
+    static final long NOT_TIMED = Long.MIN_VALUE;
+
+    // the number of latency buckets: bucket b counts latencies of b bits
+    private static final int BUCKETS = 64;
+
+    // the names of the primary actions and outcomes, for toString()
+    private static final String[] ACTION_NAMES = {"MOVE_BUILDER",
+            "MOVE_BLOCK", "DIG", "DROP", "other"};
+    private static final String[] OUTCOME_NAMES = {"success", "no exit",
+            "too high", "too low", "bad block", "invalid"};
+
+    // the domain and type of the name this is registered under
+    private static final String OBJECT_NAME =
+            "csse2002.block.world:type=ActionStats,name=";
+
+    // the number of actions, by primary action and outcome
+    private long[][] counts = new long[ACTION_TYPES][OUTCOME_COUNT];
+
+    // the latency histogram, number timed, total and maximum of each
+    // primary action
+    private long[][] latencies = new long[ACTION_TYPES][BUCKETS];
+    private long[] timed = new long[ACTION_TYPES];
+    private long[] totalNanos = new long[ACTION_TYPES];
+    private long[] maxNanos = new long[ACTION_TYPES];
+
+    // one action in every sampleInterval is timed, the next after
+    // untilSample more actions
+    private int sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+    private int untilSample = 1;
+
+    // the name this is registered under, or null
+    private ObjectName objectName;
+
+    /**
+     * Get the number of actions per action timed.
+     * @return the sample interval
+     */
+    public int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    /**
+     * Set the number of actions per action timed, e.g. 1 to time every
+     * action.
+     * @param sampleInterval the sample interval
+     * @require sampleInterval &gt; 0
+     */
+    public void setSampleInterval(int sampleInterval) {
+        this.sampleInterval = sampleInterval;
+        untilSample = Math.min(untilSample, sampleInterval);
+    }
+
+    /**
+     * Start performing an action, which is timed if it is the next sample.
+     * @return the time it started, or NOT_TIMED
+     */
+    long startTiming() {
+        if (--untilSample > 0) {
+            return NOT_TIMED;
+        }
+        untilSample = sampleInterval;
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a number of actions that have been performed with the same
+     * primary action and outcome, without timing them.
+     * @param primaryAction the primary action
+     * @param outcome the Outcome code, or INVALID_ACTION
+     * @param count the number of actions
+     */
+    void recordUntimed(int primaryAction, int outcome, long count) {
+        int type = primaryAction >= 0 && primaryAction < OTHER
+                ? primaryAction : OTHER;
+        counts[type][outcome] += count;
+    }
+
+    /**
+     * Record an action that has been performed.
+     * @param primaryAction the primary action
+     * @param outcome the Outcome code, or INVALID_ACTION
+     * @param start the time returned by startTiming() before the action
+     *         was performed
+     */
+    void record(int primaryAction, int outcome, long start) {
+        int type = primaryAction >= 0 && primaryAction < OTHER
+                ? primaryAction : OTHER;
+        counts[type][outcome]++;
+        if (start == NOT_TIMED) {
+            return;
+        }
+
+        // the clock should never go backwards, but is not trusted to
+        long nanos = Math.max(System.nanoTime() - start, 0);
+        latencies[type][BUCKETS - Long.numberOfLeadingZeros(nanos)]++;
+        timed[type]++;
+        totalNanos[type] += nanos;
+        if (nanos > maxNanos[type]) {
+            maxNanos[type] = nanos;
+        }
+    }
+
+    /**
+     * Get the number of actions of a primary action with an outcome.
+     * @param primaryAction the primary action, or OTHER
+     * @param outcome the Outcome code, or INVALID_ACTION
+     * @return the number of actions
+     * @require 0 &lt;= primaryAction &lt;= OTHER
+     * @require 0 &lt;= outcome &lt; OUTCOME_COUNT
+     */
+    public long getCount(int primaryAction, int outcome) {
+        return counts[primaryAction][outcome];
+    }
+
+    /**
+     * Get the number of actions of a primary action.
+     * @param primaryAction the primary action, or OTHER
+     * @return the number of actions
+     * @require 0 &lt;= primaryAction &lt;= OTHER
+     */
+    public long getCount(int primaryAction) {
+        long count = 0;
+        for (int outcome = 0; outcome < OUTCOME_COUNT; outcome++) {
+            count += counts[primaryAction][outcome];
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of actions with an outcome.
+     * @param outcome the Outcome code, or INVALID_ACTION
+     * @return the number of actions
+     * @require 0 &lt;= outcome &lt; OUTCOME_COUNT
+     */
+    public long getOutcomeCount(int outcome) {
+        long count = 0;
+        for (int type = 0; type < ACTION_TYPES; type++) {
+            count += counts[type][outcome];
+        }
+        return count;
+    }
+
+    @Override
+    public long getActionCount() {
+        long count = 0;
+        for (int type = 0; type < ACTION_TYPES; type++) {
+            count += getCount(type);
+        }
+        return count;
+    }
+
+    @Override
+    public long getMoveBuilderCount() {
+        return getCount(Action.MOVE_BUILDER);
+    }
+
+    @Override
+    public long getMoveBlockCount() {
+        return getCount(Action.MOVE_BLOCK);
+    }
+
+    @Override
+    public long getDigCount() {
+        return getCount(Action.DIG);
+    }
+
+    @Override
+    public long getDropCount() {
+        return getCount(Action.DROP);
+    }
+
+    @Override
+    public long getSuccessCount() {
+        return getOutcomeCount(Outcome.SUCCESS);
+    }
+
+    @Override
+    public long getNoExitCount() {
+        return getOutcomeCount(Outcome.NO_EXIT);
+    }
+
+    @Override
+    public long getTooHighCount() {
+        return getOutcomeCount(Outcome.TOO_HIGH);
+    }
+
+    @Override
+    public long getTooLowCount() {
+        return getOutcomeCount(Outcome.TOO_LOW);
+    }
+
+    @Override
+    public long getInvalidBlockCount() {
+        return getOutcomeCount(Outcome.INVALID_BLOCK);
+    }
+
+    @Override
+    public long getInvalidActionCount() {
+        return getOutcomeCount(INVALID_ACTION);
+    }
+
+    @Override
+    public double getMeanLatencyNanos() {
+        long total = 0;
+        long count = 0;
+        for (int type = 0; type < ACTION_TYPES; type++) {
+            total += totalNanos[type];
+            count += timed[type];
+        }
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    @Override
+    public long getMedianLatencyNanos() {
+        return getLatencyPercentile(50);
+    }
+
+    @Override
+    public long getP99LatencyNanos() {
+        return getLatencyPercentile(99);
+    }
+
+    @Override
+    public long getMaxLatencyNanos() {
+        long max = 0;
+        for (int type = 0; type < ACTION_TYPES; type++) {
+            max = Math.max(max, maxNanos[type]);
+        }
+        return max;
+    }
+
+    /**
+     * Get a percentile of the time taken by every action.
+     * @param percentile the percentile, e.g. 50 for the median
+     * @return the upper bound of the bucket the percentile falls in, in
+     *         nanoseconds, or 0 if no actions have been timed
+     * @require 0 &lt;= percentile &lt;= 100
+     */
+    public long getLatencyPercentile(double percentile) {
+        long[] histogram = new long[BUCKETS];
+        long count = 0;
+        for (int type = 0; type < ACTION_TYPES; type++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                histogram[bucket] += latencies[type][bucket];
+            }
+            count += timed[type];
+        }
+        return percentile(histogram, count, percentile,
+                getMaxLatencyNanos());
+    }
+
+    /**
+     * Get a percentile of the time taken by actions of a primary action.
+     * @param primaryAction the primary action, or OTHER
+     * @param percentile the percentile, e.g. 50 for the median
+     * @return the upper bound of the bucket the percentile falls in, in
+     *         nanoseconds, or 0 if no actions have been timed
+     * @require 0 &lt;= primaryAction &lt;= OTHER
+     * @require 0 &lt;= percentile &lt;= 100
+     */
+    public long getLatencyPercentile(int primaryAction, double percentile) {
+        return percentile(latencies[primaryAction], timed[primaryAction],
+                percentile, maxNanos[primaryAction]);
+    }
+
+    /**
+     * Get the longest time taken by a timed action of a primary action.
+     * @param primaryAction the primary action, or OTHER
+     * @return the maximum latency, in nanoseconds
+     * @require 0 &lt;= primaryAction &lt;= OTHER
+     */
+    public long getMaxLatencyNanos(int primaryAction) {
+        return maxNanos[primaryAction];
+    }
+
+    /**
+     * Find a percentile in a latency histogram.
+     * @param histogram the number of latencies in each bucket
+     * @param count the number of latencies
+     * @param percentile the percentile
+     * @param max the largest latency
+     * @return the upper bound of the bucket, but no more than max
+     */
+    private static long percentile(long[] histogram, long count,
+                                   double percentile, long max) {
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += histogram[bucket];
+            if (seen >= rank && seen > 0) {
+                return Math.min((1L << bucket) - 1, max);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void reset() {
+        counts = new long[ACTION_TYPES][OUTCOME_COUNT];
+        latencies = new long[ACTION_TYPES][BUCKETS];
+        timed = new long[ACTION_TYPES];
+        totalNanos = new long[ACTION_TYPES];
+        maxNanos = new long[ACTION_TYPES];
+    }
+
+    /**
+     * Register with the platform MBean server, under the name
+     * "csse2002.block.world:type=ActionStats,name=" followed by name.
+     * @param name the name to tell this from other ActionStats
+     * @throws JMException if the name is not valid, or is already
+     *         registered
+     * @require name != null
+     */
+    public void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName newName = new ObjectName(OBJECT_NAME
+                + ObjectName.quote(name));
+        server.registerMBean(this, newName);
+        objectName = newName;
+    }
+
+    /**
+     * Unregister from the platform MBean server, if registered.
+     * @throws JMException if unregistering fails
+     */
+    public void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer()
+                    .unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    /**
+     * Returns a table with the number of actions of each primary action
+     * performed, by outcome, and the median, 99th percentile and maximum
+     * time they took (in microseconds), followed by a total line.
+     * @return a report of the stats
+     */
+    @Override
+    public String toString() {
+        String lineSep = System.lineSeparator();
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("%-13s %10s", "action", "count"));
+        for (String outcome : OUTCOME_NAMES) {
+            result.append(String.format(" %10s", outcome));
+        }
+        result.append(String.format(" %9s %9s %9s%s", "p50 us", "p99 us",
+                "max us", lineSep));
+
+        for (int type = 0; type < ACTION_TYPES; type++) {
+            if (type == OTHER && getCount(OTHER) == 0) {
+                continue;
+            }
+            result.append(String.format("%-13s %10d", ACTION_NAMES[type],
+                    getCount(type)));
+            for (int outcome = 0; outcome < OUTCOME_COUNT; outcome++) {
+                result.append(String.format(" %10d", counts[type][outcome]));
+            }
+            result.append(String.format(" %9.1f %9.1f %9.1f%s",
+                    getLatencyPercentile(type, 50) / 1e3,
+                    getLatencyPercentile(type, 99) / 1e3,
+                    maxNanos[type] / 1e3, lineSep));
+        }
+
+        result.append(String.format("%-13s %10d", "total",
+                getActionCount()));
+        for (int outcome = 0; outcome < OUTCOME_COUNT; outcome++) {
+            result.append(String.format(" %10d", getOutcomeCount(outcome)));
+        }
+        result.append(String.format(" %9.1f %9.1f %9.1f",
+                getMedianLatencyNanos() / 1e3, getP99LatencyNanos() / 1e3,
+                getMaxLatencyNanos() / 1e3));
+        return result.toString();
+    }
+}
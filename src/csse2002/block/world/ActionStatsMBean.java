@@ -0,0 +1,107 @@
+package csse2002.block.world;
+
+/**
+ * The management interface of {@link ActionStats ActionStats}, so the
+ * actions being performed can be watched through JMX (for example, with
+ * jconsole). See ActionStats.register(). <br>
+ * Latencies are in nanoseconds, of the sample of actions that are timed,
+ * and percentiles are the upper bound of the histogram bucket they fall
+ * in.
+ */
+public interface ActionStatsMBean {
+
+    /**
+     * Get the number of actions performed.
+     * @return the number of actions
+     */
+    long getActionCount();
+
+    /**
+     * Get the number of MOVE_BUILDER actions performed.
+     * @return the number of actions
+     */
+    long getMoveBuilderCount();
+
+    /**
+     * Get the number of MOVE_BLOCK actions performed.
+     * @return the number of actions
+     */
+    long getMoveBlockCount();
+
+    /**
+     * Get the number of DIG actions performed.
+     * @return the number of actions
+     */
+    long getDigCount();
+
+    /**
+     * Get the number of DROP actions performed.
+     * @return the number of actions
+     */
+    long getDropCount();
+
+    /**
+     * Get the number of actions that changed the map.
+     * @return the number of actions
+     */
+    long getSuccessCount();
+
+    /**
+     * Get the number of actions that failed with "No exit this way".
+     * @return the number of actions
+     */
+    long getNoExitCount();
+
+    /**
+     * Get the number of actions that failed with "Too high".
+     * @return the number of actions
+     */
+    long getTooHighCount();
+
+    /**
+     * Get the number of actions that failed with "Too low".
+     * @return the number of actions
+     */
+    long getTooLowCount();
+
+    /**
+     * Get the number of actions that failed with "Cannot use that block".
+     * @return the number of actions
+     */
+    long getInvalidBlockCount();
+
+    /**
+     * Get the number of actions that failed with "Error: Invalid action".
+     * @return the number of actions
+     */
+    long getInvalidActionCount();
+
+    /**
+     * Get the mean time taken to perform an action.
+     * @return the mean latency, in nanoseconds
+     */
+    double getMeanLatencyNanos();
+
+    /**
+     * Get the median time taken to perform an action.
+     * @return the median latency, in nanoseconds
+     */
+    long getMedianLatencyNanos();
+
+    /**
+     * Get the 99th percentile of the time taken to perform an action.
+     * @return the 99th percentile latency, in nanoseconds
+     */
+    long getP99LatencyNanos();
+
+    /**
+     * Get the longest time taken to perform an action.
+     * @return the maximum latency, in nanoseconds
+     */
+    long getMaxLatencyNanos();
+
+    /**
+     * Clear everything recorded so far.
+     */
+    void reset();
+}
@@ -0,0 +1,424 @@
+package csse2002.block.world;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sequence of actions that are performed by a builder all together, or
+ * not at all. <br>
+ * commit() works the actions out on copies of the tiles they use and of
+ * the builder's inventory (the write set), without changing the map. If
+ * every action succeeds, the changed tiles and the builder are updated
+ * at once; at the first action that fails, the copies are thrown away and
+ * the map is left exactly as it was. The actions follow the same rules,
+ * and fail with the same outcomes, as Action.processActions() would give
+ * them. <br>
+ * For a builder acting among others (see
+ * {@link ConcurrentBuilders ConcurrentBuilders}), the transaction is
+ * optimistic: no lock is held while the actions are worked out, and each
+ * tile is copied with the version it had (see Tile.getVersion()). The
+ * commit then locks the stripes of every tile read, lowest first, and
+ * checks that none has changed since it was copied. If one has, another
+ * builder got there first, so the actions are worked out again from the
+ * tiles as they are now. After MAX_OPTIMISTIC_ATTEMPTS such attempts, the
+ * actions are worked out once more holding every stripe, so a transaction
+ * whose tiles other builders keep changing still finishes. <br>
+ * Committing changes the tiles directly, so any changes that could be
+ * undone on the map are forgotten (see WorldMap.setUndoDepth()), and the
+ * actions are not recorded in the map's ActionStats.
+ * @serial exclude
+ */
+public class ActionTransaction {
+
+    /**
+     * The number of times commit() works the actions out without holding
+     * the locks, before it holds every stripe and works them out again.
+     */
+    public static final int MAX_OPTIMISTIC_ATTEMPTS = 8;
+
+    // the builder performing the actions, and its map if it acts alone
+    private final Builder builder;
+    private final WorldMap map;
+
+    // the locks shared with other builders, or null if it acts alone
+    private final RegionLocks locks;
+
+    // the actions to perform
+    private final List<Action> actions = new ArrayList<>();
+
+    // the copy of each tile read by this attempt, and its version
+    private final Map<Tile, List<Block>> columns = new IdentityHashMap<>();
+    private final Map<Tile, Integer> versions = new IdentityHashMap<>();
+
+    // the tiles this attempt has changed the copies of
+    private final List<Tile> changed = new ArrayList<>();
+
+    // the builder as this attempt has left it
+    private Tile builderTile;
+    private List<Block> inventory;
+
+    // the action that failed in the last commit, and its outcome
+    private int failedIndex = -1;
+    private int failedOutcome = Outcome.SUCCESS;
+
+    // the number of times the last commit worked out the actions
+    private int attempts;
+
+    /**
+     * Create an empty transaction for the builder of a map that no other
+     * builder is acting on.
+     * @param map the map, whose builder performs the actions
+     * @require map != null
+     */
+    public ActionTransaction(WorldMap map) {
+        this(map.getBuilder(), map, null);
+    }
+
+    /**
+     * Create an empty transaction.
+     * @param builder the builder to perform the actions
+     * @param map the map, to forget its undo history, or null
+     * @param locks the locks shared with other builders, or null
+     */
+    ActionTransaction(Builder builder, WorldMap map, RegionLocks locks) {
+        this.builder = builder;
+        this.map = map;
+        this.locks = locks;
+    }
+
+    /**
+     * Add an action to the end of the transaction.
+     * @param action the action
+     * @require action != null
+     */
+    public void add(Action action) {
+        actions.add(action);
+    }
+
+    /**
+     * Get the number of actions in the transaction.
+     * @return the number of actions
+     */
+    public int size() {
+        return actions.size();
+    }
+
+    /**
+     * Remove every action, so the transaction can be used again.
+     */
+    public void clear() {
+        actions.clear();
+    }
+
+    /**
+     * Perform every action, or none of them. <br>
+     * If an action fails, its index is given by getFailedIndex() and the
+     * reason by getFailedOutcome(), and nothing is changed.
+     * @return true if every action was performed, false if none was
+     */
+    public boolean commit() {
+        attempts = 0;
+        while (attempts < MAX_OPTIMISTIC_ATTEMPTS) {
+            int outcome = attempt();
+            if (validate(outcome == Outcome.SUCCESS)) {
+                return outcome == Outcome.SUCCESS;
+            }
+        }
+
+        // other builders keep changing the tiles, so stop them until this
+        // attempt, which nothing can then change, is committed
+        int[] every = new int[locks == null ? 0 : locks.getStripeCount()];
+        for (int i = 0; i < every.length; i++) {
+            every[i] = i;
+        }
+        if (locks != null) {
+            locks.lockAll(every);
+        }
+        try {
+            int outcome = attempt();
+            validate(outcome == Outcome.SUCCESS);
+            return outcome == Outcome.SUCCESS;
+        } finally {
+            if (locks != null) {
+                locks.unlockAll(every);
+            }
+        }
+    }
+
+    /**
+     * Work out every action once more, remembering which failed.
+     * @return Outcome.SUCCESS, or the outcome of the action that failed
+     */
+    private int attempt() {
+        attempts++;
+        int outcome = workOut();
+        if (outcome == Outcome.SUCCESS) {
+            failedIndex = -1;
+        }
+        failedOutcome = outcome;
+        return outcome;
+    }
+
+    /**
+     * Get the index of the action that failed in the last commit().
+     * @return the index, or -1 if the last commit succeeded
+     */
+    public int getFailedIndex() {
+        return failedIndex;
+    }
+
+    /**
+     * Get the reason the last commit() failed.
+     * @return the Outcome code of the action that failed (or
+     *         ActionStats.INVALID_ACTION if it was not valid), or
+     *         Outcome.SUCCESS if the last commit succeeded
+     */
+    public int getFailedOutcome() {
+        return failedOutcome;
+    }
+
+    /**
+     * Get the number of times the last commit() worked out the actions,
+     * which is more than 1 if other builders changed the tiles it used
+     * before it could commit, and at most MAX_OPTIMISTIC_ATTEMPTS + 1.
+     * @return the number of attempts
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Work out every action on copies of the tiles and builder, stopping at
+     * the first that fails.
+     * @return Outcome.SUCCESS, or the outcome of the action that failed
+     */
+    private int workOut() {
+        columns.clear();
+        versions.clear();
+        changed.clear();
+        builderTile = builder.getCurrentTile();
+        inventory = new ArrayList<>(builder.getInventory());
+
+        for (int i = 0; i < actions.size(); i++) {
+            int outcome = workOut(actions.get(i));
+            if (outcome != Outcome.SUCCESS) {
+                failedIndex = i;
+                return outcome;
+            }
+        }
+        return Outcome.SUCCESS;
+    }
+
+    /**
+     * Work out an action on the copies, as Action.perform() would perform
+     * it on the map.
+     * @param action the action
+     * @return the Outcome code, or ActionStats.INVALID_ACTION if the action
+     *         is not valid
+     */
+    private int workOut(Action action) {
+        String secondary = action.getSecondaryAction();
+        switch (action.getPrimaryAction()) {
+            case Action.DIG:
+                return dig();
+            case Action.DROP:
+                int index = Action.dropIndex(secondary);
+                if (index < 0) {
+                    return ActionStats.INVALID_ACTION;
+                }
+                return drop(index);
+            case Action.MOVE_BLOCK:
+                if (!Action.isValidDirection(secondary)) {
+                    return ActionStats.INVALID_ACTION;
+                }
+                return moveBlock(builderTile.getExits().get(secondary));
+            case Action.MOVE_BUILDER:
+                if (!Action.isValidDirection(secondary)) {
+                    return ActionStats.INVALID_ACTION;
+                }
+                return moveBuilder(builderTile.getExits().get(secondary));
+            default:
+                return ActionStats.INVALID_ACTION;
+        }
+    }
+
+    /**
+     * Dig on the builder's tile, as Builder.tryDigOnCurrentTile() does.
+     * @return the outcome
+     */
+    private int dig() {
+        List<Block> blocks = read(builderTile);
+        int outcome = Tile.digOutcome(blocks);
+        if (outcome == Outcome.SUCCESS) {
+            Block block = blocks.remove(blocks.size() - 1);
+            if (block.isCarryable()) {
+                inventory.add(block);
+            }
+            write(builderTile);
+        }
+        return outcome;
+    }
+
+    /**
+     * Drop a block on the builder's tile, as
+     * Builder.tryDropFromInventory() does.
+     * @param index the index in the inventory of the block
+     * @return the outcome
+     */
+    private int drop(int index) {
+        if (index < 0 || index >= inventory.size()) {
+            return Outcome.INVALID_BLOCK;
+        }
+
+        List<Block> blocks = read(builderTile);
+        int outcome = Tile.placeOutcome(blocks, inventory.get(index));
+        if (outcome == Outcome.SUCCESS) {
+            blocks.add(inventory.remove(index));
+            write(builderTile);
+        }
+        return outcome;
+    }
+
+    /**
+     * Move the top block of the builder's tile, as Tile.tryMoveBlock()
+     * does.
+     * @param target the tile at the exit, or null if there is none
+     * @return the outcome
+     */
+    private int moveBlock(Tile target) {
+        if (target == null) {
+            return Outcome.NO_EXIT;
+        }
+
+        List<Block> blocks = read(builderTile);
+        List<Block> targetBlocks = read(target);
+        int outcome = Tile.moveOutcome(blocks, targetBlocks);
+        if (outcome == Outcome.SUCCESS) {
+            targetBlocks.add(blocks.remove(blocks.size() - 1));
+            write(builderTile);
+            write(target);
+        }
+        return outcome;
+    }
+
+    /**
+     * Move the builder, as Builder.tryMoveTo() does.
+     * @param target the tile at the exit, or null if there is none
+     * @return the outcome
+     */
+    private int moveBuilder(Tile target) {
+        if (target == null || !Builder.canClimb(read(builderTile).size(),
+                read(target).size())) {
+            return Outcome.NO_EXIT;
+        }
+
+        builderTile = target;
+        return Outcome.SUCCESS;
+    }
+
+    /**
+     * Get the copy of a tile's blocks, copying them (and remembering the
+     * tile's version) the first time.
+     * @param tile the tile
+     * @return the copy, which the actions change
+     */
+    private List<Block> read(Tile tile) {
+        List<Block> blocks = columns.get(tile);
+        if (blocks != null) {
+            return blocks;
+        }
+
+        int stripe = locks == null ? -1 : locks.stripe(tile);
+        if (stripe >= 0) {
+            locks.lock(stripe, -1);
+        }
+        try {
+            blocks = new ArrayList<>(tile.getBlocks());
+            versions.put(tile, tile.getVersion());
+        } finally {
+            if (stripe >= 0) {
+                locks.unlock(stripe, -1);
+            }
+        }
+
+        columns.put(tile, blocks);
+        return blocks;
+    }
+
+    /**
+     * Remember that the copy of a tile has been changed.
+     * @param tile the tile
+     */
+    private void write(Tile tile) {
+        if (!changed.contains(tile)) {
+            changed.add(tile);
+        }
+    }
+
+    /**
+     * Check that no tile read has changed since, and if so, apply the
+     * changes worked out to the map, all while holding the locks of the
+     * tiles.
+     * @param apply true to apply the changes, false to only check
+     * @return false if a tile has changed, so the actions must be worked
+     *         out again
+     */
+    private boolean validate(boolean apply) {
+        int[] stripes = new int[0];
+        if (locks != null) {
+            stripes = stripes();
+            locks.lockAll(stripes);
+        }
+
+        try {
+            for (Map.Entry<Tile, Integer> entry : versions.entrySet()) {
+                if (entry.getKey().getVersion() != entry.getValue()) {
+                    return false;
+                }
+            }
+
+            if (apply) {
+                for (Tile tile : changed) {
+                    tile.replaceBlocks(columns.get(tile));
+                }
+                builder.setCurrentTile(builderTile);
+                builder.setInventory(inventory);
+
+                // the changes were not made by the builder, so cannot be
+                // undone, and neither can any before them
+                if (map != null && map.getUndoDepth() > 0) {
+                    map.setUndoDepth(map.getUndoDepth());
+                }
+            }
+            return true;
+        } finally {
+            if (locks != null) {
+                locks.unlockAll(stripes);
+            }
+        }
+    }
+
+    /**
+     * Get the stripes of every tile read, without repeats and in order.
+     * @return the stripes to lock
+     */
+    private int[] stripes() {
+        int[] stripes = new int[versions.size()];
+        int count = 0;
+        for (Tile tile : versions.keySet()) {
+            stripes[count++] = locks.stripe(tile);
+        }
+        Arrays.sort(stripes);
+
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || stripes[i] != stripes[distinct - 1]) {
+                stripes[distinct++] = stripes[i];
+            }
+        }
+        return Arrays.copyOf(stripes, distinct);
+    }
+}
@@ -0,0 +1,118 @@
+package csse2002.block.world;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A dictionary of interned block columns. <br>
+ * Most maps repeat the same few stacks of blocks on thousands of tiles, so
+ * tiles that are loaded with the same blocks share one unmodifiable list
+ * of blocks (a column) instead of each holding their own copy. A tile
+ * copies its column the first time its blocks are changed (see
+ * Tile.withColumn()). <br>
+ * Blocks have no state of their own, so sharing them between tiles is
+ * safe. Columns are kept by their encoding (see encode()), so the
+ * different ways of writing the same blocks (e.g. "grass" and "grass,")
+ * share one entry, and only columns that a tile may hold are interned. So
+ * the dictionary can never grow beyond the number of valid columns (4053
+ * with four types of blocks), and in any case stops growing at
+ * MAX_COLUMNS, after which new columns are not shared. <br>
+ * The dictionary is safe to use from several threads.
+ * @serial exclude
+ */
+final class BlockColumns {
+
+    /**
+     * The most columns the dictionary holds.
+     */
+    static final int MAX_COLUMNS = 8192;
+
+    // every column interned so far, by its encoding
+    private static final ConcurrentHashMap<String, List<Block>> COLUMNS =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Not instantiable.
+     */
+    private BlockColumns() {
+    }
+
+    /**
+     * Get the interned column for a comma separated list of block types.
+     * @param blockString the block types, from the bottom up
+     * @return the shared, unmodifiable column
+     * @throws WorldMapFormatException if a block type is invalid
+     * @throws TooHighException if a tile cannot hold the blocks
+     */
+    static List<Block> intern(String blockString)
+            throws WorldMapFormatException, TooHighException {
+        // blocks are almost always written as encode() writes them, so are
+        // found without being decoded
+        List<Block> column = COLUMNS.get(blockString);
+        if (column == null) {
+            column = intern(WorldMap.createBlockArray(blockString));
+        }
+        return column;
+    }
+
+    /**
+     * Get the interned column holding the same types of blocks as a list.
+     * @param blocks the blocks, from the bottom up
+     * @return the shared, unmodifiable column
+     * @throws TooHighException if a tile cannot hold the blocks
+     */
+    static List<Block> intern(List<Block> blocks) throws TooHighException {
+        String blockString = encode(blocks);
+        List<Block> column = COLUMNS.get(blockString);
+        if (column == null) {
+            column = add(blockString, blocks);
+        }
+        return column;
+    }
+
+    /**
+     * Encode blocks as a comma separated list of block types.
+     * @param blocks the blocks, from the bottom up
+     * @return the encoded blocks
+     */
+    static String encode(List<Block> blocks) {
+        StringBuilder result = new StringBuilder();
+        String sep = "";
+        for (Block block : blocks) {
+            result.append(sep).append(block.getBlockType());
+            sep = ",";
+        }
+        return result.toString();
+    }
+
+    /**
+     * Get the number of columns interned so far.
+     * @return the size of the dictionary
+     */
+    static int size() {
+        return COLUMNS.size();
+    }
+
+    /**
+     * Add a column to the dictionary, unless another thread added it first
+     * or the dictionary is full.
+     * @param blockString the encoding of the column
+     * @param blocks the blocks in the column
+     * @return the column in the dictionary, or an unshared column if the
+     *         dictionary is full
+     * @throws TooHighException if a tile cannot hold the blocks
+     */
+    private static List<Block> add(String blockString, List<Block> blocks)
+            throws TooHighException {
+        Tile.checkStartingBlocks(blocks);
+        List<Block> column = Collections.unmodifiableList(
+                new ArrayList<>(blocks));
+        if (COLUMNS.size() >= MAX_COLUMNS) {
+            return column;
+        }
+        List<Block> existing = COLUMNS.putIfAbsent(blockString, column);
+        return existing == null ? column : existing;
+    }
+}
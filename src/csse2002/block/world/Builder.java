@@ -22,6 +22,9 @@ public class Builder {
     /* Name of the builder*/
     String name;
 
+    /* Where changes are recorded to be undone, or null */
+    private UndoLog undoLog;
+
     /**
      * Create a builder. <br>
      * Set the name of the Builder (such that getName() == name) and the
@@ -123,16 +126,41 @@ public class Builder {
      */
     public void dropFromInventory(int inventoryIndex) throws
             InvalidBlockException, TooHighException {
+        switch (tryDropFromInventory(inventoryIndex)) {
+            case Outcome.INVALID_BLOCK:
+                throw new InvalidBlockException();
+            case Outcome.TOO_HIGH:
+                throw new TooHighException();
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Attempt to drop a block from inventory on the top of the current
+     * tile, as dropFromInventory() does, but return the outcome instead of
+     * throwing an exception.
+     * @param inventoryIndex the index in the inventory to place
+     * @return Outcome.SUCCESS if the block was dropped,
+     *         Outcome.INVALID_BLOCK if the inventoryIndex is out of the
+     *         inventory range, or Outcome.TOO_HIGH if the tile is too high
+     *         for the block
+     */
+    public int tryDropFromInventory(int inventoryIndex) {
         if (inventoryIndex < 0 || inventoryIndex >= contents.size()) {
-            throw new InvalidBlockException();
+            return Outcome.INVALID_BLOCK;
         }
 
         Block block = contents.get(inventoryIndex);
-
-        // should handle the TooHighException
-        currentTile.placeBlock(block);
-
-        contents.remove(inventoryIndex);
+        int outcome = currentTile.tryPlaceBlock(block);
+        if (outcome == Outcome.SUCCESS) {
+            contents.remove(inventoryIndex);
+            if (undoLog != null) {
+                undoLog.record(Action.DROP, currentTile, null, block,
+                        inventoryIndex);
+            }
+        }
+        return outcome;
     }
 
     /**
@@ -156,15 +184,62 @@ public class Builder {
      */
     public void digOnCurrentTile() throws TooLowException,
             InvalidBlockException {
+        switch (tryDigOnCurrentTile()) {
+            case Outcome.TOO_LOW:
+                throw new TooLowException();
+            case Outcome.INVALID_BLOCK:
+                throw new InvalidBlockException();
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Attempt to dig in the current tile, as digOnCurrentTile() does, but
+     * return the outcome instead of throwing an exception.
+     * @return Outcome.SUCCESS if the top block was dug, Outcome.TOO_LOW if
+     *         there are no blocks on the current tile, or
+     *         Outcome.INVALID_BLOCK if the top block is not diggable
+     */
+    public int tryDigOnCurrentTile() {
+        Block block = currentTile.peekTopBlock();
+        int outcome = currentTile.tryDig();
 
-        // throws TooLowException if no blocks, and InvalidBlockException if
-        // not diggable.
-        Block block = currentTile.dig();
+        if (outcome != Outcome.SUCCESS) {
+            return outcome;
+        }
 
         // only add the block to the inventory if it is carryable.
-        if (block.isCarryable()) {
+        boolean carried = block.isCarryable();
+        if (carried) {
             contents.add(block);
         }
+        if (undoLog != null) {
+            undoLog.record(Action.DIG, currentTile, null, block,
+                    carried ? 1 : 0);
+        }
+        return outcome;
+    }
+
+    /**
+     * Attempt to move the top block of the current tile to the tile at
+     * the named exit, as getCurrentTile().tryMoveBlock() does, so that
+     * the move can be undone (see WorldMap.setUndoDepth()).
+     * @param exitName the name of the exit to move the block to
+     * @return the outcome of Tile.tryMoveBlock()
+     */
+    public int tryMoveBlock(String exitName) {
+        if (undoLog == null) {
+            return currentTile.tryMoveBlock(exitName);
+        }
+
+        Block block = currentTile.peekTopBlock();
+        int outcome = currentTile.tryMoveBlock(exitName);
+        if (outcome == Outcome.SUCCESS) {
+            undoLog.record(Action.MOVE_BLOCK, currentTile,
+                    currentTile.getExits().get(exitName), block, 0);
+        }
+        return outcome;
     }
 
     /**
@@ -198,8 +273,8 @@ public class Builder {
             }
         }
 
-        if (Math.abs(newTile.getBlocks().size()
-                     - currentTile.getBlocks().size()) <= 1) {
+        if (canClimb(currentTile.getBlocks().size(),
+                     newTile.getBlocks().size())) {
             heightsAreCompatible = true;
         }
 
@@ -207,6 +282,16 @@ public class Builder {
         return tilesAreConnected && heightsAreCompatible;
     }
 
+    /**
+     * Can a builder climb between tiles of two heights?
+     * @param height the number of blocks on the tile the builder is on
+     * @param newHeight the number of blocks on the tile to enter
+     * @return true if the heights differ by at most 1
+     */
+    static boolean canClimb(int height, int newHeight) {
+        return Math.abs(newHeight - height) <= 1;
+    }
+
     /**
      * Move the builder to a new tile. <br>
      * If canEnter(newTile) == true then
@@ -218,11 +303,77 @@ public class Builder {
      * @throws NoExitException if canEnter(newTile) == false
      */
     public void moveTo(Tile newTile) throws NoExitException {
-        if (!canEnter(newTile)) {
+        if (tryMoveTo(newTile) == Outcome.NO_EXIT) {
             throw new NoExitException();
         }
+    }
+
+    /**
+     * Attempt to move the builder to a new tile, as moveTo() does, but
+     * return the outcome instead of throwing an exception.
+     * @param newTile the tile to move to
+     * @return Outcome.SUCCESS if the builder moved, or Outcome.NO_EXIT if
+     *         canEnter(newTile) == false
+     */
+    public int tryMoveTo(Tile newTile) {
+        if (!canEnter(newTile)) {
+            return Outcome.NO_EXIT;
+        }
 
+        if (undoLog != null) {
+            undoLog.record(Action.MOVE_BUILDER, currentTile, newTile, null, 0);
+        }
         currentTile = newTile;
+        return Outcome.SUCCESS;
+    }
+
+    /**
+     * Put the builder on a tile without checking that it can be entered,
+     * for example when restoring a saved position.
+     * @param tile the tile to put the builder on
+     * @require tile != null
+     */
+    void setCurrentTile(Tile tile) {
+        currentTile = tile;
+    }
+
+    /**
+     * Add a block to the inventory without any checks, for example when a
+     * change is undone.
+     * @param index the index in the inventory to add the block at
+     * @param block the block to add
+     * @require 0 &lt;= index &lt;= getInventory().size()
+     */
+    void addToInventory(int index, Block block) {
+        contents.add(index, block);
+    }
+
+    /**
+     * Remove a block from the inventory without any checks, for example
+     * when a change is undone.
+     * @param index the index in the inventory of the block to remove
+     * @require 0 &lt;= index &lt; getInventory().size()
+     */
+    void removeFromInventory(int index) {
+        contents.remove(index);
+    }
+
+    /**
+     * Replace the inventory without any checks, for example when a saved
+     * state of the map is restored.
+     * @param blocks the new inventory, which is copied
+     * @require every block in blocks is carryable
+     */
+    void setInventory(List<Block> blocks) {
+        contents = new LinkedList<Block>(blocks);
+    }
+
+    /**
+     * Set where the changes this builder makes are recorded to be undone.
+     * @param undoLog the log to record in, or null to record nothing
+     */
+    void setUndoLog(UndoLog undoLog) {
+        this.undoLog = undoLog;
     }
 
 }
@@ -0,0 +1,577 @@
+package csse2002.block.world;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * A file of actions compiled from the text format read by
+ * Action.loadAction() into a compact binary form, which is memory-mapped
+ * and performed without parsing any text (see
+ * Action.processActions(CompiledActions, WorldMap)). <br>
+ * The file format is as follows (all numbers are big-endian):
+ * <pre>{@literal
+ *<magic (int)> <unused (int)> <number of actions N (long)>
+ *<line table offset (long)>
+ *<action 0>
+ *    ...
+ *<action N-1>
+ *<number of line table entries M (int)>
+ *<first action (long)> <line number (long)>   (M times)
+ *}</pre>
+ *
+ * Each action starts with a code byte, whose high four bits are the
+ * primary action and whose low four bits hold the secondary action:
+ * <ul>
+ *     <li> MOVE_BUILDER and MOVE_BLOCK: 0 to 3 for north, east, south and
+ *          west. </li>
+ *     <li> DIG: 0. </li>
+ *     <li> DROP: the inventory index from 0 to 14, or 15 for an index
+ *          that follows as an int. </li>
+ *     <li> 4 in the high bits (ESCAPE) marks any other action that
+ *          Action.loadAction() accepts, such as "MOVE_BUILDER up" or
+ *          "DROP text": the low bits are its primary action, and its
+ *          secondary action follows as modified UTF-8. </li>
+ * </ul>
+ * So almost every action takes a single byte, and every action is read
+ * back exactly as it was loaded from the text, giving exactly the same
+ * messages when performed. <br>
+ * The line table gives the line of the text each action was compiled
+ * from: action i was on line L + (i - A) for the last entry (A, L) with
+ * A &lt;= i. Invalid text is reported with its line number when it is
+ * compiled, and a damaged file with the line of the action that cannot
+ * be read.
+ */
+public class CompiledActions {
+
+    /**
+     * The first int of a compiled action file, "BWA" and the format
+     * version. It cannot start a line of text, so text action files are
+     * never mistaken for compiled ones.
+     */
+    static final int MAGIC = 0x42574101;
+
+    // the length of the header, and the offsets of its fields
+    private static final int HEADER_SIZE = 24;
+    private static final int ACTION_COUNT = 8;
+    private static final int LINE_TABLE_OFFSET = 16;
+
+    // the primary action of an action whose secondary action is stored as
+    // text (shifted into the high bits of its code byte)
+    private static final int ESCAPE = 4;
+
+    // the low bits of a DROP whose index follows as an int
+    private static final int DROP_INT = 15;
+
+    // the longest action, so a mapped buffer never ends part way through
+    // an action unless the file does
+    private static final int MAX_ACTION_SIZE = 3 + 0xFFFF;
+
+    // the most bytes mapped at once
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    // the directions, by their code
+    private static final String[] DIRECTIONS =
+            {"north", "east", "south", "west"};
+
+    // the action for each code that needs no more bytes, or null
+    private static final Action[] ACTIONS = new Action[ESCAPE << 4];
+
+    static {
+        for (int i = 0; i < DIRECTIONS.length; i++) {
+            ACTIONS[Action.MOVE_BUILDER << 4 | i] =
+                    new Action(Action.MOVE_BUILDER, DIRECTIONS[i]);
+            ACTIONS[Action.MOVE_BLOCK << 4 | i] =
+                    new Action(Action.MOVE_BLOCK, DIRECTIONS[i]);
+        }
+        ACTIONS[Action.DIG << 4] = new Action(Action.DIG, "");
+        for (int i = 0; i < DROP_INT; i++) {
+            ACTIONS[Action.DROP << 4 | i] =
+                    new Action(Action.DROP, Integer.toString(i));
+        }
+    }
+
+    // the file
+    private final String filename;
+    private final RandomAccessFile file;
+
+    // read from the header
+    private final long actionCount;
+    private final long lineTableOffset;
+
+    // the line table
+    private final long[] firstActions;
+    private final long[] lineNumbers;
+
+    // the mapped part of the actions, and the offset in the file it starts
+    private MappedByteBuffer buffer;
+    private long bufferOffset;
+
+    // the number of actions read so far
+    private long nextAction;
+
+    /**
+     * Open a compiled action file, ready to read its first action.
+     * @param filename the file to open
+     * @throws ActionFormatException if the file is not a compiled action
+     *         file, or its header or line table is damaged
+     * @throws IOException if the file cannot be opened or mapped
+     * @require filename != null
+     */
+    public CompiledActions(String filename)
+            throws ActionFormatException, IOException {
+        this.filename = filename;
+        this.file = new RandomAccessFile(filename, "r");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(header, 0);
+            actionCount = header.getLong(ACTION_COUNT);
+            lineTableOffset = header.getLong(LINE_TABLE_OFFSET);
+            if (header.getInt(0) != MAGIC || actionCount < 0
+                    || lineTableOffset < HEADER_SIZE + actionCount
+                    || lineTableOffset + 4 > file.length()) {
+                throw new ActionFormatException("Not a compiled action file: "
+                        + filename);
+            }
+
+            ByteBuffer count = ByteBuffer.allocate(4);
+            readFully(count, lineTableOffset);
+            int entries = count.getInt(0);
+            if (entries < 1 || entries > (file.length() - lineTableOffset
+                    - 4) / 16) {
+                throw new ActionFormatException("Invalid line table in "
+                        + filename);
+            }
+            ByteBuffer table = ByteBuffer.allocate(entries * 16);
+            readFully(table, lineTableOffset + 4);
+            firstActions = new long[entries];
+            lineNumbers = new long[entries];
+            for (int i = 0; i < entries; i++) {
+                firstActions[i] = table.getLong(i * 16);
+                lineNumbers[i] = table.getLong(i * 16 + 8);
+            }
+            if (firstActions[0] != 0) {
+                throw new ActionFormatException("Invalid line table in "
+                        + filename);
+            }
+
+            map(HEADER_SIZE);
+        } catch (ActionFormatException | IOException
+                | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Check whether a file is a compiled action file.
+     * @param filename the file to check
+     * @return true if the file starts with MAGIC
+     * @throws IOException if the file cannot be read
+     */
+    public static boolean isCompiled(String filename) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new FileInputStream(filename))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Compile every action from a reader, in the format read by
+     * Action.loadAction(), into a compiled action file. The file is written
+     * next to filename and then moved over it, so an existing file is never
+     * left half written. <br>
+     * If an action cannot be loaded, no file is written, and the
+     * ActionFormatException thrown has the line number of the action.
+     *
+     * @param reader the reader to read actions from
+     * @param filename the compiled action file to write
+     * @return the number of actions compiled
+     * @throws ActionFormatException if an action cannot be loaded
+     * @throws IOException if the file cannot be written
+     * @require reader != null
+     * @require filename != null
+     */
+    public static long compile(BufferedReader reader, String filename)
+            throws ActionFormatException, IOException {
+        return compile(reader, filename, Long.MAX_VALUE);
+    }
+
+    /**
+     * Compile the first actions from a reader, as compile(reader, filename)
+     * does, without reading any line after the last of them.
+     *
+     * @param reader the reader to read actions from
+     * @param filename the compiled action file to write
+     * @param maxActions the most actions to compile
+     * @return the number of actions compiled
+     * @throws ActionFormatException if one of the first maxActions actions
+     *         cannot be loaded
+     * @throws IOException if the file cannot be written
+     * @require reader != null
+     * @require filename != null
+     * @require maxActions &gt;= 0
+     */
+    public static long compile(BufferedReader reader, String filename,
+                               long maxActions)
+            throws ActionFormatException, IOException {
+        File target = new File(filename);
+        File temp = new File(target.getAbsoluteFile().getParentFile(),
+                target.getName() + ".tmp");
+        long count = 0;
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp),
+                            1 << 16))) {
+                out.write(new byte[HEADER_SIZE]);
+                Action action;
+                while (count < maxActions
+                        && (action = load(reader, count + 1)) != null) {
+                    write(action, out);
+                    count++;
+                }
+
+                // every action is on its own line, from the first line
+                out.writeInt(1);
+                out.writeLong(0);
+                out.writeLong(1);
+            }
+
+            // the line table follows the actions (out.size() stops counting
+            // at 2GB, so this is found from the length of the file)
+            long offset = temp.length() - 4 - 16;
+            try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(0, MAGIC);
+                header.putLong(ACTION_COUNT, count);
+                header.putLong(LINE_TABLE_OFFSET, offset);
+                out.getChannel().write(header, 0);
+                out.getChannel().force(true);
+            }
+        } catch (ActionFormatException | IOException
+                | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+        Files.move(temp.toPath(), target.toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        return count;
+    }
+
+    /**
+     * Load an action from a reader, adding the line number to any
+     * ActionFormatException.
+     * @param reader the reader to read the action from
+     * @param line the line the action is on
+     * @return the action, or null at the end of the reader
+     * @throws ActionFormatException if the action cannot be loaded
+     */
+    private static Action load(BufferedReader reader, long line)
+            throws ActionFormatException {
+        try {
+            return Action.loadAction(reader);
+        } catch (ActionFormatException e) {
+            throw new ActionFormatException(e.getMessage(), line);
+        }
+    }
+
+    /**
+     * Write the compiled form of an action.
+     * @param action the action, as loaded by Action.loadAction()
+     * @param out the stream to write to
+     * @throws IOException if writing fails
+     */
+    private static void write(Action action, DataOutputStream out)
+            throws IOException {
+        int primary = action.getPrimaryAction();
+        String secondary = action.getSecondaryAction();
+        switch (primary) {
+            case Action.MOVE_BUILDER:
+            case Action.MOVE_BLOCK:
+                int direction = Arrays.asList(DIRECTIONS).indexOf(secondary);
+                if (direction >= 0) {
+                    out.writeByte(primary << 4 | direction);
+                    return;
+                }
+                break;
+            case Action.DIG:
+                if (secondary.isEmpty()) {
+                    out.writeByte(primary << 4);
+                    return;
+                }
+                break;
+            case Action.DROP:
+                if (!isIndex(secondary)) {
+                    break;
+                }
+                int index = Integer.parseInt(secondary);
+                if (index >= 0 && index < DROP_INT) {
+                    out.writeByte(primary << 4 | index);
+                } else {
+                    out.writeByte(primary << 4 | DROP_INT);
+                    out.writeInt(index);
+                }
+                return;
+            default:
+                break;
+        }
+        out.writeByte(ESCAPE << 4 | primary);
+        out.writeUTF(secondary);
+    }
+
+    /**
+     * Check whether the index of a DROP action is an int written the way
+     * Integer.toString() writes it, so it reads back the same if it is
+     * stored as an int.
+     * @param secondary the secondary action
+     * @return true if the index can be stored as an int
+     */
+    private static boolean isIndex(String secondary) {
+        try {
+            return Integer.toString(Integer.parseInt(secondary))
+                    .equals(secondary);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the name of the compiled action file.
+     * @return the filename
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Get the number of actions in the file.
+     * @return the number of actions
+     */
+    public long getActionCount() {
+        return actionCount;
+    }
+
+    /**
+     * Get the number of actions read so far, which is the index of the
+     * next action.
+     * @return the number of actions read
+     */
+    public long getPosition() {
+        return nextAction;
+    }
+
+    /**
+     * Get the line of the text that an action was compiled from.
+     * @param index the index of the action, from 0
+     * @return the line number, counting from 1
+     * @require 0 &lt;= index &lt; getActionCount()
+     */
+    public long getLineNumber(long index) {
+        int entry = Arrays.binarySearch(firstActions, index);
+        if (entry < 0) {
+            entry = -entry - 2;
+        }
+        return lineNumbers[entry] + index - firstActions[entry];
+    }
+
+    /**
+     * Read the next action. <br>
+     * The actions that need no more than their code byte are shared, so
+     * reading them does not create any objects.
+     * @return the action, or null if every action has been read
+     * @throws ActionFormatException if the action cannot be read, with the
+     *         line number it was compiled from, or the file cannot be
+     *         mapped
+     */
+    Action next() throws ActionFormatException {
+        if (nextAction == actionCount) {
+            return null;
+        }
+
+        try {
+            if (buffer.remaining() < MAX_ACTION_SIZE
+                    && bufferOffset + buffer.limit() < lineTableOffset) {
+                map(bufferOffset + buffer.position());
+            }
+        } catch (IOException e) {
+            throw new ActionFormatException(e.toString(),
+                    getLineNumber(nextAction));
+        }
+
+        try {
+            int code = buffer.get() & 0xFF;
+            Action action = code < ACTIONS.length ? ACTIONS[code] : null;
+            if (action == null) {
+                action = readAction(code);
+            }
+            nextAction++;
+            return action;
+        } catch (BufferUnderflowException | IOException e) {
+            throw new ActionFormatException("Invalid compiled action",
+                    getLineNumber(nextAction));
+        }
+    }
+
+    /**
+     * Skip actions, for example those that have already been performed.
+     * @param count the number of actions to skip
+     * @return the number of actions skipped, which is less than count if
+     *         every action has then been read
+     * @throws ActionFormatException if an action cannot be read
+     */
+    public long skip(long count) throws ActionFormatException {
+        long skipped = 0;
+        while (skipped < count && next() != null) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    /**
+     * Read an action that needs more than its code byte.
+     * @param code the code byte, which has been read
+     * @return the action
+     * @throws ActionFormatException if the code is not a valid code
+     * @throws IOException if the secondary action is truncated
+     */
+    private Action readAction(int code)
+            throws ActionFormatException, IOException {
+        if (code == (Action.DROP << 4 | DROP_INT)) {
+            return new Action(Action.DROP, Integer.toString(buffer.getInt()));
+        } else if (code >> 4 == ESCAPE) {
+            int length = buffer.getShort() & 0xFFFF;
+            byte[] utf = new byte[2 + length];
+            utf[0] = (byte) (length >> 8);
+            utf[1] = (byte) length;
+            buffer.get(utf, 2, length);
+            return new Action(code & 0xF, new DataInputStream(
+                    new ByteArrayInputStream(utf)).readUTF());
+        }
+        throw new ActionFormatException("Unrecognised action given",
+                getLineNumber(nextAction));
+    }
+
+    /**
+     * Get the offset in the file of the next action, so reading can later
+     * continue from it with seek().
+     * @return the offset of the next action
+     */
+    long getOffset() {
+        return bufferOffset + buffer.position();
+    }
+
+    /**
+     * Continue reading from an action read before.
+     * @param position the index of the action, as returned by
+     *                 getPosition() when getOffset() returned offset
+     * @param offset the offset of the action, returned by getOffset()
+     * @throws IOException if the file cannot be mapped
+     */
+    void seek(long position, long offset) throws IOException {
+        map(offset);
+        nextAction = position;
+    }
+
+    /**
+     * Go back to the first action, so the actions can be performed again.
+     * @throws IOException if the file cannot be mapped
+     */
+    public void rewind() throws IOException {
+        map(HEADER_SIZE);
+        nextAction = 0;
+    }
+
+    /**
+     * Close the file.
+     * @throws IOException if closing fails
+     */
+    public void close() throws IOException {
+        buffer = null;
+        file.close();
+    }
+
+    /**
+     * Map the actions from an offset in the file, as far as the line table
+     * or SEGMENT_SIZE bytes.
+     * @param offset the offset of the first byte to map
+     * @throws IOException if mapping fails
+     */
+    private void map(long offset) throws IOException {
+        long size = Math.min(SEGMENT_SIZE, lineTableOffset - offset);
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, offset,
+                size);
+        bufferOffset = offset;
+    }
+
+    /**
+     * Read bytes at an offset until a buffer is full.
+     * @param buffer the buffer to fill
+     * @param offset the offset to read from
+     * @throws ActionFormatException if the file ends first
+     * @throws IOException if reading fails
+     */
+    private void readFully(ByteBuffer buffer, long offset)
+            throws ActionFormatException, IOException {
+        while (buffer.hasRemaining()) {
+            int read = file.getChannel().read(buffer,
+                    offset + buffer.position());
+            if (read < 0) {
+                throw new ActionFormatException("Not a compiled action file: "
+                        + filename);
+            }
+        }
+    }
+
+    /**
+     * Compile a text action file into a compiled action file. <br>
+     * Takes 2 parameters, the action file (args[0], or "System.in") and
+     * the compiled action file to write (args[1]), and prints the number
+     * of actions compiled using System.out.println(). If there are not 2
+     * parameters, prints the usage using System.err.println() and exits
+     * with status 1. If an action cannot be loaded, prints
+     * "line N: " and the exception using System.err.println() and exits
+     * with status 4; if another exception is thrown, prints it and exits
+     * with status 2.
+     * @param args the input arguments to the program
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: CompiledActions actions"
+                    + " compiledActions");
+            System.exit(1);
+        }
+
+        try (BufferedReader reader = args[0].equals("System.in")
+                ? new BufferedReader(new InputStreamReader(System.in))
+                : new BufferedReader(new FileReader(args[0]))) {
+            System.out.println("Compiled " + compile(reader, args[1])
+                    + " actions");
+        } catch (ActionFormatException e) {
+            System.err.println("line " + e.getLineNumber() + ": " + e);
+            System.exit(4);
+        } catch (IOException e) {
+            System.err.println(e);
+            System.exit(2);
+        }
+    }
+}
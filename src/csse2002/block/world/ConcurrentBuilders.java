@@ -0,0 +1,295 @@
+package csse2002.block.world;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lets several builders act on one {@link WorldMap WorldMap} at once, each
+ * performing its own stream of actions on its own thread. <br>
+ * Every action locks the tiles it uses with {@link RegionLocks
+ * RegionLocks}: the builder's tile for DIG and DROP, and also the tile at
+ * the exit for MOVE_BUILDER and MOVE_BLOCK. Tiles are locked by region, so
+ * builders working in different areas of the map run in parallel, and
+ * actions on the same tiles are performed one at a time, each seeing the
+ * tiles exactly as the last left them. <br>
+ * Each builder's actions are performed in order, with the same messages as
+ * Action.processActions() would give for a builder acting alone at the same
+ * moments, but the actions of different builders on the same tiles are
+ * interleaved in whatever order their threads reach them. <br>
+ * Every tile of the map is loaded when the builders are created (see
+ * WorldMap.getTiles()). A map that pages its tiles in and out of a file, or
+ * writes each change to one, cannot be used, and neither can a map with
+ * ActionStats or an undo depth above 0 (see WorldMap.setUndoDepth()), as
+ * neither is kept by actions performed this way.
+ * @serial exclude
+ */
+public class ConcurrentBuilders {
+
+    /**
+     * The width and height of a locked region, in tiles, unless another is
+     * given.
+     */
+    public static final int DEFAULT_REGION_SIZE = 8;
+
+    /**
+     * The number of locks the regions share, unless another is given.
+     */
+    public static final int DEFAULT_STRIPES = 256;
+
+    /**
+     * Performs the actions of one builder.
+     */
+    private class BuilderThread extends Thread {
+
+        // the builder, its actions, and where its messages are written
+        private final Builder builder;
+        private final BufferedReader reader;
+        private final ActionSink sink;
+
+        // the number of actions performed
+        private long actionCount;
+
+        // the exception or error that stopped the builder, if any
+        private Throwable error;
+
+        /**
+         * Create the thread for a builder.
+         * @param builder the builder
+         * @param reader the builder's actions
+         * @param sink where the builder's messages are written
+         */
+        BuilderThread(Builder builder, BufferedReader reader,
+                      ActionSink sink) {
+            super("builder-" + builder.getName());
+            this.builder = builder;
+            this.reader = reader;
+            this.sink = sink;
+        }
+
+        /**
+         * Perform actions until the end of the input or an invalid action.
+         */
+        @Override
+        public void run() {
+            try {
+                Action action = Action.loadAction(reader);
+                while (action != null) {
+                    sink.write(Action.getMessage(action,
+                            perform(action, builder)));
+                    actionCount++;
+                    action = Action.loadAction(reader);
+                }
+                sink.flush();
+            } catch (Throwable e) {
+                // anything else would end the thread without run() knowing
+                error = e;
+            }
+        }
+    }
+
+    // the map the builders act on
+    private final WorldMap map;
+
+    // the locks for the tiles of the map
+    private final RegionLocks locks;
+
+    // the builders added since the last run
+    private final List<BuilderThread> builders = new ArrayList<>();
+
+    // the number of actions performed by the last run
+    private long actionCount;
+
+    /**
+     * Prepare for builders to act on a map, with DEFAULT_REGION_SIZE regions
+     * sharing DEFAULT_STRIPES locks.
+     * @param map the map
+     * @require map != null
+     */
+    public ConcurrentBuilders(WorldMap map) {
+        this(map, DEFAULT_REGION_SIZE, DEFAULT_STRIPES);
+    }
+
+    /**
+     * Prepare for builders to act on a map. <br>
+     * More locks mean fewer regions share a lock, so builders wait for each
+     * other less often, and smaller regions spread the builders in one area
+     * over more locks, at the cost of locking two stripes for more moves.
+     * @param map the map
+     * @param regionSize the width and height of a locked region, in tiles
+     * @param stripeCount the number of locks the regions share
+     * @throws IllegalArgumentException if regionSize &lt; 1 or
+     *         stripeCount &lt; 1
+     * @throws IllegalStateException if the map keeps its tiles in a file,
+     *         has ActionStats, or has an undo depth above 0
+     * @require map != null
+     */
+    public ConcurrentBuilders(WorldMap map, int regionSize, int stripeCount) {
+        if (regionSize < 1 || stripeCount < 1) {
+            throw new IllegalArgumentException("Region size " + regionSize
+                    + ", stripes " + stripeCount);
+        }
+
+        this.map = map;
+        checkMap();
+        locks = new RegionLocks(map.getTiles(), map.getPositions(),
+                regionSize, stripeCount);
+    }
+
+    /**
+     * Check that the map has nothing that builders acting at once would
+     * not keep.
+     * @throws IllegalStateException if the map keeps its tiles in a file,
+     *         has ActionStats, or has an undo depth above 0
+     */
+    private void checkMap() {
+        if (map.isFileBacked()) {
+            throw new IllegalStateException("Map keeps its tiles in a file");
+        } else if (map.getActionStats() != null) {
+            throw new IllegalStateException("Map has action stats");
+        } else if (map.getUndoDepth() > 0) {
+            throw new IllegalStateException("Map has undo depth "
+                    + map.getUndoDepth());
+        }
+    }
+
+    /**
+     * Add a builder to perform a stream of actions in the next run(). <br>
+     * The builder may be the map's own builder (WorldMap.getBuilder()), or
+     * any other builder standing on a tile of the map.
+     * @param builder the builder
+     * @param actions the actions, in the format read by Action.loadAction()
+     * @param sink where the message for each action is written
+     * @throws IllegalArgumentException if the builder is not on a tile of
+     *         the map, or has already been added
+     * @throws IllegalStateException if the map has been given ActionStats
+     *         or an undo depth above 0, or saved to a mapped map file,
+     *         since the builders were created
+     * @require builder, actions and sink != null
+     */
+    public void addBuilder(Builder builder, BufferedReader actions,
+                           ActionSink sink) {
+        checkMap();
+        if (locks.stripe(builder.getCurrentTile()) < 0) {
+            throw new IllegalArgumentException("Builder " + builder.getName()
+                    + " is not on the map");
+        }
+        for (BuilderThread thread : builders) {
+            if (thread.builder == builder) {
+                throw new IllegalArgumentException("Builder "
+                        + builder.getName() + " has already been added");
+            }
+        }
+
+        builders.add(new BuilderThread(builder, actions, sink));
+    }
+
+    /**
+     * Perform the actions of every builder added since the last run, each
+     * on its own thread, and wait until all of them have finished. <br>
+     * A builder stops at the first action that cannot be read, when its
+     * messages cannot be written, or if anything else is thrown on its
+     * thread, while the others carry on; whatever stopped the first builder
+     * added is then thrown. Each builder's sink is flushed once its actions
+     * have all been performed, but not closed.
+     * @throws ActionFormatException if an action could not be read
+     * @throws IOException if a message could not be written, or this
+     *         thread was interrupted while waiting (in which case the
+     *         builders carry on)
+     * @throws RuntimeException if one was thrown on a builder's thread
+     * @throws Error if one was thrown on a builder's thread
+     */
+    public void run() throws ActionFormatException, IOException {
+        List<BuilderThread> running = new ArrayList<>(builders);
+        builders.clear();
+        actionCount = 0;
+
+        for (BuilderThread thread : running) {
+            thread.start();
+        }
+
+        Throwable error = null;
+        for (BuilderThread thread : running) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for"
+                        + " builders");
+            }
+
+            actionCount += thread.actionCount;
+            if (error == null) {
+                error = thread.error;
+            }
+        }
+
+        if (error instanceof ActionFormatException) {
+            throw (ActionFormatException) error;
+        } else if (error instanceof IOException) {
+            throw (IOException) error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        } else if (error != null) {
+            throw new IllegalStateException("Builder failed", error);
+        }
+    }
+
+    /**
+     * Get the number of actions performed by every builder in the last
+     * run().
+     * @return the number of actions
+     */
+    public long getActionCount() {
+        return actionCount;
+    }
+
+    /**
+     * Create an empty transaction for a builder, whose actions are
+     * performed all together or not at all, alongside the actions of other
+     * builders (see {@link ActionTransaction ActionTransaction}). It may be
+     * committed from any thread, but only one thread may use each builder
+     * at a time.
+     * @param builder the builder to perform the actions, standing on a
+     *                tile of the map
+     * @return the transaction
+     * @require builder != null
+     */
+    public ActionTransaction transaction(Builder builder) {
+        return new ActionTransaction(builder, null, locks);
+    }
+
+    /**
+     * Perform an action with a builder, locking the tiles it uses, as
+     * run() does for each action. This may be called from any thread, but
+     * only one thread may use each builder at a time.
+     * @param action the action to perform
+     * @param builder the builder to perform it with, standing on a tile
+     *                of the map
+     * @return the Outcome code, or ActionStats.INVALID_ACTION if the action
+     *         is not valid
+     * @require action != null and builder != null
+     */
+    public int perform(Action action, Builder builder) {
+        Tile tile = builder.getCurrentTile();
+        int target = -1;
+        if ((action.getPrimaryAction() == Action.MOVE_BUILDER
+                || action.getPrimaryAction() == Action.MOVE_BLOCK)
+                && action.getSecondaryAction() != null) {
+            // exits never change while builders act, so need no lock
+            target = locks.stripe(tile.getExits().get(
+                    action.getSecondaryAction()));
+        }
+
+        int stripe = locks.stripe(tile);
+        locks.lock(stripe, target);
+        try {
+            return Action.perform(action, builder);
+        } finally {
+            locks.unlock(stripe, target);
+        }
+    }
+}
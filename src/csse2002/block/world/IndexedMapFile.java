@@ -0,0 +1,1355 @@
+package csse2002.block.world;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * A world map file split into square regions of tiles, with an index of
+ * where each region is stored, so that regions can be loaded only when
+ * they are needed. <br>
+ * The file format is as follows:
+ * <pre>{@literal
+ *indexed:<region size>
+ *<startingX>
+ *<startingY>
+ *<builder's name>
+ *<inventory1>,<inventory2>, ... ,<inventoryN>
+ *total:<number of tiles>
+ *regions:<number of regions R>
+ *<region0 x> <region0 y> <offset> <length> <number of tiles> <checksum>
+ *    ...
+ *<regionR-1 x> <regionR-1 y> <offset> <length> <number of tiles> <checksum>
+ *columns:<number of columns C>
+ *<block1>,<block2>, ... ,<blockN>
+ *    ...
+ *validated:<header checksum>
+ *
+ *<region bodies>
+ *}</pre>
+ *
+ * The tile at position (x, y) is in region (floor(x / size),
+ * floor(y / size)). Each region body is stored at the given byte offset
+ * from the end of the blank line after the index, is the given number of
+ * bytes long, and has one line per tile in the region:
+ * <pre>{@literal
+ *<tile id> <x> <y> <column> <name1>:<id1>, ... ,<nameN>:<idN>
+ *}</pre>
+ *
+ * The "columns" section is a dictionary of the distinct stacks of blocks
+ * in the map, and each tile's column is the index of its blocks in it.
+ * Since maps repeat the same few stacks on most tiles, this keeps the
+ * region bodies short, and tiles with the same column share their blocks
+ * when they are loaded (see {@link BlockColumns BlockColumns}). Files
+ * without a "columns" section hold each tile's blocks in the tile line.
+ * <br>
+ *
+ * Tile ids are the ordering of tiles returned by WorldMap.getTiles() when
+ * the file was written, so tile 0 is the starting tile. Lines end with a
+ * single "\n". <br>
+ * Each region checksum is the CRC32C of the region body, and the header
+ * checksum is the CRC32C of every byte before the "validated" line, both in
+ * hexadecimal. A region is checked against its checksum when it is loaded,
+ * so a corrupt region is reported by its coordinates without the rest of
+ * the file being read. The "validated" line records that the file was
+ * written from a map that was already checked to be geometrically
+ * consistent; if the header and every region still match their checksums,
+ * the file is unchanged since then, and loading the whole map can skip
+ * checking it again. Files without checksums (five field index entries and
+ * no "validated" line) are also read, but are always checked. <br>
+ * When a region is loaded, each tile its exits lead to in another region
+ * is created unloaded, and loads its own region the first time it is used.
+ * <br>
+ * The number of loaded tiles can be limited (see setTileLimit()), so a map
+ * far larger than memory can be used a few regions at a time. When loading
+ * a region takes the map over the limit, the regions used least recently
+ * are unloaded: their tiles become unloaded again, and load their region
+ * again the next time they are used. A region whose blocks have changed is
+ * first written back to a page file next to the map file (the map file
+ * itself is never changed), and is loaded from there instead. A region
+ * whose exits have changed is kept loaded, since its exits can no longer
+ * be written by tile id.
+ * @serial exclude
+ */
+final class IndexedMapFile {
+
+    /**
+     * The first token of an indexed map file.
+     */
+    static final String MAGIC = "indexed";
+
+    /**
+     * The width and height of a region, in tiles, if no size is given.
+     */
+    static final int DEFAULT_REGION_SIZE = 64;
+
+    // exit names and the position offsets they lead to
+    private static final String[] EXITS = {"north", "east", "south", "west"};
+    private static final int[] DIRECTIONS_X = {0, 1, 0, -1};
+    private static final int[] DIRECTIONS_Y = {-1, 0, 1, 0};
+
+    /**
+     * A region of the file, which loads all of its tiles when any one of
+     * them is first used.
+     */
+    private class Region implements TileLoader, TileListener {
+
+        // the region coordinates
+        final int x;
+        final int y;
+
+        // where the region body is stored, from the start of the bodies (or
+        // of the page file, if paged)
+        long offset;
+
+        // the length of the body in bytes
+        int length;
+
+        // the number of tiles in the region
+        final int tileCount;
+
+        // the CRC32C of the body, or -1 if the file has no checksums
+        long checksum;
+
+        // whether the region's tiles have been loaded
+        boolean loaded;
+
+        // whether the body has been written back to the page file, with the
+        // blocks of each tile written out in full
+        boolean paged;
+
+        // whether any tile's blocks have changed since the region was
+        // loaded, or any tile's exits have changed
+        boolean dirty;
+        boolean pinned;
+
+        // the value of the use clock when the region was last used
+        long lastUsed;
+
+        // the region's tiles and their ids, in body order, while loaded
+        List<Tile> tiles;
+        int[] ids;
+
+        /**
+         * Create a region from its index entry.
+         * @param x the region x coordinate
+         * @param y the region y coordinate
+         * @param offset the offset of the body
+         * @param length the length of the body
+         * @param tileCount the number of tiles in the region
+         * @param checksum the CRC32C of the body, or -1 if unknown
+         */
+        Region(int x, int y, long offset, int length, int tileCount,
+               long checksum) {
+            this.x = x;
+            this.y = y;
+            this.offset = offset;
+            this.length = length;
+            this.tileCount = tileCount;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Load this region, which fills in the given tile.
+         * @param tile the tile that is being used
+         * @throws UncheckedIOException if the region cannot be read or is
+         *         incorrectly formatted
+         */
+        @Override
+        public void loadTile(Tile tile) {
+            try {
+                load(this);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (BlockWorldException e) {
+                throw new UncheckedIOException(new IOException(
+                        "Region (" + x + ", " + y + ") of " + filename
+                                + " is invalid: " + e.getMessage(), e));
+            }
+        }
+
+        /**
+         * Record that one of the region's tiles has been used.
+         * @param tile the tile that was used
+         */
+        @Override
+        public void tileUsed(Tile tile) {
+            lastUsed = ++useClock;
+            stats.addRegionHits(1);
+        }
+
+        /**
+         * Record that one of the region's tiles has changed, and pass the
+         * change on to the map's listener.
+         * @param tile the tile that changed
+         * @param exits true if the exits changed
+         */
+        @Override
+        public void tileChanged(Tile tile, boolean exits) {
+            dirty = true;
+            if (exits) {
+                pinned = true;
+            }
+            if (listener != null) {
+                listener.tileChanged(tile, exits);
+            }
+        }
+    }
+
+    /**
+     * A weak reference to a tile, which remembers the tile's id so it can be
+     * forgotten once the tile is no longer used.
+     */
+    private static class TileReference extends WeakReference<Tile> {
+
+        // the tile's id
+        final int id;
+
+        /**
+         * Create a reference to a tile.
+         * @param tile the tile
+         * @param id the tile's id
+         * @param queue the queue to add the reference to once the tile is
+         *         no longer used
+         */
+        TileReference(Tile tile, int id, ReferenceQueue<Tile> queue) {
+            super(tile, queue);
+            this.id = id;
+        }
+    }
+
+    // the file the regions are read from
+    private String filename;
+
+    // the header
+    private int regionSize;
+    private Position startPosition;
+    private String builderName;
+    private List<Block> inventory;
+    private int tileCount;
+
+    // the offset of the first region body in the file
+    private long bodyStart;
+
+    // whether the header matches its "validated" checksum
+    private boolean validated;
+
+    // the column dictionary, or null if tile lines hold their blocks
+    private List<List<Block>> columns;
+
+    // the regions, by region key
+    private Map<Long, Region> regions = new HashMap<>();
+
+    // every tile created so far, loaded or not. Loaded tiles are held by
+    // their regions, and unloaded tiles by the exits that lead to them, so
+    // an unloaded tile that nothing leads to any more is forgotten.
+    private Map<Integer, TileReference> tilesById = new HashMap<>();
+    private ReferenceQueue<Tile> forgottenTiles = new ReferenceQueue<>();
+
+    // every loaded tile, by position
+    private Map<Position, Tile> tilesByPosition = new HashMap<>();
+
+    // the position of every loaded tile, by id
+    private Position[] positionsById;
+
+    // the listener to give to each loaded tile
+    private TileListener listener;
+
+    // records the time spent loading regions
+    private MapStats stats;
+
+    // the number of regions loaded now
+    private int loadedRegions;
+
+    // the most tiles to keep loaded, or 0 for no limit, and the number of
+    // tiles loaded now
+    private int tileLimit;
+    private int loadedTiles;
+
+    // counts uses of regions, to find the least recently used
+    private long useClock;
+
+    // the file changed regions are written back to, and its length
+    private RandomAccessFile pageFile;
+    private long pageLength;
+
+    /**
+     * Create an indexed map file with nothing read yet.
+     * @param filename the file to read from
+     * @param listener the listener to give to each loaded tile
+     * @param stats the stats to record region loads in
+     */
+    private IndexedMapFile(String filename, TileListener listener,
+                           MapStats stats) {
+        this.filename = filename;
+        this.listener = listener;
+        this.stats = stats;
+    }
+
+    /**
+     * Check whether a stream holds an indexed map file, without consuming
+     * anything from it.
+     * @param in the stream to check, which must support mark()
+     * @return true if the stream starts with "indexed:"
+     * @throws IOException if reading from the stream fails
+     */
+    static boolean isIndexed(InputStream in) throws IOException {
+        byte[] magic = (MAGIC + ":").getBytes(StandardCharsets.UTF_8);
+        in.mark(magic.length);
+        try {
+            for (byte b : magic) {
+                if (in.read() != b) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Open an indexed map file and read its header and region index. No
+     * regions are loaded.
+     * @param filename the file to open
+     * @param listener the listener to give to each loaded tile
+     * @param stats the stats to record the header and region loads in
+     * @return the opened file
+     * @throws WorldMapFormatException if the header or index is incorrectly
+     *         formatted
+     * @throws IOException if the file cannot be read
+     */
+    static IndexedMapFile open(String filename, TileListener listener,
+                               MapStats stats)
+            throws WorldMapFormatException, IOException {
+        IndexedMapFile file = new IndexedMapFile(filename, listener, stats);
+        int previous = stats.enter(MapStats.LOAD_REGIONS);
+        try {
+            file.readHeader();
+        } finally {
+            stats.enter(previous);
+        }
+        return file;
+    }
+
+    /**
+     * Set the stats that region loads are recorded in.
+     * @param stats the stats to record in
+     */
+    void setStats(MapStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Get the starting position.
+     * @return the starting position
+     */
+    Position getStartPosition() {
+        return startPosition;
+    }
+
+    /**
+     * Get the builder's name.
+     * @return the builder's name
+     */
+    String getBuilderName() {
+        return builderName;
+    }
+
+    /**
+     * Get the builder's inventory.
+     * @return the builder's inventory
+     */
+    List<Block> getInventory() {
+        return inventory;
+    }
+
+    /**
+     * Check whether the file records that it was written from a consistent
+     * map, and its header has not changed since. Each region is checked
+     * against its own checksum as it is loaded, so once loadAll() has
+     * succeeded on a validated file, the tiles are known to be consistent.
+     * @return true if the file is validated
+     */
+    boolean isValidated() {
+        return validated;
+    }
+
+    /**
+     * Get every tile, in id order.
+     * @return the tiles, in the order returned by WorldMap.getTiles() when
+     *         the file was written
+     * @require loadAll() has been called
+     */
+    List<Tile> getTiles() {
+        List<Tile> tiles = new ArrayList<>(tileCount);
+        for (int i = 0; i < tileCount; i++) {
+            tiles.add(tileById(i));
+        }
+        return tiles;
+    }
+
+    /**
+     * Get the position of every tile, in id order.
+     * @return the positions, in the same order as getTiles()
+     * @require loadAll() has been called
+     */
+    List<Position> getPositions() {
+        return Arrays.asList(positionsById);
+    }
+
+    /**
+     * Find the regions whose bodies do not match their checksums, without
+     * parsing any of them.
+     * @return the coordinates of each corrupt region, in order
+     * @throws WorldMapFormatException if the file has no checksums
+     * @throws IOException if a region cannot be read
+     */
+    List<Position> findCorruptRegions() throws WorldMapFormatException,
+            IOException {
+        List<Position> corrupt = new ArrayList<>();
+        try (RandomAccessFile in = new RandomAccessFile(filename, "r")) {
+            for (Region region : regions.values()) {
+                if (region.checksum == -1) {
+                    throw new WorldMapFormatException("File has no region"
+                            + " checksums");
+                }
+                if (checksum(readBody(in, region)) != region.checksum) {
+                    corrupt.add(new Position(region.x, region.y));
+                }
+            }
+        }
+
+        Collections.sort(corrupt);
+        return corrupt;
+    }
+
+    /**
+     * Get the number of regions in the file.
+     * @return the number of regions
+     */
+    int getRegionCount() {
+        return regions.size();
+    }
+
+    /**
+     * Get the number of regions loaded now.
+     * @return the number of loaded regions
+     */
+    int getLoadedRegionCount() {
+        return loadedRegions;
+    }
+
+    /**
+     * Get the starting tile (tile 0), loading its region and the regions
+     * around it if they are not loaded.
+     * @return the starting tile
+     * @throws WorldMapFormatException if a region is incorrectly formatted
+     * @throws IOException if a region cannot be read
+     */
+    Tile getStartTile() throws WorldMapFormatException, IOException {
+        int startX = regionOf(startPosition.getX());
+        int startY = regionOf(startPosition.getY());
+
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                Region region = regions.get(key(startX + dx, startY + dy));
+                if (region != null) {
+                    load(region);
+                }
+            }
+        }
+
+        Tile start = tilesByPosition.get(startPosition);
+        if (start == null || start != tileById(0)) {
+            throw new WorldMapFormatException("Tile 0 is not at the"
+                    + " starting position");
+        }
+        return start;
+    }
+
+    /**
+     * Get the tile at a position, loading its region if needed.
+     * @param position the position of the tile
+     * @return the tile, or null if there is no tile at position
+     * @throws UncheckedIOException if the region cannot be loaded
+     */
+    Tile getTile(Position position) {
+        Region region = regions.get(key(regionOf(position.getX()),
+                regionOf(position.getY())));
+        if (region == null) {
+            return null;
+        }
+
+        if (!region.loaded) {
+            region.loadTile(null);
+        } else {
+            region.tileUsed(null);
+        }
+        return tilesByPosition.get(position);
+    }
+
+    /**
+     * Load every region that is not loaded yet. The tile limit is removed
+     * first, so every tile stays loaded.
+     * @throws WorldMapFormatException if a region is incorrectly formatted
+     * @throws IOException if a region cannot be read
+     */
+    void loadAll() throws WorldMapFormatException, IOException {
+        tileLimit = 0;
+        for (Region region : regions.values()) {
+            load(region);
+        }
+    }
+
+    /**
+     * Limit the number of tiles that are kept loaded. Whenever loading a
+     * region takes the number of loaded tiles over the limit, the regions
+     * used least recently are unloaded until it is back under the limit.
+     * The region just loaded, and the region used most recently before it,
+     * are never unloaded, so a tile being used does not lose its blocks
+     * while it uses a neighbouring tile.
+     * @param tiles the most tiles to keep loaded, or 0 for no limit
+     * @throws IOException if a changed region cannot be written back
+     */
+    void setTileLimit(int tiles) throws IOException {
+        tileLimit = tiles;
+        unloadOver(null);
+    }
+
+    /**
+     * Get the limit on the number of tiles that are kept loaded.
+     * @return the limit, or 0 for no limit
+     */
+    int getTileLimit() {
+        return tileLimit;
+    }
+
+    /**
+     * Stop tracking the loaded tiles, once they have all been handed to a
+     * SparseTileArray. Each tile is given the map's listener directly, and
+     * the page file is deleted.
+     * @require loadAll() has been called
+     */
+    void release() {
+        for (Region region : regions.values()) {
+            for (Tile tile : region.tiles) {
+                tile.setPager(null);
+                tile.setListener(listener);
+            }
+        }
+        closePageFile();
+    }
+
+    /**
+     * Unload the least recently used regions until the number of loaded
+     * tiles is within the limit.
+     * @param loaded the region that has just been loaded, or null
+     * @throws IOException if a changed region cannot be written back
+     */
+    private void unloadOver(Region loaded) throws IOException {
+        while (tileLimit > 0 && loadedTiles > tileLimit) {
+            Region newest = null;
+            Region oldest = null;
+            for (Region region : regions.values()) {
+                if (!region.loaded || region == loaded || region.pinned) {
+                    continue;
+                }
+                if (newest == null || region.lastUsed > newest.lastUsed) {
+                    newest = region;
+                }
+            }
+            for (Region region : regions.values()) {
+                if (!region.loaded || region == loaded || region.pinned
+                        || (loaded != null && region == newest)) {
+                    continue;
+                }
+                if (oldest == null || region.lastUsed < oldest.lastUsed) {
+                    oldest = region;
+                }
+            }
+
+            if (oldest == null) {
+                // everything left is in use or pinned
+                return;
+            }
+            unload(oldest);
+        }
+    }
+
+    /**
+     * Unload a region, writing it back to the page file first if any of its
+     * tiles have changed.
+     * @param region the region to unload
+     * @throws IOException if the region cannot be written back
+     */
+    private void unload(Region region) throws IOException {
+        if (region.dirty) {
+            writeBack(region);
+        }
+
+        for (int i = 0; i < region.tiles.size(); i++) {
+            int id = region.ids[i];
+            tilesByPosition.remove(positionsById[id]);
+            positionsById[id] = null;
+            region.tiles.get(i).unload(region);
+        }
+
+        region.tiles = null;
+        region.ids = null;
+        region.loaded = false;
+        loadedRegions--;
+        loadedTiles -= region.tileCount;
+        stats.addRegionEvictions(1);
+    }
+
+    /**
+     * Write the body of a changed region to the end of the page file, with
+     * the current blocks of each tile, and load the region from there from
+     * now on. Since the region's exits have not changed, they are copied
+     * from its current body.
+     * @param region the region to write back
+     * @throws IOException if the body cannot be read or written
+     */
+    private void writeBack(Region region) throws IOException {
+        String[] lines = new String(readBody(region), StandardCharsets.UTF_8)
+                .split("\n");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < region.tiles.size(); i++) {
+            String[] parts = lines[i].split(" ", -1);
+            parts[3] = BlockColumns.encode(region.tiles.get(i).getBlocks());
+            body.append(String.join(" ", parts)).append('\n');
+        }
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+
+        if (pageFile == null) {
+            pageFile = new RandomAccessFile(filename + ".pages", "rw");
+            pageFile.setLength(0);
+            new File(filename + ".pages").deleteOnExit();
+        }
+        pageFile.seek(pageLength);
+        pageFile.write(bytes);
+
+        region.offset = pageLength;
+        region.length = bytes.length;
+        region.checksum = checksum(bytes);
+        region.paged = true;
+        region.dirty = false;
+        pageLength += bytes.length;
+        stats.addRegionWriteBacks(1);
+    }
+
+    /**
+     * Close and delete the page file, if there is one.
+     */
+    private void closePageFile() {
+        if (pageFile != null) {
+            try {
+                pageFile.close();
+            } catch (IOException e) {
+                // only the page file's contents are lost, and every region
+                // written to it is loaded
+            }
+            new File(filename + ".pages").delete();
+            pageFile = null;
+        }
+    }
+
+    /**
+     * Get a tile by id, if it has been created and is still used.
+     * @param id the tile id
+     * @return the tile, or null
+     */
+    private Tile tileById(int id) {
+        TileReference reference = tilesById.get(id);
+        return reference == null ? null : reference.get();
+    }
+
+    /**
+     * Remember the tile with an id, first forgetting any tiles that are no
+     * longer used.
+     * @param id the tile id
+     * @param tile the tile
+     */
+    private void putTile(int id, Tile tile) {
+        TileReference forgotten;
+        while ((forgotten = (TileReference) forgottenTiles.poll()) != null) {
+            if (tilesById.get(forgotten.id) == forgotten) {
+                tilesById.remove(forgotten.id);
+            }
+        }
+        tilesById.put(id, new TileReference(tile, id, forgottenTiles));
+    }
+
+    /**
+     * Write a map as an indexed map file. The regions are first written to
+     * a temporary file next to filename, so the index can be written in
+     * front of them, and the whole file is written to another, which is
+     * then moved over filename, so an existing file is never left half
+     * written.
+     * @param filename the file to write
+     * @param regionSize the width and height of each region
+     * @param startPosition the starting position
+     * @param builder the builder
+     * @param tiles the tiles, in the order returned by WorldMap.getTiles()
+     * @param positions the position of each tile
+     * @throws IOException if the file cannot be written
+     */
+    static void write(String filename, int regionSize,
+                      Position startPosition, Builder builder,
+                      List<Tile> tiles, List<Position> positions)
+            throws IOException {
+        Map<Tile, Integer> tileIds = new IdentityHashMap<>(tiles.size());
+        Map<String, Integer> columnIds = new LinkedHashMap<>();
+        Map<Long, List<Integer>> regionTiles = new TreeMap<>();
+        for (int i = 0; i < tiles.size(); i++) {
+            tileIds.put(tiles.get(i), i);
+            Position position = positions.get(i);
+            long key = key(Math.floorDiv(position.getX(), regionSize),
+                    Math.floorDiv(position.getY(), regionSize));
+            List<Integer> ids = regionTiles.get(key);
+            if (ids == null) {
+                ids = new ArrayList<>();
+                regionTiles.put(key, ids);
+            }
+            ids.add(i);
+        }
+
+        File bodies = new File(filename + ".tmp");
+        File target = new File(filename);
+        File temp = new File(filename + ".new");
+        StringBuilder index = new StringBuilder();
+        CRC32C crc = new CRC32C();
+        try {
+            try (OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(bodies))) {
+                long offset = 0;
+                for (Map.Entry<Long, List<Integer>> entry
+                        : regionTiles.entrySet()) {
+                    long start = offset;
+                    crc.reset();
+                    for (int id : entry.getValue()) {
+                        byte[] line = encodeTile(tileIds, columnIds,
+                                tiles.get(id), id, positions.get(id))
+                                .getBytes(StandardCharsets.UTF_8);
+                        out.write(line);
+                        crc.update(line);
+                        offset += line.length;
+                    }
+
+                    index.append((int) (entry.getKey() >> 32)).append(' ')
+                            .append((int) (long) entry.getKey()).append(' ')
+                            .append(start).append(' ')
+                            .append(offset - start).append(' ')
+                            .append(entry.getValue().size()).append(' ')
+                            .append(Long.toHexString(crc.getValue()))
+                            .append('\n');
+                }
+            }
+
+            try (OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(temp))) {
+                String header = MAGIC + ":" + regionSize + "\n"
+                        + startPosition.getX() + "\n"
+                        + startPosition.getY() + "\n"
+                        + builder.getName() + "\n"
+                        + BlockColumns.encode(builder.getInventory()) + "\n"
+                        + "total:" + tiles.size() + "\n"
+                        + "regions:" + regionTiles.size() + "\n"
+                        + index
+                        + "columns:" + columnIds.size() + "\n"
+                        + String.join("\n", columnIds.keySet())
+                        + (columnIds.isEmpty() ? "" : "\n");
+                byte[] headerBytes = header.getBytes(StandardCharsets.UTF_8);
+
+                // the tiles came from a SparseTileArray, so they have
+                // already been checked to be consistent
+                out.write(headerBytes);
+                out.write(("validated:"
+                        + Long.toHexString(checksum(headerBytes)) + "\n\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                Files.copy(bodies.toPath(), out);
+            }
+            Files.move(temp.toPath(), target.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(bodies.toPath());
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Encode a tile as a line of a region body.
+     * @param tileIds the id of every tile
+     * @param columnIds the index of every column in the dictionary so far,
+     *         which the tile's column is added to if it is new
+     * @param tile the tile to encode
+     * @param id the id of the tile
+     * @param position the position of the tile
+     * @return the encoded line, ending in "\n"
+     */
+    private static String encodeTile(Map<Tile, Integer> tileIds,
+                                     Map<String, Integer> columnIds,
+                                     Tile tile, int id, Position position) {
+        String column = BlockColumns.encode(tile.getBlocks());
+        Integer columnId = columnIds.get(column);
+        if (columnId == null) {
+            columnId = columnIds.size();
+            columnIds.put(column, columnId);
+        }
+
+        StringBuilder line = new StringBuilder();
+        line.append(id).append(' ').append(position.getX()).append(' ')
+                .append(position.getY()).append(' ')
+                .append(columnId).append(' ');
+
+        String sep = "";
+        for (Map.Entry<String, Tile> exit : tile.getExits().entrySet()) {
+            line.append(sep).append(exit.getKey()).append(':')
+                    .append(tileIds.getOrDefault(exit.getValue(), -1));
+            sep = ",";
+        }
+
+        return line.append('\n').toString();
+    }
+
+    /**
+     * Read the header and region index.
+     * @throws WorldMapFormatException if the header or index is incorrectly
+     *         formatted
+     * @throws IOException if the file cannot be read
+     */
+    private void readHeader() throws WorldMapFormatException, IOException {
+        try (RandomAccessFile in = new RandomAccessFile(filename, "r")) {
+            HeaderReader reader = new HeaderReader(in);
+
+            regionSize = parseCount(reader.readLine(), MAGIC);
+            if (regionSize == 0) {
+                throw new WorldMapFormatException("Region size is zero");
+            }
+
+            int x = parseInt(reader.readLine(), "starting position x");
+            int y = parseInt(reader.readLine(), "starting position y");
+            startPosition = new Position(x, y);
+            builderName = reader.readLine();
+            inventory = WorldMap.createBlockArray(reader.readLine());
+            tileCount = parseCount(reader.readLine(), "total");
+            positionsById = new Position[tileCount];
+            int regionCount = parseCount(reader.readLine(), "regions");
+
+            long regionTiles = 0;
+            long bodyLength = 0;
+            for (int i = 0; i < regionCount; i++) {
+                String[] parts = reader.readLine().split(" ", -1);
+                if (parts.length != 5 && parts.length != 6) {
+                    throw new WorldMapFormatException("Region index entry "
+                            + i + " must have 5 or 6 fields");
+                }
+
+                Region region = new Region(
+                        parseInt(parts[0], "region x"),
+                        parseInt(parts[1], "region y"),
+                        parseLong(parts[2], "region offset"),
+                        parseInt(parts[3], "region length"),
+                        parseInt(parts[4], "region tile count"),
+                        parts.length == 6
+                                ? parseChecksum(parts[5], "region checksum")
+                                : -1);
+                if (region.offset < 0 || region.length < 0
+                        || region.tileCount < 0) {
+                    throw new WorldMapFormatException("Region index entry "
+                            + i + " is negative");
+                }
+
+                if (regions.put(key(region.x, region.y), region) != null) {
+                    throw new WorldMapFormatException("Region (" + region.x
+                            + ", " + region.y + ") is indexed twice");
+                }
+                regionTiles += region.tileCount;
+                bodyLength = Math.max(bodyLength,
+                        region.offset + region.length);
+            }
+
+            String line = reader.readLine();
+            if (line.startsWith("columns:")) {
+                int columnCount = parseCount(line, "columns");
+                columns = new ArrayList<>(columnCount);
+                try {
+                    for (int i = 0; i < columnCount; i++) {
+                        columns.add(BlockColumns.intern(reader.readLine()));
+                    }
+                } catch (TooHighException e) {
+                    throw new WorldMapFormatException("A TooHighException"
+                            + " would be thrown.");
+                }
+                line = reader.readLine();
+            }
+
+            long headerChecksum = reader.getPreviousChecksum();
+            if (line.startsWith("validated:")) {
+                validated = parseChecksum(line.substring(10),
+                        "header checksum") == headerChecksum;
+                line = reader.readLine();
+            }
+
+            if (!line.equals("")) {
+                throw new WorldMapFormatException("Missing blank line after"
+                        + " region index");
+            }
+
+            if (regionTiles != tileCount) {
+                throw new WorldMapFormatException("Regions hold "
+                        + regionTiles + " tiles, but total is " + tileCount);
+            }
+
+            bodyStart = reader.getPosition();
+            if (bodyStart + bodyLength > in.length()) {
+                throw new WorldMapFormatException("File ended abruptly"
+                        + " in region bodies");
+            }
+        }
+    }
+
+    /**
+     * Load a region if it is not loaded yet. Each tile in the region is
+     * filled in (creating it if needed), given the listener, and linked to
+     * its exits, creating unloaded tiles for exits into other regions.
+     * @param region the region to load
+     * @throws WorldMapFormatException if the region is incorrectly
+     *         formatted
+     * @throws IOException if the region cannot be read
+     */
+    private void load(Region region) throws WorldMapFormatException,
+            IOException {
+        if (region.loaded) {
+            return;
+        }
+
+        int previous = stats.enter(MapStats.LOAD_REGIONS);
+        try {
+            loadBody(region);
+            stats.addRegionMisses(1);
+            region.lastUsed = ++useClock;
+            unloadOver(region);
+        } finally {
+            stats.enter(previous);
+        }
+    }
+
+    /**
+     * Read, check and parse the body of a region that is not loaded yet.
+     * @param region the region to load
+     * @throws WorldMapFormatException if the region is incorrectly
+     *         formatted
+     * @throws IOException if the region cannot be read
+     */
+    private void loadBody(Region region) throws WorldMapFormatException,
+            IOException {
+        byte[] body = readBody(region);
+
+        if (region.checksum != -1 && checksum(body) != region.checksum) {
+            throw new WorldMapFormatException("Region (" + region.x + ", "
+                    + region.y + ") does not match its checksum");
+        }
+
+        String[] lines = new String(body, StandardCharsets.UTF_8)
+                .split("\n");
+        if (region.length == 0) {
+            lines = new String[0];
+        }
+        if (lines.length != region.tileCount) {
+            throw new WorldMapFormatException("Region (" + region.x + ", "
+                    + region.y + ") has " + lines.length + " tiles, but its"
+                    + " index entry says " + region.tileCount);
+        }
+
+        region.loaded = true;
+        loadedRegions++;
+        loadedTiles += lines.length;
+
+        List<Tile> loaded = new ArrayList<>(lines.length);
+        region.ids = new int[lines.length];
+        try {
+            for (int i = 0; i < lines.length; i++) {
+                loaded.add(loadTile(region, lines[i], i));
+            }
+        } catch (TooHighException e) {
+            throw new WorldMapFormatException("A TooHighException would be "
+                    + "thrown.");
+        } catch (NoExitException e) {
+            throw new WorldMapFormatException("A NoExitException would be "
+                    + "thrown.");
+        }
+
+        for (Tile tile : loaded) {
+            tile.setListener(region);
+            tile.setPager(region);
+        }
+        region.tiles = loaded;
+        stats.addBytesRead(region.length);
+        stats.addLinesRead(lines.length);
+        stats.addTilesLoaded(lines.length);
+    }
+
+    /**
+     * Fill in a tile from a line of a region body.
+     * @param region the region being loaded
+     * @param line the line to read
+     * @param index the index of the line in the body
+     * @return the tile that was filled in
+     * @throws WorldMapFormatException if the line is incorrectly formatted
+     * @throws TooHighException if the tile has too many blocks
+     * @throws NoExitException if an exit cannot be added
+     */
+    private Tile loadTile(Region region, String line, int index)
+            throws WorldMapFormatException, TooHighException,
+            NoExitException {
+        String[] parts = line.split(" ", -1);
+        if (parts.length != 5) {
+            throw new WorldMapFormatException("Tile entry must have 5"
+                    + " fields: " + line);
+        }
+
+        int id = parseTileId(parts[0]);
+        Position position = new Position(parseInt(parts[1], "tile x"),
+                parseInt(parts[2], "tile y"));
+        if (regionOf(position.getX()) != region.x
+                || regionOf(position.getY()) != region.y) {
+            throw new WorldMapFormatException("Tile " + id + " at "
+                    + position + " is not in its region");
+        }
+
+        Tile tile = tileById(id);
+        if (tile == null) {
+            tile = new Tile(region);
+            putTile(id, tile);
+        } else if (tile.isLoaded()) {
+            throw new WorldMapFormatException("Tile " + id
+                    + " appears twice");
+        }
+
+        if (tilesByPosition.put(position, tile) != null) {
+            throw new WorldMapFormatException("Position " + position
+                    + " is already occupied by a different tile.");
+        }
+        positionsById[id] = position;
+        region.ids[index] = id;
+
+        tile.setLoader(null);
+        if (columns != null && !region.paged) {
+            int column = parseInt(parts[3], "tile column");
+            if (column < 0 || column >= columns.size()) {
+                throw new WorldMapFormatException("Tile " + id + " has a"
+                        + " column that is not in the dictionary");
+            }
+            tile.setColumn(columns.get(column));
+        } else {
+            tile.setColumn(BlockColumns.intern(parts[3]));
+        }
+
+        if (parts[4].equals("")) {
+            return tile;
+        }
+
+        for (String exit : parts[4].split(",")) {
+            String[] exitInfo = exit.split(":", -1);
+            if (exitInfo.length != 2) {
+                throw new WorldMapFormatException("Exit must be"
+                        + " name:id: " + exit);
+            }
+
+            int direction = -1;
+            for (int i = 0; i < EXITS.length; i++) {
+                if (EXITS[i].equals(exitInfo[0])) {
+                    direction = i;
+                }
+            }
+            if (direction == -1) {
+                throw new WorldMapFormatException("Exit name is invalid.");
+            }
+
+            int targetId = parseTileId(exitInfo[1]);
+            Tile target = tileById(targetId);
+            if (target == null) {
+                // the target has not been seen yet, so it belongs to the
+                // region at the position the exit leads to
+                int targetX = position.getX() + DIRECTIONS_X[direction];
+                int targetY = position.getY() + DIRECTIONS_Y[direction];
+                Region targetRegion = regions.get(key(regionOf(targetX),
+                        regionOf(targetY)));
+                if (targetRegion == null) {
+                    throw new WorldMapFormatException("Exit from tile " + id
+                            + " leads outside every region");
+                }
+
+                target = new Tile(targetRegion);
+                putTile(targetId, target);
+            }
+
+            tile.addExit(exitInfo[0], target);
+        }
+
+        return tile;
+    }
+
+    /**
+     * Read the body of a region, from the map file or the page file.
+     * @param region the region to read
+     * @return the bytes of the body
+     * @throws IOException if the body cannot be read
+     */
+    private byte[] readBody(Region region) throws IOException {
+        if (region.paged) {
+            byte[] body = new byte[region.length];
+            pageFile.seek(region.offset);
+            pageFile.readFully(body);
+            return body;
+        }
+
+        try (RandomAccessFile in = new RandomAccessFile(filename, "r")) {
+            return readBody(in, region);
+        }
+    }
+
+    /**
+     * Read the body of a region from the map file.
+     * @param in the open map file
+     * @param region the region to read
+     * @return the bytes of the body
+     * @throws IOException if the body cannot be read
+     */
+    private byte[] readBody(RandomAccessFile in, Region region)
+            throws IOException {
+        byte[] body = new byte[region.length];
+        in.seek(bodyStart + region.offset);
+        in.readFully(body);
+        return body;
+    }
+
+    /**
+     * Get the CRC32C checksum of some bytes.
+     * @param bytes the bytes to check
+     * @return the checksum
+     */
+    private static long checksum(byte[] bytes) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    /**
+     * Parse a hexadecimal checksum.
+     * @param hex the string to parse
+     * @param what what the checksum is, for the error message
+     * @return the checksum
+     * @throws WorldMapFormatException if the string is not a valid checksum
+     */
+    private static long parseChecksum(String hex, String what)
+            throws WorldMapFormatException {
+        try {
+            long checksum = Long.parseLong(hex, 16);
+            if (checksum >= 0 && checksum <= 0xffffffffL) {
+                return checksum;
+            }
+        } catch (NumberFormatException nfe) {
+            // reported below
+        }
+        throw new WorldMapFormatException("Invalid " + what);
+    }
+
+    /**
+     * Get the region coordinate of a tile coordinate.
+     * @param coordinate the x or y coordinate of a tile
+     * @return the x or y coordinate of its region
+     */
+    private int regionOf(int coordinate) {
+        return Math.floorDiv(coordinate, regionSize);
+    }
+
+    /**
+     * Combine region coordinates into a single key.
+     * @param x the region x coordinate
+     * @param y the region y coordinate
+     * @return the region key
+     */
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    /**
+     * Parse a tile id, which must be between 0 and the number of tiles.
+     * @param idString the string to parse
+     * @return the tile id
+     * @throws WorldMapFormatException if the id is not valid
+     */
+    private int parseTileId(String idString) throws WorldMapFormatException {
+        int id = parseInt(idString, "tile id");
+        if (id < 0 || id >= tileCount) {
+            throw new WorldMapFormatException("Tile id " + id
+                    + " does not refer to a valid tile");
+        }
+        return id;
+    }
+
+    /**
+     * Parse a "name:count" line.
+     * @param line the line to parse
+     * @param name the expected name
+     * @return the count
+     * @throws WorldMapFormatException if the line is not name:count with a
+     *         non-negative count
+     */
+    private static int parseCount(String line, String name)
+            throws WorldMapFormatException {
+        String[] parts = line.split(":", -1);
+        if (parts.length != 2 || !parts[0].equals(name)) {
+            throw new WorldMapFormatException("Expected " + name + ":N");
+        }
+
+        int count = parseInt(parts[1], name);
+        if (count < 0) {
+            throw new WorldMapFormatException("In " + name + ":N, N is"
+                    + " negative");
+        }
+        return count;
+    }
+
+    /**
+     * Parse an integer.
+     * @param intString the string to parse
+     * @param what what the integer is, for the error message
+     * @return the integer
+     * @throws WorldMapFormatException if the string is not an integer
+     */
+    private static int parseInt(String intString, String what)
+            throws WorldMapFormatException {
+        try {
+            return Integer.parseInt(intString);
+        } catch (NumberFormatException nfe) {
+            throw new WorldMapFormatException("Invalid integer for " + what);
+        }
+    }
+
+    /**
+     * Parse a long integer.
+     * @param longString the string to parse
+     * @param what what the integer is, for the error message
+     * @return the integer
+     * @throws WorldMapFormatException if the string is not an integer
+     */
+    private static long parseLong(String longString, String what)
+            throws WorldMapFormatException {
+        try {
+            return Long.parseLong(longString);
+        } catch (NumberFormatException nfe) {
+            throw new WorldMapFormatException("Invalid integer for " + what);
+        }
+    }
+
+    /**
+     * Reads "\n" terminated lines from the start of a file, keeping track of
+     * how many bytes have been read and their checksum.
+     */
+    private static class HeaderReader {
+
+        // the file to read from
+        private RandomAccessFile in;
+
+        // buffered bytes from the file
+        private byte[] buffer = new byte[8192];
+        private int bufferLength;
+        private int bufferPosition;
+
+        // the number of bytes consumed
+        private long position;
+
+        // the checksum of the bytes consumed
+        private CRC32C crc = new CRC32C();
+
+        // the checksum of the bytes before the last line read
+        private long previousChecksum;
+
+        /**
+         * Create a header reader.
+         * @param in the file to read from, positioned at the start
+         */
+        HeaderReader(RandomAccessFile in) {
+            this.in = in;
+        }
+
+        /**
+         * Read a line, without its line ending.
+         * @return the line
+         * @throws WorldMapFormatException if the file ends first
+         * @throws IOException if reading fails
+         */
+        String readLine() throws WorldMapFormatException, IOException {
+            previousChecksum = crc.getValue();
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            while (true) {
+                if (bufferPosition == bufferLength) {
+                    bufferLength = in.read(buffer);
+                    bufferPosition = 0;
+                    if (bufferLength <= 0) {
+                        throw new WorldMapFormatException(
+                                "File ended abruptly");
+                    }
+                }
+
+                byte b = buffer[bufferPosition++];
+                position++;
+                crc.update(b);
+                if (b == '\n') {
+                    break;
+                }
+                line.write(b);
+            }
+
+            String result = new String(line.toByteArray(),
+                    StandardCharsets.UTF_8);
+            if (result.endsWith("\r")) {
+                result = result.substring(0, result.length() - 1);
+            }
+            return result;
+        }
+
+        /**
+         * Get the number of bytes consumed.
+         * @return the position after the last line read
+         */
+        long getPosition() {
+            return position;
+        }
+
+        /**
+         * Get the CRC32C checksum of the bytes consumed before the last line
+         * that was read.
+         * @return the checksum of every line read, except the last one
+         */
+        long getPreviousChecksum() {
+            return previousChecksum;
+        }
+    }
+}
@@ -1,9 +1,15 @@
 package csse2002.block.world;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.management.JMException;
 
 /**
  * Handles top-level interaction with performing actions on a WorldMap.
@@ -11,6 +17,10 @@ import java.io.InputStreamReader;
  */
 public class Main {
 
+    // the most maps validated at once per available processor; loading a
+    // map keeps a processor busy, so more threads would only use memory
+    private static final int MAX_THREADS_PER_PROCESSOR = 4;
+
     /**
      * The entry point of the application.<br>
      *
@@ -48,50 +58,303 @@ public class Main {
      * </ol>
      *
      * To print an exception to System.err, use System.err.println(e), where e
-     * is the caught exception.
+     * is the caught exception. <br>
+     *
+     * The three parameters may be preceded by options:
+     * <ul>
+     *     <li> "--journal directory" keeps a write-ahead journal of the
+     *          actions in directory (see {@link ActionJournal ActionJournal}).
+     *          If the directory holds the journal of an earlier run that
+     *          did not finish, the map is recovered from it instead of
+     *          being loaded from the input map file, and (unless actions
+     *          are read from System.in) the actions already journaled are
+     *          skipped in the actions file. If the journal cannot be
+     *          recovered, it is treated like a map that cannot be loaded
+     *          (exit status 2). If writing to the journal fails, the
+     *          exception is printed and the program exits with status 6.
+     *          The journal is deleted once the output map is saved. </li>
+     *     <li> "--stats" records the time, allocation and counts of each
+     *          phase of loading the input map and saving the output map
+     *          (see {@link MapStats MapStats}), and prints them using
+     *          System.err.println() once the output map is saved. When the
+     *          map is recovered from a journal, only saving is recorded.
+     *          The actions performed are also recorded (see
+     *          {@link ActionStats ActionStats}), and printed after the
+     *          phases: the number of each primary action by outcome, and
+     *          how long they took. While the actions are performed, the
+     *          ActionStats can be read through JMX under the name
+     *          "csse2002.block.world:type=ActionStats,name=" and the
+     *          quoted input map file. </li>
+     *     <li> "--cache directory" loads the input map through a
+     *          {@link MapCache MapCache} in directory, so a map that has
+     *          been loaded before is read from its binary image instead of
+     *          being parsed again. A map recovered from a journal does
+     *          not use the cache. </li>
+     *     <li> "--pipeline" reads and performs the actions with an
+     *          {@link ActionPipeline ActionPipeline}, so the next actions
+     *          are read while earlier ones are performed, and the messages
+     *          are written in batches. The messages and the output map are
+     *          exactly the same as without it. </li>
+     *     <li> "--output target" (which implies "--pipeline") writes the
+     *          messages to the file target instead of System.out, or
+     *          discards them if target is "none". If the file cannot be
+     *          opened, the exception is printed and the program exits with
+     *          status 3, and if writing to it fails, with status 6. With
+     *          "--stats", the number of actions performed per second is
+     *          also printed. </li>
+     *     <li> "--macros" reads the actions file (which is never treated
+     *          as compiled) as macros, and performs them as an
+     *          {@link ActionProgram ActionProgram}: runs of an action and
+     *          repeated blocks are written "REPEAT n action" and
+     *          "REPEAT n {" ... "}". The lines are compiled before any
+     *          action is performed. If one cannot be, the lines before it
+     *          are performed (those in a loop that is still open, once
+     *          each), then the exception is printed and the program exits
+     *          with status 4, as for an invalid line of a plain actions
+     *          file. The messages and the output map are exactly the same
+     *          as for the actions the macros expand to. It cannot be used
+     *          with "--journal".
+     *          </li>
+     * </ul>
+     * The actions file may also be a compiled action file (see
+     * {@link CompiledActions CompiledActions}), which is performed exactly
+     * as the text it was compiled from would be. If it cannot be opened,
+     * the exception is printed and the program exits with status 3, and if
+     * an action in it cannot be read, with status 4.
+     * An unknown option, or an option without its value, is treated like
+     * the wrong number of parameters. <br>
+     *
+     * With the option "--validate", the parameters are instead one or more
+     * map files to check, and no actions are performed. A directory stands
+     * for every map file in it, and a parameter starting with "@" names a
+     * file listing one map file per line. The maps are loaded in parallel,
+     * "--threads n" at a time (by default, the number of available
+     * processors, and never more than 4 times that), and a line for each
+     * map is printed using System.out.println(): "valid filename", or
+     * "invalid filename: " and the exception that loading the map throws,
+     * as it would be printed above. The program then prints a summary
+     * line and exits with status 0 if every map is valid, or 7 if any is
+     * invalid. If a directory or list cannot be read, the exception is
+     * printed using System.err.println() and the program exits with
+     * status 3. <br>
+     *
+     * With one or more options "--seek K --dump target", the parameters
+     * are instead an input map file and an actions file. The actions are
+     * replayed with an {@link ActionReplay ActionReplay}, without printing
+     * their messages, and for each pair of options in turn, the map as it
+     * is after the first K actions is saved to target. Later seeks restore
+     * the checkpoints taken by earlier ones, so dumping several points of a
+     * long action file (in any order) only replays it once. A text actions
+     * file is compiled to a temporary file first, but only as far as the
+     * largest K, so the lines after it are never read. If the map cannot be
+     * loaded, the program exits with status 2, if the actions cannot be
+     * read, with status 3, if K is beyond the last action or an action
+     * before it is invalid (as it would be without "--seek"), with status
+     * 4, and if a map cannot be saved, with status 5 (printing the
+     * exception in each case).
      *
      * @param args the input arguments to the program
      */
     public static void main(String[] args) {
-        if (args.length != 3) {
+        String journalDirectory = null;
+        String cacheDirectory = null;
+        MapStats stats = null;
+        boolean validate = false;
+        boolean pipeline = false;
+        boolean macros = false;
+        String output = null;
+        int processors = Runtime.getRuntime().availableProcessors();
+        int threads = processors;
+        List<Long> seeks = new ArrayList<>();
+        List<String> dumps = new ArrayList<>();
+
+        int argIndex = 0;
+        while (argIndex < args.length && args[argIndex].startsWith("--")) {
+            if (args[argIndex].equals("--journal")
+                    && argIndex + 1 < args.length) {
+                journalDirectory = args[argIndex + 1];
+                argIndex += 2;
+            } else if (args[argIndex].equals("--cache")
+                    && argIndex + 1 < args.length) {
+                cacheDirectory = args[argIndex + 1];
+                argIndex += 2;
+            } else if (args[argIndex].equals("--stats")) {
+                stats = new MapStats();
+                argIndex++;
+            } else if (args[argIndex].equals("--pipeline")) {
+                pipeline = true;
+                argIndex++;
+            } else if (args[argIndex].equals("--output")
+                    && argIndex + 1 < args.length) {
+                pipeline = true;
+                output = args[argIndex + 1];
+                argIndex += 2;
+            } else if (args[argIndex].equals("--macros")) {
+                macros = true;
+                argIndex++;
+            } else if (args[argIndex].equals("--validate")) {
+                validate = true;
+                argIndex++;
+            } else if (args[argIndex].equals("--threads")
+                    && argIndex + 1 < args.length
+                    && args[argIndex + 1].matches("[1-9][0-9]{0,5}")) {
+                threads = Math.min(Integer.parseInt(args[argIndex + 1]),
+                        MAX_THREADS_PER_PROCESSOR * processors);
+                argIndex += 2;
+            } else if (args[argIndex].equals("--seek")
+                    && argIndex + 3 < args.length
+                    && args[argIndex + 1].matches("[0-9]{1,18}")
+                    && args[argIndex + 2].equals("--dump")) {
+                seeks.add(Long.parseLong(args[argIndex + 1]));
+                dumps.add(args[argIndex + 3]);
+                argIndex += 4;
+            } else {
+                // not a known option, so report the usage below
+                argIndex = args.length + 1;
+            }
+        }
+
+        String[] files = argIndex <= args.length
+                ? Arrays.copyOfRange(args, argIndex, args.length)
+                : new String[0];
+
+        if (validate && files.length > 0) {
+            System.exit(validate(Arrays.asList(files), threads) == 0 ? 0 : 7);
+        } else if (validate) {
+            System.err.println("Usage: program --validate [--threads n]"
+                    + " maps...");
+            System.exit(1);
+        }
+
+        if (!seeks.isEmpty() && files.length == 2) {
+            seek(files[0], files[1], seeks, dumps);
+            return;
+        } else if (!seeks.isEmpty()) {
+            System.err.println("Usage: program --seek K --dump target..."
+                    + " inputMap actions");
+            System.exit(1);
+        }
+
+        if (files.length != 3 || (macros && journalDirectory != null)) {
             System.err.println(
                     "Usage: program inputMap inoutActions outputMap");
             System.exit(1);
         }
 
-        String inputMap = args[0];
-        String inputActions = args[1];
-        String outputMap = args[2];
+        String inputMap = files[0];
+        String inputActions = files[1];
+        String outputMap = files[2];
 
-        // read in a WorldMap
+        // read in a WorldMap, or recover it from the journal
         WorldMap map = null;
+        ActionJournal journal = null;
         try {
-            map = new WorldMap(inputMap);
+            if (journalDirectory != null) {
+                journal = new ActionJournal(journalDirectory);
+                map = journal.recover(inputMap);
+                map.setStats(stats);
+            } else if (cacheDirectory != null) {
+                map = new MapCache(cacheDirectory, MapCache.DEFAULT_MAX_BYTES)
+                        .load(inputMap, stats);
+            } else {
+                map = new WorldMap(inputMap, stats);
+            }
         } catch (BlockWorldException | IOException e) {
             System.err.println(e);
             System.exit(2);
         }
 
+        ActionStats actionStats = null;
+        if (stats != null) {
+            actionStats = new ActionStats();
+            map.setActionStats(actionStats);
+            try {
+                actionStats.register(inputMap);
+            } catch (JMException e) {
+                // still recorded and printed, just not visible through JMX
+                System.err.println(e);
+            }
+        }
+
         // Setup a buffered reader to either read from System.in, or from
-        // a file.
+        // a file, and where the pipeline writes messages.
         BufferedReader reader = null;
+        CompiledActions compiled = null;
+        ActionSink sink = null;
         try {
+            if (output == null) {
+                sink = ActionSink.standardOutput();
+            } else if (output.equals("none")) {
+                sink = ActionSink.discard();
+            } else {
+                sink = ActionSink.toFile(output);
+            }
 
             if (inputActions.equals("System.in")) {
                 reader = new BufferedReader(new InputStreamReader(System.in));
+            } else if (macros) {
+                reader = new BufferedReader(new FileReader(inputActions));
+            } else if (CompiledActions.isCompiled(inputActions)) {
+                compiled = new CompiledActions(inputActions);
+
+                // skip the actions that were journaled before a crash
+                if (journal != null) {
+                    compiled.skip(journal.getSequence());
+                }
             } else {
                 reader = new BufferedReader(new FileReader(inputActions));
+
+                // skip the actions that were journaled before a crash
+                for (long i = 0; journal != null
+                        && i < journal.getSequence(); i++) {
+                    reader.readLine();
+                }
             }
         } catch (IOException io) {
             System.err.println(io);
             System.exit(3);
+        } catch (ActionFormatException format) {
+            System.err.println(format);
+            System.exit(compiled == null ? 3 : 4);
         }
 
+        ActionPipeline actionPipeline = new ActionPipeline();
         try {
-            Action.processActions(reader, map);
+            if (macros) {
+                ActionProgram program = ActionProgram.compilePrefix(reader);
+                try {
+                    program.run(map, sink);
+                } finally {
+                    sink.close();
+                }
+                if (program.getError() != null) {
+                    throw program.getError();
+                }
+            } else if (pipeline) {
+                try {
+                    if (compiled != null) {
+                        actionPipeline.run(compiled, map, sink, journal);
+                    } else {
+                        actionPipeline.run(reader, map, sink, journal);
+                    }
+                } finally {
+                    sink.close();
+                }
+            } else if (compiled != null && journal != null) {
+                Action.processActions(compiled, map, journal);
+            } else if (compiled != null) {
+                Action.processActions(compiled, map);
+            } else if (journal != null) {
+                Action.processActions(reader, map, journal);
+            } else {
+                Action.processActions(reader, map);
+            }
         } catch (ActionFormatException format) {
             System.err.println(format);
             System.exit(4);
+        } catch (IOException journalException) {
+            System.err.println(journalException);
+            System.exit(6);
         }
 
         try {
@@ -100,6 +363,109 @@ public class Main {
             System.err.println(ioException);
             System.exit(5);
         }
+
+        if (stats != null) {
+            System.err.println(stats);
+            System.err.println(actionStats);
+            if (pipeline) {
+                System.err.println("Processed " + actionPipeline);
+            }
+        }
+
+        try {
+            if (journal != null) {
+                journal.delete();
+            }
+        } catch (IOException journalException) {
+            System.err.println(journalException);
+            System.exit(6);
+        }
+    }
+
+    /**
+     * Replay actions for the "--seek K --dump target" options, saving the
+     * map after each number of actions.
+     * @param inputMap the map file to load
+     * @param inputActions the text or compiled actions file
+     * @param seeks the number of actions before each dump
+     * @param dumps the file to save the map to after each seek
+     */
+    private static void seek(String inputMap, String inputActions,
+                             List<Long> seeks, List<String> dumps) {
+        WorldMap map = null;
+        try {
+            map = new WorldMap(inputMap);
+        } catch (BlockWorldException | IOException e) {
+            System.err.println(e);
+            System.exit(2);
+        }
+
+        ActionReplay replay = null;
+        try {
+            if (!CompiledActions.isCompiled(inputActions)) {
+                File compiled = File.createTempFile("actions", ".bwa");
+                compiled.deleteOnExit();
+                try (BufferedReader reader = new BufferedReader(
+                        new FileReader(inputActions))) {
+                    CompiledActions.compile(reader, compiled.getPath(),
+                            Collections.max(seeks));
+                } catch (ActionFormatException format) {
+                    // an invalid action before the last seek, reported as
+                    // processActions() would report it
+                    System.err.println(format);
+                    System.exit(4);
+                }
+                inputActions = compiled.getPath();
+            }
+            replay = new ActionReplay(map, new CompiledActions(inputActions));
+        } catch (ActionFormatException | IOException e) {
+            System.err.println(e);
+            System.exit(3);
+        }
+
+        for (int i = 0; i < seeks.size(); i++) {
+            try {
+                replay.seek(seeks.get(i));
+            } catch (IndexOutOfBoundsException | ActionFormatException e) {
+                System.err.println(e);
+                System.exit(4);
+            } catch (IOException e) {
+                System.err.println(e);
+                System.exit(3);
+            }
+
+            try {
+                map.saveMap(dumps.get(i));
+            } catch (IOException ioException) {
+                System.err.println(ioException);
+                System.exit(5);
+            }
+        }
+    }
+
+    /**
+     * Validate map files for the "--validate" option, printing a report
+     * (see {@link MapValidator MapValidator}).
+     * @param names the map files, directories and lists of map files
+     * @param threads the number of maps to load at once
+     * @return the number of invalid maps
+     */
+    private static int validate(List<String> names, int threads) {
+        List<String> maps = null;
+        try {
+            maps = MapValidator.findMaps(names);
+        } catch (IOException io) {
+            System.err.println(io);
+            System.exit(3);
+        }
+
+        try {
+            return MapValidator.validate(maps, threads, System.out);
+        } catch (IOException interrupted) {
+            System.err.println(interrupted);
+            System.exit(3);
+        }
+        return 0;
     }
 
 }
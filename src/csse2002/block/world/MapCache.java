@@ -0,0 +1,568 @@
+package csse2002.block.world;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A cache of world maps that have been loaded from text map files, kept as
+ * binary images in a directory. <br>
+ * Each image is named by the SHA-256 hash and size of the map file (and of
+ * its delta file, if there is one), so an image is only used while the
+ * files it was made from are unchanged. Loading a map from its image skips
+ * parsing the text and checking that the tiles are consistent, since the
+ * image was written from a map that had already been checked. Each image
+ * holds a dictionary of the distinct stacks of blocks in the map, which
+ * tiles refer to by index, and tiles with the same stack share it once
+ * loaded (see {@link BlockColumns BlockColumns}). <br>
+ * The images are kept under a maximum total size; when a new image takes
+ * the cache over it, the images that were used least recently are
+ * deleted. <br>
+ * Indexed map files and sharded map directories are already fast to open,
+ * so they are loaded with the WorldMap(filename) constructor and never
+ * cached.
+ * @serial exclude
+ */
+public class MapCache {
+
+    /**
+     * The default maximum total size of the images in a cache, in bytes.
+     */
+    public static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+    /**
+     * The default cache directory, "blockworld-map-cache" in the system's
+     * temporary directory.
+     */
+    public static final String DEFAULT_DIRECTORY = new File(
+            System.getProperty("java.io.tmpdir"), "blockworld-map-cache")
+            .getPath();
+
+    // the first int of an image, "BWI" and the image version
+    private static final int MAGIC = 0x42574902;
+
+    // the extension of image files
+    private static final String EXTENSION = ".img";
+
+    // the block types and exit names, by their code in an image
+    private static final List<String> BLOCK_TYPES = Arrays.asList(
+            "grass", "soil", "wood", "stone");
+    private static final List<String> EXIT_NAMES = Arrays.asList(
+            "north", "east", "south", "west");
+
+    // the directory holding the images
+    private final File directory;
+
+    // the maximum total size of the images
+    private final long maxBytes;
+
+    // the number of loads that used an image, and that did not
+    private int hits;
+    private int misses;
+
+    /**
+     * Create a cache of map images in a directory. The directory is created
+     * when the first image is written.
+     * @param directory the directory to keep the images in
+     * @param maxBytes the maximum total size of the images, in bytes
+     * @require directory != null
+     * @require maxBytes &gt;= 0
+     */
+    public MapCache(String directory, long maxBytes) {
+        this.directory = new File(directory);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Load a world map, using its image if the cache has one. <br>
+     * See load(filename, stats).
+     *
+     * @param filename the name to load the map from
+     * @return the loaded map
+     * @throws WorldMapFormatException if the file is incorrectly formatted
+     * @throws WorldMapInconsistentException if the file is correctly
+     *         formatted, but has inconsistencies (such as overlapping tiles)
+     * @throws FileNotFoundException if the file does not exist
+     * @require filename != null
+     */
+    public WorldMap load(String filename) throws WorldMapFormatException,
+            WorldMapInconsistentException, FileNotFoundException {
+        return load(filename, null);
+    }
+
+    /**
+     * Load a world map, using its image if the cache has one. <br>
+     * The returned map is the same as the one the WorldMap(filename, stats)
+     * constructor would load, including what saveDelta() knows about the
+     * file it was loaded from. If the cache has no image for the map, or
+     * the image cannot be read, the map is loaded from the file and an
+     * image of it is written. A failure to write the image is ignored, since
+     * the map has still been loaded.
+     *
+     * @param filename the name to load the map from
+     * @param stats the stats to record in, or null to record nothing
+     * @return the loaded map
+     * @throws WorldMapFormatException if the file is incorrectly formatted
+     * @throws WorldMapInconsistentException if the file is correctly
+     *         formatted, but has inconsistencies (such as overlapping tiles)
+     * @throws FileNotFoundException if the file does not exist
+     * @require filename != null
+     */
+    public WorldMap load(String filename, MapStats stats)
+            throws WorldMapFormatException, WorldMapInconsistentException,
+            FileNotFoundException {
+        File image;
+        try {
+            image = imageFile(filename);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new WorldMapFormatException("Readline would throw"
+                    + " an IOException");
+        }
+
+        if (image == null) {
+            return new WorldMap(filename, stats);
+        }
+
+        if (image.isFile()) {
+            try {
+                WorldMap map = readImage(image, filename, stats);
+                image.setLastModified(System.currentTimeMillis());
+                hits++;
+                return map;
+            } catch (IOException | BlockWorldException e) {
+                // a damaged or outdated image, so replace it
+                image.delete();
+            }
+        }
+
+        misses++;
+        WorldMap map = new WorldMap(filename, stats);
+        try {
+            writeImage(image, map);
+            evict(image);
+        } catch (IOException e) {
+            // the map is loaded, it just will not be cached
+        }
+        return map;
+    }
+
+    /**
+     * Get the number of loads that used an image.
+     * @return the number of cache hits
+     */
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of loads of cacheable maps that did not use an image.
+     * @return the number of cache misses
+     */
+    public int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Delete every image in the cache.
+     * @throws IOException if an image cannot be deleted
+     */
+    public void clear() throws IOException {
+        for (File file : images()) {
+            Files.delete(file.toPath());
+        }
+    }
+
+    /**
+     * Get the image file for a map file, named by the hash and size of the
+     * map file and its delta file.
+     * @param filename the map file
+     * @return the image file, or null if the map should not be cached
+     * @throws FileNotFoundException if the map file does not exist
+     * @throws IOException if the map file cannot be read
+     */
+    private File imageFile(String filename) throws IOException {
+        if (ShardedMapStore.isSharded(filename)) {
+            return null;
+        }
+        try (InputStream file = new BufferedInputStream(
+                new FileInputStream(filename))) {
+            if (IndexedMapFile.isIndexed(file)) {
+                return null;
+            }
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IOException(e);
+        }
+
+        long size = hash(new File(filename), digest);
+        File delta = new File(MapDelta.deltaFilename(filename));
+        if (delta.isFile()) {
+            size += hash(delta, digest);
+        }
+
+        StringBuilder name = new StringBuilder();
+        for (byte b : digest.digest()) {
+            name.append(String.format("%02x", b));
+        }
+        name.append('-').append(size).append(EXTENSION);
+        return new File(directory, name.toString());
+    }
+
+    /**
+     * Add the contents of a file to a digest.
+     * @param file the file
+     * @param digest the digest
+     * @return the size of the file
+     * @throws IOException if the file cannot be read
+     */
+    private static long hash(File file, MessageDigest digest)
+            throws IOException {
+        long size = 0;
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                size += read;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Write an image of a map that has just been loaded. The image is
+     * written to a temporary file and renamed, so a partly written image is
+     * never read.
+     * @param image the image file
+     * @param map the loaded map
+     * @throws IOException if the image cannot be written, or the map uses
+     *         block types or exit names an image cannot hold
+     */
+    private void writeImage(File image, WorldMap map) throws IOException {
+        Files.createDirectories(directory.toPath());
+        File temp = new File(image.getPath() + ".tmp");
+
+        List<Tile> tiles = map.getTiles();
+        List<Position> positions = map.getPositions();
+        Map<Tile, Integer> fileIds = map.getSavedTileIds();
+        Map<Tile, Integer> indexes = new IdentityHashMap<>(tiles.size());
+        Map<String, Integer> columnIds = new LinkedHashMap<>();
+        List<List<Block>> columns = new ArrayList<>();
+        int[] tileColumns = new int[tiles.size()];
+        for (int i = 0; i < tiles.size(); i++) {
+            indexes.put(tiles.get(i), i);
+
+            String column = BlockColumns.encode(tiles.get(i).getBlocks());
+            Integer columnId = columnIds.get(column);
+            if (columnId == null) {
+                columnId = columns.size();
+                columnIds.put(column, columnId);
+                columns.add(tiles.get(i).getBlocks());
+            }
+            tileColumns[i] = columnId;
+        }
+
+        CRC32C crc = new CRC32C();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new CheckedOutputStream(
+                        new FileOutputStream(temp), crc), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(map.getSavedCompression());
+            out.writeInt(map.getDeltaCount());
+            out.writeInt(map.getStartPosition().getX());
+            out.writeInt(map.getStartPosition().getY());
+            out.writeUTF(map.getBuilder().getName());
+            writeBlocks(out, map.getBuilder().getInventory());
+
+            // the dictionary of distinct columns, which tiles refer to
+            out.writeInt(columns.size());
+            for (List<Block> column : columns) {
+                writeBlocks(out, column);
+            }
+
+            out.writeInt(tiles.size());
+            for (int i = 0; i < tiles.size(); i++) {
+                Tile tile = tiles.get(i);
+                Integer fileId = fileIds.get(tile);
+                out.writeInt(positions.get(i).getX());
+                out.writeInt(positions.get(i).getY());
+                out.writeInt(fileId == null ? -1 : fileId);
+                writeColumn(out, tileColumns[i], columns.size());
+
+                Map<String, Tile> exits = tile.getExits();
+                out.writeByte(exits.size());
+                for (Map.Entry<String, Tile> exit : exits.entrySet()) {
+                    out.writeByte(code(EXIT_NAMES, exit.getKey()));
+                    out.writeInt(indexes.get(exit.getValue()));
+                }
+            }
+
+            out.flush();
+            out.writeLong(crc.getValue());
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        Files.move(temp.toPath(), image.toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Write a list of blocks as a count and a code for each block.
+     * @param out the stream to write to
+     * @param blocks the blocks
+     * @throws IOException if writing fails, or a block type has no code
+     */
+    private static void writeBlocks(DataOutputStream out, List<Block> blocks)
+            throws IOException {
+        out.writeInt(blocks.size());
+        for (Block block : blocks) {
+            out.writeByte(code(BLOCK_TYPES, block.getBlockType()));
+        }
+    }
+
+    /**
+     * Write the index of a tile's column in the dictionary, as a short if
+     * the dictionary is small enough.
+     * @param out the stream to write to
+     * @param column the index of the column
+     * @param columnCount the number of columns in the dictionary
+     * @throws IOException if writing fails
+     */
+    private static void writeColumn(DataOutputStream out, int column,
+                                    int columnCount) throws IOException {
+        if (columnCount <= 0xffff) {
+            out.writeShort(column);
+        } else {
+            out.writeInt(column);
+        }
+    }
+
+    /**
+     * Get the code of a block type or exit name in an image.
+     * @param names the names, by code
+     * @param name the name to look up
+     * @return the code
+     * @throws IOException if the name has no code
+     */
+    private static int code(List<String> names, String name)
+            throws IOException {
+        int code = names.indexOf(name);
+        if (code == -1) {
+            throw new IOException("Cannot store " + name + " in an image");
+        }
+        return code;
+    }
+
+    /**
+     * Read a map from an image.
+     * @param image the image file
+     * @param filename the map file the image was written from
+     * @param stats the stats to record in, or null to record nothing
+     * @return the map
+     * @throws IOException if the image cannot be read, or does not match
+     *         its checksum
+     * @throws BlockWorldException if the image holds an invalid tile or
+     *         inventory
+     */
+    private static WorldMap readImage(File image, String filename,
+                                      MapStats stats)
+            throws IOException, BlockWorldException {
+        MapStats mapStats = stats == null ? MapStats.NONE : stats;
+        int previous = mapStats.enter(MapStats.LOAD_IO);
+        try {
+            byte[] bytes = Files.readAllBytes(image.toPath());
+            mapStats.addBytesRead(bytes.length);
+            if (bytes.length < 8) {
+                throw new IOException("Not a map image");
+            }
+
+            // the image ends with the checksum of everything before it
+            CRC32C crc = new CRC32C();
+            crc.update(bytes, 0, bytes.length - 8);
+            if (ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong()
+                    != crc.getValue()) {
+                throw new IOException("Map image checksum mismatch");
+            }
+
+            try (DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(bytes, 0, bytes.length - 8))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a map image");
+                }
+                int compression = in.readInt();
+                int deltas = in.readInt();
+                Position startPosition = new Position(in.readInt(),
+                        in.readInt());
+                String builderName = in.readUTF();
+                List<Block> inventory = readBlocks(in);
+
+                int columnCount = in.readInt();
+                if (columnCount < 0) {
+                    throw new IOException("Invalid column count in image");
+                }
+                List<List<Block>> columns = new ArrayList<>(columnCount);
+                for (int i = 0; i < columnCount; i++) {
+                    columns.add(BlockColumns.intern(readBlocks(in)));
+                }
+
+                int tileCount = in.readInt();
+                Tile[] tiles = new Tile[tileCount];
+                List<Position> positions = new ArrayList<>(tileCount);
+                Map<Tile, Integer> fileIds = new IdentityHashMap<>(
+                        tileCount);
+                int[][] exits = new int[tileCount][];
+                for (int i = 0; i < tileCount; i++) {
+                    positions.add(new Position(in.readInt(), in.readInt()));
+                    int fileId = in.readInt();
+                    tiles[i] = Tile.withColumn(columns.get(
+                            columnCount <= 0xffff ? in.readUnsignedShort()
+                                    : in.readInt()));
+                    if (fileId != -1) {
+                        fileIds.put(tiles[i], fileId);
+                    }
+
+                    exits[i] = new int[2 * in.readUnsignedByte()];
+                    for (int j = 0; j < exits[i].length; j += 2) {
+                        exits[i][j] = in.readUnsignedByte();
+                        exits[i][j + 1] = in.readInt();
+                    }
+                }
+
+                if (in.read() != -1) {
+                    throw new IOException("Extra content in map image");
+                }
+
+                mapStats.enter(MapStats.LOAD_LAYOUT);
+                for (int i = 0; i < tileCount; i++) {
+                    for (int j = 0; j < exits[i].length; j += 2) {
+                        tiles[i].addExit(EXIT_NAMES.get(exits[i][j]),
+                                tiles[exits[i][j + 1]]);
+                    }
+                }
+
+                Builder builder = new Builder(builderName, tiles[0],
+                        inventory);
+                WorldMap map = new WorldMap(startPosition, builder,
+                        Arrays.asList(tiles), positions, filename,
+                        compression, fileIds, deltas);
+                map.setStats(stats);
+                mapStats.addTilesLoaded(tileCount);
+                return map;
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Map image refers to a missing tile");
+            }
+        } finally {
+            mapStats.exit();
+        }
+    }
+
+    /**
+     * Read a list of blocks written by writeBlocks().
+     * @param in the stream to read from
+     * @return the blocks
+     * @throws IOException if reading fails
+     * @throws WorldMapFormatException if a block code is invalid
+     */
+    private static List<Block> readBlocks(DataInputStream in)
+            throws IOException, WorldMapFormatException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid block count in map image");
+        }
+        List<Block> blocks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int code = in.readUnsignedByte();
+            if (code >= BLOCK_TYPES.size()) {
+                throw new IOException("Invalid block in map image");
+            }
+            blocks.add(WorldMap.decodeBlock(BLOCK_TYPES.get(code)));
+        }
+        return blocks;
+    }
+
+    /**
+     * Delete the least recently used images until the images fit in the
+     * maximum size. The image that was just written is kept, even if it
+     * is bigger than the maximum on its own.
+     * @param keep the image to keep
+     * @throws IOException if an image cannot be deleted
+     */
+    private void evict(File keep) throws IOException {
+        List<File> images = images();
+        long total = 0;
+        for (File file : images) {
+            total += file.length();
+        }
+
+        images.sort(new LeastRecentlyUsed());
+        for (File file : images) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (!file.equals(keep)) {
+                total -= file.length();
+                Files.delete(file.toPath());
+            }
+        }
+    }
+
+    /**
+     * Get the image files in the cache directory.
+     * @return the image files
+     */
+    private List<File> images() {
+        List<File> images = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(EXTENSION)) {
+                    images.add(file);
+                }
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Orders image files from the least to the most recently used.
+     */
+    private static class LeastRecentlyUsed implements Comparator<File> {
+
+        @Override
+        public int compare(File file1, File file2) {
+            return Long.compare(file1.lastModified(), file2.lastModified());
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package csse2002.block.world;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Helpers for reading and writing compressed world map files. <br>
+ * A world map file may be stored as plain text, as a zlib (deflate) stream
+ * or as a gzip stream. The compression used by a file is detected from its
+ * first two bytes, so a loader never needs to be told which one was used.
+ * <br>
+ * Only the compression classes from java.util.zip are used, and all streams
+ * are wrapped rather than buffered in full, so a map of any size can be
+ * read or written in constant memory.
+ * @serial exclude
+ */
+public final class MapCompression {
+
+    /**
+     * No compression, the map is written as plain text.
+     */
+    public static final int NONE = 0;
+
+    /**
+     * Deflate compression, written as a zlib stream (RFC 1950).
+     */
+    public static final int DEFLATE = 1;
+
+    /**
+     * Gzip compression (RFC 1952).
+     */
+    public static final int GZIP = 2;
+
+    /**
+     * The compression level used if no level is given.
+     */
+    public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    // size of the buffers used by the compressing and decompressing streams
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // the two magic bytes at the start of a gzip stream
+    private static final int GZIP_MAGIC_1 = 0x1f;
+    private static final int GZIP_MAGIC_2 = 0x8b;
+
+    /**
+     * Not instantiable.
+     */
+    private MapCompression() {
+    }
+
+    /**
+     * Work out which compression a stream uses by peeking at its first two
+     * bytes. The stream must support mark() and reset(); the bytes are not
+     * consumed. <br>
+     * A zlib header is only accepted if it uses the deflate method, does not
+     * ask for a preset dictionary and passes the header checksum. No valid
+     * plain text map can start with such a header, because the first line
+     * of a map is an integer.
+     * @param in the stream to inspect
+     * @return one of NONE, DEFLATE or GZIP
+     * @throws IOException if reading from the stream fails
+     * @require in.markSupported()
+     */
+    public static int detect(InputStream in) throws IOException {
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+
+        if (first == -1 || second == -1) {
+            return NONE;
+        }
+
+        if (first == GZIP_MAGIC_1 && second == GZIP_MAGIC_2) {
+            return GZIP;
+        }
+
+        // zlib: CM must be 8 (deflate), CINFO at most 7, FDICT clear, and
+        // the 16 bit header must be a multiple of 31
+        boolean isDeflate = (first & 0x0f) == 8;
+        boolean validWindow = (first >> 4) <= 7;
+        boolean noDictionary = (second & 0x20) == 0;
+        boolean validCheck = ((first << 8) | second) % 31 == 0;
+        if (isDeflate && validWindow && noDictionary && validCheck) {
+            return DEFLATE;
+        }
+
+        return NONE;
+    }
+
+    /**
+     * Wrap an input stream so that it returns the uncompressed contents of a
+     * world map, whether or not the stream is compressed.
+     * @param in the raw stream to read from
+     * @return a stream of uncompressed map contents
+     * @throws IOException if the compression header cannot be read
+     */
+    public static InputStream decompress(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in,
+                BUFFER_SIZE);
+
+        switch (detect(buffered)) {
+            case GZIP:
+                return new GZIPInputStream(buffered, BUFFER_SIZE);
+            case DEFLATE:
+                return new InflaterInputStream(buffered);
+            default:
+                return buffered;
+        }
+    }
+
+    /**
+     * Check that a compression and level can be passed to compress().
+     * @param compression one of NONE, DEFLATE or GZIP
+     * @param level the compression level, from 0 to 9 or DEFAULT_LEVEL
+     * @throws IllegalArgumentException if compression is not one of NONE,
+     *         DEFLATE or GZIP, or if level is not a valid level
+     */
+    static void checkArguments(int compression, int level) {
+        if (compression != NONE && compression != DEFLATE
+                && compression != GZIP) {
+            throw new IllegalArgumentException("Unknown compression: "
+                    + compression);
+        }
+
+        if (level != DEFAULT_LEVEL && (level < 0 || level > 9)) {
+            throw new IllegalArgumentException("Invalid compression level: "
+                    + level);
+        }
+    }
+
+    /**
+     * Wrap an output stream so that everything written to it is compressed
+     * using the given compression and level. <br>
+     * Closing the returned stream finishes the compressed stream and closes
+     * out.
+     * @param out the raw stream to write to
+     * @param compression one of NONE, DEFLATE or GZIP
+     * @param level the compression level, from 0 (fastest) to 9 (smallest)
+     *         or DEFAULT_LEVEL. Ignored for NONE.
+     * @return a stream that compresses into out
+     * @throws IOException if the compression header cannot be written
+     * @throws IllegalArgumentException if compression is not one of NONE,
+     *         DEFLATE or GZIP, or if level is not a valid level
+     */
+    public static OutputStream compress(OutputStream out, int compression,
+                                        int level) throws IOException {
+        checkArguments(compression, level);
+
+        switch (compression) {
+            case NONE:
+                return out;
+            case DEFLATE:
+                return new DeflaterOutputStream(out, new Deflater(level),
+                        BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        // we own the deflater, so release it on close
+                        try {
+                            super.close();
+                        } finally {
+                            def.end();
+                        }
+                    }
+                };
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_SIZE) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("Unknown compression: "
+                        + compression);
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package csse2002.block.world;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Reads and writes delta files, which record changes made to a world map
+ * since it was last saved in full. <br>
+ * A delta file sits next to the map it modifies and has the same name with
+ * ".delta" appended. It holds any number of delta records, one after the
+ * other, and each record has the format:
+ * <pre>{@literal
+ *delta
+ *<builder's name>
+ *<inventory1>,<inventory2>, ... ,<inventoryN>
+ *total:<number of tile ids>
+ *changed:<number of changed tiles K>
+ *<changed tile0 id> <block1>,<block2>, ... ,<blockN>
+ *    ...
+ *<changed tileK-1 id> <block1>,<block2>, ... ,<blockN>
+ *exits
+ *<changed tile0 id> <name1>:<id1>,<name2>:<id2>, ... ,<nameN>:<idN>
+ *    ...
+ *<changed tileK-1 id> <name1>:<id1>,<name2>:<id2>, ... ,<nameN>:<idN>
+ *end
+ *}</pre>
+ *
+ * Tile ids are those used in the map file the deltas apply to. Tiles that
+ * did not exist in that file are given the next unused ids, so "total:N"
+ * may grow from one record to the next. Each changed tile line replaces all
+ * of the blocks and all of the exits of that tile. <br>
+ * A record that is cut short by the end of the file (for example because
+ * the program stopped while appending it), even part way through a line, is
+ * ignored, and cut from the file when it is loaded, so the next record is
+ * appended after the last complete one.
+ * @serial exclude
+ */
+final class MapDelta {
+
+    /**
+     * The suffix added to a map filename to get its delta filename.
+     */
+    static final String SUFFIX = ".delta";
+
+    // store the system line separator ("\n", "\r\n" or "\r")
+    private static final String LINE_SEP = System.lineSeparator();
+
+    /**
+     * The name and inventory of a builder, as recorded in a map or delta.
+     */
+    static final class BuilderState {
+
+        // the builder's name
+        String name;
+
+        // the builder's inventory
+        List<Block> inventory;
+
+        /**
+         * Create a builder state.
+         * @param name the builder's name
+         * @param inventory the builder's inventory
+         */
+        BuilderState(String name, List<Block> inventory) {
+            this.name = name;
+            this.inventory = inventory;
+        }
+    }
+
+    /**
+     * Reads the lines of a delta file, keeping track of where each ends.
+     */
+    private static final class DeltaReader {
+
+        // the contents of the file
+        private final byte[] bytes;
+
+        // the offset just after the last line read
+        int offset;
+
+        // the number of lines read
+        int lineNumber;
+
+        /**
+         * Create a reader for the contents of a delta file.
+         * @param bytes the contents of the file
+         */
+        DeltaReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Read a line ended by "\n", "\r\n" or "\r", as
+         * BufferedReader.readLine() would.
+         * @return the line, or null at the end of the file or if the last
+         *         line has no line separator (so was cut short)
+         */
+        String readLine() {
+            for (int i = offset; i < bytes.length; i++) {
+                if (bytes[i] == '\n' || bytes[i] == '\r') {
+                    String line = new String(bytes, offset, i - offset);
+                    offset = bytes[i] == '\r' && i + 1 < bytes.length
+                            && bytes[i + 1] == '\n' ? i + 2 : i + 1;
+                    lineNumber++;
+                    return line;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Get an error string "Error on line {@literal<line-number>}.
+         * @return an error string
+         */
+        String errorOnLine() {
+            return "Error on line " + lineNumber + ": ";
+        }
+    }
+
+    /**
+     * Not instantiable.
+     */
+    private MapDelta() {
+    }
+
+    /**
+     * Get the name of the delta file for a map file.
+     * @param filename the map filename
+     * @return the delta filename
+     */
+    static String deltaFilename(String filename) {
+        return filename + SUFFIX;
+    }
+
+    /**
+     * Append a delta record to a delta file, creating the file if it does
+     * not exist. <br>
+     * Any tile reached through the exits of a changed tile that has no id
+     * in tileIds is given the next unused id and recorded as well.
+     * @param deltaFilename the delta file to append to
+     * @param builder the builder whose name and inventory are recorded
+     * @param tileIds the id of each tile in the map file, updated with
+     *         the ids of any new tiles
+     * @param changed the tiles that have changed
+     * @return the tiles that were given new ids
+     * @throws IOException if the file cannot be opened or written to
+     */
+    static List<Tile> append(String deltaFilename, Builder builder,
+                             Map<Tile, Integer> tileIds,
+                             Collection<Tile> changed) throws IOException {
+        List<Tile> toWrite = new ArrayList<>(changed);
+        List<Tile> newTiles = new ArrayList<>();
+
+        // new tiles can only be reached through exits, so follow the exits
+        // of everything written until no unknown tiles are left
+        Queue<Tile> toCheck = new ArrayDeque<>(changed);
+        while (!toCheck.isEmpty()) {
+            for (Tile exit : toCheck.remove().getExits().values()) {
+                if (!tileIds.containsKey(exit)) {
+                    tileIds.put(exit, tileIds.size());
+                    newTiles.add(exit);
+                    toWrite.add(exit);
+                    toCheck.add(exit);
+                }
+            }
+        }
+
+        try (Writer writer = new BufferedWriter(
+                new FileWriter(deltaFilename, true))) {
+            writer.write("delta" + LINE_SEP);
+            writer.write(builder.getName() + LINE_SEP);
+            writer.write(WorldMap.encodeBlocks(builder.getInventory()));
+            writer.write("total:" + tileIds.size() + LINE_SEP);
+            writer.write("changed:" + toWrite.size() + LINE_SEP);
+
+            for (Tile tile : toWrite) {
+                writer.write(WorldMap.encodeTile(tile, tileIds.get(tile)));
+            }
+
+            writer.write("exits" + LINE_SEP);
+            for (Tile tile : toWrite) {
+                writer.write(WorldMap.encodeExits(tileIds, tile,
+                        tileIds.get(tile)));
+            }
+
+            writer.write("end" + LINE_SEP);
+        }
+
+        return newTiles;
+    }
+
+    /**
+     * Apply every complete record in a delta file, in order, to the tiles
+     * and builder loaded from its map file. Does nothing if the delta file
+     * does not exist. If the file ends with a record that was cut short,
+     * the file is truncated after the last complete record.
+     * @param deltaFilename the delta file to read
+     * @param tiles the tiles from the map file, indexed by id; new tiles
+     *         are added to the end
+     * @param builder the builder from the map file, updated with the
+     *         builder in the last record
+     * @return the number of records applied
+     * @throws WorldMapFormatException if the delta file is incorrectly
+     *         formatted, or refers to tiles that do not exist
+     * @throws TooHighException if a tile would have too many blocks, or
+     *         GroundBlocks that are too high
+     * @throws NoExitException if an exit cannot be added
+     * @throws IOException if reading or truncating the delta file fails
+     */
+    static int apply(String deltaFilename, List<Tile> tiles,
+                     BuilderState builder)
+            throws WorldMapFormatException, TooHighException,
+            NoExitException, IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(Paths.get(deltaFilename));
+        } catch (NoSuchFileException e) {
+            // no changes since the map was saved
+            return 0;
+        }
+
+        int records = 0;
+        int complete = 0;
+        DeltaReader reader = new DeltaReader(bytes);
+        while (applyRecord(reader, tiles, builder)) {
+            records++;
+            complete = reader.offset;
+        }
+
+        // appending after a torn record would leave it inside the file
+        if (complete < bytes.length) {
+            try (RandomAccessFile raf = new RandomAccessFile(deltaFilename,
+                    "rw")) {
+                raf.setLength(complete);
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Delete the delta file for a map file, if there is one.
+     * @param filename the map filename
+     * @throws IOException if the delta file exists and cannot be deleted
+     */
+    static void delete(String filename) throws IOException {
+        File deltaFile = new File(deltaFilename(filename));
+        if (deltaFile.exists() && !deltaFile.delete()) {
+            throw new IOException("Cannot delete " + deltaFile);
+        }
+    }
+
+    /**
+     * Read the next record from a delta file and apply it. Nothing is
+     * applied unless the whole record can be read.
+     * @param reader the reader positioned at the start of a record
+     * @param tiles the tiles, indexed by id
+     * @param builder the builder state to update
+     * @return true if a record was applied, false at the end of the file
+     *         or if the last record is incomplete
+     * @throws WorldMapFormatException if the record is incorrectly
+     *         formatted
+     * @throws TooHighException if a tile would have too many blocks
+     * @throws NoExitException if an exit cannot be added
+     */
+    private static boolean applyRecord(DeltaReader reader, List<Tile> tiles,
+                                       BuilderState builder)
+            throws WorldMapFormatException, TooHighException,
+            NoExitException {
+        String header = reader.readLine();
+        if (header == null) {
+            return false;
+        }
+
+        if (!header.equals("delta")) {
+            throw new WorldMapFormatException(errorOnLine(reader)
+                    + "Missing 'delta' token.");
+        }
+
+        String name = reader.readLine();
+        String inventory = reader.readLine();
+        String total = reader.readLine();
+        String changed = reader.readLine();
+        if (changed == null) {
+            return false;
+        }
+
+        int numTiles = parseCount(total, "total", reader);
+        int numChanged = parseCount(changed, "changed", reader);
+        if (numTiles < tiles.size()) {
+            throw new WorldMapFormatException(errorOnLine(reader)
+                    + "Tile total is lower than in an earlier record.");
+        }
+
+        // every new tile is one of the changed tiles, so a total beyond
+        // that is corrupt (and would create that many tiles)
+        if (numTiles - tiles.size() > numChanged) {
+            throw new WorldMapFormatException(errorOnLine(reader)
+                    + "Tile total is higher than the tiles in the record.");
+        }
+
+        // the counts are only trusted as far as the lines of the record
+        // agree with them, so a corrupt count cannot fill the memory
+        List<String> tileLines = readLines(reader, numChanged, "exits");
+        String exitsLine = reader.readLine();
+        List<String> exitLines = readLines(reader, numChanged, "end");
+        String end = reader.readLine();
+
+        if (tileLines == null || exitsLine == null || exitLines == null
+                || end == null) {
+            // the record was cut short, so leave the tiles unchanged
+            return false;
+        }
+
+        if (!exitsLine.equals("exits") || !end.equals("end")) {
+            throw new WorldMapFormatException(errorOnLine(reader)
+                    + "Delta record is missing 'exits' or 'end' token.");
+        }
+
+        // the whole record has been read, so apply it
+        builder.name = name;
+        builder.inventory = WorldMap.createBlockArray(inventory);
+
+        while (tiles.size() < numTiles) {
+            tiles.add(new Tile(new ArrayList<>()));
+        }
+
+        for (String tileLine : tileLines) {
+            String[] parts = tileLine.split(" ", 3);
+            if (parts.length != 2) {
+                throw new WorldMapFormatException(errorOnLine(reader)
+                        + "Tile entry in delta must have exactly one space.");
+            }
+
+            int tileId;
+            try {
+                tileId = Integer.parseInt(parts[0]);
+            } catch (NumberFormatException nfe) {
+                throw new WorldMapFormatException(errorOnLine(reader)
+                        + "Tile ID in delta is not a valid integer");
+            }
+
+            if (tileId < 0 || tileId >= numTiles) {
+                throw new WorldMapFormatException(errorOnLine(reader)
+                        + "Tile ID in delta does not refer to a valid tile");
+            }
+
+            tiles.get(tileId).setBlocks(WorldMap.createBlockArray(parts[1]));
+        }
+
+        for (String exitLine : exitLines) {
+            WorldMap.addTileExits(tiles, exitLine, true);
+        }
+
+        return true;
+    }
+
+    /**
+     * Read the tile or exit lines of a delta record.
+     * @param reader the reader positioned at the first line
+     * @param count the number of lines the record says there are
+     * @param next the token that follows the lines, which no line can be
+     * @return the lines, or null if the file ends first
+     * @throws WorldMapFormatException if the token is found before count
+     *         lines have been read
+     */
+    private static List<String> readLines(DeltaReader reader, int count,
+                                          String next)
+            throws WorldMapFormatException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String line = reader.readLine();
+            if (line == null) {
+                return null;
+            } else if (line.equals(next)) {
+                throw new WorldMapFormatException(errorOnLine(reader)
+                        + "Delta record has fewer tiles than changed:N.");
+            }
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    /**
+     * Parse a "name:count" line from a delta record.
+     * @param line the line to parse, or null if the file ended
+     * @param name the expected name before the colon
+     * @param reader the reader, for error messages
+     * @return the count
+     * @throws WorldMapFormatException if the line is not "name:count"
+     *         with a non-negative integer count
+     */
+    private static int parseCount(String line, String name,
+                                  DeltaReader reader)
+            throws WorldMapFormatException {
+        String[] parts = line.split(":", 3);
+        if (parts.length != 2 || !parts[0].equals(name)) {
+            throw new WorldMapFormatException(errorOnLine(reader)
+                    + "Expected " + name + ":N in delta record.");
+        }
+
+        int count;
+        try {
+            count = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException nfe) {
+            throw new WorldMapFormatException(errorOnLine(reader)
+                    + "In " + name + ":N, N is not a valid integer");
+        }
+
+        if (count < 0) {
+            throw new WorldMapFormatException(errorOnLine(reader)
+                    + "In " + name + ":N, N is negative");
+        }
+
+        return count;
+    }
+
+    /**
+     * Get an error string for the current line of a delta file.
+     * @param reader the reader
+     * @return an error string
+     */
+    private static String errorOnLine(DeltaReader reader) {
+        return "Delta file: " + reader.errorOnLine();
+    }
+}
@@ -0,0 +1,610 @@
+package csse2002.block.world;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Records where the time goes when a {@link WorldMap WorldMap} is loaded or
+ * saved. <br>
+ * Loading and saving are split into phases, and for each phase the
+ * elapsed time and the number of bytes allocated by the loading or saving
+ * thread are added up. Only one phase is counted at a time, so a phase's
+ * time does not include the time of any phase entered from inside it (for
+ * example, the time spent reading from the file while reading a line is
+ * counted as LOAD_IO, not LOAD_LINES). The number of bytes read and
+ * written, lines read and tiles loaded and saved are also counted. <br>
+ * Allocation totals come from the JVM's ThreadMXBean, and are -1 if the JVM
+ * cannot measure them. <br>
+ * A MapStats is given to the WorldMap(filename, stats) constructor or to
+ * WorldMap.setStats(), and keeps adding up every load and save until
+ * reset() is called. It is not thread safe, and only measures the thread
+ * that loads or saves the map.
+ * @serial exclude
+ */
+public class MapStats {
+
+    /**
+     * Reading the map file: file I/O and decompression.
+     */
+    public static final int LOAD_IO = 0;
+
+    /**
+     * Decoding characters and splitting them into lines.
+     */
+    public static final int LOAD_LINES = 1;
+
+    /**
+     * Parsing the header and tile entries, and decoding blocks.
+     */
+    public static final int LOAD_BLOCKS = 2;
+
+    /**
+     * Parsing the exit entries and linking tiles together.
+     */
+    public static final int LOAD_EXITS = 3;
+
+    /**
+     * Reading and applying the delta file.
+     */
+    public static final int LOAD_DELTAS = 4;
+
+    /**
+     * Reading regions of an indexed map file.
+     */
+    public static final int LOAD_REGIONS = 5;
+
+    /**
+     * Placing tiles and checking their consistency
+     * (SparseTileArray.addLinkedTiles()).
+     */
+    public static final int LOAD_LAYOUT = 6;
+
+    /**
+     * Encoding tiles and exits as text.
+     */
+    public static final int SAVE_ENCODE = 7;
+
+    /**
+     * Writing the map file: compression and file I/O.
+     */
+    public static final int SAVE_IO = 8;
+
+    /**
+     * The number of phases.
+     */
+    public static final int PHASE_COUNT = 9;
+
+    // a MapStats that records nothing, used when no stats are wanted
+    static final MapStats NONE = new MapStats(false);
+
+    // the phase being counted when no phase has been entered
+    private static final int NO_PHASE = -1;
+
+    // the names of the phases, for toString()
+    private static final String[] PHASE_NAMES = {"load: file I/O",
+            "load: line splitting", "load: block decoding",
+            "load: exit linking", "load: deltas", "load: regions",
+            "load: addLinkedTiles", "save: encoding", "save: file I/O"};
+
+    // whether anything is recorded
+    private final boolean enabled;
+
+    // measures allocation, or null if it cannot be measured
+    private final com.sun.management.ThreadMXBean allocationBean;
+
+    // the time and allocation counted in each phase
+    private long[] nanos = new long[PHASE_COUNT];
+    private long[] allocated = new long[PHASE_COUNT];
+
+    // the phase being counted, and when it was entered
+    private int phase = NO_PHASE;
+    private long phaseStart;
+    private long phaseAllocationStart;
+
+    // the counts
+    private long bytesRead;
+    private long bytesWritten;
+    private long linesRead;
+    private long tilesLoaded;
+    private long tilesSaved;
+
+    // the counts of the region cache (see WorldMap.setTileLimit())
+    private long regionHits;
+    private long regionMisses;
+    private long regionEvictions;
+    private long regionWriteBacks;
+
+    /**
+     * Create a MapStats with nothing recorded yet.
+     */
+    public MapStats() {
+        this(true);
+    }
+
+    /**
+     * Create a MapStats.
+     * @param enabled false to create a MapStats that records nothing
+     */
+    private MapStats(boolean enabled) {
+        this.enabled = enabled;
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (enabled && bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean)
+                        .isThreadAllocatedMemorySupported()) {
+            allocationBean = (com.sun.management.ThreadMXBean) bean;
+            allocationBean.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            allocationBean = null;
+        }
+    }
+
+    /**
+     * Get the name of a phase.
+     * @param phase one of the phase constants
+     * @return the name of the phase
+     * @require 0 &lt;= phase &lt; PHASE_COUNT
+     */
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    /**
+     * Get the time spent in a phase.
+     * @param phase one of the phase constants
+     * @return the time, in nanoseconds
+     * @require 0 &lt;= phase &lt; PHASE_COUNT
+     */
+    public long getNanos(int phase) {
+        return nanos[phase];
+    }
+
+    /**
+     * Get the number of bytes allocated by the measured thread in a phase.
+     * @param phase one of the phase constants
+     * @return the number of bytes, or -1 if allocation cannot be measured
+     * @require 0 &lt;= phase &lt; PHASE_COUNT
+     */
+    public long getAllocatedBytes(int phase) {
+        return allocationBean == null ? -1 : allocated[phase];
+    }
+
+    /**
+     * Get the number of bytes read from map files (before decompression).
+     * @return the number of bytes read
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Get the number of bytes written to map files (after compression).
+     * @return the number of bytes written
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Get the number of lines read from map files.
+     * @return the number of lines read
+     */
+    public long getLinesRead() {
+        return linesRead;
+    }
+
+    /**
+     * Get the number of tiles loaded.
+     * @return the number of tiles loaded
+     */
+    public long getTilesLoaded() {
+        return tilesLoaded;
+    }
+
+    /**
+     * Get the number of tiles saved.
+     * @return the number of tiles saved
+     */
+    public long getTilesSaved() {
+        return tilesSaved;
+    }
+
+    /**
+     * Get the number of times a loaded tile of an indexed map file was
+     * used, or looked up by position.
+     * @return the number of region cache hits
+     */
+    public long getRegionHits() {
+        return regionHits;
+    }
+
+    /**
+     * Get the number of regions of an indexed map file that were loaded.
+     * @return the number of region cache misses
+     */
+    public long getRegionMisses() {
+        return regionMisses;
+    }
+
+    /**
+     * Get the number of regions of an indexed map file that were unloaded
+     * to keep within the tile limit.
+     * @return the number of region cache evictions
+     */
+    public long getRegionEvictions() {
+        return regionEvictions;
+    }
+
+    /**
+     * Get the number of changed regions that were written to the page file
+     * before they were unloaded.
+     * @return the number of region write-backs
+     */
+    public long getRegionWriteBacks() {
+        return regionWriteBacks;
+    }
+
+    /**
+     * Clear everything recorded so far.
+     */
+    public void reset() {
+        nanos = new long[PHASE_COUNT];
+        allocated = new long[PHASE_COUNT];
+        phase = NO_PHASE;
+        bytesRead = 0;
+        bytesWritten = 0;
+        linesRead = 0;
+        tilesLoaded = 0;
+        tilesSaved = 0;
+        regionHits = 0;
+        regionMisses = 0;
+        regionEvictions = 0;
+        regionWriteBacks = 0;
+    }
+
+    /**
+     * Returns a table with the time and allocation of each phase that has
+     * been entered, followed by the counts.
+     * @return a report of the stats
+     */
+    @Override
+    public String toString() {
+        String lineSep = System.lineSeparator();
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("%-24s %10s %14s%s", "phase", "ms",
+                "allocated", lineSep));
+
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            if (nanos[i] == 0) {
+                continue;
+            }
+            result.append(String.format("%-24s %10.1f %14s%s",
+                    PHASE_NAMES[i], nanos[i] / 1e6,
+                    allocationBean == null ? "-" : allocated[i] + "",
+                    lineSep));
+        }
+
+        result.append("bytes read: ").append(bytesRead)
+                .append(", lines read: ").append(linesRead)
+                .append(", tiles loaded: ").append(tilesLoaded)
+                .append(lineSep);
+        result.append("bytes written: ").append(bytesWritten)
+                .append(", tiles saved: ").append(tilesSaved);
+        if (regionMisses != 0) {
+            result.append(lineSep).append("region hits: ").append(regionHits)
+                    .append(", misses: ").append(regionMisses)
+                    .append(", evictions: ").append(regionEvictions)
+                    .append(", written back: ").append(regionWriteBacks);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Stop counting the current phase and start counting another.
+     * @param newPhase the phase to count, or -1 to stop counting
+     * @return the phase that was being counted, so it can be entered again
+     *         afterwards
+     */
+    int enter(int newPhase) {
+        if (!enabled) {
+            return NO_PHASE;
+        }
+
+        long now = System.nanoTime();
+        long allocation = allocationBean == null ? 0
+                : allocationBean.getThreadAllocatedBytes(
+                        Thread.currentThread().getId());
+        if (phase != NO_PHASE) {
+            nanos[phase] += now - phaseStart;
+            allocated[phase] += allocation - phaseAllocationStart;
+        }
+
+        int previous = phase;
+        phase = newPhase;
+        phaseStart = now;
+        phaseAllocationStart = allocation;
+        return previous;
+    }
+
+    /**
+     * Stop counting the current phase.
+     */
+    void exit() {
+        enter(NO_PHASE);
+    }
+
+    /**
+     * Add to the number of bytes read.
+     * @param bytes the number of bytes
+     */
+    void addBytesRead(long bytes) {
+        bytesRead += bytes;
+    }
+
+    /**
+     * Add to the number of bytes written.
+     * @param bytes the number of bytes
+     */
+    void addBytesWritten(long bytes) {
+        bytesWritten += bytes;
+    }
+
+    /**
+     * Add to the number of lines read.
+     * @param lines the number of lines
+     */
+    void addLinesRead(long lines) {
+        linesRead += lines;
+    }
+
+    /**
+     * Add to the number of tiles loaded.
+     * @param tiles the number of tiles
+     */
+    void addTilesLoaded(long tiles) {
+        tilesLoaded += tiles;
+    }
+
+    /**
+     * Add to the number of tiles saved.
+     * @param tiles the number of tiles
+     */
+    void addTilesSaved(long tiles) {
+        tilesSaved += tiles;
+    }
+
+    /**
+     * Add to the number of region cache hits.
+     * @param hits the number of hits
+     */
+    void addRegionHits(long hits) {
+        regionHits += hits;
+    }
+
+    /**
+     * Add to the number of region cache misses.
+     * @param misses the number of misses
+     */
+    void addRegionMisses(long misses) {
+        regionMisses += misses;
+    }
+
+    /**
+     * Add to the number of region cache evictions.
+     * @param evictions the number of evictions
+     */
+    void addRegionEvictions(long evictions) {
+        regionEvictions += evictions;
+    }
+
+    /**
+     * Add to the number of region write-backs.
+     * @param writeBacks the number of write-backs
+     */
+    void addRegionWriteBacks(long writeBacks) {
+        regionWriteBacks += writeBacks;
+    }
+
+    /**
+     * Wrap a stream so that the bytes read from it are counted.
+     * @param in the stream to count
+     * @return the wrapped stream, or in if nothing is recorded
+     */
+    InputStream countReads(InputStream in) {
+        return enabled ? new StatsInputStream(in, NO_PHASE, true) : in;
+    }
+
+    /**
+     * Wrap a stream so that the time spent reading from it is counted in a
+     * phase.
+     * @param in the stream to time
+     * @param readPhase the phase to count reads in
+     * @return the wrapped stream, or in if nothing is recorded
+     */
+    InputStream timeReads(InputStream in, int readPhase) {
+        return enabled ? new StatsInputStream(in, readPhase, false) : in;
+    }
+
+    /**
+     * Wrap a stream so that the bytes written to it are counted.
+     * @param out the stream to count
+     * @return the wrapped stream, or out if nothing is recorded
+     */
+    OutputStream countWrites(OutputStream out) {
+        return enabled ? new StatsOutputStream(out, NO_PHASE, true) : out;
+    }
+
+    /**
+     * Wrap a stream so that the time spent writing to it (and flushing and
+     * closing it) is counted in a phase.
+     * @param out the stream to time
+     * @param writePhase the phase to count writes in
+     * @return the wrapped stream, or out if nothing is recorded
+     */
+    OutputStream timeWrites(OutputStream out, int writePhase) {
+        return enabled ? new StatsOutputStream(out, writePhase, false) : out;
+    }
+
+    /**
+     * An input stream that counts bytes read or the time spent reading.
+     */
+    private class StatsInputStream extends FilterInputStream {
+
+        // the phase to count reads in, or NO_PHASE
+        private final int readPhase;
+
+        // whether to count the bytes read
+        private final boolean count;
+
+        /**
+         * Wrap a stream.
+         * @param in the stream to wrap
+         * @param readPhase the phase to count reads in, or NO_PHASE
+         * @param count whether to count the bytes read
+         */
+        StatsInputStream(InputStream in, int readPhase, boolean count) {
+            super(in);
+            this.readPhase = readPhase;
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int previous = begin();
+            try {
+                int b = super.read();
+                if (count && b != -1) {
+                    bytesRead++;
+                }
+                return b;
+            } finally {
+                end(previous);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int previous = begin();
+            try {
+                int read = super.read(b, off, len);
+                if (count && read > 0) {
+                    bytesRead += read;
+                }
+                return read;
+            } finally {
+                end(previous);
+            }
+        }
+
+        /**
+         * Enter the read phase, if there is one.
+         * @return the phase to go back to
+         */
+        private int begin() {
+            return readPhase == NO_PHASE ? NO_PHASE : enter(readPhase);
+        }
+
+        /**
+         * Go back to the phase before begin(), if there is a read phase.
+         * @param previous the phase returned by begin()
+         */
+        private void end(int previous) {
+            if (readPhase != NO_PHASE) {
+                enter(previous);
+            }
+        }
+    }
+
+    /**
+     * An output stream that counts bytes written or the time spent writing.
+     */
+    private class StatsOutputStream extends FilterOutputStream {
+
+        // the phase to count writes in, or NO_PHASE
+        private final int writePhase;
+
+        // whether to count the bytes written
+        private final boolean count;
+
+        /**
+         * Wrap a stream.
+         * @param out the stream to wrap
+         * @param writePhase the phase to count writes in, or NO_PHASE
+         * @param count whether to count the bytes written
+         */
+        StatsOutputStream(OutputStream out, int writePhase, boolean count) {
+            super(out);
+            this.writePhase = writePhase;
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            int previous = begin();
+            try {
+                out.write(b);
+                if (count) {
+                    bytesWritten++;
+                }
+            } finally {
+                end(previous);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int previous = begin();
+            try {
+                out.write(b, off, len);
+                if (count) {
+                    bytesWritten += len;
+                }
+            } finally {
+                end(previous);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            int previous = begin();
+            try {
+                out.flush();
+            } finally {
+                end(previous);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            int previous = begin();
+            try {
+                super.close();
+            } finally {
+                end(previous);
+            }
+        }
+
+        /**
+         * Enter the write phase, if there is one.
+         * @return the phase to go back to
+         */
+        private int begin() {
+            return writePhase == NO_PHASE ? NO_PHASE : enter(writePhase);
+        }
+
+        /**
+         * Go back to the phase before begin(), if there is a write phase.
+         * @param previous the phase returned by begin()
+         */
+        private void end(int previous) {
+            if (writePhase != NO_PHASE) {
+                enter(previous);
+            }
+        }
+    }
+}
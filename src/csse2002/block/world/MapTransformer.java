@@ -0,0 +1,921 @@
+package csse2002.block.world;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Transforms a world map file into another without loading it as a
+ * WorldMap, so maps far larger than memory can be transformed. <br>
+ * The map is read as a stream of tile lines and exit lines (from a text
+ * map file in the format given in the WorldMap(filename) constructor,
+ * which may be compressed, or from the records of a mapped map file
+ * written by WorldMap.saveMappedMap()), each line is transformed, and the
+ * result is written as a text map file. No tile is ever held in memory
+ * as a whole. <br>
+ * The transforms are:
+ * <ul>
+ *     <li> filter(types): removes every block of the given types from
+ *          each tile and from the builder's inventory. </li>
+ *     <li> remap(from, to): replaces every block of one type with another
+ *          type, on each tile and in the builder's inventory. </li>
+ *     <li> crop(x1, y1, x2, y2): keeps only the tiles inside a rectangle
+ *          of positions, and removes the exits leading out of it. </li>
+ *     <li> setStart(x, y): makes the tile at a position the starting
+ *          tile. </li>
+ *     <li> setRenumber(true): gives the tiles ids in the breadth-first
+ *          order of WorldMap.getTiles(), instead of keeping the order of
+ *          the input. </li>
+ * </ul>
+ * Block transforms are applied to each tile in the order they were added.
+ * Tile ids are always renumbered so that they run from 0 (the starting
+ * tile) to N-1 for the N tiles kept, and every exit is rewritten with the
+ * new id of its tile. <br>
+ * Positions are not stored in a text map file, so crop(), setStart() and
+ * setRenumber() read the exits once first, and lay the tiles out the way
+ * WorldMap.getTiles() would. This keeps a few ints per tile (its exits,
+ * position and new id), but never a tile's blocks or lines. Tiles that can
+ * no longer be reached from the starting tile once the map is cropped are
+ * removed too. Without these transforms, the memory used does not depend
+ * on the size of the map. <br>
+ * The input is assumed to be consistent; loading the output with the
+ * WorldMap(filename) constructor checks it. Tile lines and exit lines are
+ * written in the order they are read, which WorldMap(filename) accepts
+ * even if it is not the order of their ids.
+ * @serial exclude
+ */
+public class MapTransformer {
+
+    // store the system line separator ("\n", "\r\n" or "\r")
+    private static final String LINE_SEP = System.lineSeparator();
+
+    // exit names and the position offsets they lead to, in the order
+    // WorldMap.getTiles() follows them
+    private static final String[] EXITS = {"north", "east", "south", "west"};
+    private static final int[] DIRECTIONS_X = {0, 1, 0, -1};
+    private static final int[] DIRECTIONS_Y = {-1, 0, 1, 0};
+
+    // marks a tile that is not kept, or an exit that does not exist
+    private static final int NONE = -1;
+
+    /**
+     * Changes the block types of a tile or inventory.
+     */
+    private interface BlockTransform {
+
+        /**
+         * Transform a list of block types in place.
+         * @param types the block types, from the bottom up
+         */
+        void apply(List<String> types);
+    }
+
+    /**
+     * Removes blocks of some types.
+     */
+    private static class Filter implements BlockTransform {
+
+        // the types to remove
+        private final List<String> types;
+
+        /**
+         * Create a filter.
+         * @param types the block types to remove
+         */
+        Filter(List<String> types) {
+            this.types = types;
+        }
+
+        @Override
+        public void apply(List<String> blockTypes) {
+            blockTypes.removeAll(types);
+        }
+    }
+
+    /**
+     * Replaces blocks of one type with another type.
+     */
+    private static class Remap implements BlockTransform {
+
+        // the type to replace, and its replacement
+        private final String from;
+        private final String to;
+
+        /**
+         * Create a remapping.
+         * @param from the block type to replace
+         * @param to the block type to replace it with
+         */
+        Remap(String from, String to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void apply(List<String> blockTypes) {
+            for (int i = 0; i < blockTypes.size(); i++) {
+                if (blockTypes.get(i).equals(from)) {
+                    blockTypes.set(i, to);
+                }
+            }
+        }
+    }
+
+    // the block transforms, in order
+    private final List<BlockTransform> blockTransforms = new ArrayList<>();
+
+    // the positions to keep, or null to keep every position
+    private int[] cropArea;
+
+    // the position of the new starting tile, or null to keep tile 0
+    private Position start;
+
+    // whether to give tiles ids in breadth-first order
+    private boolean renumber;
+
+    /**
+     * Add a transform that removes every block of the given types.
+     * @param types the block types to remove
+     * @throws WorldMapFormatException if a type is not a block type
+     * @require types != null
+     */
+    public void filter(String... types) throws WorldMapFormatException {
+        for (String type : types) {
+            WorldMap.decodeBlock(type);
+        }
+        blockTransforms.add(new Filter(Arrays.asList(types)));
+    }
+
+    /**
+     * Add a transform that replaces every block of one type with another.
+     * @param from the block type to replace
+     * @param to the block type to replace it with
+     * @throws WorldMapFormatException if from or to is not a block type
+     * @require from != null and to != null
+     */
+    public void remap(String from, String to) throws WorldMapFormatException {
+        WorldMap.decodeBlock(from);
+        WorldMap.decodeBlock(to);
+        blockTransforms.add(new Remap(from, to));
+    }
+
+    /**
+     * Keep only the tiles with positions from (x1, y1) to (x2, y2),
+     * inclusive. Cropping again keeps only the positions inside both
+     * rectangles.
+     * @param x1 the smallest x to keep
+     * @param y1 the smallest y to keep
+     * @param x2 the largest x to keep
+     * @param y2 the largest y to keep
+     */
+    public void crop(int x1, int y1, int x2, int y2) {
+        if (cropArea == null) {
+            cropArea = new int[] {x1, y1, x2, y2};
+        } else {
+            cropArea = new int[] {Math.max(x1, cropArea[0]),
+                    Math.max(y1, cropArea[1]), Math.min(x2, cropArea[2]),
+                    Math.min(y2, cropArea[3])};
+        }
+    }
+
+    /**
+     * Make the tile at a position the starting tile (tile 0) of the output,
+     * so a loaded builder starts there.
+     * @param x the x position of the new starting tile
+     * @param y the y position of the new starting tile
+     */
+    public void setStart(int x, int y) {
+        start = new Position(x, y);
+    }
+
+    /**
+     * Set whether tiles are given ids in the breadth-first order of
+     * WorldMap.getTiles(), so the output has the ids saveMap() would give
+     * the map. Otherwise tiles keep the order of their ids in the input.
+     * @param renumber true to give tiles ids in breadth-first order
+     */
+    public void setRenumber(boolean renumber) {
+        this.renumber = renumber;
+    }
+
+    /**
+     * Transform a map file, writing the result as a text map file.
+     * @param input the text or mapped map file to read
+     * @param output the text map file to write
+     * @throws WorldMapFormatException if the input is incorrectly
+     *         formatted, a tile or the inventory is invalid once
+     *         transformed, or the starting tile is cropped
+     * @throws IOException if a file cannot be read or written
+     * @require input != null and output != null
+     */
+    public void transform(String input, String output)
+            throws WorldMapFormatException, IOException {
+        MapSource source = open(input);
+        try {
+            int[] newIds = null;
+            int newCount = source.tileCount;
+            Position startPosition = source.startPosition;
+            if (cropArea != null || start != null || renumber) {
+                Layout layout = new Layout(source);
+                newIds = layout.newIds;
+                newCount = layout.newCount;
+                startPosition = layout.startPosition;
+            }
+
+            List<String> inventory = split(source.inventory);
+            for (BlockTransform transform : blockTransforms) {
+                transform.apply(inventory);
+            }
+            for (String type : inventory) {
+                if (!WorldMap.decodeBlock(type).isCarryable()) {
+                    throw new WorldMapFormatException("The builder's"
+                            + " inventory would hold " + type + " blocks,"
+                            + " which cannot be carried");
+                }
+            }
+
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(output)))) {
+                writer.write(startPosition.getX() + LINE_SEP
+                        + startPosition.getY() + LINE_SEP
+                        + source.builderName + LINE_SEP
+                        + String.join(",", inventory) + LINE_SEP
+                        + LINE_SEP
+                        + "total:" + newCount + LINE_SEP);
+                source.read(new Output(writer, newIds));
+            } catch (WorldMapFormatException | IOException
+                    | RuntimeException e) {
+                // do not leave half a map behind
+                new File(output).delete();
+                throw e;
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Transforms a map file from the command line. <br>
+     * Usage: MapTransformer [options] input output, where the options are
+     * applied in the order given:
+     * <ul>
+     *     <li> "--filter type,type,..." (see filter()) </li>
+     *     <li> "--remap from=to" (see remap()) </li>
+     *     <li> "--crop x1 y1 x2 y2" (see crop()) </li>
+     *     <li> "--start x y" (see setStart()) </li>
+     *     <li> "--renumber" (see setRenumber()) </li>
+     * </ul>
+     * Wrong arguments print the usage using System.err.println() and exit
+     * with status 1. If the transform fails, the exception is printed
+     * using System.err.println() and the program exits with status 2.
+     *
+     * @param args the options, input file and output file
+     */
+    public static void main(String[] args) {
+        MapTransformer transformer = new MapTransformer();
+        int argIndex = 0;
+        try {
+            while (argIndex < args.length && args[argIndex].startsWith("--")) {
+                String option = args[argIndex];
+                if (option.equals("--filter") && argIndex + 1 < args.length) {
+                    transformer.filter(args[argIndex + 1].split(","));
+                    argIndex += 2;
+                } else if (option.equals("--remap")
+                        && argIndex + 1 < args.length
+                        && args[argIndex + 1].split("=", -1).length == 2) {
+                    String[] types = args[argIndex + 1].split("=", -1);
+                    transformer.remap(types[0], types[1]);
+                    argIndex += 2;
+                } else if (option.equals("--crop")
+                        && argIndex + 4 < args.length) {
+                    transformer.crop(Integer.parseInt(args[argIndex + 1]),
+                            Integer.parseInt(args[argIndex + 2]),
+                            Integer.parseInt(args[argIndex + 3]),
+                            Integer.parseInt(args[argIndex + 4]));
+                    argIndex += 5;
+                } else if (option.equals("--start")
+                        && argIndex + 2 < args.length) {
+                    transformer.setStart(Integer.parseInt(args[argIndex + 1]),
+                            Integer.parseInt(args[argIndex + 2]));
+                    argIndex += 3;
+                } else if (option.equals("--renumber")) {
+                    transformer.setRenumber(true);
+                    argIndex++;
+                } else {
+                    // not a known option, so report the usage below
+                    argIndex = args.length + 1;
+                }
+            }
+        } catch (NumberFormatException | WorldMapFormatException e) {
+            argIndex = args.length + 1;
+        }
+
+        if (args.length - argIndex != 2) {
+            System.err.println("Usage: MapTransformer [--filter types]"
+                    + " [--remap from=to] [--crop x1 y1 x2 y2] [--start x y]"
+                    + " [--renumber] input output");
+            System.exit(1);
+        }
+
+        try {
+            transformer.transform(args[argIndex], args[argIndex + 1]);
+        } catch (WorldMapFormatException | IOException e) {
+            System.err.println(e);
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Transform the blocks of a tile.
+     * @param blocks the comma separated block types of the tile
+     * @param id the id of the tile in the input
+     * @return the transformed block types
+     * @throws WorldMapFormatException if the transformed blocks cannot be
+     *         placed on a tile
+     */
+    private String transformBlocks(String blocks, int id)
+            throws WorldMapFormatException {
+        if (blockTransforms.isEmpty()) {
+            return blocks;
+        }
+
+        List<String> types = split(blocks);
+        for (BlockTransform transform : blockTransforms) {
+            transform.apply(types);
+        }
+        String result = String.join(",", types);
+        try {
+            // checks the blocks, and is cheap for the few distinct columns
+            BlockColumns.intern(result);
+        } catch (TooHighException e) {
+            throw new WorldMapFormatException("Tile " + id + " would have"
+                    + " too many blocks, or ground blocks too high, once"
+                    + " transformed");
+        }
+        return result;
+    }
+
+    /**
+     * Split a comma separated list.
+     * @param list the list
+     * @return the elements, which may be changed
+     */
+    private static List<String> split(String list) {
+        if (list.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(Arrays.asList(list.split(",")));
+    }
+
+    /**
+     * Open a text or mapped map file as a stream of lines.
+     * @param filename the file to open
+     * @return the source of the file's lines
+     * @throws WorldMapFormatException if the file's header is incorrectly
+     *         formatted
+     * @throws IOException if the file cannot be read
+     */
+    private static MapSource open(String filename)
+            throws WorldMapFormatException, IOException {
+        try (InputStream in = new BufferedInputStream(
+                new FileInputStream(filename))) {
+            if (MappedMapFile.isMapped(in)) {
+                return new MappedSource(filename);
+            }
+        }
+        return new TextSource(filename);
+    }
+
+    /**
+     * Parse a non-negative int.
+     * @param intString the string to parse
+     * @param errorMsg the message if it is not a non-negative int
+     * @return the int
+     * @throws WorldMapFormatException if intString is not a non-negative
+     *         int
+     */
+    private static int parseId(String intString, String errorMsg)
+            throws WorldMapFormatException {
+        try {
+            int value = Integer.parseInt(intString);
+            if (value >= 0) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new WorldMapFormatException(errorMsg);
+    }
+
+    /**
+     * Receives the lines of a map, without the ids split off.
+     */
+    private interface LineHandler {
+
+        /**
+         * Receive a tile line.
+         * @param id the id of the tile
+         * @param blocks the comma separated block types
+         * @throws WorldMapFormatException if the line is invalid
+         * @throws IOException if the line cannot be handled
+         */
+        void tile(int id, String blocks) throws WorldMapFormatException,
+                IOException;
+
+        /**
+         * Start receiving exit lines, once every tile line is received.
+         * @throws IOException if the exit lines cannot be handled
+         */
+        void startExits() throws IOException;
+
+        /**
+         * Receive an exit line.
+         * @param id the id of the tile
+         * @param exits the comma separated exits, as name:id
+         * @throws WorldMapFormatException if the line is invalid
+         * @throws IOException if the line cannot be handled
+         */
+        void exits(int id, String exits) throws WorldMapFormatException,
+                IOException;
+    }
+
+    /**
+     * A map file read one line at a time.
+     */
+    private abstract static class MapSource {
+
+        // read from the header
+        Position startPosition;
+        String builderName;
+        String inventory;
+        int tileCount;
+
+        /**
+         * Read every tile line, then every exit line.
+         * @param handler the handler to give the lines to
+         * @throws WorldMapFormatException if a line is incorrectly
+         *         formatted
+         * @throws IOException if the file cannot be read
+         */
+        abstract void read(LineHandler handler)
+                throws WorldMapFormatException, IOException;
+
+        /**
+         * Close the file.
+         */
+        void close() {
+        }
+    }
+
+    /**
+     * A text map file, which is read from the start each time.
+     */
+    private static class TextSource extends MapSource {
+
+        // the file
+        private final String filename;
+
+        /**
+         * Open a text map file and read its header.
+         * @param filename the file
+         * @throws WorldMapFormatException if the header is incorrectly
+         *         formatted
+         * @throws IOException if the file cannot be read
+         */
+        TextSource(String filename) throws WorldMapFormatException,
+                IOException {
+            this.filename = filename;
+            try (BufferedReader in = openReader()) {
+                readHeader(new WorldMap.LineReader(in));
+            }
+        }
+
+        @Override
+        void read(LineHandler handler) throws WorldMapFormatException,
+                IOException {
+            try (BufferedReader in = openReader()) {
+                WorldMap.LineReader reader = new WorldMap.LineReader(in);
+                readHeader(reader);
+
+                for (int i = 0; i < tileCount; i++) {
+                    String[] parts = splitLine(reader,
+                            reader.readLineOrThrow("Missing tile under"
+                                    + " 'total:N'"));
+                    handler.tile(parseId(reader, parts[0]), parts[1]);
+                }
+
+                reader.readBlankLineOrThrow("File ends abruptly after tile"
+                        + " entries.", "Missing blank line after tile"
+                        + " entries (or too many entries).");
+                if (!reader.readLineOrThrow("File ends abruptly after tile"
+                        + " entries.").equals("exits")) {
+                    throw new WorldMapFormatException(reader.errorOnLine()
+                            + "Missing 'exits' token.");
+                }
+
+                handler.startExits();
+                for (int i = 0; i < tileCount; i++) {
+                    String[] parts = splitLine(reader,
+                            reader.readLineOrThrow("Missing tile under"
+                                    + " 'exits'"));
+                    handler.exits(parseId(reader, parts[0]), parts[1]);
+                }
+                reader.readEofOrThrow("Extra content in file.");
+            }
+        }
+
+        /**
+         * Open the file, decompressing it if needed.
+         * @return a reader of the file's text
+         * @throws IOException if the file cannot be opened
+         */
+        private BufferedReader openReader() throws IOException {
+            InputStream file = new BufferedInputStream(
+                    new FileInputStream(filename));
+            try {
+                return new BufferedReader(new InputStreamReader(
+                        MapCompression.decompress(file)));
+            } catch (IOException | RuntimeException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Read the header, up to and including the "total:N" line.
+         * @param reader the reader, at the start of the file
+         * @throws WorldMapFormatException if the header is incorrectly
+         *         formatted
+         * @throws IOException if the file cannot be read
+         */
+        private void readHeader(WorldMap.LineReader reader)
+                throws WorldMapFormatException, IOException {
+            try {
+                startPosition = new Position(
+                        Integer.parseInt(reader.readLineOrThrow()),
+                        Integer.parseInt(reader.readLineOrThrow()));
+            } catch (NumberFormatException e) {
+                throw new WorldMapFormatException(reader.errorOnLine()
+                        + "Invalid integer for starting position");
+            }
+            builderName = reader.readLineOrThrow();
+            inventory = reader.readLineOrThrow();
+            WorldMap.createBlockArray(inventory);
+            reader.readBlankLineOrThrow("File ended abruptly after"
+                    + " inventory", "No blank line following inventory");
+
+            String total = reader.readLineOrThrow();
+            if (!total.startsWith("total:")) {
+                throw new WorldMapFormatException(reader.errorOnLine()
+                        + "Missing total:N line.");
+            }
+            tileCount = parseId(reader, total.substring("total:".length()));
+        }
+
+        /**
+         * Split a line into the id and the rest.
+         * @param reader the reader the line was read from
+         * @param line the line
+         * @return the id and the rest of the line
+         * @throws WorldMapFormatException if there is not exactly one space
+         */
+        private static String[] splitLine(WorldMap.LineReader reader,
+                                          String line)
+                throws WorldMapFormatException {
+            String[] parts = line.split(" ", -1);
+            if (parts.length != 2) {
+                throw new WorldMapFormatException(reader.errorOnLine()
+                        + "Line must have exactly one space");
+            }
+            return parts;
+        }
+
+        /**
+         * Parse a tile id or count.
+         * @param reader the reader the id was read from
+         * @param idString the id
+         * @return the id
+         * @throws WorldMapFormatException if the id is not a non-negative
+         *         int
+         */
+        private static int parseId(WorldMap.LineReader reader,
+                                   String idString)
+                throws WorldMapFormatException {
+            return MapTransformer.parseId(idString, reader.errorOnLine()
+                    + "Invalid tile id or count");
+        }
+    }
+
+    /**
+     * A mapped map file, whose records are read in id order.
+     */
+    private static class MappedSource extends MapSource {
+
+        // the file
+        private final MappedMapFile file;
+
+        /**
+         * Open a mapped map file.
+         * @param filename the file
+         * @throws WorldMapFormatException if the header is invalid
+         * @throws IOException if the file cannot be read
+         */
+        MappedSource(String filename) throws WorldMapFormatException,
+                IOException {
+            file = MappedMapFile.openReadOnly(filename);
+            startPosition = file.getStartPosition();
+            builderName = file.getBuilderName();
+            inventory = BlockColumns.encode(file.getInventory());
+            tileCount = file.getTileCount();
+        }
+
+        @Override
+        void read(LineHandler handler) throws WorldMapFormatException,
+                IOException {
+            for (int id = 0; id < tileCount; id++) {
+                handler.tile(id, file.encodeBlocks(id));
+            }
+            handler.startExits();
+            for (int id = 0; id < tileCount; id++) {
+                handler.exits(id, file.encodeExits(id));
+            }
+        }
+
+        @Override
+        void close() {
+            file.close();
+        }
+    }
+
+    /**
+     * Lays out the tiles from their exits, as WorldMap.getTiles() would,
+     * and chooses the tiles to keep and their new ids.
+     */
+    private class Layout implements LineHandler {
+
+        // the number of tiles in the input
+        private final int tileCount;
+
+        // the tile each of a tile's exits leads to (in the order of EXITS),
+        // or NONE
+        private final int[] exits;
+
+        // the new id of each tile, or NONE if it is not kept
+        final int[] newIds;
+
+        // the number of tiles kept
+        int newCount;
+
+        // the position of the new starting tile
+        Position startPosition;
+
+        /**
+         * Read the exits of a map and lay it out.
+         * @param source the map
+         * @throws WorldMapFormatException if the map is incorrectly
+         *         formatted, or the starting tile is not kept
+         * @throws IOException if the map cannot be read
+         */
+        Layout(MapSource source) throws WorldMapFormatException,
+                IOException {
+            tileCount = source.tileCount;
+            exits = new int[EXITS.length * tileCount];
+            Arrays.fill(exits, NONE);
+            source.read(this);
+
+            // lay out every tile linked to tile 0
+            int[] xs = new int[tileCount];
+            int[] ys = new int[tileCount];
+            int[] order = new int[tileCount];
+            newIds = order;
+            boolean[] placed = new boolean[tileCount];
+            int placedCount = search(0, source.startPosition.getX(),
+                    source.startPosition.getY(), xs, ys, placed, order);
+
+            // choose the starting tile, and keep the tiles inside the crop
+            // area that are still linked to it
+            int startId = 0;
+            if (start != null) {
+                startId = NONE;
+                for (int i = 0; i < placedCount; i++) {
+                    if (xs[order[i]] == start.getX()
+                            && ys[order[i]] == start.getY()) {
+                        startId = order[i];
+                    }
+                }
+            }
+            if (startId == NONE || !inCrop(xs[startId], ys[startId])) {
+                throw new WorldMapFormatException("The starting tile is not"
+                        + " in the transformed map");
+            }
+            startPosition = new Position(xs[startId], ys[startId]);
+
+            for (int i = 0; i < tileCount; i++) {
+                placed[i] = !placed[i] || !inCrop(xs[i], ys[i]);
+            }
+            newCount = search(startId, xs[startId], ys[startId], xs, ys,
+                    placed, order);
+            Arrays.fill(placed, false);
+            for (int i = 0; i < newCount; i++) {
+                placed[order[i]] = true;
+            }
+
+            // order now holds the kept tiles in breadth-first order, and
+            // becomes the new id of each tile
+            if (renumber) {
+                int[] breadthFirst = Arrays.copyOf(order, newCount);
+                Arrays.fill(newIds, NONE);
+                for (int i = 0; i < newCount; i++) {
+                    newIds[breadthFirst[i]] = i;
+                }
+            } else {
+                int next = 1;
+                for (int i = 0; i < tileCount; i++) {
+                    if (i == startId) {
+                        newIds[i] = 0;
+                    } else if (placed[i]) {
+                        newIds[i] = next++;
+                    } else {
+                        newIds[i] = NONE;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Search the tiles linked to a tile in breadth-first order, giving
+         * each its position, as SparseTileArray.addLinkedTiles() does.
+         * @param first the tile to start from
+         * @param x the x position of first
+         * @param y the y position of first
+         * @param xs the x position of each tile
+         * @param ys the y position of each tile
+         * @param placed true for each tile already placed (or skipped),
+         *         which is set for each tile found
+         * @param order the tiles found, in order
+         * @return the number of tiles found
+         */
+        private int search(int first, int x, int y, int[] xs, int[] ys,
+                           boolean[] placed, int[] order) {
+            xs[first] = x;
+            ys[first] = y;
+            placed[first] = true;
+            order[0] = first;
+            int found = 1;
+            for (int next = 0; next < found; next++) {
+                int tile = order[next];
+                for (int i = 0; i < EXITS.length; i++) {
+                    int target = exits[EXITS.length * tile + i];
+                    if (target != NONE && !placed[target]) {
+                        xs[target] = xs[tile] + DIRECTIONS_X[i];
+                        ys[target] = ys[tile] + DIRECTIONS_Y[i];
+                        placed[target] = true;
+                        order[found++] = target;
+                    }
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Is a position inside the crop area?
+         * @param x the x position
+         * @param y the y position
+         * @return true if the position is kept
+         */
+        private boolean inCrop(int x, int y) {
+            return cropArea == null || (x >= cropArea[0] && y >= cropArea[1]
+                    && x <= cropArea[2] && y <= cropArea[3]);
+        }
+
+        @Override
+        public void tile(int id, String blocks) {
+            // only exits are needed for the layout
+        }
+
+        @Override
+        public void startExits() {
+        }
+
+        @Override
+        public void exits(int id, String exitString)
+                throws WorldMapFormatException {
+            if (id >= tileCount) {
+                throw new WorldMapFormatException("Tile id in exit line does"
+                        + " not refer to a valid tile");
+            }
+            if (exitString.isEmpty()) {
+                return;
+            }
+            for (String exit : exitString.split(",")) {
+                String[] exitInfo = exit.split(":", -1);
+                int direction = Arrays.asList(EXITS).indexOf(exitInfo[0]);
+                if (exitInfo.length != 2 || direction == -1) {
+                    throw new WorldMapFormatException("Exit must be name:id"
+                            + " with a valid name: " + exit);
+                }
+                int target = parseId(exitInfo[1], "Invalid tile id in exit");
+                if (target >= tileCount) {
+                    throw new WorldMapFormatException("Tile id in exit line"
+                            + " does not refer to a valid tile");
+                }
+                exits[EXITS.length * id + direction] = target;
+            }
+        }
+    }
+
+    /**
+     * Writes the transformed tile lines and exit lines.
+     */
+    private class Output implements LineHandler {
+
+        // the writer
+        private final Writer writer;
+
+        // the new id of each tile, NONE if it is not kept, or null to keep
+        // every id
+        private final int[] newIds;
+
+        /**
+         * Create an output.
+         * @param writer the writer to write lines to
+         * @param newIds the new id of each tile, or null to keep every id
+         */
+        Output(Writer writer, int[] newIds) {
+            this.writer = writer;
+            this.newIds = newIds;
+        }
+
+        @Override
+        public void tile(int id, String blocks)
+                throws WorldMapFormatException, IOException {
+            int newId = newId(id);
+            if (newId != NONE) {
+                writer.write(newId + " " + transformBlocks(blocks, id)
+                        + LINE_SEP);
+            }
+        }
+
+        @Override
+        public void startExits() throws IOException {
+            writer.write(LINE_SEP + "exits" + LINE_SEP);
+        }
+
+        @Override
+        public void exits(int id, String exitString)
+                throws WorldMapFormatException, IOException {
+            int newId = newId(id);
+            if (newId == NONE) {
+                return;
+            }
+
+            StringBuilder line = new StringBuilder();
+            line.append(newId).append(' ');
+            String sep = "";
+            if (!exitString.isEmpty()) {
+                for (String exit : exitString.split(",")) {
+                    String[] exitInfo = exit.split(":", -1);
+                    if (exitInfo.length != 2) {
+                        throw new WorldMapFormatException("Exit must be"
+                                + " name:id: " + exit);
+                    }
+                    int target = newId(parseId(exitInfo[1],
+                            "Invalid tile id in exit"));
+                    if (target != NONE) {
+                        line.append(sep).append(exitInfo[0]).append(':')
+                                .append(target);
+                        sep = ",";
+                    }
+                }
+            }
+            writer.write(line.append(LINE_SEP).toString());
+        }
+
+        /**
+         * Get the new id of a tile.
+         * @param id the id in the input
+         * @return the new id, or NONE if the tile is not kept
+         * @throws WorldMapFormatException if the id is not a tile's id
+         */
+        private int newId(int id) throws WorldMapFormatException {
+            if (newIds == null) {
+                return id;
+            } else if (id >= newIds.length) {
+                throw new WorldMapFormatException("Tile id does not refer"
+                        + " to a valid tile");
+            }
+            return newIds[id];
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package csse2002.block.world;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Validates many world map files at once, on a fixed number of threads,
+ * and reports the result for each. <br>
+ * A map is valid if the WorldMap(filename) constructor loads it and
+ * getTiles() can lay out every tile (which reads every region of an
+ * indexed map file). An invalid map is reported with the exception that
+ * was thrown, printed as Main prints it, so the report has the same
+ * messages as loading each map on its own. <br>
+ * The results are reported in the order of the files, as each is
+ * finished. At most two files per thread are loaded or waiting to be
+ * reported at once, so the memory used depends on the number of threads
+ * and not on the number of files.
+ * @serial exclude
+ */
+final class MapValidator {
+
+    /**
+     * Validates one map file.
+     */
+    private static class Validation implements Callable<String> {
+
+        // the map file
+        private final String filename;
+
+        /**
+         * Create a validation.
+         * @param filename the map file
+         */
+        Validation(String filename) {
+            this.filename = filename;
+        }
+
+        /**
+         * Load the map.
+         * @return null if the map is valid, or the exception it throws
+         */
+        @Override
+        public String call() {
+            try {
+                new WorldMap(filename).getTiles();
+                return null;
+            } catch (BlockWorldException | IOException e) {
+                return e.toString();
+            } catch (UncheckedIOException e) {
+                // a region of an indexed map file, or a record of a mapped
+                // map file, that is only read by getTiles()
+                return e.getCause().toString();
+            }
+        }
+    }
+
+    /**
+     * Not instantiable.
+     */
+    private MapValidator() {
+    }
+
+    /**
+     * Find the map files to validate. A directory stands for each map in
+     * it (in order of name): each file that is not a delta file, and each
+     * sharded map directory. A name starting with "@" is a file listing
+     * one map file per line. Any other name is a map file.
+     * @param names the directories, lists and map files
+     * @return the map files
+     * @throws IOException if a directory or list cannot be read
+     */
+    static List<String> findMaps(List<String> names) throws IOException {
+        List<String> maps = new ArrayList<>();
+        for (String name : names) {
+            if (name.startsWith("@")) {
+                try (BufferedReader reader = new BufferedReader(
+                        new FileReader(name.substring(1)))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (!line.trim().isEmpty()) {
+                            maps.add(line.trim());
+                        }
+                    }
+                }
+            } else if (new File(name).isDirectory()
+                    && !ShardedMapStore.isSharded(name)) {
+                File[] files = new File(name).listFiles();
+                if (files == null) {
+                    throw new IOException("Cannot list " + name);
+                }
+                Arrays.sort(files);
+                for (File file : files) {
+                    if (file.isFile()
+                            && !file.getName().endsWith(MapDelta.SUFFIX)
+                            || ShardedMapStore.isSharded(file.getPath())) {
+                        maps.add(file.getPath());
+                    }
+                }
+            } else {
+                maps.add(name);
+            }
+        }
+        return maps;
+    }
+
+    /**
+     * Validate map files, writing a line for each to out as it finishes
+     * (in the order of the files), then a summary line:
+     * <pre>{@literal
+     *valid <filename>
+     *invalid <filename>: <exception>
+     *    ...
+     *validated <N> maps: <valid> valid, <invalid> invalid
+     *}</pre>
+     * @param maps the map files
+     * @param threads the number of maps to load at once
+     * @param out the stream to write the report to
+     * @return the number of invalid maps
+     * @throws IOException if the thread is interrupted while waiting
+     * @require threads &gt; 0
+     */
+    static int validate(List<String> maps, int threads, PrintStream out)
+            throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads,
+                new DaemonThreadFactory());
+        int invalid = 0;
+        try {
+            Deque<Future<String>> inFlight = new ArrayDeque<>();
+            int next = 0;
+            int reported = 0;
+            while (reported < maps.size()) {
+                while (next < maps.size() && inFlight.size() < 2 * threads) {
+                    inFlight.add(pool.submit(new Validation(maps.get(next))));
+                    next++;
+                }
+
+                String error = get(inFlight.remove());
+                if (error == null) {
+                    out.println("valid " + maps.get(reported));
+                } else {
+                    out.println("invalid " + maps.get(reported) + ": "
+                            + error);
+                    invalid++;
+                }
+                reported++;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        out.println("validated " + maps.size() + " maps: "
+                + (maps.size() - invalid) + " valid, " + invalid
+                + " invalid");
+        return invalid;
+    }
+
+    /**
+     * Wait for a validation.
+     * @param future the validation
+     * @return the result of the validation
+     * @throws IOException if the thread is interrupted while waiting
+     */
+    private static String get(Future<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while validating");
+        } catch (ExecutionException e) {
+            // a map that breaks the loader is reported like any other
+            return e.getCause().toString();
+        }
+    }
+
+    /**
+     * Creates daemon threads, so an abandoned validation never stops the
+     * program from exiting.
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "map-validator");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
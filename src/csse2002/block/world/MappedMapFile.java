@@ -0,0 +1,916 @@
+package csse2002.block.world;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A world map file of fixed size tile records, which is memory-mapped and
+ * kept up to date as the tiles change. <br>
+ * The file format is as follows (all numbers are big-endian):
+ * <pre>{@literal
+ *<magic (int)> <flags (int)> <number of tiles N (int)>
+ *<startingX (int)> <startingY (int)> <builder offset (long)> <unused (int)>
+ *<tile record 0>
+ *    ...
+ *<tile record N-1>
+ *<position index: N tile ids (int), sorted by position>
+ *<builder's name (modified UTF-8)> <inventory size (int)> <block codes>
+ *}</pre>
+ *
+ * Each tile record is RECORD_SIZE bytes long:
+ * <pre>{@literal
+ *<x (int)> <y (int)> <north id> <east id> <south id> <west id> (int, or -1)
+ *<number of blocks (byte)> <8 block codes (byte)> <unused (3 bytes)>
+ *}</pre>
+ *
+ * Tile ids are the ordering of tiles returned by WorldMap.getTiles() when
+ * the file was written, so tile 0 is the starting tile, and a tile's record
+ * is found from its id in constant time. <br>
+ * Opening the file only reads the header and the builder, and maps the
+ * records; each tile is read from its record the first time it is used,
+ * and getTile() finds a tile by binary search of the position index, so
+ * opening takes the same time however large the map is. <br>
+ * Every change to a tile's blocks or exits is written to its record as it
+ * happens. The operating system writes changed records to the file in its
+ * own time; force() writes the builder's inventory, and does not return
+ * until everything is on the storage device. <br>
+ * The flags record whether the file was written from a map that was
+ * checked to be geometrically consistent, and are cleared once any exit is
+ * changed, so loading the whole map only skips checking it while the exits
+ * are as they were written. <br>
+ * The map's tiles are fixed when the file is written: only the exit names
+ * north, east, south and west can be stored, and an exit can only lead to
+ * a tile in the file.
+ * @serial exclude
+ */
+final class MappedMapFile implements TileLoader, TileListener {
+
+    /**
+     * The first int of a mapped map file, "BWM" and the format version.
+     */
+    static final int MAGIC = 0x42574D01;
+
+    /**
+     * The length of each tile record, in bytes.
+     */
+    static final int RECORD_SIZE = 36;
+
+    // the length of the header, and the offsets of its fields
+    private static final int HEADER_SIZE = 32;
+    private static final int FLAGS = 4;
+    private static final int TILE_COUNT = 8;
+    private static final int START_X = 12;
+    private static final int START_Y = 16;
+    private static final int BUILDER_OFFSET = 20;
+
+    // the flag set while the map is known to be consistent
+    private static final int VALIDATED = 1;
+
+    // the offsets of the fields of a tile record
+    private static final int X = 0;
+    private static final int Y = 4;
+    private static final int EXIT_IDS = 8;
+    private static final int BLOCK_COUNT = 24;
+    private static final int BLOCK_CODES = 25;
+
+    // the most blocks a record can hold, and the id of a missing exit
+    private static final int MAX_BLOCKS = 8;
+    private static final int NO_EXIT = -1;
+
+    // the number of records (and index entries) in each mapped buffer, so
+    // no buffer is larger than a buffer can be
+    private static final int SEGMENT_TILES = 1 << 24;
+
+    // the block types and exit names, by their code in a record
+    private static final List<String> BLOCK_TYPES = Arrays.asList(
+            "grass", "soil", "wood", "stone");
+    private static final String[] EXITS = {"north", "east", "south", "west"};
+
+    // the codes of the exit names in the order WorldMap.saveMap() writes
+    // them (by name)
+    private static final int[] EXITS_BY_NAME = {1, 0, 2, 3};
+
+    // the file, and its channel while it is open
+    private final String filename;
+    private RandomAccessFile file;
+
+    // the mapped header, tile records and position index
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] records;
+    private MappedByteBuffer[] index;
+
+    // read from the header
+    private final int tileCount;
+    private final Position startPosition;
+    private final long builderOffset;
+
+    // read from the builder section
+    private String builderName;
+    private List<Block> inventory;
+
+    // every tile created so far, loaded or not, by id and the reverse
+    private Map<Integer, Tile> tilesById = new HashMap<>();
+    private Map<Tile, Integer> tileIds = new IdentityHashMap<>();
+
+    // the columns read so far, keyed by the count and codes of the blocks
+    private Map<Integer, List<Block>> columns = new HashMap<>();
+
+    // the listener to tell about every change after it is written
+    private final TileListener listener;
+
+    // records the tiles loaded
+    private MapStats stats;
+
+    /**
+     * Map an open file and read its header.
+     * @param filename the name of the file
+     * @param file the open file
+     * @param writable true to map the file for writing
+     * @param listener the listener to tell about changes to tiles
+     * @param stats the stats to record tile loads in
+     * @throws WorldMapFormatException if the header is invalid
+     * @throws IOException if the file cannot be mapped
+     */
+    private MappedMapFile(String filename, RandomAccessFile file,
+                          boolean writable, TileListener listener,
+                          MapStats stats)
+            throws WorldMapFormatException, IOException {
+        this.filename = filename;
+        this.file = file;
+        this.listener = listener;
+        this.stats = stats;
+
+        FileChannel channel = file.getChannel();
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE
+                : FileChannel.MapMode.READ_ONLY;
+        if (channel.size() < HEADER_SIZE) {
+            throw new WorldMapFormatException("Not a mapped map file");
+        }
+        header = channel.map(mode, 0, HEADER_SIZE);
+        if (header.getInt(0) != MAGIC) {
+            throw new WorldMapFormatException("Not a mapped map file");
+        }
+
+        tileCount = header.getInt(TILE_COUNT);
+        startPosition = new Position(header.getInt(START_X),
+                header.getInt(START_Y));
+        builderOffset = header.getLong(BUILDER_OFFSET);
+        long indexOffset = HEADER_SIZE + (long) tileCount * RECORD_SIZE;
+        if (tileCount < 1 || builderOffset != indexOffset + 4L * tileCount
+                || channel.size() < builderOffset) {
+            throw new WorldMapFormatException("Mapped map file has an"
+                    + " invalid header or is truncated");
+        }
+
+        int segments = (tileCount - 1) / SEGMENT_TILES + 1;
+        records = new MappedByteBuffer[segments];
+        index = new MappedByteBuffer[segments];
+        for (int i = 0; i < segments; i++) {
+            long first = (long) i * SEGMENT_TILES;
+            long count = Math.min(SEGMENT_TILES, tileCount - first);
+            records[i] = channel.map(mode, HEADER_SIZE + first * RECORD_SIZE,
+                    count * RECORD_SIZE);
+            index[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    indexOffset + first * 4, count * 4);
+        }
+
+        readBuilder(channel);
+    }
+
+    /**
+     * Check whether a stream holds a mapped map file, without consuming
+     * anything from it.
+     * @param in the stream to check, which must support mark()
+     * @return true if the stream starts with MAGIC
+     * @throws IOException if reading from the stream fails
+     */
+    static boolean isMapped(InputStream in) throws IOException {
+        in.mark(4);
+        try {
+            int magic = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = in.read();
+                if (b == -1) {
+                    return false;
+                }
+                magic = (magic << 8) | b;
+            }
+            return magic == MAGIC;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Open a mapped map file. Only the header and the builder are read.
+     * @param filename the file to open
+     * @param listener the listener to tell about each change to a tile,
+     *         after it has been written to the file
+     * @param stats the stats to record tile loads in
+     * @return the opened file
+     * @throws WorldMapFormatException if the header or builder is invalid
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    static MappedMapFile open(String filename, TileListener listener,
+                              MapStats stats)
+            throws WorldMapFormatException, IOException {
+        return open(filename, true, listener, stats);
+    }
+
+    /**
+     * Open a mapped map file to read its records without changing it, for
+     * example to stream it with getTileCount(), encodeBlocks() and
+     * encodeExits(). Tiles must not be read from a file opened this way.
+     * @param filename the file to open
+     * @return the opened file
+     * @throws WorldMapFormatException if the header or builder is invalid
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    static MappedMapFile openReadOnly(String filename)
+            throws WorldMapFormatException, IOException {
+        return open(filename, false, null, MapStats.NONE);
+    }
+
+    /**
+     * Open a mapped map file.
+     * @param filename the file to open
+     * @param writable true to open the file for writing
+     * @param listener the listener to tell about each change to a tile
+     * @param stats the stats to record tile loads in
+     * @return the opened file
+     * @throws WorldMapFormatException if the header or builder is invalid
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    private static MappedMapFile open(String filename, boolean writable,
+                                      TileListener listener, MapStats stats)
+            throws WorldMapFormatException, IOException {
+        RandomAccessFile file = new RandomAccessFile(filename,
+                writable ? "rw" : "r");
+        try {
+            return new MappedMapFile(filename, file, writable, listener,
+                    stats);
+        } catch (WorldMapFormatException | IOException
+                | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Write a map as a mapped map file and open it, with the map's tiles as
+     * the tiles of the file, so their changes are written to it from now
+     * on. The file is written next to filename and then moved over it, so
+     * an existing file is never left half written.
+     * @param filename the file to write
+     * @param startPosition the position of tiles.get(0)
+     * @param builder the builder
+     * @param tiles the tiles, in the order returned by WorldMap.getTiles()
+     * @param positions the position of each tile
+     * @param listener the listener to tell about each change to a tile
+     * @param stats the stats to record the tiles saved in
+     * @return the opened file
+     * @throws IOException if the file cannot be written, or a tile has an
+     *         exit that cannot be stored
+     */
+    static MappedMapFile create(String filename, Position startPosition,
+                                Builder builder, List<Tile> tiles,
+                                List<Position> positions,
+                                TileListener listener, MapStats stats)
+            throws IOException {
+        Map<Tile, Integer> ids = new IdentityHashMap<>(tiles.size());
+        for (int i = 0; i < tiles.size(); i++) {
+            ids.put(tiles.get(i), i);
+        }
+
+        File target = new File(filename);
+        File temp = new File(target.getAbsoluteFile().getParentFile(),
+                target.getName() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            long indexOffset = HEADER_SIZE + (long) tiles.size() * RECORD_SIZE;
+
+            ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE);
+            head.putInt(0, MAGIC);
+            head.putInt(FLAGS, VALIDATED);
+            head.putInt(TILE_COUNT, tiles.size());
+            head.putInt(START_X, startPosition.getX());
+            head.putInt(START_Y, startPosition.getY());
+            head.putLong(BUILDER_OFFSET, indexOffset + 4L * tiles.size());
+            writeFully(channel, head, 0);
+
+            ByteBuffer buffer = ByteBuffer.allocate(
+                    RECORD_SIZE * ParallelMapWriter.CHUNK_SIZE);
+            long position = HEADER_SIZE;
+            for (int i = 0; i < tiles.size(); i++) {
+                int at = buffer.position();
+                Position tilePosition = positions.get(i);
+                buffer.putInt(at + X, tilePosition.getX());
+                buffer.putInt(at + Y, tilePosition.getY());
+                putExits(buffer, at, tiles.get(i), ids);
+                putBlocks(buffer, at, tiles.get(i).getBlocks());
+                buffer.position(at + RECORD_SIZE);
+                if (!buffer.hasRemaining()) {
+                    position += flush(channel, buffer, position);
+                }
+            }
+            position += flush(channel, buffer, position);
+
+            Integer[] order = new Integer[tiles.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new PositionOrder(positions));
+            buffer = ByteBuffer.allocate(4 * ParallelMapWriter.CHUNK_SIZE);
+            for (Integer id : order) {
+                buffer.putInt(id);
+                if (!buffer.hasRemaining()) {
+                    position += flush(channel, buffer, position);
+                }
+            }
+            position += flush(channel, buffer, position);
+
+            writeFully(channel, ByteBuffer.wrap(encodeBuilder(builder)),
+                    position);
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+        Files.move(temp.toPath(), target.toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        stats.addBytesWritten(target.length());
+        stats.addTilesSaved(tiles.size());
+
+        MappedMapFile mapped;
+        try {
+            mapped = open(filename, listener, stats);
+        } catch (WorldMapFormatException e) {
+            throw new IOException("Mapped map file was not written"
+                    + " correctly", e);
+        }
+        for (int i = 0; i < tiles.size(); i++) {
+            mapped.tilesById.put(i, tiles.get(i));
+            tiles.get(i).setListener(mapped);
+        }
+        mapped.tileIds = ids;
+        return mapped;
+    }
+
+    /**
+     * Get the name of the file.
+     * @return the filename the file was opened with
+     */
+    String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Set the stats that later tile loads are recorded in.
+     * @param stats the stats to record in
+     */
+    void setStats(MapStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Get the position of the starting tile (tile 0).
+     * @return the starting position
+     */
+    Position getStartPosition() {
+        return startPosition;
+    }
+
+    /**
+     * Get the builder's name.
+     * @return the name
+     */
+    String getBuilderName() {
+        return builderName;
+    }
+
+    /**
+     * Get the builder's inventory, as of the last force().
+     * @return the inventory
+     */
+    List<Block> getInventory() {
+        return inventory;
+    }
+
+    /**
+     * Get the number of tiles in the file.
+     * @return the number of tiles
+     */
+    int getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * Encode the blocks of a tile's record as WorldMap.saveMap() does,
+     * without reading the tile.
+     * @param id the id of the tile
+     * @return the comma separated block types, from the bottom up
+     * @throws WorldMapFormatException if the record is invalid
+     */
+    String encodeBlocks(int id) throws WorldMapFormatException {
+        ByteBuffer segment = records[id / SEGMENT_TILES];
+        int at = (id % SEGMENT_TILES) * RECORD_SIZE;
+        int count = segment.get(at + BLOCK_COUNT);
+        if (count < 0 || count > MAX_BLOCKS) {
+            throw new WorldMapFormatException("Invalid block count");
+        }
+
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            int code = segment.get(at + BLOCK_CODES + i);
+            if (code < 0 || code >= BLOCK_TYPES.size()) {
+                throw new WorldMapFormatException("Invalid block code");
+            }
+            result.append(i == 0 ? "" : ",").append(BLOCK_TYPES.get(code));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Encode the exits of a tile's record as WorldMap.saveMap() does,
+     * without reading the tile.
+     * @param id the id of the tile
+     * @return the comma separated exits, as name:id
+     * @throws WorldMapFormatException if an exit leads outside the file
+     */
+    String encodeExits(int id) throws WorldMapFormatException {
+        ByteBuffer segment = records[id / SEGMENT_TILES];
+        int at = (id % SEGMENT_TILES) * RECORD_SIZE;
+
+        StringBuilder result = new StringBuilder();
+        String sep = "";
+        for (int exit : EXITS_BY_NAME) {
+            int target = segment.getInt(at + EXIT_IDS + 4 * exit);
+            if (target == NO_EXIT) {
+                continue;
+            }
+            if (target < 0 || target >= tileCount) {
+                throw new WorldMapFormatException("Exit leads to a tile"
+                        + " that is not in the file");
+            }
+            result.append(sep).append(EXITS[exit]).append(':')
+                    .append(target);
+            sep = ",";
+        }
+        return result.toString();
+    }
+
+    /**
+     * Whether the file was written from a consistent map and no exits have
+     * changed since.
+     * @return true if loading the whole map can skip checking it
+     */
+    boolean isValidated() {
+        return (header.getInt(FLAGS) & VALIDATED) != 0;
+    }
+
+    /**
+     * Get the starting tile (tile 0).
+     * @return the starting tile
+     * @throws WorldMapFormatException if tile 0 is not at the starting
+     *         position
+     */
+    Tile getStartTile() throws WorldMapFormatException {
+        if (!positionOf(0).equals(startPosition)) {
+            throw new WorldMapFormatException("Tile 0 is not at the"
+                    + " starting position");
+        }
+        return tile(0);
+    }
+
+    /**
+     * Get the tile at a position, by binary search of the position index.
+     * The tile is read from its record the first time it is used.
+     * @param position the position of the tile
+     * @return the tile, or null if there is no tile at position
+     */
+    Tile getTile(Position position) {
+        int low = 0;
+        int high = tileCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int id = index[middle / SEGMENT_TILES]
+                    .getInt(4 * (middle % SEGMENT_TILES));
+            int compare = positionOf(id).compareTo(position);
+            if (compare < 0) {
+                low = middle + 1;
+            } else if (compare > 0) {
+                high = middle - 1;
+            } else {
+                return tile(id);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read every tile that has not been read yet.
+     * @return every tile, by id
+     * @throws UncheckedIOException if a record is invalid
+     */
+    List<Tile> loadAll() {
+        List<Tile> tiles = new ArrayList<>(tileCount);
+        for (int id = 0; id < tileCount; id++) {
+            Tile tile = tile(id);
+            if (!tile.isLoaded()) {
+                load(tile, id);
+            }
+            tiles.add(tile);
+        }
+        return tiles;
+    }
+
+    /**
+     * Get the position recorded for each tile.
+     * @return the positions, by id
+     */
+    List<Position> getPositions() {
+        List<Position> positions = new ArrayList<>(tileCount);
+        for (int id = 0; id < tileCount; id++) {
+            positions.add(positionOf(id));
+        }
+        return positions;
+    }
+
+    /**
+     * Write the builder's inventory to the file, and wait until every
+     * change to the file is on the storage device.
+     * @param builder the builder
+     * @throws IOException if the file cannot be written
+     */
+    void force(Builder builder) throws IOException {
+        FileChannel channel = file.getChannel();
+        byte[] builderBytes = encodeBuilder(builder);
+        writeFully(channel, ByteBuffer.wrap(builderBytes), builderOffset);
+        channel.truncate(builderOffset + builderBytes.length);
+        inventory = new ArrayList<>(builder.getInventory());
+
+        for (MappedByteBuffer segment : records) {
+            segment.force();
+        }
+        header.force();
+        channel.force(true);
+    }
+
+    /**
+     * Close the file. Changes are no longer written to it, but the tiles
+     * already read are still usable.
+     */
+    void close() {
+        for (Tile tile : tileIds.keySet()) {
+            tile.setListener(listener);
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            // the mapping has already been written
+        }
+    }
+
+    /**
+     * Read a tile from its record, the first time it is used.
+     * @param tile the tile to read
+     * @throws UncheckedIOException if the record is invalid
+     */
+    @Override
+    public void loadTile(Tile tile) {
+        load(tile, tileIds.get(tile));
+    }
+
+    /**
+     * Tiles are never unloaded, so their use is not recorded.
+     * @param tile the tile that was used
+     */
+    @Override
+    public void tileUsed(Tile tile) {
+    }
+
+    /**
+     * Write a tile's new blocks or exits to its record, then pass the
+     * change on to the map's listener.
+     * @param tile the tile that changed
+     * @param exits true if the exits changed
+     * @throws UncheckedIOException if the exits cannot be stored in the
+     *         file
+     */
+    @Override
+    public void tileChanged(Tile tile, boolean exits) {
+        int id = tileIds.get(tile);
+        ByteBuffer segment = records[id / SEGMENT_TILES];
+        int at = (id % SEGMENT_TILES) * RECORD_SIZE;
+        try {
+            if (exits) {
+                putExits(segment, at, tile, tileIds);
+                header.putInt(FLAGS, header.getInt(FLAGS) & ~VALIDATED);
+            } else {
+                putBlocks(segment, at, tile.getBlocks());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (listener != null) {
+            listener.tileChanged(tile, exits);
+        }
+    }
+
+    /**
+     * Get the tile with an id, creating it unread if it has not been used.
+     * @param id the id of the tile
+     * @return the tile
+     */
+    private Tile tile(int id) {
+        Tile tile = tilesById.get(id);
+        if (tile == null) {
+            tile = new Tile(this);
+            tilesById.put(id, tile);
+            tileIds.put(tile, id);
+        }
+        return tile;
+    }
+
+    /**
+     * Get the position recorded for a tile.
+     * @param id the id of the tile
+     * @return the position
+     */
+    private Position positionOf(int id) {
+        ByteBuffer segment = records[id / SEGMENT_TILES];
+        int at = (id % SEGMENT_TILES) * RECORD_SIZE;
+        return new Position(segment.getInt(at + X), segment.getInt(at + Y));
+    }
+
+    /**
+     * Fill in an unread tile from its record.
+     * @param tile the tile
+     * @param id the id of the tile
+     * @throws UncheckedIOException if the record is invalid
+     */
+    private void load(Tile tile, int id) {
+        ByteBuffer segment = records[id / SEGMENT_TILES];
+        int at = (id % SEGMENT_TILES) * RECORD_SIZE;
+
+        tile.setLoader(null);
+        try {
+            tile.setColumn(column(segment, at));
+            for (int i = 0; i < EXITS.length; i++) {
+                int target = segment.getInt(at + EXIT_IDS + 4 * i);
+                if (target == NO_EXIT) {
+                    continue;
+                }
+                if (target < 0 || target >= tileCount) {
+                    throw new WorldMapFormatException("Exit leads to a"
+                            + " tile that is not in the file");
+                }
+                tile.addExit(EXITS[i], tile(target));
+            }
+        } catch (BlockWorldException e) {
+            tile.clearExits();
+            tile.setLoader(this);
+            throw new UncheckedIOException(new IOException("Tile " + id
+                    + " of " + filename + " is invalid: " + e.getMessage(),
+                    e));
+        }
+        tile.setListener(this);
+        stats.addTilesLoaded(1);
+    }
+
+    /**
+     * Get the shared column holding the blocks of a record.
+     * @param segment the buffer holding the record
+     * @param at the offset of the record
+     * @return the column
+     * @throws WorldMapFormatException if a block code is invalid
+     * @throws TooHighException if a tile cannot hold the blocks
+     */
+    private List<Block> column(ByteBuffer segment, int at)
+            throws WorldMapFormatException, TooHighException {
+        int count = segment.get(at + BLOCK_COUNT);
+        if (count < 0 || count > MAX_BLOCKS) {
+            throw new WorldMapFormatException("Invalid block count");
+        }
+
+        // two bits per block code, above the count
+        int key = count;
+        for (int i = 0; i < count; i++) {
+            int code = segment.get(at + BLOCK_CODES + i);
+            if (code < 0 || code >= BLOCK_TYPES.size()) {
+                throw new WorldMapFormatException("Invalid block code");
+            }
+            key |= code << (4 + 2 * i);
+        }
+
+        List<Block> column = columns.get(key);
+        if (column == null) {
+            List<Block> blocks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                blocks.add(WorldMap.decodeBlock(BLOCK_TYPES.get(
+                        segment.get(at + BLOCK_CODES + i))));
+            }
+            column = BlockColumns.intern(blocks);
+            columns.put(key, column);
+        }
+        return column;
+    }
+
+    /**
+     * Read the builder's name and inventory.
+     * @param channel the file's channel
+     * @throws WorldMapFormatException if the builder section is invalid
+     * @throws IOException if the file cannot be read
+     */
+    private void readBuilder(FileChannel channel)
+            throws WorldMapFormatException, IOException {
+        long length = channel.size() - builderOffset;
+        if (length > Integer.MAX_VALUE) {
+            throw new WorldMapFormatException("Builder section is too long");
+        }
+        ByteBuffer bytes = ByteBuffer.allocate((int) length);
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, builderOffset + bytes.position()) == -1) {
+                throw new WorldMapFormatException("Mapped map file is"
+                        + " truncated");
+            }
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(bytes.array()))) {
+            builderName = in.readUTF();
+            int count = in.readInt();
+            if (count < 0 || count > length) {
+                throw new WorldMapFormatException("Invalid inventory size");
+            }
+            inventory = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int code = in.readUnsignedByte();
+                if (code >= BLOCK_TYPES.size()) {
+                    throw new WorldMapFormatException("Invalid block in"
+                            + " inventory");
+                }
+                inventory.add(WorldMap.decodeBlock(BLOCK_TYPES.get(code)));
+            }
+        } catch (EOFException e) {
+            throw new WorldMapFormatException("Mapped map file is"
+                    + " truncated");
+        }
+    }
+
+    /**
+     * Encode the builder's name and inventory.
+     * @param builder the builder
+     * @return the encoded builder
+     * @throws IOException if a block in the inventory has no code
+     */
+    private static byte[] encodeBuilder(Builder builder) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(builder.getName());
+            out.writeInt(builder.getInventory().size());
+            for (Block block : builder.getInventory()) {
+                out.writeByte(code(block));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write a tile's exits into its record.
+     * @param buffer the buffer holding the record
+     * @param at the offset of the record
+     * @param tile the tile
+     * @param ids the id of each tile in the file
+     * @throws IOException if an exit cannot be stored
+     */
+    private static void putExits(ByteBuffer buffer, int at, Tile tile,
+                                 Map<Tile, Integer> ids) throws IOException {
+        Map<String, Tile> exits = tile.getExits();
+        int stored = 0;
+        for (int i = 0; i < EXITS.length; i++) {
+            Tile target = exits.get(EXITS[i]);
+            int targetId = NO_EXIT;
+            if (target != null) {
+                Integer id = ids.get(target);
+                if (id == null) {
+                    throw new IOException("Exit " + EXITS[i] + " leads to a"
+                            + " tile that is not in the mapped map file");
+                }
+                targetId = id;
+                stored++;
+            }
+            buffer.putInt(at + EXIT_IDS + 4 * i, targetId);
+        }
+        if (stored != exits.size()) {
+            throw new IOException("Only the exits " + Arrays.toString(EXITS)
+                    + " can be stored in a mapped map file");
+        }
+    }
+
+    /**
+     * Write a tile's blocks into its record.
+     * @param buffer the buffer holding the record
+     * @param at the offset of the record
+     * @param blocks the blocks, from the bottom up
+     * @throws IOException if a block has no code
+     */
+    private static void putBlocks(ByteBuffer buffer, int at,
+                                  List<Block> blocks) throws IOException {
+        for (int i = 0; i < MAX_BLOCKS; i++) {
+            buffer.put(at + BLOCK_CODES + i, i < blocks.size()
+                    ? (byte) code(blocks.get(i)) : 0);
+        }
+        buffer.put(at + BLOCK_COUNT, (byte) blocks.size());
+    }
+
+    /**
+     * Get the code of a block in a record.
+     * @param block the block
+     * @return the code
+     * @throws IOException if the block type has no code
+     */
+    private static int code(Block block) throws IOException {
+        int code = BLOCK_TYPES.indexOf(block.getBlockType());
+        if (code == -1) {
+            throw new IOException("Cannot store " + block.getBlockType()
+                    + " in a mapped map file");
+        }
+        return code;
+    }
+
+    /**
+     * Write the filled part of a buffer to a channel, and clear it.
+     * @param channel the channel
+     * @param buffer the buffer
+     * @param position where to write it
+     * @return the number of bytes written
+     * @throws IOException if writing fails
+     */
+    private static int flush(FileChannel channel, ByteBuffer buffer,
+                             long position) throws IOException {
+        buffer.flip();
+        int length = buffer.remaining();
+        writeFully(channel, buffer, position);
+        buffer.clear();
+        return length;
+    }
+
+    /**
+     * Write all of a buffer to a channel.
+     * @param channel the channel
+     * @param buffer the buffer
+     * @param position where to write it
+     * @throws IOException if writing fails
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer,
+                                   long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Orders tile ids by the position of their tiles, as Position does.
+     */
+    private static class PositionOrder implements Comparator<Integer> {
+
+        // the position of each tile
+        private final List<Position> positions;
+
+        /**
+         * Create an ordering.
+         * @param positions the position of each tile, by id
+         */
+        PositionOrder(List<Position> positions) {
+            this.positions = positions;
+        }
+
+        @Override
+        public int compare(Integer id1, Integer id2) {
+            return positions.get(id1).compareTo(positions.get(id2));
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package csse2002.block.world;
+
+/**
+ * The outcomes returned by the methods of Tile and Builder that attempt a
+ * change without throwing an exception when it cannot be made (e.g.
+ * Tile.tryMoveBlock() and Builder.tryMoveTo()). <br>
+ * Each outcome other than SUCCESS stands for the exception the matching
+ * throwing method (e.g. Tile.moveBlock() and Builder.moveTo()) throws in
+ * the same case, and nothing is changed when it is returned. Creating an
+ * exception records the stack of the thread, so when many attempts fail
+ * (such as replaying a long list of actions) the outcome methods are much
+ * faster.
+ */
+public final class Outcome {
+
+    /**
+     * The change was made.
+     */
+    public static final int SUCCESS = 0;
+
+    /**
+     * The change was not made, where a NoExitException would be thrown.
+     */
+    public static final int NO_EXIT = 1;
+
+    /**
+     * The change was not made, where a TooHighException would be thrown.
+     */
+    public static final int TOO_HIGH = 2;
+
+    /**
+     * The change was not made, where a TooLowException would be thrown.
+     */
+    public static final int TOO_LOW = 3;
+
+    /**
+     * The change was not made, where an InvalidBlockException would be
+     * thrown.
+     */
+    public static final int INVALID_BLOCK = 4;
+
+    /**
+     * Not instantiable.
+     */
+    private Outcome() {
+    }
+}
@@ -0,0 +1,332 @@
+package csse2002.block.world;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes a world map file using several threads to encode it. <br>
+ * The tile ids are split into chunks, and the tile lines and exit lines of
+ * each chunk are encoded into a buffer by a pool of threads. The buffers
+ * are written to the file in order as they are finished, using gathering
+ * writes when the map is not compressed, so the file is byte for byte the
+ * same as the one WorldMap.saveMap() writes on a single thread. <br>
+ * At most two chunks per thread are encoded or waiting to be written at
+ * once, so the memory used does not grow with the size of the map.
+ * @serial exclude
+ */
+final class ParallelMapWriter {
+
+    /**
+     * The number of tiles encoded together in one chunk.
+     */
+    static final int CHUNK_SIZE = 4096;
+
+    // store the system line separator ("\n", "\r\n" or "\r")
+    private static final String LINE_SEP = System.lineSeparator();
+
+    /**
+     * Encodes the tile lines or exit lines of a range of tile ids.
+     */
+    private static class Chunk implements Callable<ByteBuffer> {
+
+        // the tiles and their ids
+        private final List<Tile> tiles;
+        private final Map<Tile, Integer> tileIds;
+
+        // the range of ids to encode
+        private final int from;
+        private final int to;
+
+        // true to encode exit lines, false to encode tile lines
+        private final boolean exits;
+
+        /**
+         * Create a chunk.
+         * @param tiles the tiles, in id order
+         * @param tileIds the id of each tile
+         * @param from the first id to encode
+         * @param to one past the last id to encode
+         * @param exits true for exit lines, false for tile lines
+         */
+        Chunk(List<Tile> tiles, Map<Tile, Integer> tileIds, int from, int to,
+              boolean exits) {
+            this.tiles = tiles;
+            this.tileIds = tileIds;
+            this.from = from;
+            this.to = to;
+            this.exits = exits;
+        }
+
+        /**
+         * Encode the chunk.
+         * @return the encoded lines, in the default charset
+         */
+        @Override
+        public ByteBuffer call() {
+            StringBuilder lines = new StringBuilder();
+            for (int i = from; i < to; i++) {
+                if (exits) {
+                    lines.append(WorldMap.encodeExits(tileIds, tiles.get(i),
+                            i));
+                } else {
+                    lines.append(WorldMap.encodeTile(tiles.get(i), i));
+                }
+            }
+            return encode(lines.toString());
+        }
+    }
+
+    /**
+     * A chunk with fixed contents.
+     */
+    private static class Constant implements Callable<ByteBuffer> {
+
+        // the contents
+        private final String contents;
+
+        /**
+         * Create a chunk with fixed contents.
+         * @param contents the contents
+         */
+        Constant(String contents) {
+            this.contents = contents;
+        }
+
+        /**
+         * Encode the contents.
+         * @return the encoded contents
+         */
+        @Override
+        public ByteBuffer call() {
+            return encode(contents);
+        }
+    }
+
+    /**
+     * Not instantiable.
+     */
+    private ParallelMapWriter() {
+    }
+
+    /**
+     * Write a map file.
+     * @param filename the file to write
+     * @param compression one of MapCompression.NONE, MapCompression.DEFLATE
+     *         or MapCompression.GZIP
+     * @param level the compression level
+     * @param header the header of the map, up to and including the
+     *         "total:N" line
+     * @param tiles the tiles, in the order returned by WorldMap.getTiles()
+     * @param tileIds the id of each tile
+     * @param threads the number of threads to encode with
+     * @param stats the stats to record the save in
+     * @throws IOException if the file cannot be opened or written to
+     * @throws IllegalArgumentException if compression or level is invalid
+     */
+    static void write(String filename, int compression, int level,
+                      String header, List<Tile> tiles,
+                      Map<Tile, Integer> tileIds, int threads,
+                      MapStats stats) throws IOException {
+        // check the arguments before the file is created
+        MapCompression.checkArguments(compression, level);
+
+        List<Callable<ByteBuffer>> chunks = new ArrayList<>();
+        for (int i = 0; i < tiles.size(); i += CHUNK_SIZE) {
+            chunks.add(new Chunk(tiles, tileIds, i,
+                    Math.min(i + CHUNK_SIZE, tiles.size()), false));
+        }
+        chunks.add(new Constant(LINE_SEP + "exits" + LINE_SEP));
+        for (int i = 0; i < tiles.size(); i += CHUNK_SIZE) {
+            chunks.add(new Chunk(tiles, tileIds, i,
+                    Math.min(i + CHUNK_SIZE, tiles.size()), true));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads,
+                new DaemonThreadFactory());
+        try (FileOutputStream file = new FileOutputStream(filename)) {
+            Sink sink = compression == MapCompression.NONE
+                    ? new ChannelSink(file.getChannel(), stats)
+                    : new StreamSink(stats.timeWrites(
+                            MapCompression.compress(stats.countWrites(file),
+                                    compression, level), MapStats.SAVE_IO));
+
+            List<ByteBuffer> batch = new ArrayList<>();
+            batch.add(encode(header));
+            Deque<Future<ByteBuffer>> inFlight = new ArrayDeque<>();
+            int next = 0;
+
+            while (next < chunks.size() || !inFlight.isEmpty()) {
+                while (next < chunks.size()
+                        && inFlight.size() < 2 * threads) {
+                    inFlight.add(pool.submit(chunks.get(next)));
+                    next++;
+                }
+
+                // wait for the next chunk in order, then take every chunk
+                // after it that is already finished
+                batch.add(get(inFlight.remove()));
+                while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+                    batch.add(get(inFlight.remove()));
+                }
+
+                sink.write(batch.toArray(new ByteBuffer[0]));
+                batch.clear();
+            }
+
+            sink.close();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Encode a string in the charset used by WorldMap.saveMap().
+     * @param string the string to encode
+     * @return the encoded string
+     */
+    private static ByteBuffer encode(String string) {
+        return ByteBuffer.wrap(string.getBytes(Charset.defaultCharset()));
+    }
+
+    /**
+     * Wait for an encoded chunk.
+     * @param future the chunk being encoded
+     * @return the encoded chunk
+     * @throws IOException if the thread is interrupted while waiting
+     */
+    private static ByteBuffer get(Future<ByteBuffer> future)
+            throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while saving");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Somewhere to write encoded chunks.
+     */
+    private interface Sink {
+
+        /**
+         * Write buffers, in order.
+         * @param buffers the buffers to write
+         * @throws IOException if writing fails
+         */
+        void write(ByteBuffer[] buffers) throws IOException;
+
+        /**
+         * Finish writing.
+         * @throws IOException if writing fails
+         */
+        void close() throws IOException;
+    }
+
+    /**
+     * Writes buffers to a file channel with gathering writes.
+     */
+    private static class ChannelSink implements Sink {
+
+        // the channel to write to
+        private final FileChannel channel;
+
+        // the stats to record writes in
+        private final MapStats stats;
+
+        /**
+         * Create a sink that writes to a channel.
+         * @param channel the channel
+         * @param stats the stats to record writes in
+         */
+        ChannelSink(FileChannel channel, MapStats stats) {
+            this.channel = channel;
+            this.stats = stats;
+        }
+
+        @Override
+        public void write(ByteBuffer[] buffers) throws IOException {
+            int previous = stats.enter(MapStats.SAVE_IO);
+            try {
+                ByteBuffer last = buffers[buffers.length - 1];
+                while (last.hasRemaining()) {
+                    stats.addBytesWritten(channel.write(buffers));
+                }
+            } finally {
+                stats.enter(previous);
+            }
+        }
+
+        @Override
+        public void close() {
+            // the channel is closed with its file
+        }
+    }
+
+    /**
+     * Writes buffers to a (compressing) stream.
+     */
+    private static class StreamSink implements Sink {
+
+        // the stream to write to
+        private final OutputStream out;
+
+        /**
+         * Create a sink that writes to a stream.
+         * @param out the stream
+         */
+        StreamSink(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(ByteBuffer[] buffers) throws IOException {
+            for (ByteBuffer buffer : buffers) {
+                out.write(buffer.array(), buffer.arrayOffset()
+                        + buffer.position(), buffer.remaining());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Creates daemon threads, so an abandoned save never stops the program
+     * from exiting.
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "map-encoder");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
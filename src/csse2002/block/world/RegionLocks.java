@@ -0,0 +1,123 @@
+package csse2002.block.world;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks guarding the tiles of a map against being changed by more than one
+ * builder at once (see {@link ConcurrentBuilders ConcurrentBuilders}). <br>
+ * The map is divided into square regions of tiles, and each region is
+ * guarded by one of a fixed number of locks (a stripe), so builders in
+ * different areas of the map rarely wait for each other, while the number
+ * of locks does not grow with the map. <br>
+ * An action that changes two tiles (moving a builder or a block) holds the
+ * locks of both, always locking the stripe with the lower index first, so
+ * two builders locking the same pair of stripes from opposite sides can
+ * never deadlock. A transaction committing changes to many tiles (see
+ * {@link ActionTransaction ActionTransaction}) locks all their stripes in
+ * the same order.
+ * @serial exclude
+ */
+final class RegionLocks {
+
+    // the locks
+    private final ReentrantLock[] stripes;
+
+    // the stripe guarding each tile, which is never changed once filled
+    private final Map<Tile, Integer> tileStripes = new IdentityHashMap<>();
+
+    /**
+     * Create the locks for the tiles of a map.
+     * @param tiles the tiles, as returned by WorldMap.getTiles()
+     * @param positions the position of each tile, as returned by
+     *                  WorldMap.getPositions()
+     * @param regionSize the width and height of a region, in tiles
+     * @param stripeCount the number of locks
+     * @require regionSize &gt; 0 and stripeCount &gt; 0
+     */
+    RegionLocks(List<Tile> tiles, List<Position> positions, int regionSize,
+                int stripeCount) {
+        stripes = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+
+        for (int i = 0; i < tiles.size(); i++) {
+            Position position = positions.get(i);
+            int regionX = Math.floorDiv(position.getX(), regionSize);
+            int regionY = Math.floorDiv(position.getY(), regionSize);
+            tileStripes.put(tiles.get(i),
+                    Math.floorMod(regionX * 31 + regionY, stripeCount));
+        }
+    }
+
+    /**
+     * Get the stripe guarding a tile.
+     * @param tile the tile, or null
+     * @return the index of the lock, or -1 if the tile is null or not one
+     *         of the tiles the locks were created for
+     */
+    int stripe(Tile tile) {
+        Integer stripe = tileStripes.get(tile);
+        return stripe == null ? -1 : stripe;
+    }
+
+    /**
+     * Lock the stripes guarding one or two tiles, lowest index first.
+     * @param first the stripe of one tile
+     * @param second the stripe of the other tile, or -1 if there is only
+     *               one
+     */
+    void lock(int first, int second) {
+        int low = Math.min(first, second);
+        int high = Math.max(first, second);
+        if (low >= 0 && low != high) {
+            stripes[low].lock();
+        }
+        stripes[high].lock();
+    }
+
+    /**
+     * Get the number of stripes.
+     * @return the number of stripes
+     */
+    int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * Lock any number of stripes, lowest index first.
+     * @param sorted the stripes, distinct and in increasing order
+     */
+    void lockAll(int[] sorted) {
+        for (int stripe : sorted) {
+            stripes[stripe].lock();
+        }
+    }
+
+    /**
+     * Unlock the stripes locked by lockAll().
+     * @param sorted the stripes given to lockAll()
+     */
+    void unlockAll(int[] sorted) {
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            stripes[sorted[i]].unlock();
+        }
+    }
+
+    /**
+     * Unlock the stripes locked by lock().
+     * @param first the first stripe given to lock()
+     * @param second the second stripe given to lock()
+     */
+    void unlock(int first, int second) {
+        int low = Math.min(first, second);
+        int high = Math.max(first, second);
+        stripes[high].unlock();
+        if (low >= 0 && low != high) {
+            stripes[low].unlock();
+        }
+    }
+}
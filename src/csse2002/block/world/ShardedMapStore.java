@@ -0,0 +1,881 @@
+package csse2002.block.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads and writes a world map stored as a directory of shard files, one
+ * for each square region of tiles, and a small manifest. <br>
+ * The manifest is the file "manifest" in the directory:
+ * <pre>{@literal
+ *sharded:<region size>
+ *<startingX>
+ *<startingY>
+ *<builder's name>
+ *<inventory1>,<inventory2>, ... ,<inventoryN>
+ *total:<number of tiles>
+ *shards:<number of shards S>
+ *<shard0 x> <shard0 y> <number of tiles> <checksum>
+ *    ...
+ *<shardS-1 x> <shardS-1 y> <number of tiles> <checksum>
+ *exits:<number of tiles with exits to other shards E>
+ *<tile id> <name1>:<id1>,<name2>:<id2>, ... ,<nameN>:<idN>
+ *    ...
+ *}</pre>
+ *
+ * The tiles of region (x, y) (see {@link IndexedMapFile IndexedMapFile})
+ * are stored in the file "shard_x_y.txt", one line per tile in id order:
+ * <pre>{@literal
+ *<tile id> <block1>,<block2>, ... ,<blockN> <name1>:<id1>, ... ,<nameN>:<idN>
+ *}</pre>
+ *
+ * A shard line only holds the exits to tiles in the same shard; exits to
+ * other shards are held in the manifest. Each shard's checksum is the
+ * CRC32C of the shard file, in hexadecimal. Tile ids are the ordering of
+ * tiles returned by WorldMap.getTiles() when the directory was written, and
+ * lines end with a single "\n". <br>
+ * Shards are read and written in parallel. Every file is written to a
+ * temporary file and then renamed, and the manifest is written last, so a
+ * shard that does not match the manifest's checksum can be detected. <br>
+ * A store remembers which shards it holds, so later saves of the same map
+ * only rewrite the shards holding changed tiles (and the manifest).
+ * @serial exclude
+ */
+final class ShardedMapStore {
+
+    /**
+     * The name of the manifest file in a sharded map directory.
+     */
+    static final String MANIFEST = "manifest";
+
+    // the first token of the manifest
+    private static final String MAGIC = "sharded";
+
+    // exit names and the position offsets they lead to
+    private static final String[] EXITS = {"north", "east", "south", "west"};
+
+    /**
+     * The contents of a sharded map directory, as read by load().
+     */
+    static final class Contents {
+
+        // the starting position
+        Position startPosition;
+
+        // the builder's name and inventory
+        String builderName;
+        List<Block> inventory;
+
+        // every tile, by id
+        List<Tile> tiles;
+    }
+
+    // the directory the shards are stored in
+    private final File directory;
+
+    // the width and height of each shard's region
+    private final int regionSize;
+
+    // the checksum of each shard file, by region key
+    private Map<Long, Long> checksums = new TreeMap<>();
+
+    // the number of tiles in each shard, by region key
+    private Map<Long, Integer> tileCounts = new TreeMap<>();
+
+    // the key of the shard each tile was read from by load(), by id
+    private long[] loadedShards;
+
+    /**
+     * Create a store for a directory that has not been read or written.
+     * @param directory the directory
+     * @param regionSize the width and height of each shard's region
+     */
+    ShardedMapStore(String directory, int regionSize) {
+        this.directory = new File(directory);
+        this.regionSize = regionSize;
+    }
+
+    /**
+     * Check whether a filename names a sharded map directory.
+     * @param filename the filename to check
+     * @return true if filename is a directory holding a manifest
+     */
+    static boolean isSharded(String filename) {
+        return new File(filename, MANIFEST).isFile();
+    }
+
+    /**
+     * Read the region size of a sharded map directory.
+     * @param directory the directory
+     * @return the region size in its manifest
+     * @throws IOException if the manifest cannot be read or has no valid
+     *         region size
+     */
+    static int readRegionSize(String directory) throws IOException {
+        List<String> manifest = Files.readAllLines(
+                new File(directory, MANIFEST).toPath(),
+                StandardCharsets.UTF_8);
+        try {
+            return new ManifestReader(manifest).readCount(MAGIC, 1);
+        } catch (WorldMapFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Check whether this store is for a directory with a region size.
+     * @param directory the directory
+     * @param regionSize the region size
+     * @return true if the directory and region size are the same
+     */
+    boolean isFor(String directory, int regionSize) {
+        return this.directory.equals(new File(directory))
+                && this.regionSize == regionSize;
+    }
+
+    /**
+     * Get the width and height of each shard's region.
+     * @return the region size
+     */
+    int getRegionSize() {
+        return regionSize;
+    }
+
+    /**
+     * Read a sharded map directory, reading the shards in parallel. The
+     * exits within each shard are linked, and then the exits between shards
+     * from the manifest.
+     * @param directory the directory to read
+     * @param threads the number of threads to read shards with
+     * @param contents filled in with what was read
+     * @return a store for the directory
+     * @throws WorldMapFormatException if the manifest or a shard is
+     *         incorrectly formatted, or a shard does not match its checksum
+     * @throws IOException if a file cannot be read
+     */
+    static ShardedMapStore load(String directory, int threads,
+                                Contents contents)
+            throws WorldMapFormatException, IOException {
+        List<String> manifest = Files.readAllLines(
+                new File(directory, MANIFEST).toPath(),
+                StandardCharsets.UTF_8);
+        ManifestReader reader = new ManifestReader(manifest);
+
+        ShardedMapStore store = new ShardedMapStore(directory,
+                reader.readCount(MAGIC, 1));
+        if (store.regionSize == 0) {
+            throw new WorldMapFormatException(reader.errorOnLine()
+                    + "Region size is zero");
+        }
+
+        contents.startPosition = new Position(
+                reader.readInt("starting position x"),
+                reader.readInt("starting position y"));
+        contents.builderName = reader.readLine();
+        contents.inventory = WorldMap.createBlockArray(reader.readLine());
+
+        int tileCount = reader.readCount("total", 1);
+        Tile[] tiles = new Tile[tileCount];
+
+        int shardCount = reader.readCount("shards", 0);
+        for (int i = 0; i < shardCount; i++) {
+            String[] parts = reader.readLine().split(" ", -1);
+            if (parts.length != 4) {
+                throw new WorldMapFormatException(reader.errorOnLine()
+                        + "Shard entry must have 4 fields");
+            }
+            long key = key(parseInt(parts[0], reader),
+                    parseInt(parts[1], reader));
+            int count = parseInt(parts[2], reader);
+            long checksum;
+            try {
+                checksum = Long.parseLong(parts[3], 16);
+            } catch (NumberFormatException e) {
+                throw new WorldMapFormatException(reader.errorOnLine()
+                        + "Invalid shard checksum");
+            }
+
+            if (count < 0 || store.checksums.put(key, checksum) != null) {
+                throw new WorldMapFormatException(reader.errorOnLine()
+                        + "Invalid shard entry");
+            }
+            store.tileCounts.put(key, count);
+        }
+
+        // read and parse every shard, each on its own thread
+        List<Callable<List<Integer>>> tasks = new ArrayList<>();
+        List<Long> keys = new ArrayList<>(store.checksums.keySet());
+        for (long key : keys) {
+            tasks.add(store.new ShardReader(key, tiles));
+        }
+        List<List<Integer>> shardIds = runAll(tasks, threads);
+        store.loadedShards = new long[tileCount];
+        for (int i = 0; i < keys.size(); i++) {
+            for (int id : shardIds.get(i)) {
+                if (id >= tileCount) {
+                    throw new WorldMapFormatException("Tile id " + id
+                            + " does not refer to a valid tile");
+                }
+                store.loadedShards[id] = keys.get(i);
+            }
+        }
+
+        for (int i = 0; i < tileCount; i++) {
+            if (tiles[i] == null) {
+                throw new WorldMapFormatException("Missing entry for tile"
+                        + " with ID " + i);
+            }
+        }
+
+        // link the exits between shards
+        List<Tile> tileList = Arrays.asList(tiles);
+        int exitCount = reader.readCount("exits", 0);
+        try {
+            for (int i = 0; i < exitCount; i++) {
+                WorldMap.addTileExits(tileList, reader.readLine(), false);
+            }
+        } catch (NoExitException e) {
+            throw new WorldMapFormatException("A NoExitException would be "
+                    + "thrown.");
+        }
+        reader.readEnd();
+
+        contents.tiles = tileList;
+        return store;
+    }
+
+    /**
+     * Check whether the shards hold the tiles they would be written to, so
+     * a later save only needs to rewrite the shards of changed tiles.
+     * @param tiles the tiles read by load(), by id
+     * @param ordered the tiles in the order returned by
+     *         WorldMap.getTiles()
+     * @param positions the position of each tile in ordered
+     * @return true if the tile ids match the ordering of ordered, and each
+     *         tile was read from the shard for its position
+     */
+    boolean matches(List<Tile> tiles, List<Tile> ordered,
+                    List<Position> positions) {
+        if (tiles.size() != ordered.size()) {
+            return false;
+        }
+        for (int i = 0; i < tiles.size(); i++) {
+            if (tiles.get(i) != ordered.get(i)) {
+                return false;
+            }
+        }
+
+        for (int i = 0; i < positions.size(); i++) {
+            if (key(positions.get(i)) != loadedShards[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write a map to the directory. If changed is null, every shard is
+     * written and any other shard files are deleted; otherwise only the
+     * shards holding changed tiles are written. The manifest is always
+     * written, last.
+     * @param startPosition the starting position
+     * @param builder the builder
+     * @param tiles the tiles, in the order returned by WorldMap.getTiles()
+     * @param positions the position of each tile
+     * @param tileIds the id of each tile
+     * @param changed the tiles changed since the directory was last read or
+     *         written by this store, or null to write every shard
+     * @param threads the number of threads to write shards with
+     * @return the number of shards written
+     * @throws IOException if a file cannot be written
+     */
+    int save(Position startPosition, Builder builder, List<Tile> tiles,
+             List<Position> positions, Map<Tile, Integer> tileIds,
+             Collection<Tile> changed, int threads) throws IOException {
+        Files.createDirectories(directory.toPath());
+
+        // group tile ids by shard, and find the exits between shards
+        Map<Long, List<Integer>> shardTiles = new TreeMap<>();
+        StringBuilder crossExits = new StringBuilder();
+        int crossExitCount = 0;
+        for (int i = 0; i < tiles.size(); i++) {
+            long key = key(positions.get(i));
+            List<Integer> ids = shardTiles.get(key);
+            if (ids == null) {
+                ids = new ArrayList<>();
+                shardTiles.put(key, ids);
+            }
+            ids.add(i);
+
+            String exits = encodeExits(tiles.get(i), tileIds, positions,
+                    key, false);
+            if (!exits.isEmpty()) {
+                crossExits.append(i).append(' ').append(exits).append('\n');
+                crossExitCount++;
+            }
+        }
+
+        Set<Long> toWrite;
+        if (changed == null) {
+            toWrite = shardTiles.keySet();
+        } else {
+            toWrite = new HashSet<>();
+            for (Tile tile : changed) {
+                Integer id = tileIds.get(tile);
+                if (id != null) {
+                    toWrite.add(key(positions.get(id)));
+                }
+            }
+        }
+
+        List<Callable<List<Integer>>> tasks = new ArrayList<>();
+        List<Long> written = new ArrayList<>();
+        for (long key : toWrite) {
+            tasks.add(new ShardWriter(key, shardTiles.get(key), tiles,
+                    tileIds, positions));
+            written.add(key);
+        }
+        List<List<Integer>> results;
+        try {
+            results = runAll(tasks, threads);
+        } catch (WorldMapFormatException e) {
+            // writers never throw format exceptions
+            throw new IOException(e);
+        }
+        for (int i = 0; i < written.size(); i++) {
+            // each writer returns its checksum in two halves
+            List<Integer> result = results.get(i);
+            checksums.put(written.get(i), ((long) result.get(0) << 32)
+                    | (result.get(1) & 0xffffffffL));
+            tileCounts.put(written.get(i), shardTiles.get(written.get(i))
+                    .size());
+        }
+
+        if (changed == null) {
+            deleteOtherShards(shardTiles.keySet());
+        }
+
+        StringBuilder manifest = new StringBuilder();
+        manifest.append(MAGIC).append(':').append(regionSize).append('\n')
+                .append(startPosition.getX()).append('\n')
+                .append(startPosition.getY()).append('\n')
+                .append(builder.getName()).append('\n');
+        String sep = "";
+        for (Block block : builder.getInventory()) {
+            manifest.append(sep).append(block.getBlockType());
+            sep = ",";
+        }
+        manifest.append('\n')
+                .append("total:").append(tiles.size()).append('\n')
+                .append("shards:").append(shardTiles.size()).append('\n');
+        for (long key : shardTiles.keySet()) {
+            manifest.append((int) (key >> 32)).append(' ')
+                    .append((int) key).append(' ')
+                    .append(tileCounts.get(key)).append(' ')
+                    .append(Long.toHexString(checksums.get(key)))
+                    .append('\n');
+        }
+        manifest.append("exits:").append(crossExitCount).append('\n')
+                .append(crossExits);
+        replace(new File(directory, MANIFEST),
+                manifest.toString().getBytes(StandardCharsets.UTF_8));
+
+        return written.size();
+    }
+
+    /**
+     * Delete the shard files in the directory that are not in a set of
+     * shards, and forget their checksums.
+     * @param keep the keys of the shards to keep
+     * @throws IOException if a file cannot be deleted
+     */
+    private void deleteOtherShards(Set<Long> keep) throws IOException {
+        checksums.keySet().retainAll(keep);
+        tileCounts.keySet().retainAll(keep);
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Set<String> keepNames = new HashSet<>();
+        for (long key : keep) {
+            keepNames.add(shardName(key));
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith("shard_") && name.endsWith(".txt")
+                    && !keepNames.contains(name)) {
+                Files.delete(file.toPath());
+            }
+        }
+    }
+
+    /**
+     * Reads and parses one shard.
+     */
+    private class ShardReader implements Callable<List<Integer>> {
+
+        // the shard to read
+        private final long key;
+
+        // every tile, by id, to put the shard's tiles in
+        private final Tile[] tiles;
+
+        /**
+         * Create a reader for a shard.
+         * @param key the shard's region key
+         * @param tiles the array to put the shard's tiles in
+         */
+        ShardReader(long key, Tile[] tiles) {
+            this.key = key;
+            this.tiles = tiles;
+        }
+
+        /**
+         * Read the shard, create its tiles and link the exits between
+         * them.
+         * @return the ids of the shard's tiles
+         * @throws WorldMapFormatException if the shard is incorrectly
+         *         formatted or does not match its checksum
+         * @throws IOException if the shard cannot be read
+         */
+        @Override
+        public List<Integer> call() throws WorldMapFormatException,
+                IOException {
+            String name = shardName(key);
+            byte[] bytes = Files.readAllBytes(
+                    new File(directory, name).toPath());
+            if (checksum(bytes) != checksums.get(key)) {
+                throw new WorldMapFormatException("Shard " + name
+                        + " does not match its checksum");
+            }
+
+            String[] lines = new String(bytes, StandardCharsets.UTF_8)
+                    .split("\n");
+            if (bytes.length == 0) {
+                lines = new String[0];
+            }
+            if (lines.length != tileCounts.get(key)) {
+                throw new WorldMapFormatException("Shard " + name + " has "
+                        + lines.length + " tiles, but the manifest says "
+                        + tileCounts.get(key));
+            }
+
+            Map<Integer, Tile> shardTiles = new HashMap<>();
+            List<Integer> ids = new ArrayList<>();
+            String[][] parts = new String[lines.length][];
+            try {
+                for (int i = 0; i < lines.length; i++) {
+                    parts[i] = lines[i].split(" ", -1);
+                    if (parts[i].length != 3) {
+                        throw new WorldMapFormatException("Shard " + name
+                                + ": tile entry must have 3 fields");
+                    }
+                    int id = parseId(parts[i][0], name);
+                    Tile tile = Tile.withColumn(
+                            BlockColumns.intern(parts[i][1]));
+                    if (shardTiles.put(id, tile) != null) {
+                        throw new WorldMapFormatException("Shard " + name
+                                + ": tile " + id + " appears twice");
+                    }
+                    ids.add(id);
+                }
+
+                for (int i = 0; i < lines.length; i++) {
+                    if (parts[i][2].isEmpty()) {
+                        continue;
+                    }
+                    Tile tile = shardTiles.get(ids.get(i));
+                    for (String exit : parts[i][2].split(",")) {
+                        String[] exitInfo = exit.split(":", -1);
+                        if (exitInfo.length != 2
+                                || !Arrays.asList(EXITS)
+                                        .contains(exitInfo[0])) {
+                            throw new WorldMapFormatException("Shard "
+                                    + name + ": invalid exit " + exit);
+                        }
+                        Tile target = shardTiles.get(
+                                parseId(exitInfo[1], name));
+                        if (target == null) {
+                            throw new WorldMapFormatException("Shard "
+                                    + name + ": exit " + exit
+                                    + " leaves the shard");
+                        }
+                        tile.addExit(exitInfo[0], target);
+                    }
+                }
+            } catch (TooHighException e) {
+                throw new WorldMapFormatException("A TooHighException would"
+                        + " be thrown.");
+            } catch (NoExitException e) {
+                throw new WorldMapFormatException("A NoExitException would "
+                        + "be thrown.");
+            }
+
+            // each shard fills different slots of the array
+            synchronized (tiles) {
+                for (Map.Entry<Integer, Tile> entry : shardTiles.entrySet()) {
+                    if (entry.getKey() < tiles.length) {
+                        if (tiles[entry.getKey()] != null) {
+                            throw new WorldMapFormatException("Tile "
+                                    + entry.getKey() + " appears in two"
+                                    + " shards");
+                        }
+                        tiles[entry.getKey()] = entry.getValue();
+                    }
+                }
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Encodes and writes one shard.
+     */
+    private class ShardWriter implements Callable<List<Integer>> {
+
+        // the shard to write
+        private final long key;
+
+        // the ids of the tiles in the shard
+        private final List<Integer> ids;
+
+        // every tile, with its id and position
+        private final List<Tile> tiles;
+        private final Map<Tile, Integer> tileIds;
+        private final List<Position> positions;
+
+        /**
+         * Create a writer for a shard.
+         * @param key the shard's region key
+         * @param ids the ids of the tiles in the shard, in order
+         * @param tiles every tile
+         * @param tileIds the id of every tile
+         * @param positions the position of every tile
+         */
+        ShardWriter(long key, List<Integer> ids, List<Tile> tiles,
+                    Map<Tile, Integer> tileIds, List<Position> positions) {
+            this.key = key;
+            this.ids = ids;
+            this.tiles = tiles;
+            this.tileIds = tileIds;
+            this.positions = positions;
+        }
+
+        /**
+         * Encode the shard and write it.
+         * @return the checksum of the shard file, as its high and low 32
+         *         bits
+         * @throws IOException if the shard cannot be written
+         */
+        @Override
+        public List<Integer> call() throws IOException {
+            StringBuilder lines = new StringBuilder();
+            for (int id : ids) {
+                Tile tile = tiles.get(id);
+                lines.append(id).append(' ');
+                String sep = "";
+                for (Block block : tile.getBlocks()) {
+                    lines.append(sep).append(block.getBlockType());
+                    sep = ",";
+                }
+                lines.append(' ').append(encodeExits(tile, tileIds,
+                        positions, key, true)).append('\n');
+            }
+
+            byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+            replace(new File(directory, shardName(key)), bytes);
+
+            long checksum = checksum(bytes);
+            return Arrays.asList((int) (checksum >> 32), (int) checksum);
+        }
+    }
+
+    /**
+     * Encode the exits of a tile that lead into, or out of, its own shard.
+     * @param tile the tile
+     * @param tileIds the id of every tile
+     * @param positions the position of every tile
+     * @param key the key of the tile's shard
+     * @param inside true for exits within the shard, false for exits to
+     *         other shards
+     * @return the exits as name:id pairs separated by commas
+     */
+    private String encodeExits(Tile tile, Map<Tile, Integer> tileIds,
+                               List<Position> positions, long key,
+                               boolean inside) {
+        StringBuilder result = new StringBuilder();
+        String sep = "";
+        for (Map.Entry<String, Tile> exit : tile.getExits().entrySet()) {
+            int targetId = tileIds.getOrDefault(exit.getValue(), -1);
+            boolean targetInside = targetId != -1
+                    && key(positions.get(targetId)) == key;
+            if (targetInside == inside) {
+                result.append(sep).append(exit.getKey()).append(':')
+                        .append(targetId);
+                sep = ",";
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Run tasks on a pool of threads and wait for all of them.
+     * @param tasks the tasks to run
+     * @param threads the number of threads to use
+     * @param <T> the type of result
+     * @return the result of each task, in order
+     * @throws WorldMapFormatException if a task throws one
+     * @throws IOException if a task throws one, or the thread is
+     *         interrupted
+     */
+    private static <T> List<T> runAll(List<Callable<T>> tasks, int threads)
+            throws WorldMapFormatException, IOException {
+        if (tasks.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(threads, tasks.size())));
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            for (Callable<T> task : tasks) {
+                futures.add(pool.submit(task));
+            }
+
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading or"
+                    + " writing shards");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof WorldMapFormatException) {
+                throw (WorldMapFormatException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Write a file by writing a temporary file and renaming it over the
+     * file, so the file is never left half written.
+     * @param file the file to write
+     * @param bytes the contents
+     * @throws IOException if the file cannot be written
+     */
+    private static void replace(File file, byte[] bytes) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Files.write(temp.toPath(), bytes);
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Get the region key of a position.
+     * @param position the position of a tile
+     * @return the key of its shard's region
+     */
+    private long key(Position position) {
+        return key(Math.floorDiv(position.getX(), regionSize),
+                Math.floorDiv(position.getY(), regionSize));
+    }
+
+    /**
+     * Combine region coordinates into a single key.
+     * @param x the region x coordinate
+     * @param y the region y coordinate
+     * @return the region key
+     */
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    /**
+     * Get the filename of a shard.
+     * @param key the shard's region key
+     * @return the filename, within the directory
+     */
+    private static String shardName(long key) {
+        return "shard_" + (int) (key >> 32) + "_" + (int) key + ".txt";
+    }
+
+    /**
+     * Get the CRC32C checksum of some bytes.
+     * @param bytes the bytes to check
+     * @return the checksum
+     */
+    private static long checksum(byte[] bytes) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    /**
+     * Parse a tile id, which must not be negative.
+     * @param idString the string to parse
+     * @param name the shard filename, for the error message
+     * @return the tile id
+     * @throws WorldMapFormatException if the id is not valid
+     */
+    private static int parseId(String idString, String name)
+            throws WorldMapFormatException {
+        try {
+            int id = Integer.parseInt(idString);
+            if (id >= 0) {
+                return id;
+            }
+        } catch (NumberFormatException nfe) {
+            // reported below
+        }
+        throw new WorldMapFormatException("Shard " + name + ": invalid tile"
+                + " id " + idString);
+    }
+
+    /**
+     * Parse an integer from the manifest.
+     * @param intString the string to parse
+     * @param reader the manifest reader, for the error message
+     * @return the integer
+     * @throws WorldMapFormatException if the string is not an integer
+     */
+    private static int parseInt(String intString, ManifestReader reader)
+            throws WorldMapFormatException {
+        try {
+            return Integer.parseInt(intString);
+        } catch (NumberFormatException nfe) {
+            throw new WorldMapFormatException(reader.errorOnLine()
+                    + "Invalid integer");
+        }
+    }
+
+    /**
+     * Reads the lines of a manifest, keeping the line number for error
+     * messages.
+     */
+    private static class ManifestReader {
+
+        // the lines of the manifest
+        private final List<String> lines;
+
+        // the number of lines read
+        private int lineNumber;
+
+        /**
+         * Create a manifest reader.
+         * @param lines the lines of the manifest
+         */
+        ManifestReader(List<String> lines) {
+            this.lines = lines;
+        }
+
+        /**
+         * Get an error string for the current line.
+         * @return an error string
+         */
+        String errorOnLine() {
+            return "Manifest: Error on line " + lineNumber + ": ";
+        }
+
+        /**
+         * Read a line.
+         * @return the line
+         * @throws WorldMapFormatException if the manifest has ended
+         */
+        String readLine() throws WorldMapFormatException {
+            if (lineNumber == lines.size()) {
+                throw new WorldMapFormatException(errorOnLine()
+                        + "File ended abruptly");
+            }
+            return lines.get(lineNumber++);
+        }
+
+        /**
+         * Read an integer line.
+         * @param what what the integer is, for the error message
+         * @return the integer
+         * @throws WorldMapFormatException if the line is not an integer
+         */
+        int readInt(String what) throws WorldMapFormatException {
+            String line = readLine();
+            try {
+                return Integer.parseInt(line);
+            } catch (NumberFormatException nfe) {
+                throw new WorldMapFormatException(errorOnLine()
+                        + "Invalid integer for " + what);
+            }
+        }
+
+        /**
+         * Read a "name:count" line.
+         * @param name the expected name
+         * @param min the smallest allowed count
+         * @return the count
+         * @throws WorldMapFormatException if the line is not name:count, or
+         *         the count is below min
+         */
+        int readCount(String name, int min) throws WorldMapFormatException {
+            String[] parts = readLine().split(":", -1);
+            if (parts.length != 2 || !parts[0].equals(name)) {
+                throw new WorldMapFormatException(errorOnLine()
+                        + "Expected " + name + ":N");
+            }
+            int count;
+            try {
+                count = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException nfe) {
+                throw new WorldMapFormatException(errorOnLine()
+                        + "In " + name + ":N, N is not a valid integer");
+            }
+            if (count < min) {
+                throw new WorldMapFormatException(errorOnLine()
+                        + "In " + name + ":N, N is too low");
+            }
+            return count;
+        }
+
+        /**
+         * Check that the manifest has ended.
+         * @throws WorldMapFormatException if there are more lines
+         */
+        void readEnd() throws WorldMapFormatException {
+            if (lineNumber != lines.size()) {
+                throw new WorldMapFormatException(errorOnLine()
+                        + "Extra content in file.");
+            }
+        }
+    }
+}
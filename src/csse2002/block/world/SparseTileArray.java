@@ -18,6 +18,9 @@ public class SparseTileArray {
     // a breadth-first search order
     private List<Tile> orderedTiles;
 
+    // the position of each tile in orderedTiles
+    private List<Position> orderedPositions;
+
     /**
      * Constructor for a SparseTileArray.
      * Initializes an empty SparseTileArray, such that
@@ -65,6 +68,35 @@ public class SparseTileArray {
         return new ArrayList<>(orderedTiles);
     }
 
+    /**
+     * Get the position of each tile returned by getTiles(), in the same
+     * order.
+     * @return a list of positions in breadth-first-search order.
+     */
+    List<Position> getPositions() {
+        return new ArrayList<>(orderedPositions);
+    }
+
+    /**
+     * Add tiles whose positions are already known to be geometrically
+     * consistent, without checking them again. Any existing tiles are
+     * removed first.
+     * @param tiles the tiles, in breadth-first-search order from the
+     *         starting tile
+     * @param positions the position of each tile
+     * @require tiles and positions were returned by getTiles() and
+     *          getPositions() for a consistent set of tiles, which have not
+     *          changed since
+     */
+    void addValidatedTiles(List<Tile> tiles, List<Position> positions) {
+        reset();
+        for (int i = 0; i < tiles.size(); i++) {
+            tileMap.put(positions.get(i), tiles.get(i));
+        }
+        orderedTiles.addAll(tiles);
+        orderedPositions.addAll(positions);
+    }
+
     /**
      * Add a set of tiles to the sparse tilemap. <br>
      * This function does the following:
@@ -161,6 +193,7 @@ public class SparseTileArray {
             orderedTiles.add(tile);
 
             Position position = tilePositions.get(tile);
+            orderedPositions.add(position);
 
             // remove the tile from the queue
             tilesToProcess.remove();
@@ -287,5 +320,6 @@ public class SparseTileArray {
     private void reset() {
         tileMap = new HashMap<>();
         orderedTiles = new ArrayList<>();
+        orderedPositions = new ArrayList<>();
     }
 }
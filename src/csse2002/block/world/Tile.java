@@ -1,6 +1,8 @@
 package csse2002.block.world;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -28,6 +30,24 @@ public class Tile implements Serializable {
     /* Blocks in this Tile*/
     private List<Block> blocks;
 
+    /* Whether blocks is a column shared with other tiles (see BlockColumns),
+       which must be copied before it is changed */
+    private boolean sharedBlocks;
+
+    /* Told about every change to this tile's blocks or exits, may be null */
+    private transient TileListener listener;
+
+    /* Loads this tile's blocks and exits on first use, null once loaded */
+    private transient TileLoader loader;
+
+    /* Told each time this tile is used while loaded, so it can be unloaded
+       when it has not been used recently, may be null */
+    private transient TileLoader pager;
+
+    /* The number of times this tile has changed, so a copy of its blocks
+       can be checked later to be still current (see ActionTransaction) */
+    private transient int version;
+
     /**
      * Construct a new tile.<br>
      * Each tile should be constructed with no exits (getExits().size() == 0).
@@ -76,27 +96,53 @@ public class Tile implements Serializable {
     public Tile(List<Block> startingBlocks) throws TooHighException {
         exits = new TreeMap<>();
 
-        if (startingBlocks.size() > 8) {
-            throw new TooHighException();
-        }
-
-        // check for ground blocks that are too high
-        for (int i = MAX_GROUND_BLOCKS; i < startingBlocks.size(); i++) {
-            if (startingBlocks.get(i) instanceof GroundBlock) {
-                throw new TooHighException();
-            }
-        }
+        checkStartingBlocks(startingBlocks);
 
         // make a copy of startingBlocks
         blocks = new LinkedList<>(startingBlocks);
     }
 
+    /**
+     * Construct a tile whose blocks and exits will be loaded by loader the
+     * first time they are used.
+     * @param loader the loader for the tile's contents
+     */
+    Tile(TileLoader loader) {
+        exits = new TreeMap<>();
+        blocks = new LinkedList<>();
+        this.loader = loader;
+    }
+
+    /**
+     * Construct a tile that uses a list as its blocks, without copying it.
+     * @param column the blocks
+     * @param shared true if column is shared with other tiles, so must be
+     *         copied before it is changed
+     */
+    private Tile(List<Block> column, boolean shared) {
+        exits = new TreeMap<>();
+        blocks = column;
+        sharedBlocks = shared;
+    }
+
+    /**
+     * Construct a tile with a column of blocks from BlockColumns, which is
+     * shared with other tiles until this tile's blocks are changed.
+     * @param column the shared column
+     * @return the new tile
+     * @require column was returned by BlockColumns.intern()
+     */
+    static Tile withColumn(List<Block> column) {
+        return new Tile(column, true);
+    }
+
     /**
      * What exits are there from this Tile? <br>
      * No ordering is required.
      * @return map of names to Tiles
      */
     public Map<String, Tile> getExits() {
+        ensureLoaded();
         return Collections.unmodifiableMap(this.exits);
     }
 
@@ -107,6 +153,7 @@ public class Tile implements Serializable {
      * @return Blocks on the Tile
      */
     public List<Block> getBlocks() {
+        ensureLoaded();
         return Collections.unmodifiableList(this.blocks);
     }
 
@@ -117,6 +164,7 @@ public class Tile implements Serializable {
      * @throws TooLowException if there are no blocks on the tile
      */
     public Block getTopBlock() throws TooLowException {
+        ensureLoaded();
         if (blocks.size() == 0) {
             throw new TooLowException();
         }
@@ -130,11 +178,14 @@ public class Tile implements Serializable {
      * @throws TooLowException if there are no blocks on the tile
      */
     public void removeTopBlock() throws TooLowException {
+        ensureLoaded();
         if (blocks.size() == 0) {
             throw new TooLowException();
         }
 
+        ownBlocks();
         blocks.remove(blocks.size() - 1);
+        changed(false);
     }
 
     /**
@@ -148,12 +199,14 @@ public class Tile implements Serializable {
      * @throws NoExitException if name or target is null
      */
     public void addExit(String name, Tile target) throws NoExitException {
+        ensureLoaded();
         if (name == null || target == null) {
             throw new NoExitException();
         }
 
         // add to exits
         exits.put(name, target);
+        changed(true);
     }
 
     /**
@@ -166,11 +219,13 @@ public class Tile implements Serializable {
      * @throws NoExitException if name is not in exits, or name is null
      */
     public void removeExit(String name) throws NoExitException {
+        ensureLoaded();
         if (name == null || exits.containsKey(name) == false) {
             throw new NoExitException();
         }
 
         exits.remove(name);
+        changed(true);
     }
 
     /**
@@ -188,19 +243,48 @@ public class Tile implements Serializable {
      * @throws InvalidBlockException if the block is not diggable
      */
     public Block dig() throws TooLowException, InvalidBlockException {
-
-        if (blocks.size() == 0) {
-            throw new TooLowException();
+        ensureLoaded();
+        Block result = peekTopBlock();
+
+        switch (tryDig()) {
+            case Outcome.TOO_LOW:
+                throw new TooLowException();
+            case Outcome.INVALID_BLOCK:
+                throw new InvalidBlockException();
+            default:
+                return result;
         }
+    }
 
-        Block result = blocks.get(blocks.size() - 1);
-
-        if (!result.isDiggable()) {
-            throw new InvalidBlockException();
+    /**
+     * Attempt to dig in the current tile, as dig() does, but return the
+     * outcome instead of throwing an exception. <br>
+     * The block removed is the one peekTopBlock() returned before.
+     * @return Outcome.SUCCESS if the top block was removed,
+     *         Outcome.TOO_LOW if there are no blocks on the tile, or
+     *         Outcome.INVALID_BLOCK if the block is not diggable
+     */
+    public int tryDig() {
+        ensureLoaded();
+        int outcome = digOutcome(blocks);
+        if (outcome != Outcome.SUCCESS) {
+            return outcome;
         }
 
-        removeTopBlock();
-        return result;
+        ownBlocks();
+        blocks.remove(blocks.size() - 1);
+        changed(false);
+        return Outcome.SUCCESS;
+    }
+
+    /**
+     * Return the block that is the top block on the tile, as getTopBlock()
+     * does, but return null if there are no blocks.
+     * @return the top Block, or null if there are no blocks
+     */
+    public Block peekTopBlock() {
+        ensureLoaded();
+        return blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
     }
 
     /**
@@ -227,38 +311,51 @@ public class Tile implements Serializable {
      */
     public void moveBlock(String exitName) throws TooHighException,
             InvalidBlockException, NoExitException {
-        if (exitName == null || !exits.containsKey(exitName)) {
-            throw new NoExitException();
+        switch (tryMoveBlock(exitName)) {
+            case Outcome.NO_EXIT:
+                throw new NoExitException();
+            case Outcome.TOO_HIGH:
+                throw new TooHighException();
+            case Outcome.INVALID_BLOCK:
+                throw new InvalidBlockException();
+            default:
+                break;
         }
+    }
 
-        Tile exit = exits.get(exitName);
-        if (exit.getBlocks().size() >= blocks.size()) {
-            throw new TooHighException();
+    /**
+     * Attempt to move the current top block to another tile, as
+     * moveBlock() does, but return the outcome instead of throwing an
+     * exception.
+     * @param exitName the name of the exit to move the block to
+     * @return Outcome.SUCCESS if the block was moved, Outcome.NO_EXIT if
+     *         the exit is null or does not exist, Outcome.TOO_HIGH if the
+     *         target tile is &ge; to this one, or Outcome.INVALID_BLOCK if
+     *         the block is not moveable
+     */
+    public int tryMoveBlock(String exitName) {
+        ensureLoaded();
+        if (exitName == null || !exits.containsKey(exitName)) {
+            return Outcome.NO_EXIT;
         }
 
-        Block block = null;
-        try {
-            block = getTopBlock();
-        } catch (TooLowException tooLow) {
-            // not possible to end up here,
-            // but required anyway.
-            assert (false);
+        Tile exit = exits.get(exitName);
+        int outcome = moveOutcome(blocks, exit.getBlocks());
+        if (outcome != Outcome.SUCCESS) {
+            return outcome;
         }
 
-        if (!block.isMoveable()) {
-            throw new InvalidBlockException();
+        outcome = exit.tryPlaceBlock(blocks.get(blocks.size() - 1));
+        if (outcome != Outcome.SUCCESS) {
+            return outcome;
         }
 
-        // should not throw TooHighException, because must be < 8 blocks
-        exit.placeBlock(block);
-
-        try {
-            removeTopBlock();
-        } catch (TooLowException tooLow) {
-            // not possible to end up here,
-            // but required anyway.
-            assert (false);
-        }
+        // using the target may have paged this tile out
+        ensureLoaded();
+        ownBlocks();
+        blocks.remove(blocks.size() - 1);
+        changed(false);
+        return Outcome.SUCCESS;
     }
 
     /**
@@ -281,17 +378,328 @@ public class Tile implements Serializable {
      */
     public void placeBlock(Block block) throws TooHighException,
             InvalidBlockException {
+        switch (tryPlaceBlock(block)) {
+            case Outcome.INVALID_BLOCK:
+                throw new InvalidBlockException();
+            case Outcome.TOO_HIGH:
+                throw new TooHighException();
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Attempt to place a block on a tile, as placeBlock() does, but return
+     * the outcome instead of throwing an exception.
+     * @param block the block to place.
+     * @return Outcome.SUCCESS if the block was placed,
+     *         Outcome.INVALID_BLOCK if the block is null, or
+     *         Outcome.TOO_HIGH if there are already 8 blocks on the tile,
+     *         or if this is a ground block and there are already 3 or more
+     *         blocks on the tile
+     */
+    public int tryPlaceBlock(Block block) {
+        ensureLoaded();
+        int outcome = placeOutcome(blocks, block);
+        if (outcome != Outcome.SUCCESS) {
+            return outcome;
+        }
+
+        ownBlocks();
+        blocks.add(block);
+        changed(false);
+        return Outcome.SUCCESS;
+    }
+
+    /**
+     * Replace all the blocks on this tile, for example when a saved change
+     * is loaded. <br>
+     * The same checks as the Tile(startingBlocks) constructor are applied,
+     * and the tile is left unchanged if they fail.
+     * @param newBlocks the new blocks, from the bottom up
+     * @throws TooHighException if newBlocks.size() &gt; 8, or if
+     *                          newBlocks elements with index &ge; 3
+     *                          are instances of GroundBlock
+     */
+    void setBlocks(List<Block> newBlocks) throws TooHighException {
+        ensureLoaded();
+        checkStartingBlocks(newBlocks);
+        blocks = new LinkedList<>(newBlocks);
+        sharedBlocks = false;
+        changed(false);
+    }
+
+    /**
+     * Replace all the blocks on this tile with a column shared with other
+     * tiles, for example when the tile is loaded.
+     * @param column the shared column
+     * @require column was returned by BlockColumns.intern()
+     */
+    void setColumn(List<Block> column) {
+        ensureLoaded();
+        blocks = column;
+        sharedBlocks = true;
+        changed(false);
+    }
+
+    /**
+     * Get the blocks on this tile as a column shared with other tiles, for
+     * example to keep a copy of them that costs no more than a reference.
+     * If this tile has its own copy of its blocks, it shares the interned
+     * column instead from now on (until its blocks are next changed).
+     * @return the shared, unmodifiable column
+     * @throws TooHighException if the tile holds blocks it cannot, which
+     *         the checks on every change prevent
+     */
+    List<Block> getColumn() throws TooHighException {
+        ensureLoaded();
+        if (!sharedBlocks) {
+            blocks = BlockColumns.intern(blocks);
+            sharedBlocks = true;
+        }
+        return blocks;
+    }
+
+    /**
+     * Does this tile hold exactly the given column of blocks?
+     * @param column the column, returned by getColumn()
+     * @return true if this tile shares column as its blocks
+     */
+    boolean hasColumn(List<Block> column) {
+        ensureLoaded();
+        return blocks == column;
+    }
+
+    /**
+     * Get the number of times this tile has changed. A copy of its blocks
+     * taken when getVersion() returned v is still current if getVersion()
+     * still returns v.
+     * @return the version
+     */
+    int getVersion() {
+        ensureLoaded();
+        return version;
+    }
+
+    /**
+     * Replace all the blocks on this tile without any checks, for example
+     * when changes worked out on a copy of them are committed.
+     * @param newBlocks the new blocks, from the bottom up, which are copied
+     * @require the tile stays valid with newBlocks
+     */
+    void replaceBlocks(List<Block> newBlocks) {
+        ensureLoaded();
+        blocks = new LinkedList<>(newBlocks);
+        sharedBlocks = false;
+        changed(false);
+    }
+
+    /**
+     * Add a block to the top of this tile without any checks, for example
+     * when a change is undone.
+     * @param block the block to add
+     * @require block != null, and the tile stays valid with it on top
+     */
+    void pushBlock(Block block) {
+        ensureLoaded();
+        ownBlocks();
+        blocks.add(block);
+        changed(false);
+    }
+
+    /**
+     * Remove the top block of this tile without any checks, for example
+     * when a change is undone.
+     * @return the block removed
+     * @require the tile has a block
+     */
+    Block popBlock() {
+        ensureLoaded();
+        ownBlocks();
+        Block block = blocks.remove(blocks.size() - 1);
+        changed(false);
+        return block;
+    }
+
+    /**
+     * Remove every exit from this tile.
+     */
+    void clearExits() {
+        ensureLoaded();
+        exits.clear();
+        changed(true);
+    }
+
+    /**
+     * Set the listener to tell about changes to this tile, replacing any
+     * existing listener.
+     * @param listener the listener, or null for none
+     */
+    void setListener(TileListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set the loader for this tile's blocks and exits.
+     * @param loader the loader, or null if the tile is loaded
+     */
+    void setLoader(TileLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Set the loader to tell each time this tile is used while it is loaded.
+     * @param pager the loader, or null for none
+     */
+    void setPager(TileLoader pager) {
+        this.pager = pager;
+    }
+
+    /**
+     * Unload this tile's blocks and exits to free their memory. The tile
+     * loads them again from loader the next time it is used. The listener
+     * is not told, since the tile has not changed, and is removed until
+     * the tile is loaded again.
+     * @param loader the loader to load the tile again
+     */
+    void unload(TileLoader loader) {
+        blocks = Collections.emptyList();
+        sharedBlocks = true;
+        exits.clear();
+        listener = null;
+        pager = null;
+        this.loader = loader;
+    }
+
+    /**
+     * Is this tile loaded? Unloaded tiles load themselves when first used.
+     * @return true if the blocks and exits of this tile have been loaded
+     */
+    boolean isLoaded() {
+        return loader == null;
+    }
+
+    /**
+     * Load this tile's blocks and exits if they have not been loaded yet.
+     * @throws UncheckedIOException if the tile cannot be loaded
+     */
+    private void ensureLoaded() {
+        if (loader != null) {
+            loader.loadTile(this);
+            if (loader != null) {
+                throw new UncheckedIOException(new IOException(
+                        "Tile was not found where its exits lead"));
+            }
+        } else if (pager != null) {
+            pager.tileUsed(this);
+        }
+    }
+
+    /**
+     * Give this tile its own copy of its blocks, if they are shared, so they
+     * can be changed.
+     */
+    private void ownBlocks() {
+        if (sharedBlocks) {
+            blocks = new LinkedList<>(blocks);
+            sharedBlocks = false;
+        }
+    }
+
+    /**
+     * Tell the listener (if there is one) that this tile has changed.
+     * @param exits true if the exits changed, false if the blocks changed
+     */
+    private void changed(boolean exits) {
+        version++;
+        if (listener != null) {
+            listener.tileChanged(this, exits);
+        }
+    }
+
+    /**
+     * Check whether the top block could be dug from some blocks, by the
+     * rules of tryDig().
+     * @param blocks the blocks on a tile, from the bottom up
+     * @return Outcome.SUCCESS if it could, Outcome.TOO_LOW if there are no
+     *         blocks, or Outcome.INVALID_BLOCK if the top block is not
+     *         diggable
+     */
+    static int digOutcome(List<Block> blocks) {
+        if (blocks.size() == 0) {
+            return Outcome.TOO_LOW;
+        }
+
+        if (!blocks.get(blocks.size() - 1).isDiggable()) {
+            return Outcome.INVALID_BLOCK;
+        }
+        return Outcome.SUCCESS;
+    }
+
+    /**
+     * Check whether the top block of one tile could be moved to another,
+     * by the rules of tryMoveBlock().
+     * @param blocks the blocks on the tile to move from
+     * @param target the blocks on the tile to move to
+     * @return Outcome.SUCCESS if it could, Outcome.TOO_HIGH if the target
+     *         is too high, or Outcome.INVALID_BLOCK if the top block is
+     *         not moveable
+     */
+    static int moveOutcome(List<Block> blocks, List<Block> target) {
+        if (target.size() >= blocks.size()) {
+            return Outcome.TOO_HIGH;
+        }
+
+        // there is a block, because the target has fewer blocks
+        Block block = blocks.get(blocks.size() - 1);
+        if (!block.isMoveable()) {
+            return Outcome.INVALID_BLOCK;
+        }
+
+        // should not be too high, because must be < 8 blocks
+        return placeOutcome(target, block);
+    }
+
+    /**
+     * Check whether a block could be placed on top of some blocks, by the
+     * rules of tryPlaceBlock().
+     * @param blocks the blocks on a tile, from the bottom up
+     * @param block the block to place
+     * @return Outcome.SUCCESS if it could, Outcome.INVALID_BLOCK if the
+     *         block is null, or Outcome.TOO_HIGH if the tile is too high
+     *         for the block
+     */
+    static int placeOutcome(List<Block> blocks, Block block) {
         if (block == null) {
-            throw new InvalidBlockException();
+            return Outcome.INVALID_BLOCK;
         }
 
         if (blocks.size() >= MAX_BLOCKS
                 || (block instanceof GroundBlock
                 && blocks.size() >= MAX_GROUND_BLOCKS)) {
+            return Outcome.TOO_HIGH;
+        }
+        return Outcome.SUCCESS;
+    }
+
+    /**
+     * Check that a list of blocks could be placed on a tile.
+     * @param startingBlocks the blocks to check, from the bottom up
+     * @throws TooHighException if there are more than 8 blocks, or a
+     *                          GroundBlock at an index of 3 or higher
+     */
+    static void checkStartingBlocks(List<Block> startingBlocks)
+            throws TooHighException {
+        if (startingBlocks.size() > MAX_BLOCKS) {
             throw new TooHighException();
         }
 
-        blocks.add(block);
+        // check for ground blocks that are too high
+        for (int i = MAX_GROUND_BLOCKS; i < startingBlocks.size(); i++) {
+            if (startingBlocks.get(i) instanceof GroundBlock) {
+                throw new TooHighException();
+            }
+        }
     }
 
 }
@@ -0,0 +1,15 @@
+package csse2002.block.world;
+
+/**
+ * Receives notice of changes to a {@link Tile Tile}'s blocks or exits.
+ * @serial exclude
+ */
+interface TileListener {
+
+    /**
+     * Called after the blocks or exits of a tile have changed.
+     * @param tile the tile that changed
+     * @param exits true if the exits changed, false if the blocks changed
+     */
+    void tileChanged(Tile tile, boolean exits);
+}
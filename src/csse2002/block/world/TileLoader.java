@@ -0,0 +1,25 @@
+package csse2002.block.world;
+
+/**
+ * Loads the blocks and exits of a {@link Tile Tile} that was created before
+ * its contents were read, for example a tile in a region of a map file
+ * that has not been loaded yet.
+ * @serial exclude
+ */
+interface TileLoader {
+
+    /**
+     * Load the blocks and exits of a tile. The loader must clear itself
+     * from the tile (with Tile.setLoader(null)) before filling in the tile.
+     * @param tile the tile to load
+     * @throws java.io.UncheckedIOException if the tile cannot be loaded
+     */
+    void loadTile(Tile tile);
+
+    /**
+     * Record that a loaded tile has been used, for loaders that unload
+     * tiles which have not been used recently (see Tile.setPager()).
+     * @param tile the tile that was used
+     */
+    void tileUsed(Tile tile);
+}
@@ -0,0 +1,172 @@
+package csse2002.block.world;
+
+/**
+ * The changes a builder has made to a map, so they can be undone and
+ * redone (see WorldMap.setUndoDepth()). <br>
+ * Each change is recorded as the few references needed to reverse it,
+ * never as a copy of any tile: its kind (the primary action that made it),
+ * the tile it was made on, the tile a builder or block moved to, the block
+ * dug, dropped or moved, and the inventory index it was dropped from (or
+ * 1 if a dug block was carried). The changes are kept in a ring of
+ * fixed-size arrays, so recording, undoing and redoing a change each take
+ * constant time, and once depth changes are kept, recording a change
+ * forgets the oldest. <br>
+ * A change is undone by reversing it exactly, without the checks the
+ * builder made when making it, which is only correct while every change
+ * to the tiles since has been recorded (and undone in reverse order).
+ * Recording a change forgets every change that had been undone, as they
+ * can no longer be redone.
+ * @serial exclude
+ */
+final class UndoLog {
+
+    // the most changes kept
+    private final int depth;
+
+    // the changes, oldest first from index first, wrapping around
+    private final int[] kinds;
+    private final Tile[] tiles;
+    private final Tile[] targets;
+    private final Block[] blocks;
+    private final int[] indices;
+    private int first;
+
+    // the number of changes kept, and the number of those not undone
+    private int size;
+    private int done;
+
+    /**
+     * Create an empty log.
+     * @param depth the most changes kept
+     * @require depth &gt; 0
+     */
+    UndoLog(int depth) {
+        this.depth = depth;
+        kinds = new int[depth];
+        tiles = new Tile[depth];
+        targets = new Tile[depth];
+        blocks = new Block[depth];
+        indices = new int[depth];
+    }
+
+    /**
+     * Get the most changes kept.
+     * @return the depth
+     */
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Record a change, forgetting every change that was undone.
+     * @param kind the primary action that made the change
+     * @param tile the tile the change was made on (that the builder moved
+     *         from, for MOVE_BUILDER)
+     * @param target the tile the builder or block moved to, or null
+     * @param block the block dug, dropped or moved, or null
+     * @param index the inventory index of a dropped block, or 1 if a dug
+     *         block was carried
+     */
+    void record(int kind, Tile tile, Tile target, Block block, int index) {
+        size = done;
+        if (size == depth) {
+            first = (first + 1) % depth;
+            size--;
+        }
+
+        int at = (first + size) % depth;
+        kinds[at] = kind;
+        tiles[at] = tile;
+        targets[at] = target;
+        blocks[at] = block;
+        indices[at] = index;
+        size++;
+        done = size;
+    }
+
+    /**
+     * Is there a change that can be undone?
+     * @return true if undo() would undo a change
+     */
+    boolean canUndo() {
+        return done > 0;
+    }
+
+    /**
+     * Is there an undone change that can be redone?
+     * @return true if redo() would redo a change
+     */
+    boolean canRedo() {
+        return done < size;
+    }
+
+    /**
+     * Undo the last change that has not been undone.
+     * @param builder the builder that made the change
+     * @return false if there was no change to undo
+     */
+    boolean undo(Builder builder) {
+        if (!canUndo()) {
+            return false;
+        }
+        done--;
+        int at = (first + done) % depth;
+
+        switch (kinds[at]) {
+            case Action.MOVE_BUILDER:
+                builder.setCurrentTile(tiles[at]);
+                break;
+            case Action.MOVE_BLOCK:
+                targets[at].popBlock();
+                tiles[at].pushBlock(blocks[at]);
+                break;
+            case Action.DIG:
+                if (indices[at] == 1) {
+                    builder.removeFromInventory(
+                            builder.getInventory().size() - 1);
+                }
+                tiles[at].pushBlock(blocks[at]);
+                break;
+            default:
+                tiles[at].popBlock();
+                builder.addToInventory(indices[at], blocks[at]);
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Redo the last change undone.
+     * @param builder the builder that made the change
+     * @return false if there was no change to redo
+     */
+    boolean redo(Builder builder) {
+        if (!canRedo()) {
+            return false;
+        }
+        int at = (first + done) % depth;
+        done++;
+
+        switch (kinds[at]) {
+            case Action.MOVE_BUILDER:
+                builder.setCurrentTile(targets[at]);
+                break;
+            case Action.MOVE_BLOCK:
+                tiles[at].popBlock();
+                targets[at].pushBlock(blocks[at]);
+                break;
+            case Action.DIG:
+                tiles[at].popBlock();
+                if (indices[at] == 1) {
+                    builder.addToInventory(builder.getInventory().size(),
+                            blocks[at]);
+                }
+                break;
+            default:
+                builder.removeFromInventory(indices[at]);
+                tiles[at].pushBlock(blocks[at]);
+                break;
+        }
+        return true;
+    }
+}
@@ -1,14 +1,31 @@
 package csse2002.block.world;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * A class to store a world map.
@@ -28,11 +45,76 @@ public class WorldMap {
     // store the system line separator ("\n", "\r\n" or "\r")
     private static final String LINE_SEP = System.lineSeparator();
 
+    /**
+     * The number of deltas saveDelta() appends before it saves the whole
+     * map again, unless changed with setDeltaLimit().
+     */
+    public static final int DEFAULT_DELTA_LIMIT = 16;
+
+    // tiles changed since the map was last saved or loaded, in the order
+    // they first changed, and the same tiles as a set to look them up in;
+    // several builders may add to both at once
+    private final Queue<Tile> changedTiles = new ConcurrentLinkedQueue<>();
+    private final Set<Tile> changedSet = ConcurrentHashMap.newKeySet();
+
+    // the id of each tile in the file the map was last saved to or loaded
+    // from, or null if it has not been saved or loaded
+    private Map<Tile, Integer> savedTileIds;
+
+    // the file the map was last saved to or loaded from; cleared by
+    // snapshotSaved(), which may run on any thread
+    private volatile String savedFilename;
+
+    // the compression of savedFilename
+    private int savedCompression = MapCompression.NONE;
+
+    // the number of deltas recorded for savedFilename
+    private int deltaCount;
+
+    // the number of deltas to record before saving the whole map again
+    private int deltaLimit = DEFAULT_DELTA_LIMIT;
+
+    // listens to every tile in the map for changes
+    private final TileListener changeTracker = new ChangeTracker();
+
+    // the indexed map file that tiles are still being loaded from, or null
+    // if every tile is in tileArray
+    private IndexedMapFile indexedMap;
+
+    // whether any tile's exits have changed since the map was last loaded
+    // or saved
+    private boolean exitsChanged;
+
+    // the sharded map directory the map was last saved to or loaded from,
+    // or null if it was not
+    private ShardedMapStore shards;
+
+    // the mapped map file that every change to a tile is written to, or
+    // null if there is none; tileArray is null until getTiles() has read
+    // every tile from it
+    private MappedMapFile mappedMap;
+
+    // records the phases of loading and saving
+    private MapStats stats = MapStats.NONE;
+
+    // records the actions performed on this map, or null
+    private ActionStats actionStats;
+
+    // the changes made by the builder that can be undone, or null
+    private UndoLog undoLog;
+
+    // the number of threads saveMap() encodes with
+    private int saveThreads = Runtime.getRuntime().availableProcessors();
+
+    // the smallest map saveMap() encodes with more than one thread
+    private static final int PARALLEL_SAVE_MIN_TILES =
+            2 * ParallelMapWriter.CHUNK_SIZE;
+
     /**
      * A helper class for reading lines. It wraps a BufferedReader
      * and maintains the line number for error reporting.
      */
-    private class LineReader {
+    static class LineReader {
 
         // the buffered reader to use
         private BufferedReader reader;
@@ -40,15 +122,47 @@ public class WorldMap {
         // the number of lines read
         int lineNumber;
 
+        // records the time spent reading lines
+        private MapStats stats;
+
         /**
          * Create a line reader from a BufferedReader.
          * @param reader the BufferedReader to read from
          */
         LineReader(BufferedReader reader) {
+            this(reader, MapStats.NONE);
+        }
+
+        /**
+         * Create a line reader from a BufferedReader, which counts the time
+         * spent reading lines as MapStats.LOAD_LINES.
+         * @param reader the BufferedReader to read from
+         * @param stats the stats to record in
+         */
+        LineReader(BufferedReader reader, MapStats stats) {
             this.reader = reader;
+            this.stats = stats;
             lineNumber = 0;
         }
 
+        /**
+         * Read the next line from the BufferedReader.
+         * @return the line that was read, or null at the end of the file
+         * @throws IOException if BufferedReader.readLine() fails
+         */
+        private String nextLine() throws IOException {
+            int previous = stats.enter(MapStats.LOAD_LINES);
+            try {
+                String line = reader.readLine();
+                if (line != null) {
+                    stats.addLinesRead(1);
+                }
+                return line;
+            } finally {
+                stats.enter(previous);
+            }
+        }
+
         /**
          * Get an error string "Error on line {@literal<line-number>}.
          * @return an error string
@@ -57,6 +171,21 @@ public class WorldMap {
             return "Error on line " + lineNumber + ": ";
         }
 
+        /**
+         * Read a line and return it, or return null at the end of the file.
+         *
+         * @return the line that was read, or null
+         * @throws IOException if BufferedReader.readLine() fails
+         */
+        String readLine() throws IOException {
+            String line = nextLine();
+
+            if (line != null) {
+                lineNumber++;
+            }
+            return line;
+        }
+
         /**
          * Read a line and return it, or throw an
          * exception if the WorldMap file is invalid. If a WorldMapFormat
@@ -87,7 +216,7 @@ public class WorldMap {
          */
         String readLineOrThrow(String errorMsg) throws
                 IOException, WorldMapFormatException {
-            String line = reader.readLine();
+            String line = nextLine();
 
             if (line == null) {
                 throw new WorldMapFormatException(errorOnLine() + errorMsg);
@@ -116,7 +245,7 @@ public class WorldMap {
         void readBlankLineOrThrow(String errorMsgFileEnd,
                                          String errorMsgNotBlank) throws
                 IOException, WorldMapFormatException {
-            String line = reader.readLine();
+            String line = nextLine();
 
             if (line == null) {
                 throw new WorldMapFormatException(errorOnLine()
@@ -142,7 +271,7 @@ public class WorldMap {
          */
         void readEofOrThrow(String errorMsgNotEof) throws
                 IOException, WorldMapFormatException {
-            String line = reader.readLine();
+            String line = nextLine();
 
             if (line != null) {
                 throw new WorldMapFormatException(errorOnLine()
@@ -280,6 +409,36 @@ public class WorldMap {
         reset(startingTile, startPosition, builder);
     }
 
+    /**
+     * Constructs a block world map from tiles whose positions are already
+     * known to be consistent, such as a map image read by
+     * {@link MapCache MapCache}, recording that it was loaded from a map
+     * file so saveDelta() can append to it.
+     * @param startPosition the position of tiles.get(0)
+     * @param builder the builder, standing on tiles.get(0)
+     * @param tiles the tiles, in the order returned by getTiles()
+     * @param positions the position of each tile
+     * @param filename the map file the tiles were loaded from
+     * @param compression the compression of the map file
+     * @param fileIds the id of each tile in the map file
+     * @param deltas the number of deltas recorded for the map file
+     * @require tiles and positions were returned by getTiles() and
+     *          getPositions() for a consistent map
+     */
+    WorldMap(Position startPosition, Builder builder, List<Tile> tiles,
+             List<Position> positions, String filename, int compression,
+             Map<Tile, Integer> fileIds, int deltas) {
+        this.startPosition = startPosition;
+        this.builder = builder;
+        tileArray = new SparseTileArray();
+        tileArray.addValidatedTiles(tiles, positions);
+
+        for (Tile tile : tiles) {
+            tile.setListener(changeTracker);
+        }
+        setSaved(filename, compression, fileIds, deltas);
+    }
+
     /**
      * Gets the builder associated with this block world.
      *
@@ -307,6 +466,11 @@ public class WorldMap {
      * @require position != null
      */
     public Tile getTile(Position position) {
+        if (indexedMap != null) {
+            return indexedMap.getTile(position);
+        } else if (tileArray == null) {
+            return mappedMap.getTile(position);
+        }
         return tileArray.getTile(position);
     }
 
@@ -316,9 +480,18 @@ public class WorldMap {
      * for details). <br>
      * Hint: call SparseTileArray.getTiles().
      *
+     * If the map was loaded from an indexed map file, every region that is
+     * not loaded yet is loaded first, and if it was loaded from a mapped map
+     * file, every tile that has not been read yet is read first.
+     *
      * @return a list of ordered tiles
+     * @throws UncheckedIOException if the map was loaded from an indexed map
+     *         file, and a region cannot be loaded or is inconsistent (or
+     *         from a mapped map file, and a tile record is invalid or
+     *         inconsistent)
      */
     public List<Tile> getTiles() {
+        loadAllRegions();
         return tileArray.getTiles();
     }
 
@@ -368,6 +541,34 @@ public class WorldMap {
      * Note: Files may end with or without a single newline character, but
      * there should not be any blank lines at the end of the file. <br>
      *
+     * The file may also be compressed with deflate or gzip (see
+     * {@link MapCompression MapCompression}); the compression is detected
+     * from the start of the file and the contents are decompressed as they
+     * are read. <br>
+     *
+     * The file may also be an indexed map file written by saveIndexedMap(),
+     * which is detected by its first line. Only the regions around the
+     * starting position are read by the constructor; the other regions are
+     * read when getTile() or a tile's exits first reach them, and are only
+     * checked for consistency when getTiles() loads the whole map. Each
+     * region is checked against its checksum when it is read, and if the
+     * file is unchanged since saveIndexedMap() wrote it, the consistency
+     * check is skipped. <br>
+     *
+     * The filename may also be a sharded map directory written by
+     * saveShardedMap(), which is detected by its manifest. The shards are
+     * read in parallel and each is checked against its checksum. <br>
+     *
+     * The file may also be a mapped map file written by saveMappedMap(),
+     * which is detected by its first bytes. Only its header is read, and
+     * each tile is read from the file the first time it is used. From then
+     * on, every change to a tile is written to the file as it is made, and
+     * force() makes the changes durable. <br>
+     *
+     * If there is a delta file for the map (written by saveDelta()), the
+     * changes it records are applied on top of the tiles and builder read
+     * from the map file. <br>
+     *
      * Tile IDs are the ordering of tiles returned by getTiles()
      * i.e. tile 0 is getTiles().get(0). <br>
      *
@@ -422,7 +623,8 @@ public class WorldMap {
      *                          high (i.e., if the Tile or constructors would
      *                          throw exceptions). </li>
      *                  <li> A file operation throws an IOException that is not
-     *                          a FileNotFoundException </li>
+     *                          a FileNotFoundException (including a
+     *                          compressed file that is corrupt) </li>
      *          </ul></li>
      *     <li> Throw a WorldMapInconsistentException if the format is
      *          correct, but tiles would end up in geometrically impossible
@@ -444,11 +646,64 @@ public class WorldMap {
     public WorldMap(String filename)
             throws WorldMapFormatException, WorldMapInconsistentException,
             FileNotFoundException {
+        this(filename, null);
+    }
+
+    /**
+     * Construct a block world map from the given filename, recording the
+     * time, allocation and counts of each phase of loading in stats. <br>
+     * See the WorldMap(filename) constructor for the format of the file.
+     * The map keeps stats, so later saves are recorded in it too (see
+     * setStats()).
+     *
+     * @param filename the name to load the file from
+     * @param stats the stats to record in, or null to record nothing
+     * @throws WorldMapFormatException if the file is incorrectly formatted
+     * @throws WorldMapInconsistentException if the file is correctly
+     *         formatted, but has inconsistencies (such as overlapping tiles)
+     * @throws FileNotFoundException if the file does not exist
+     * @require filename != null
+     * @ensure the loaded map is geometrically consistent
+     */
+    public WorldMap(String filename, MapStats stats)
+            throws WorldMapFormatException, WorldMapInconsistentException,
+            FileNotFoundException {
+        setStats(stats);
+
+        if (ShardedMapStore.isSharded(filename)) {
+            try {
+                openSharded(filename);
+            } catch (InvalidBlockException e) {
+                throw new WorldMapFormatException(
+                        "An InvalidBlockException would be thrown.");
+            } catch (IOException e) {
+                throw new WorldMapFormatException("Reading a shard would"
+                        + " throw an IOException");
+            } finally {
+                this.stats.exit();
+            }
+            return;
+        }
 
-        LineReader reader = new LineReader(
-                new BufferedReader(new FileReader(filename)));
+        InputStream file = new BufferedInputStream(
+                this.stats.countReads(new FileInputStream(filename)));
 
         try {
+            if (IndexedMapFile.isIndexed(file)) {
+                openIndexed(filename);
+                return;
+            } else if (MappedMapFile.isMapped(file)) {
+                openMapped(filename);
+                return;
+            }
+
+            int compression = MapCompression.detect(file);
+            LineReader reader = new LineReader(new BufferedReader(
+                    new InputStreamReader(this.stats.timeReads(
+                            MapCompression.decompress(file),
+                            MapStats.LOAD_IO))), this.stats);
+            this.stats.enter(MapStats.LOAD_BLOCKS);
+
             // read in starting position
             String xString = reader.readLineOrThrow();
             int x = parseInt(xString, reader.errorOnLine()
@@ -525,6 +780,7 @@ public class WorldMap {
 
 
             // blank line, followed by an exits header
+            this.stats.enter(MapStats.LOAD_EXITS);
             reader.readBlankLineOrThrow("File ends abruptly"
                     + " after tile entries.",
                     "Missing blank line "
@@ -542,7 +798,8 @@ public class WorldMap {
             for (int i = 0; i < numTiles; i++) {
                 String tileExitEntry = reader.readLineOrThrow(
                         "Missing tile under 'exits'");
-                int tileId = addTileExits(tiles, tileExitEntry);
+                int tileId = addTileExits(Arrays.asList(tiles),
+                        tileExitEntry, false);
                 hasExitLine[tileId] = true;
 
             }
@@ -556,10 +813,21 @@ public class WorldMap {
 
             reader.readEofOrThrow("Extra content in file.");
 
-
-            Tile startTile = tiles[0];
-            Builder builder = new Builder(builderName, startTile, inventory);
+            // apply any changes saved since the map file was written
+            this.stats.enter(MapStats.LOAD_DELTAS);
+            List<Tile> tileList = new ArrayList<>(Arrays.asList(tiles));
+            MapDelta.BuilderState builderState =
+                    new MapDelta.BuilderState(builderName, inventory);
+            int deltas = MapDelta.apply(MapDelta.deltaFilename(filename),
+                    tileList, builderState);
+
+            Tile startTile = tileList.get(0);
+            Builder builder = new Builder(builderState.name, startTile,
+                    builderState.inventory);
+            this.stats.enter(MapStats.LOAD_LAYOUT);
             reset(startTile, startPosition, builder);
+            setSaved(filename, compression, tileIds(tileList), deltas);
+            this.stats.addTilesLoaded(tileList.size());
 
         } catch (TooHighException e) {
             throw new WorldMapFormatException("A TooHighException would be "
@@ -573,7 +841,160 @@ public class WorldMap {
         } catch (IOException e) {
             throw new WorldMapFormatException("Readline would throw"
                     + " an IOException");
+        } finally {
+            this.stats.exit();
+            closeQuietly(file);
+        }
+    }
+
+    /**
+     * Limit the number of tiles kept in memory while the map is used a few
+     * regions at a time, for a map loaded from an indexed map file that is
+     * far larger than memory. <br>
+     * Regions are loaded as getTile() or the builder reach them, and when
+     * loading a region takes the map over the limit, the regions used least
+     * recently are unloaded; their tiles load their region again when they
+     * are next used. Regions whose blocks have changed are written back to
+     * a page file next to the map file first (the map file is not changed),
+     * and regions whose exits have changed are kept in memory. The hits,
+     * misses, evictions and write-backs are recorded in the map's stats
+     * (see setStats()), so the limit can be tuned. <br>
+     * The limit has no effect on maps not loaded from an indexed map file,
+     * or once getTiles() (or a save) has loaded the whole map.
+     *
+     * @param tiles the most tiles to keep in memory, or 0 for no limit
+     * @throws IOException if a changed region cannot be written back
+     * @require tiles &gt;= 0
+     */
+    public void setTileLimit(int tiles) throws IOException {
+        if (indexedMap != null) {
+            indexedMap.setTileLimit(tiles);
+        }
+    }
+
+    /**
+     * Get the limit on the number of tiles kept in memory.
+     * @return the limit, or 0 if there is no limit
+     */
+    public int getTileLimit() {
+        return indexedMap == null ? 0 : indexedMap.getTileLimit();
+    }
+
+    /**
+     * Does the map page its tiles in from an indexed map file, or write
+     * each change to a mapped map file?
+     * @return true if the tiles are kept in a file
+     */
+    boolean isFileBacked() {
+        return indexedMap != null || mappedMap != null;
+    }
+
+    /**
+     * Get the stats that loading and saving are recorded in.
+     * @return the stats, or null if nothing is recorded
+     */
+    public MapStats getStats() {
+        return stats == MapStats.NONE ? null : stats;
+    }
+
+    /**
+     * Set the stats that later saves (and loads of indexed map regions) are
+     * recorded in. Saving with saveMap() records the SAVE_ENCODE and
+     * SAVE_IO phases, and the bytes and tiles written.
+     * @param stats the stats to record in, or null to record nothing
+     */
+    public void setStats(MapStats stats) {
+        this.stats = stats == null ? MapStats.NONE : stats;
+        if (indexedMap != null) {
+            indexedMap.setStats(this.stats);
+        }
+        if (mappedMap != null) {
+            mappedMap.setStats(this.stats);
+        }
+    }
+
+    /**
+     * Get the stats that actions performed on this map are recorded in.
+     * @return the stats, or null if nothing is recorded
+     */
+    public ActionStats getActionStats() {
+        return actionStats;
+    }
+
+    /**
+     * Set the stats that actions performed on this map by
+     * Action.processAction() and Action.processActions() (and
+     * ActionPipeline) are recorded in.
+     * @param actionStats the stats to record in, or null to record nothing
+     */
+    public void setActionStats(ActionStats actionStats) {
+        this.actionStats = actionStats;
+    }
+
+    /**
+     * Get the most changes made by the builder that can be undone.
+     * @return the undo depth, or 0 if changes cannot be undone
+     */
+    public int getUndoDepth() {
+        return undoLog == null ? 0 : undoLog.getDepth();
+    }
+
+    /**
+     * Set the most changes made by the builder (moving, digging, dropping
+     * and moving blocks) that can be undone, forgetting any changes that
+     * could be undone or redone before. <br>
+     * Each change is recorded in a few references, not a copy of the
+     * tiles it changed, and undo() and redo() take constant time. Changes
+     * can only be undone while every change to the tiles is made by the
+     * builder, so the tiles must not be changed otherwise (e.g. with
+     * Tile.placeBlock()) while changes are being recorded.
+     * @param depth the most changes that can be undone, or 0 to record no
+     *              changes
+     * @throws IllegalArgumentException if depth &lt; 0
+     */
+    public void setUndoDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Undo depth: " + depth);
         }
+
+        undoLog = depth == 0 ? null : new UndoLog(depth);
+        builder.setUndoLog(undoLog);
+    }
+
+    /**
+     * Is there a change made by the builder that can be undone?
+     * @return true if undo() would undo a change
+     */
+    public boolean canUndo() {
+        return undoLog != null && undoLog.canUndo();
+    }
+
+    /**
+     * Is there an undone change that can be redone?
+     * @return true if redo() would redo a change
+     */
+    public boolean canRedo() {
+        return undoLog != null && undoLog.canRedo();
+    }
+
+    /**
+     * Undo the last change made by the builder that has not been undone,
+     * restoring the tiles, the builder's position and its inventory to
+     * what they were before it. <br>
+     * See setUndoDepth().
+     * @return true if a change was undone, or false if there was none
+     */
+    public boolean undo() {
+        return undoLog != null && undoLog.undo(builder);
+    }
+
+    /**
+     * Redo the last change undone by undo(). Making any other change
+     * forgets the changes that could be redone.
+     * @return true if a change was redone, or false if there was none
+     */
+    public boolean redo() {
+        return undoLog != null && undoLog.redo(builder);
     }
 
     /**
@@ -607,56 +1028,472 @@ public class WorldMap {
      */
     public void saveMap(String filename) throws
             IOException {
+        saveMap(filename, MapCompression.NONE);
+    }
 
+    /**
+     * Saves the WorldMap to a file, compressed with the given compression
+     * at the default compression level. <br>
+     * See saveMap(filename, compression, level).
+     *
+     * @param filename the filename to be written to
+     * @param compression one of MapCompression.NONE, MapCompression.DEFLATE
+     *         or MapCompression.GZIP
+     * @throws IOException if the file cannot be opened or written to.
+     * @require filename != null
+     */
+    public void saveMap(String filename, int compression) throws IOException {
+        saveMap(filename, compression, MapCompression.DEFAULT_LEVEL);
+    }
 
-        // add everything to a string and then write that to a file
-        StringBuilder toWrite = new StringBuilder();
+    /**
+     * Saves the WorldMap to a file, compressed with the given compression
+     * and compression level. <br>
+     * The uncompressed contents are identical to those written by
+     * saveMap(filename), and the file can be read back by the
+     * WorldMap(filename) constructor. <br>
+     * The map is encoded and written one line at a time, so the encoded
+     * map is never held in memory as a whole. Large maps are encoded in
+     * chunks of tiles by getSaveThreads() threads, and the chunks are
+     * written in order, so the file is the same however many threads are
+     * used. <br>
+     * The map is written to a temporary file next to filename, which is
+     * then moved over it, and any delta file is only deleted after that,
+     * so if saving fails the file and its deltas are left as they were.
+     *
+     * @param filename the filename to be written to
+     * @param compression one of MapCompression.NONE, MapCompression.DEFLATE
+     *         or MapCompression.GZIP
+     * @param level the compression level, from 0 (fastest) to 9 (smallest),
+     *         or MapCompression.DEFAULT_LEVEL
+     * @throws IOException if the file cannot be opened or written to.
+     * @throws IllegalArgumentException if compression or level is invalid
+     * @require filename != null
+     */
+    public void saveMap(String filename, int compression, int level)
+            throws IOException {
+        List<Tile> tiles = getTiles();
+        Map<Tile, Integer> tileIds = tileIds(tiles);
+        File target = new File(filename);
+        File temp = new File(target.getAbsoluteFile().getParentFile(),
+                target.getName() + ".tmp");
+        int previous = stats.enter(MapStats.SAVE_ENCODE);
+        try {
+            if (saveThreads > 1 && tiles.size() >= PARALLEL_SAVE_MIN_TILES) {
+                ParallelMapWriter.write(temp.getPath(), compression, level,
+                        encodeHeader(tiles.size()), tiles, tileIds,
+                        saveThreads, stats);
+            } else {
+                try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                        stats.timeWrites(MapCompression.compress(
+                                stats.countWrites(
+                                        new FileOutputStream(temp)),
+                                compression, level), MapStats.SAVE_IO)))) {
+                    writeMap(writer, tiles, tileIds);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        } finally {
+            stats.enter(previous);
+        }
+        Files.move(temp.toPath(), target.toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        stats.addTilesSaved(tiles.size());
 
-        // start position
-        toWrite.append(getStartPosition().getX()).append(LINE_SEP);
-        toWrite.append(getStartPosition().getY()).append(LINE_SEP);
+        // any deltas were for the old contents of the file
+        MapDelta.delete(filename);
 
-        // builder
-        toWrite.append(getBuilder().getName()).append(LINE_SEP);
-        toWrite.append(encodeBlocks(getBuilder().getInventory()));
-        toWrite.append(LINE_SEP);
+        setSaved(filename, compression, tileIds, 0);
+    }
 
+    /**
+     * Take a snapshot of the map, which can be saved later (on any thread)
+     * with the contents the map has now. <br>
+     * The snapshot is a copy, so the map may keep changing while it is
+     * saved. Taking it changes nothing, but once it is saved over the file
+     * the map was last saved to, the map no longer matches that file, so
+     * the next saveDelta() saves the whole map.
+     *
+     * @return a snapshot of the map
+     */
+    public WorldSnapshot snapshot() {
         List<Tile> tiles = getTiles();
+        return new WorldSnapshot(this, getStartPosition(), getBuilder(),
+                tiles, tileIds(tiles));
+    }
 
-        StringBuilder exits = new StringBuilder();
+    /**
+     * Record that a snapshot of the map is being saved to a file. If it is
+     * the file the map was last saved to or loaded from, the map no longer
+     * matches it, so the next saveDelta() saves the whole map. <br>
+     * This may be called from any thread.
+     * @param filename the file the snapshot is saved to
+     */
+    void snapshotSaved(String filename) {
+        String saved = savedFilename;
+        if (saved != null && new File(saved).getAbsoluteFile().toPath()
+                .normalize().equals(new File(filename).getAbsoluteFile()
+                        .toPath().normalize())) {
+            savedFilename = null;
+        }
+    }
 
-        // total tiles
-        toWrite.append("total:").append(tiles.size()).append(LINE_SEP);
+    /**
+     * Saves the WorldMap as an indexed map file with the default region
+     * size. <br>
+     * See saveIndexedMap(filename, regionSize).
+     *
+     * @param filename the filename to be written to
+     * @throws IOException if the file cannot be opened or written to.
+     * @require filename != null
+     */
+    public void saveIndexedMap(String filename) throws IOException {
+        saveIndexedMap(filename, IndexedMapFile.DEFAULT_REGION_SIZE);
+    }
 
-        // tile blocks (and handle tile exits using a second string builder)
+    /**
+     * Saves the WorldMap as an indexed map file, which splits the tiles into
+     * square regions of regionSize by regionSize positions and indexes where
+     * each region is stored in the file. <br>
+     * Loading an indexed map file with the WorldMap(filename) constructor
+     * only reads the regions near the starting position, so large maps open
+     * quickly and the rest is read as the builder moves. <br>
+     * Each region is written with a checksum, and the file records that
+     * the map was consistent when it was written (see the
+     * WorldMap(filename) constructor). <br>
+     * As with saveMap(), the position of the builder is not saved.
+     *
+     * @param filename the filename to be written to
+     * @param regionSize the width and height of each region, in tiles
+     * @throws IOException if the file cannot be opened or written to.
+     * @require filename != null
+     * @require regionSize &gt; 0
+     */
+    public void saveIndexedMap(String filename, int regionSize)
+            throws IOException {
+        List<Tile> tiles = getTiles();
+        IndexedMapFile.write(filename, regionSize, getStartPosition(),
+                getBuilder(), tiles, tileArray.getPositions());
+        MapDelta.delete(filename);
+
+        // deltas are only appended to text map files
+        setSaved(null, MapCompression.NONE, tileIds(tiles), 0);
+    }
+
+    /**
+     * Saves the WorldMap as a mapped map file, which holds each tile in a
+     * fixed size record (see {@link MappedMapFile MappedMapFile}), and
+     * makes the map write every later change to a tile to the file as it
+     * is made, instead of to the file it was loaded from (if it was loaded
+     * from a mapped map file). <br>
+     * Loading a mapped map file with the WorldMap(filename) constructor
+     * takes the same time however large the map is, since tiles are only
+     * read when they are first used, and the loaded map also writes each
+     * change to the file. The builder's inventory is only written by
+     * force(), which also waits until every change is on the storage
+     * device, so changes made since the last force() may be lost if the
+     * program stops. <br>
+     * Only exits named north, east, south or west can be stored, and once
+     * the map is saved, a change to a tile's exits that cannot be written
+     * to the file throws an UncheckedIOException. As with saveMap(), the
+     * position of the builder is not saved.
+     *
+     * @param filename the filename to be written to
+     * @throws IOException if the file cannot be opened or written to, or a
+     *         tile has an exit that cannot be stored
+     * @require filename != null
+     */
+    public void saveMappedMap(String filename) throws IOException {
+        List<Tile> tiles = getTiles();
+        int previous = stats.enter(MapStats.SAVE_IO);
+        try {
+            MappedMapFile mapped = MappedMapFile.create(filename,
+                    getStartPosition(), getBuilder(), tiles,
+                    tileArray.getPositions(), changeTracker, stats);
+            if (mappedMap != null) {
+                mappedMap.close();
+            }
+            mappedMap = mapped;
+        } finally {
+            stats.enter(previous);
+        }
+        MapDelta.delete(filename);
+
+        // deltas are only appended to text map files
+        setSaved(null, MapCompression.NONE, tileIds(tiles), 0);
+    }
+
+    /**
+     * Write the builder's inventory to the mapped map file the map was
+     * loaded from or saved to with saveMappedMap(), and wait until it and
+     * every change to a tile is on the storage device. <br>
+     * Does nothing if the map has no mapped map file.
+     *
+     * @throws IOException if the file cannot be written to
+     */
+    public void force() throws IOException {
+        if (mappedMap != null) {
+            mappedMap.force(getBuilder());
+        }
+    }
+
+    /**
+     * Saves the WorldMap as a sharded map directory with the default region
+     * size. <br>
+     * See saveShardedMap(directory, regionSize).
+     *
+     * @param directory the directory to be written to
+     * @throws IOException if the directory or a file in it cannot be
+     *         created or written to.
+     * @require directory != null
+     */
+    public void saveShardedMap(String directory) throws IOException {
+        saveShardedMap(directory, IndexedMapFile.DEFAULT_REGION_SIZE);
+    }
+
+    /**
+     * Saves the WorldMap as a sharded map directory, which holds one shard
+     * file for each square region of regionSize by regionSize positions,
+     * and a manifest with the starting position, the builder's name and
+     * inventory, and the exits between shards (see
+     * {@link ShardedMapStore ShardedMapStore}). The directory is created
+     * if it does not exist, and the shards are written in parallel (using
+     * getSaveThreads() threads). <br>
+     * If the map was last saved to, or loaded from, the same directory with
+     * the same region size, and no exits have changed since, only the
+     * shards holding tiles that have changed are rewritten. Otherwise every
+     * shard is written, and any other shard files in the directory are
+     * deleted. <br>
+     * As with saveMap(), the position of the builder is not saved.
+     *
+     * @param directory the directory to be written to
+     * @param regionSize the width and height of each shard's region, in
+     *         tiles
+     * @throws IOException if the directory or a file in it cannot be
+     *         created or written to.
+     * @require directory != null
+     * @require regionSize &gt; 0
+     */
+    public void saveShardedMap(String directory, int regionSize)
+            throws IOException {
+        List<Tile> tiles = getTiles();
+        Map<Tile, Integer> tileIds = tileIds(tiles);
+
+        ShardedMapStore store = shards;
+        Collection<Tile> changed = changedTiles;
+        if (store == null || !store.isFor(directory, regionSize)
+                || !directory.equals(savedFilename) || savedTileIds == null
+                || exitsChanged) {
+            store = new ShardedMapStore(directory, regionSize);
+            changed = null;
+        }
+
+        int previous = stats.enter(MapStats.SAVE_ENCODE);
+        try {
+            store.save(getStartPosition(), getBuilder(), tiles,
+                    tileArray.getPositions(), tileIds, changed,
+                    saveThreads);
+        } finally {
+            stats.enter(previous);
+        }
+        stats.addTilesSaved(changed == null ? tiles.size() : changed.size());
+
+        setSaved(directory, MapCompression.NONE, tileIds, 0);
+        shards = store;
+    }
+
+    /**
+     * Find the regions of an indexed map file (written by saveIndexedMap())
+     * that do not match their checksums, without loading the map. <br>
+     * Regions are identified by their region coordinates, so region (rx, ry)
+     * holds the tiles at positions (x, y) with floor(x / regionSize) == rx
+     * and floor(y / regionSize) == ry.
+     *
+     * @param filename the indexed map file to check
+     * @return the coordinates of each corrupt region, in order; empty if
+     *         every region is intact
+     * @throws WorldMapFormatException if the file is not an indexed map file
+     *         with checksums, or its header is incorrectly formatted
+     * @throws IOException if the file cannot be read
+     * @require filename != null
+     */
+    public static List<Position> findCorruptRegions(String filename)
+            throws WorldMapFormatException, IOException {
+        try (InputStream file = new BufferedInputStream(
+                new FileInputStream(filename))) {
+            if (!IndexedMapFile.isIndexed(file)) {
+                throw new WorldMapFormatException("Not an indexed map file");
+            }
+        }
+        return IndexedMapFile.open(filename, null, MapStats.NONE)
+                .findCorruptRegions();
+    }
+
+    /**
+     * Save the changes made to the map since it was last saved to, or
+     * loaded from, the given file. <br>
+     * The blocks and exits of each changed tile, and the builder's name and
+     * inventory, are appended to a delta file next to the map file (see
+     * the WorldMap(filename) constructor), so the time taken depends on
+     * the number of changed tiles rather than on the size of the map. <br>
+     * The whole map is saved instead (with saveMap(), using the
+     * compression of the existing file) if the map was not last saved to
+     * or loaded from filename, or if getDeltaLimit() deltas have already
+     * been saved. This folds the deltas back into the map file and removes
+     * the delta file. <br>
+     * If filename is a sharded map directory, it is saved with
+     * saveShardedMap() instead (with the directory's region size), which
+     * only rewrites the shards of changed tiles. <br>
+     * If filename is the mapped map file the map writes its changes to
+     * (see saveMappedMap()), it already holds every change, so it is only
+     * forced (see force()). <br>
+     * As with saveMap(), the position of the builder is not saved; a
+     * loaded builder always starts on tile 0.
+     *
+     * @param filename the map filename
+     * @throws IOException if the delta file or map file cannot be opened or
+     *         written to.
+     * @require filename != null
+     */
+    public void saveDelta(String filename) throws IOException {
+        if (mappedMap != null && filename.equals(mappedMap.getFilename())) {
+            force();
+            return;
+        } else if (shards != null && filename.equals(savedFilename)) {
+            // a sharded map directory only rewrites its changed shards
+            saveShardedMap(filename, shards.getRegionSize());
+            return;
+        } else if (ShardedMapStore.isSharded(filename)) {
+            saveShardedMap(filename,
+                    ShardedMapStore.readRegionSize(filename));
+            return;
+        }
+        if (!filename.equals(savedFilename) || deltaCount >= deltaLimit) {
+            saveMap(filename, savedCompression);
+            return;
+        }
+
+        List<Tile> newTiles = MapDelta.append(
+                MapDelta.deltaFilename(filename), getBuilder(),
+                savedTileIds, changedTiles);
+
+        for (Tile tile : newTiles) {
+            tile.setListener(changeTracker);
+        }
+        clearChanged();
+        deltaCount++;
+    }
+
+    /**
+     * Get the number of deltas saveDelta() appends to a map file before it
+     * saves the whole map again.
+     * @return the delta limit
+     */
+    public int getDeltaLimit() {
+        return deltaLimit;
+    }
+
+    /**
+     * Set the number of deltas saveDelta() appends to a map file before it
+     * saves the whole map again. A limit of 0 makes every saveDelta() save
+     * the whole map.
+     * @param deltaLimit the new limit
+     * @require deltaLimit &ge; 0
+     */
+    public void setDeltaLimit(int deltaLimit) {
+        this.deltaLimit = deltaLimit;
+    }
+
+    /**
+     * Get the number of threads saveMap() uses to encode large maps.
+     * @return the number of save threads
+     */
+    public int getSaveThreads() {
+        return saveThreads;
+    }
+
+    /**
+     * Set the number of threads saveMap() uses to encode large maps. The
+     * default is the number of available processors. With 1 thread, maps
+     * are encoded and written one line at a time on the calling thread.
+     * @param saveThreads the new number of save threads
+     * @require saveThreads &gt; 0
+     */
+    public void setSaveThreads(int saveThreads) {
+        this.saveThreads = saveThreads;
+    }
+
+    /**
+     * Get the number of tiles changed since the map was last saved or
+     * loaded.
+     * @return the number of changed tiles
+     */
+    public int getChangedTileCount() {
+        return changedSet.size();
+    }
+
+    /**
+     * Forget every changed tile, once the map has been saved or loaded.
+     */
+    private void clearChanged() {
+        changedTiles.clear();
+        changedSet.clear();
+    }
+
+    /**
+     * Write the map in the format given in the WorldMap constructor.
+     * @param writer the writer to write the map to
+     * @param tiles the tiles to write, as returned by getTiles()
+     * @param tileIds the id of each tile, so each exit can be encoded in
+     *         constant time
+     * @throws IOException if writing fails
+     */
+    private void writeMap(Writer writer, List<Tile> tiles,
+                          Map<Tile, Integer> tileIds) throws IOException {
+        writer.write(encodeHeader(tiles.size()));
+
+        // tile blocks
         for (int i = 0; i < tiles.size(); i++) {
-            toWrite.append(encodeTile(tiles.get(i), i));
-            exits.append(encodeExits(tiles, tiles.get(i), i));
+            writer.write(encodeTile(tiles.get(i), i));
         }
-        toWrite.append(LINE_SEP);
+        writer.write(LINE_SEP);
 
         // write exits
-        toWrite.append("exits").append(LINE_SEP);
-        toWrite.append(exits.toString());
-
-        // write the string builder toWrite to a file
-        BufferedWriter writer =
-                new BufferedWriter(new FileWriter(filename));
-        writer.write(toWrite.toString());
+        writer.write("exits" + LINE_SEP);
+        for (int i = 0; i < tiles.size(); i++) {
+            writer.write(encodeExits(tileIds, tiles.get(i), i));
+        }
+    }
 
-        writer.close();
+    /**
+     * Encodes the start of a map file, up to and including the "total:N"
+     * line.
+     * @param tileCount the number of tiles
+     * @return the encoded header
+     */
+    private String encodeHeader(int tileCount) {
+        return getStartPosition().getX() + LINE_SEP
+                + getStartPosition().getY() + LINE_SEP
+                + getBuilder().getName() + LINE_SEP
+                + encodeBlocks(getBuilder().getInventory())
+                + LINE_SEP
+                + "total:" + tileCount + LINE_SEP;
     }
 
     /**
      * Encodes the exits of the given tile as a correctly formatted line to be
      * written to a tileArray file.
      *
-     * @param tiles all the tiles in the tileArray
+     * @param tileIds the id of every tile in the tileArray
      * @param tile the tile to encode the exits of
      * @param id the id of the tile in the file
      * @return an encoded string representing the tile's exits
      */
-    private static String encodeExits(List<Tile> tiles, Tile tile, int id) {
+    static String encodeExits(Map<Tile, Integer> tileIds, Tile tile,
+                              int id) {
         StringBuilder result = new StringBuilder();
         result.append(id).append(" ");
 
@@ -666,7 +1503,8 @@ public class WorldMap {
         for (String exitName : tile.getExits().keySet()) {
             result.append(sep);
             result.append(exitName).append(":");
-            result.append(tiles.indexOf(tile.getExits().get(exitName)));
+            result.append(tileIds.getOrDefault(
+                    tile.getExits().get(exitName), -1));
             sep = ",";
         }
 
@@ -683,7 +1521,7 @@ public class WorldMap {
      * @param id the id of the tile in the file
      * @return the encoded tile
      */
-    private static String encodeTile(Tile tile, int id) {
+    static String encodeTile(Tile tile, int id) {
         return id + " " + encodeBlocks(tile.getBlocks());
     }
 
@@ -693,7 +1531,7 @@ public class WorldMap {
      * @param blocks the list of blocks to be encoded
      * @return the encoded block list
      */
-    private static String encodeBlocks(List<Block> blocks) {
+    static String encodeBlocks(List<Block> blocks) {
 
         if (blocks.size() == 0) {
             return LINE_SEP;
@@ -716,13 +1554,15 @@ public class WorldMap {
      * @param tiles the tiles which can be involved in an exit
      * @param exitString gives the id of the current tile, the exit names for
      *     that tile, and the other tiles which those exits tileArray to
+     * @param replace if true, remove the existing exits of the tile first
      * @return the id of the tile read from the file
      * @throws NoExitException if Tile.addExit throws a NoExitException (should
      *         not be possible).
      * @throws WorldMapFormatException if the tile string is formatted
      *         incorrectly.
      */
-    private static int addTileExits(Tile[] tiles, String exitString)
+    static int addTileExits(List<Tile> tiles, String exitString,
+                            boolean replace)
             throws NoExitException, WorldMapFormatException {
         String[] parts = exitString.split(" ", 3);
 
@@ -746,18 +1586,22 @@ public class WorldMap {
                     + " negative");
         }
 
-        if (tileId >= tiles.length) {
+        if (tileId >= tiles.size()) {
             throw new WorldMapFormatException("Tile id in exit line does "
                     + " not refer to a valid tile");
         }
 
+        Tile current = tiles.get(tileId);
+
+        if (replace) {
+            current.clearExits();
+        }
+
         if (parts[1].equals("")) {
             // no exits on this tile.
             return tileId;
         }
 
-        Tile current = tiles[tileId];
-
         // exit string is the second part
         exitString = parts[1];
 
@@ -806,13 +1650,13 @@ public class WorldMap {
                         + " negative");
             }
 
-            if (otherTileId >= tiles.length) {
+            if (otherTileId >= tiles.size()) {
                 throw new WorldMapFormatException("Tile id in exit line does "
                         + " not refer to a valid tile");
             }
 
 
-            Tile otherTile = tiles[otherTileId];
+            Tile otherTile = tiles.get(otherTileId);
 
             current.addExit(exitName, otherTile);
         }
@@ -828,7 +1672,7 @@ public class WorldMap {
      *                    various blocks
      * @return a list of Blocks
      */
-    private static List<Block> createBlockArray(String blockString)
+    static List<Block> createBlockArray(String blockString)
             throws WorldMapFormatException {
         List<Block> startingBlocks = new ArrayList<>();
 
@@ -855,8 +1699,7 @@ public class WorldMap {
      */
     private static Tile createTile(String blockString) throws TooHighException,
             WorldMapFormatException {
-        List<Block> startingBlocks = createBlockArray(blockString);
-        return new Tile(startingBlocks);
+        return Tile.withColumn(BlockColumns.intern(blockString));
     }
 
     /**
@@ -864,7 +1707,7 @@ public class WorldMap {
      * @param blockType the type of block to be created
      * @return a new block of type blockType
      */
-    private static Block decodeBlock(String blockType) throws
+    static Block decodeBlock(String blockType) throws
             WorldMapFormatException {
         switch (blockType) {
             case "grass":
@@ -881,6 +1724,224 @@ public class WorldMap {
         }
     }
 
+    /**
+     * Build a lookup from each tile to its index in a list of tiles.
+     * @param tiles the tiles
+     * @return a map from tile to index, comparing tiles by identity
+     */
+    private static Map<Tile, Integer> tileIds(List<Tile> tiles) {
+        Map<Tile, Integer> tileIds = new IdentityHashMap<>(tiles.size());
+        for (int i = 0; i < tiles.size(); i++) {
+            tileIds.put(tiles.get(i), i);
+        }
+        return tileIds;
+    }
+
+    /**
+     * Get the position of each tile returned by getTiles().
+     * @return the positions, in the same order as getTiles()
+     */
+    List<Position> getPositions() {
+        loadAllRegions();
+        return tileArray.getPositions();
+    }
+
+    /**
+     * Get the id of each tile in the file the map was last saved to or
+     * loaded from.
+     * @return the tile ids, or null if the map has not been saved or loaded
+     */
+    Map<Tile, Integer> getSavedTileIds() {
+        return savedTileIds;
+    }
+
+    /**
+     * Get the compression of the file the map was last saved to or loaded
+     * from.
+     * @return the compression
+     */
+    int getSavedCompression() {
+        return savedCompression;
+    }
+
+    /**
+     * Get the number of deltas recorded for the file the map was last saved
+     * to or loaded from.
+     * @return the number of deltas
+     */
+    int getDeltaCount() {
+        return deltaCount;
+    }
+
+    /**
+     * Record that the map matches the contents of a file.
+     * @param filename the file the map was saved to or loaded from
+     * @param compression the compression of the file
+     * @param tileIds the id of each tile in the file
+     * @param deltas the number of deltas recorded for the file
+     */
+    private void setSaved(String filename, int compression,
+                          Map<Tile, Integer> tileIds, int deltas) {
+        savedFilename = filename;
+        savedCompression = compression;
+        savedTileIds = tileIds;
+        deltaCount = deltas;
+        clearChanged();
+        exitsChanged = false;
+        shards = null;
+    }
+
+    /**
+     * Open a sharded map directory, reading every shard.
+     * @param directory the sharded map directory
+     * @throws WorldMapFormatException if the manifest or a shard is
+     *         incorrectly formatted
+     * @throws WorldMapInconsistentException if the tiles are inconsistent
+     * @throws InvalidBlockException if the builder's inventory is invalid
+     * @throws IOException if a file cannot be read
+     */
+    private void openSharded(String directory)
+            throws WorldMapFormatException, WorldMapInconsistentException,
+            InvalidBlockException, IOException {
+        stats.enter(MapStats.LOAD_BLOCKS);
+        ShardedMapStore.Contents contents = new ShardedMapStore.Contents();
+        ShardedMapStore store = ShardedMapStore.load(directory,
+                Runtime.getRuntime().availableProcessors(), contents);
+
+        stats.enter(MapStats.LOAD_LAYOUT);
+        Tile startTile = contents.tiles.get(0);
+        reset(startTile, contents.startPosition, new Builder(
+                contents.builderName, startTile, contents.inventory));
+
+        List<Tile> tiles = tileArray.getTiles();
+        if (store.matches(contents.tiles, tiles, tileArray.getPositions())) {
+            setSaved(directory, MapCompression.NONE, tileIds(tiles), 0);
+        } else {
+            // not laid out as saveShardedMap() would, so rewrite every shard
+            setSaved(directory, MapCompression.NONE, null, 0);
+        }
+        shards = store;
+        stats.addTilesLoaded(tiles.size());
+    }
+
+    /**
+     * Open an indexed map file, loading only the regions around the
+     * starting position.
+     * @param filename the indexed map file
+     * @throws WorldMapFormatException if the file is incorrectly formatted
+     * @throws InvalidBlockException if the builder's inventory is invalid
+     * @throws IOException if the file cannot be read
+     */
+    private void openIndexed(String filename) throws WorldMapFormatException,
+            InvalidBlockException, IOException {
+        indexedMap = IndexedMapFile.open(filename, changeTracker, stats);
+        Tile startTile = indexedMap.getStartTile();
+
+        startPosition = indexedMap.getStartPosition();
+        builder = new Builder(indexedMap.getBuilderName(), startTile,
+                indexedMap.getInventory());
+        setSaved(null, MapCompression.NONE, null, 0);
+    }
+
+    /**
+     * Open a mapped map file, reading only its header and builder.
+     * @param filename the mapped map file
+     * @throws WorldMapFormatException if the header or builder is invalid
+     * @throws InvalidBlockException if the builder's inventory is invalid
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    private void openMapped(String filename) throws WorldMapFormatException,
+            InvalidBlockException, IOException {
+        mappedMap = MappedMapFile.open(filename, changeTracker, stats);
+        Tile startTile = mappedMap.getStartTile();
+
+        startPosition = mappedMap.getStartPosition();
+        builder = new Builder(mappedMap.getBuilderName(), startTile,
+                mappedMap.getInventory());
+        setSaved(null, MapCompression.NONE, null, 0);
+    }
+
+    /**
+     * Load every region of the indexed map file the map was loaded from, if
+     * any, or read every tile of the mapped map file it was loaded from,
+     * and place all of the tiles in tileArray.
+     * @throws UncheckedIOException if a region cannot be loaded, or the
+     *         tiles are inconsistent
+     */
+    private void loadAllRegions() {
+        if (indexedMap == null && tileArray == null) {
+            loadAllMapped();
+            return;
+        } else if (indexedMap == null) {
+            return;
+        }
+
+        int previous = stats.enter(MapStats.LOAD_REGIONS);
+        try {
+            indexedMap.loadAll();
+            stats.enter(MapStats.LOAD_LAYOUT);
+            SparseTileArray tiles = new SparseTileArray();
+            if (indexedMap.isValidated() && !exitsChanged) {
+                // every region matched its checksum, so the file is
+                // unchanged since it was written from a consistent map, and
+                // no exits have been changed since it was loaded
+                tiles.addValidatedTiles(indexedMap.getTiles(),
+                        indexedMap.getPositions());
+            } else {
+                tiles.addLinkedTiles(indexedMap.getStartTile(),
+                        startPosition.getX(), startPosition.getY());
+            }
+            tileArray = tiles;
+            indexedMap.release();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (BlockWorldException e) {
+            throw new UncheckedIOException(new IOException(e));
+        } finally {
+            stats.enter(previous);
+        }
+        indexedMap = null;
+    }
+
+    /**
+     * Read every tile of the mapped map file the map was loaded from, and
+     * place them all in tileArray. The tiles keep writing their changes to
+     * the file.
+     * @throws UncheckedIOException if a tile record is invalid, or the
+     *         tiles are inconsistent
+     */
+    private void loadAllMapped() {
+        int previous = stats.enter(MapStats.LOAD_BLOCKS);
+        try {
+            List<Tile> tiles = mappedMap.loadAll();
+            stats.enter(MapStats.LOAD_LAYOUT);
+            SparseTileArray loaded = new SparseTileArray();
+            if (mappedMap.isValidated() && !exitsChanged) {
+                loaded.addValidatedTiles(tiles, mappedMap.getPositions());
+            } else {
+                loaded.addLinkedTiles(tiles.get(0), startPosition.getX(),
+                        startPosition.getY());
+            }
+            tileArray = loaded;
+        } catch (BlockWorldException e) {
+            throw new UncheckedIOException(new IOException(e));
+        } finally {
+            stats.enter(previous);
+        }
+    }
+
+    /**
+     * Close a stream that has been read, ignoring any error on closing.
+     * @param stream the stream to close
+     */
+    private static void closeQuietly(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // nothing useful can be done, the map has already been read
+        }
+    }
+
     /**
      * Reset the WorldMap to a starting state.
      * @param startingTile the starting tile
@@ -897,5 +1958,35 @@ public class WorldMap {
         this.tileArray = new SparseTileArray();
         tileArray.addLinkedTiles(startingTile, startPosition.getX(),
                 startPosition.getY());
+
+        for (Tile tile : tileArray.getTiles()) {
+            tile.setListener(changeTracker);
+        }
+        clearChanged();
+    }
+
+    /**
+     * Records each tile that changes, so saveDelta() knows what to save.
+     * Tiles may be changed by several builders at once (see
+     * {@link ConcurrentBuilders ConcurrentBuilders}), so nothing is locked:
+     * a tile that has already changed is found in a concurrent set, and
+     * only the first change to each tile adds it to the queue.
+     */
+    private class ChangeTracker implements TileListener {
+
+        /**
+         * Remember that a tile has changed.
+         * @param tile the tile that changed
+         * @param exits true if the exits changed
+         */
+        @Override
+        public void tileChanged(Tile tile, boolean exits) {
+            if (!changedSet.contains(tile) && changedSet.add(tile)) {
+                changedTiles.add(tile);
+            }
+            if (exits) {
+                exitsChanged = true;
+            }
+        }
     }
 }
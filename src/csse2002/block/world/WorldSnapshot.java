@@ -0,0 +1,198 @@
+package csse2002.block.world;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An unchangeable copy of the contents of a {@link WorldMap WorldMap}, taken
+ * with WorldMap.snapshot(). <br>
+ * Taking a snapshot only copies the block types and exits of each tile, so
+ * it is quick enough to do between two actions. The snapshot can then be
+ * saved on another thread while the map keeps changing, and the file will
+ * hold the map exactly as it was when the snapshot was taken.
+ * @serial exclude
+ */
+public class WorldSnapshot {
+
+    /**
+     * Told how far a save has got.
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called as a snapshot is written.
+         * @param done the amount of work done so far
+         * @param total the total amount of work
+         */
+        void progress(long done, long total);
+    }
+
+    // store the system line separator ("\n", "\r\n" or "\r")
+    private static final String LINE_SEP = System.lineSeparator();
+
+    // the number of tile lines written between progress reports
+    private static final int PROGRESS_INTERVAL = 4096;
+
+    // the map the snapshot was taken from
+    private final WorldMap map;
+
+    // the starting position
+    private final int startX;
+    private final int startY;
+
+    // the builder
+    private final String builderName;
+    private final String[] inventory;
+
+    // the block types on each tile, by tile id
+    private final String[][] blocks;
+
+    // the exit names and the ids they lead to, by tile id
+    private final String[][] exitNames;
+    private final int[][] exitIds;
+
+    /**
+     * Copy the contents of a map.
+     * @param map the map
+     * @param startPosition the starting position
+     * @param builder the builder
+     * @param tiles the tiles, in the order returned by WorldMap.getTiles()
+     * @param tileIds the id of each tile
+     */
+    WorldSnapshot(WorldMap map, Position startPosition, Builder builder,
+                  List<Tile> tiles, Map<Tile, Integer> tileIds) {
+        this.map = map;
+        startX = startPosition.getX();
+        startY = startPosition.getY();
+        builderName = builder.getName();
+        inventory = blockTypes(builder.getInventory());
+
+        blocks = new String[tiles.size()][];
+        exitNames = new String[tiles.size()][];
+        exitIds = new int[tiles.size()][];
+        for (int i = 0; i < tiles.size(); i++) {
+            Tile tile = tiles.get(i);
+            blocks[i] = blockTypes(tile.getBlocks());
+
+            Map<String, Tile> exits = tile.getExits();
+            exitNames[i] = new String[exits.size()];
+            exitIds[i] = new int[exits.size()];
+            int exit = 0;
+            for (Map.Entry<String, Tile> entry : exits.entrySet()) {
+                exitNames[i][exit] = entry.getKey();
+                exitIds[i][exit] = tileIds.getOrDefault(entry.getValue(), -1);
+                exit++;
+            }
+        }
+    }
+
+    /**
+     * Get the number of tiles in the snapshot.
+     * @return the number of tiles
+     */
+    public int getTileCount() {
+        return blocks.length;
+    }
+
+    /**
+     * Save the snapshot to a file, in the same format and with the same
+     * contents as WorldMap.saveMap() would have written when the snapshot
+     * was taken. <br>
+     * This may be called from any thread. Any delta file for filename is
+     * deleted, as with WorldMap.saveMap(), and if filename is the file the
+     * map was last saved to, its next WorldMap.saveDelta() saves the whole
+     * map.
+     * @param filename the filename to be written to
+     * @param compression one of MapCompression.NONE, MapCompression.DEFLATE
+     *         or MapCompression.GZIP
+     * @param listener told about progress after every few thousand tiles,
+     *         or null
+     * @throws IOException if the file cannot be opened or written to.
+     * @throws IllegalArgumentException if compression is invalid
+     * @require filename != null
+     */
+    public void save(String filename, int compression,
+                     ProgressListener listener) throws IOException {
+        map.snapshotSaved(filename);
+        MapDelta.delete(filename);
+
+        // every tile is written twice, once for blocks and once for exits
+        long total = 2L * blocks.length;
+
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                MapCompression.compress(new FileOutputStream(filename),
+                        compression, MapCompression.DEFAULT_LEVEL)))) {
+            writer.write(startX + LINE_SEP);
+            writer.write(startY + LINE_SEP);
+            writer.write(builderName + LINE_SEP);
+            writer.write(join(inventory) + LINE_SEP);
+            writer.write(LINE_SEP);
+
+            writer.write("total:" + blocks.length + LINE_SEP);
+            for (int i = 0; i < blocks.length; i++) {
+                writer.write(i + " " + join(blocks[i]) + LINE_SEP);
+                reportProgress(listener, i + 1, total);
+            }
+            writer.write(LINE_SEP);
+
+            writer.write("exits" + LINE_SEP);
+            for (int i = 0; i < blocks.length; i++) {
+                StringBuilder line = new StringBuilder();
+                line.append(i).append(' ');
+                for (int exit = 0; exit < exitNames[i].length; exit++) {
+                    if (exit > 0) {
+                        line.append(',');
+                    }
+                    line.append(exitNames[i][exit]).append(':')
+                            .append(exitIds[i][exit]);
+                }
+                writer.write(line.append(LINE_SEP).toString());
+                reportProgress(listener, blocks.length + i + 1, total);
+            }
+        }
+
+        if (listener != null) {
+            listener.progress(total, total);
+        }
+    }
+
+    /**
+     * Tell a listener about progress every PROGRESS_INTERVAL lines.
+     * @param listener the listener, or null
+     * @param done the number of lines written
+     * @param total the total number of lines
+     */
+    private static void reportProgress(ProgressListener listener, long done,
+                                       long total) {
+        if (listener != null && done % PROGRESS_INTERVAL == 0) {
+            listener.progress(done, total);
+        }
+    }
+
+    /**
+     * Get the type of each block in a list.
+     * @param blocks the blocks
+     * @return the block types, in the same order
+     */
+    private static String[] blockTypes(List<Block> blocks) {
+        String[] types = new String[blocks.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = blocks.get(i).getBlockType();
+        }
+        return types;
+    }
+
+    /**
+     * Join block types with commas.
+     * @param types the block types
+     * @return the joined block types
+     */
+    private static String join(String[] types) {
+        return String.join(",", types);
+    }
+}
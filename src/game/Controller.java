@@ -2,6 +2,9 @@ package game;
 
 import csse2002.block.world.*;
 
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.scene.control.Alert;
@@ -14,6 +17,10 @@ import javafx.stage.FileChooser;
 
 import java.io.*;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class to link the View class (which handles all graphical aspects of the
@@ -37,6 +44,19 @@ public class Controller {
     // controls the builder image
     private boolean hatON;
 
+    // the most actions that can be undone with Ctrl+Z
+    private static final int UNDO_DEPTH = 1000;
+
+    // saves maps one at a time in the background. The thread is not a
+    // daemon, so a save still running when the window closes is finished,
+    // and it stops after a second with nothing to save.
+    private ExecutorService saveExecutor = new ThreadPoolExecutor(0, 1,
+            1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    // keeps binary images of opened maps, so reopening a map skips parsing
+    private MapCache mapCache = new MapCache(MapCache.DEFAULT_DIRECTORY,
+            MapCache.DEFAULT_MAX_BYTES);
+
     /**
      * Initialises all the required scenes for the application, the drawer
      * helper class and adds all event handlers to their respective buttons,
@@ -328,6 +348,7 @@ public class Controller {
                 // if creating World Map is successful
                 if (openMap != null) {
                     currentMap = openMap;
+                    currentMap.setUndoDepth(UNDO_DEPTH);
                     currentPos = currentMap.getStartPosition();
                     mapAction = new MapAction(currentMap, currentPos.getX(), currentPos.getY());
 
@@ -338,14 +359,15 @@ public class Controller {
         }
 
         /**
-         * Given a filename, attempts to create a new WorldMap instance. Creates
+         * Given a filename, attempts to create a new WorldMap instance, using
+         * the map cache so a map opened before loads quickly. Creates
          * an alert dialog box if the map is invalid.
          * @return created WorldMap or null if unsuccessful.
          */
         private WorldMap loadMap(String fileName) {
             WorldMap map = null;
             try {
-                map = new WorldMap(fileName);
+                map = mapCache.load(fileName);
             } catch (BlockWorldException | IOException e) {
                 updateAlertMessage("Haha, did you choose\na bad file?");
                 updateStatMessage("");
@@ -361,30 +383,30 @@ public class Controller {
 
         /**
          * Attempts to save the current state of the WorldMap to a .txt file.
-         * Creates an alert dialog box if unsuccessful, or just updates the
-         * alert message if no map has loaded yet.
+         * A snapshot of the map is taken straight away, and written by a
+         * SaveTask in the background so the game can keep being played while
+         * it saves. Creates an alert dialog box if unsuccessful, or just
+         * updates the alert message if no map has loaded yet.
          * @param chooser FileChooser dialog window
          */
         private void saveFile(FileChooser chooser) {
             if (currentMap != null) {
                 File file = chooser.showSaveDialog(null);
-                String extension = null;
+                String extension = "";
 
                 if (file != null) {
-                    try {
-                        // if user did not manually add a .txt to the end of the
-                        // filename
-                        if (!file.toString().endsWith(".txt")) {
-                            extension = ".txt";
-                        }
-                        currentMap.saveMap(file.toString() + extension);
-                    } catch (IOException e) {
-                        updateAlertMessage("Problem Saving File");
-
-                        Alert invalidSave = new Alert(Alert.AlertType.ERROR,
-                                "Something went wrong!", ButtonType.OK);
-                        invalidSave.showAndWait();
+                    // if user did not manually add a .txt to the end of the
+                    // filename
+                    if (!file.toString().endsWith(".txt")) {
+                        extension = ".txt";
                     }
+
+                    SaveTask task = new SaveTask(currentMap.snapshot(),
+                            file.toString() + extension);
+                    task.progressProperty().addListener(
+                            new SaveProgressHandler());
+                    updateAlertMessage("Saving...");
+                    saveExecutor.execute(task);
                 }
             } else {
                 updateAlertMessage("Load a map first\n you dummy!");
@@ -408,6 +430,88 @@ public class Controller {
         }
     }
 
+    /**
+     * Nested private class for saving a snapshot of the map in the background.
+     * The snapshot is written on the save executor's thread, and progress,
+     * success and failure are reported on the JavaFX application thread.
+     */
+    private class SaveTask extends Task<Void> {
+        // the map contents to save
+        private WorldSnapshot snapshot;
+
+        // the file to save to
+        private String fileName;
+
+        /**
+         * Creates a task to save a snapshot to a file.
+         * @param snapshot the map contents to save
+         * @param fileName the file to save to
+         */
+        private SaveTask(WorldSnapshot snapshot, String fileName) {
+            this.snapshot = snapshot;
+            this.fileName = fileName;
+        }
+
+        /**
+         * Writes the snapshot, updating the task progress as it goes.
+         * @return nothing
+         * @throws IOException if the file cannot be written
+         */
+        @Override
+        protected Void call() throws IOException {
+            snapshot.save(fileName, MapCompression.NONE,
+                    new WorldSnapshot.ProgressListener() {
+                        @Override
+                        public void progress(long done, long total) {
+                            updateProgress(done, total);
+                        }
+                    });
+            return null;
+        }
+
+        /**
+         * Lets the user know the map has been saved.
+         */
+        @Override
+        protected void succeeded() {
+            updateAlertMessage("Saved!");
+        }
+
+        /**
+         * Lets the user know the map could not be saved.
+         */
+        @Override
+        protected void failed() {
+            updateAlertMessage("Problem Saving File");
+
+            Alert invalidSave = new Alert(Alert.AlertType.ERROR,
+                    "Something went wrong!", ButtonType.OK);
+            invalidSave.showAndWait();
+        }
+    }
+
+    /**
+     * Nested private class for showing how far a background save has got in
+     * the alert message.
+     */
+    private class SaveProgressHandler implements ChangeListener<Number> {
+
+        /**
+         * Updates the alert message with the percentage saved so far.
+         * @param progress the progress property of the SaveTask
+         * @param oldValue the previous fraction saved
+         * @param newValue the fraction saved now
+         */
+        @Override
+        public void changed(ObservableValue<? extends Number> progress,
+                            Number oldValue, Number newValue) {
+            if (newValue.doubleValue() >= 0 && newValue.doubleValue() < 1) {
+                updateAlertMessage("Saving... "
+                        + (int) (newValue.doubleValue() * 100) + "%");
+            }
+        }
+    }
+
     /**
      * Nested private class for the inventory event handler. Functions include
      * updating the inventory status message and the selected block for any
@@ -518,7 +622,8 @@ public class Controller {
 
     /**
      * Nested private class for the key press events. Maps the WASD keys to the
-     * MOVE_BUILDER action in MapAction. Does not provide a direction for the
+     * MOVE_BUILDER action in MapAction, and Ctrl+Z and Ctrl+Y to undoing and
+     * redoing the last action. Does not provide a direction for the
      * MOVE_BLOCK action even if the button is toggled on.
      */
     public class KeyHandler implements EventHandler<KeyEvent> {
@@ -545,6 +650,16 @@ public class Controller {
                     case A:
                         message = mapAction.moveBuilder("west");
                         break;
+                    case Z:
+                        if (keyPress.isShortcutDown()) {
+                            message = mapAction.undo();
+                        }
+                        break;
+                    case Y:
+                        if (keyPress.isShortcutDown()) {
+                            message = mapAction.redo();
+                        }
+                        break;
                 }
 
                 // updates builder position and view
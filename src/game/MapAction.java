@@ -2,10 +2,7 @@ package game;
 
 import csse2002.block.world.WorldMap;
 import csse2002.block.world.Tile;
-import csse2002.block.world.NoExitException;
-import csse2002.block.world.TooHighException;
-import csse2002.block.world.TooLowException;
-import csse2002.block.world.InvalidBlockException;
+import csse2002.block.world.Outcome;
 
 import java.util.Map;
 
@@ -96,11 +93,11 @@ public class MapAction {
         Map<String, Tile> availableExits = currentMap.getBuilder().getCurrentTile().getExits();
 
         if (availableExits.containsKey(direction)) {
-            try {
-                currentMap.getBuilder().moveTo(availableExits.get(direction));
+            if (currentMap.getBuilder().tryMoveTo(availableExits.get(direction))
+                    == Outcome.SUCCESS) {
                 updatePosition(direction);
                 message = "You moved";
-            } catch (NoExitException e) {
+            } else {
                 message = "Tile too high / low";
             }
         } else {
@@ -119,15 +116,18 @@ public class MapAction {
      */
     public String moveBlock(String direction) {
         String message;
-        try {
-            currentMap.getBuilder().getCurrentTile().moveBlock(direction);
-            message = "You moved a block";
-        } catch (InvalidBlockException e) {
-            message = "Too weak to \nmove that stone block";
-        } catch (TooHighException e) {
-            message = "That tile's\ntoo high";
-        } catch (NoExitException e) {
-            message = "There's no exit\nthat way";
+        switch (currentMap.getBuilder().tryMoveBlock(direction)) {
+            case Outcome.INVALID_BLOCK:
+                message = "Too weak to \nmove that stone block";
+                break;
+            case Outcome.TOO_HIGH:
+                message = "That tile's\ntoo high";
+                break;
+            case Outcome.NO_EXIT:
+                message = "There's no exit\nthat way";
+                break;
+            default:
+                message = "You moved a block";
         }
         return message;
     }
@@ -139,13 +139,15 @@ public class MapAction {
      */
     public String digBlock() {
         String message;
-        try {
-            currentMap.getBuilder().digOnCurrentTile();
-            message = "You dug something \nup.";
-        } catch (InvalidBlockException e) {
-            message = "Too weak to \nremove that block";
-        } catch (TooLowException e) {
-            message = "You might not want \nto dig that";
+        switch (currentMap.getBuilder().tryDigOnCurrentTile()) {
+            case Outcome.INVALID_BLOCK:
+                message = "Too weak to \nremove that block";
+                break;
+            case Outcome.TOO_LOW:
+                message = "You might not want \nto dig that";
+                break;
+            default:
+                message = "You dug something \nup.";
         }
         return message;
     }
@@ -159,18 +161,75 @@ public class MapAction {
      */
     public String dropBlock(int index) {
         String message;
-        try {
-            currentMap.getBuilder().dropFromInventory(index);
-            message = "You dropped something";
-        } catch (InvalidBlockException e) {
-            message = "You can't drop that there";
-        } catch (TooHighException e) {
-            message = "You're getting too high there";
+        switch (currentMap.getBuilder().tryDropFromInventory(index)) {
+            case Outcome.INVALID_BLOCK:
+                message = "You can't drop that there";
+                break;
+            case Outcome.TOO_HIGH:
+                message = "You're getting too high there";
+                break;
+            default:
+                message = "You dropped something";
         }
         selectedInvBlock = -1;
         return message;
     }
 
+    /**
+     * Undoes the last action performed on the world map that changed it, and
+     * has not been undone. Undoing a MOVE_BUILDER action moves the builder
+     * back a step, and the total steps taken are decremented.
+     * @return message indicative of action performance
+     */
+    public String undo() {
+        Tile before = currentMap.getBuilder().getCurrentTile();
+        if (!currentMap.undo()) {
+            return "Nothing to undo";
+        }
+
+        if (currentMap.getBuilder().getCurrentTile() != before) {
+            // followBuilder() counts a step forward, not back
+            followBuilder(before);
+            totalSteps -= 2;
+        }
+        selectedInvBlock = -1;
+        return "You undid that";
+    }
+
+    /**
+     * Redoes the last action undone. Redoing a MOVE_BUILDER action moves the
+     * builder forward a step again, and the total steps taken are incremented.
+     * @return message indicative of action performance
+     */
+    public String redo() {
+        Tile before = currentMap.getBuilder().getCurrentTile();
+        if (!currentMap.redo()) {
+            return "Nothing to redo";
+        }
+
+        if (currentMap.getBuilder().getCurrentTile() != before) {
+            followBuilder(before);
+        }
+        selectedInvBlock = -1;
+        return "You redid that";
+    }
+
+    /**
+     * Changes the x and y co-ordinates of the builder after it was moved
+     * (by undo or redo) from the given tile to its current tile, through the
+     * exit between them. The total number of steps taken is incremented.
+     * @param from the tile the builder was moved from
+     */
+    private void followBuilder(Tile from) {
+        Tile to = currentMap.getBuilder().getCurrentTile();
+        for (Map.Entry<String, Tile> exit : from.getExits().entrySet()) {
+            if (exit.getValue() == to) {
+                updatePosition(exit.getKey());
+                return;
+            }
+        }
+    }
+
     /**
      * Changes the x and y co-ordinates of the builder based on the direction
      * of the exit name. The total number of steps taken is incremented.